@@ -1,16 +1,22 @@
 package com.finfabrik.corda;
 
+import com.finfabrik.corda.schema.FXForwardSchemaV1;
 import com.google.common.collect.ImmutableList;
 import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.LinearState;
 import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
 import net.corda.core.serialization.ConstructorForDeserialization;
+import net.corda.core.serialization.DeprecatedConstructorForDeserialization;
 import net.corda.finance.contracts.Commodity;
 import net.corda.finance.contracts.Tenor;
 
 import java.security.PublicKey;
+import java.time.LocalDate;
 import java.util.Currency;
 import java.util.List;
 import java.util.Objects;
@@ -18,34 +24,77 @@ import java.util.stream.Collectors;
 
 import static net.corda.core.utilities.EncodingUtils.toBase58String;
 
-public class FXForward implements LinearState {
-    private final Amount<Currency> base;
-    private final Amount<Commodity> terms;
+/**
+ * Amounts are stored as quantity plus currency / token code rather than as full {@link Amount}
+ * objects, which keeps the serialised state small. {@link #getBase()} and {@link #getTerms()}
+ * rebuild the amounts on demand.
+ */
+public class FXForward implements LinearState, QueryableState {
+    private final long baseQuantity;
+    private final Currency currency;
+    private final long termsQuantity;
+    private final String tokenCode;
     private final AbstractParty buyer;
     private final AbstractParty seller;
     private final Tenor tenor;
+    private final LocalDate valueDate;
     private final UniqueIdentifier linearId;
 
     @ConstructorForDeserialization
-    public FXForward(Amount<Currency> base, Amount<Commodity> terms, AbstractParty buyer, AbstractParty seller, Tenor tenor, UniqueIdentifier linearId) {
-        this.base = base;
-        this.terms = terms;
+    public FXForward(long baseQuantity, Currency currency, long termsQuantity, String tokenCode, AbstractParty buyer, AbstractParty seller, Tenor tenor, LocalDate valueDate, UniqueIdentifier linearId) {
+        this.baseQuantity = baseQuantity;
+        this.currency = currency;
+        this.termsQuantity = termsQuantity;
+        this.tokenCode = tokenCode;
         this.buyer = buyer;
         this.seller = seller;
         this.tenor = tenor;
+        this.valueDate = valueDate;
         this.linearId = linearId;
     }
 
+    /** Schema version 2 had no value date; those states read back with a null one. */
+    @DeprecatedConstructorForDeserialization(version = 2)
+    public FXForward(long baseQuantity, Currency currency, long termsQuantity, String tokenCode, AbstractParty buyer, AbstractParty seller, Tenor tenor, UniqueIdentifier linearId) {
+        this(baseQuantity, currency, termsQuantity, tokenCode, buyer, seller, tenor, null, linearId);
+    }
+
+    /** Schema version 1 stored full amounts; kept so existing vault states still deserialize. */
+    @DeprecatedConstructorForDeserialization(version = 1)
+    public FXForward(Amount<Currency> base, Amount<Commodity> terms, AbstractParty buyer, AbstractParty seller, Tenor tenor, UniqueIdentifier linearId) {
+        this(base.getQuantity(), base.getToken(), terms.getQuantity(), terms.getToken().getCommodityCode(), buyer, seller, tenor, linearId);
+    }
+
+    public FXForward(Amount<Currency> base, Amount<Commodity> terms, AbstractParty buyer, AbstractParty seller, Tenor tenor, LocalDate valueDate) {
+        this(base.getQuantity(), base.getToken(), terms.getQuantity(), terms.getToken().getCommodityCode(), buyer, seller, tenor, valueDate, new UniqueIdentifier());
+    }
+
     public FXForward(Amount<Currency> base, Amount<Commodity> terms, AbstractParty buyer, AbstractParty seller, Tenor tenor) {
         this(base, terms, buyer, seller, tenor, new UniqueIdentifier());
     }
 
+    public long getBaseQuantity() {
+        return baseQuantity;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    public long getTermsQuantity() {
+        return termsQuantity;
+    }
+
+    public String getTokenCode() {
+        return tokenCode;
+    }
+
     public Amount<Currency> getBase() {
-        return base;
+        return new Amount<>(baseQuantity, currency);
     }
 
     public Amount<Commodity> getTerms() {
-        return terms;
+        return new Amount<>(termsQuantity, TokenDefinitions.of(tokenCode));
     }
 
     public AbstractParty getBuyer() {
@@ -58,6 +107,21 @@ public class FXForward implements LinearState {
 
     public Tenor getTenor() { return tenor; }
 
+    /** Settlement date computed from the trade date and tenor at issue; null for forwards issued before it was stored. */
+    public LocalDate getValueDate() {
+        return valueDate;
+    }
+
+    /** The same forward with its parties replaced, e.g. by their well-known identities for display. */
+    public FXForward withParties(AbstractParty buyer, AbstractParty seller) {
+        return new FXForward(baseQuantity, currency, termsQuantity, tokenCode, buyer, seller, tenor, valueDate, linearId);
+    }
+
+    /** The same forward with {@code baseQuantity} left to settle. */
+    public FXForward withBaseQuantity(long baseQuantity) {
+        return new FXForward(baseQuantity, currency, termsQuantity, tokenCode, buyer, seller, tenor, valueDate, linearId);
+    }
+
     @Override
     public UniqueIdentifier getLinearId() {
         return linearId;
@@ -72,6 +136,29 @@ public class FXForward implements LinearState {
         return getParticipants().stream().map(AbstractParty::getOwningKey).collect(Collectors.toList());
     }
 
+    @Override
+    public PersistentState generateMappedObject(MappedSchema schema) {
+        if (schema instanceof FXForwardSchemaV1) {
+            return new FXForwardSchemaV1.PersistentFXForward(
+                    linearId.getId(),
+                    toBase58String(buyer.getOwningKey()),
+                    toBase58String(seller.getOwningKey()),
+                    baseQuantity,
+                    currency.getCurrencyCode(),
+                    termsQuantity,
+                    tokenCode,
+                    tenor.getName(),
+                    valueDate);
+        } else {
+            throw new IllegalArgumentException("Unrecognised schema " + schema);
+        }
+    }
+
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return ImmutableList.of(new FXForwardSchemaV1());
+    }
+
     @Override
     public String toString() {
         String lenderString;
@@ -90,8 +177,8 @@ public class FXForward implements LinearState {
             borrowerString = toBase58String(borrowerKey);
         }
 
-        return String.format("FXForward(%s): %s owes %s %s %s %s.",
-            this.linearId, borrowerString, lenderString, this.base, this.terms, this.tenor);
+        return String.format("FXForward(%s): %s owes %s %s %s %s value %s.",
+            this.linearId, borrowerString, lenderString, getBase(), getTerms(), this.tenor, this.valueDate);
     }
 
     @Override
@@ -100,16 +187,19 @@ public class FXForward implements LinearState {
             return false;
         }
         FXForward other = (FXForward) obj;
-        return base.equals(other.getBase())
-            && terms.equals(other.getTerms())
+        return baseQuantity == other.getBaseQuantity()
+            && currency.equals(other.getCurrency())
+            && termsQuantity == other.getTermsQuantity()
+            && tokenCode.equals(other.getTokenCode())
             && buyer.equals(other.getBuyer())
             && seller.equals(other.getSeller())
             && tenor.equals(other.getTenor())
+            && Objects.equals(valueDate, other.getValueDate())
             && linearId.equals(other.getLinearId());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(base, terms, buyer, seller, tenor, linearId);
+        return Objects.hash(baseQuantity, currency, termsQuantity, tokenCode, buyer, seller, tenor, valueDate, linearId);
     }
 }
\ No newline at end of file
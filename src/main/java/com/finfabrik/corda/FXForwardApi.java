@@ -1,7 +1,28 @@
 package com.finfabrik.corda;
 
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.export.ExportCursor;
+import com.finfabrik.corda.export.VaultExporter;
+import com.finfabrik.corda.flows.CompressFXForwards;
 import com.finfabrik.corda.flows.IssueFXForward;
+import com.finfabrik.corda.flows.IssueFXSwap;
+import com.finfabrik.corda.json.CashView;
+import com.finfabrik.corda.json.FieldSelection;
+import com.finfabrik.corda.json.ForwardView;
+import com.finfabrik.corda.json.Projections;
 import com.finfabrik.corda.flows.SettleFXForward;
+import com.finfabrik.corda.flows.SettleFXSwap;
+import com.finfabrik.corda.flows.StageSettlement;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.mtm.MtmEngine;
+import com.finfabrik.corda.mtm.MtmView;
+import com.finfabrik.corda.web.AdmissionController;
+import com.finfabrik.corda.web.FlowRetrier;
+import com.finfabrik.corda.web.IdempotencyStore;
+import com.finfabrik.corda.web.PeerDirectory;
+import com.finfabrik.corda.web.VaultVersions;
+import com.finfabrik.corda.web.WebResponses;
+import com.finfabrik.corda.web.WebTracing;
 import com.google.common.collect.ImmutableMap;
 import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.StateAndRef;
@@ -18,12 +39,21 @@ import net.corda.finance.contracts.asset.Cash;
 import net.corda.finance.flows.AbstractCashFlow;
 import net.corda.finance.flows.CashIssueFlow;
 
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Currency;
 import java.util.List;
 import java.util.Map;
@@ -38,10 +68,17 @@ import static net.corda.finance.contracts.GetBalances.getCashBalances;
 public class FXForwardApi {
     private final CordaRPCOps rpcOps;
     private final Party myIdentity;
+    private final PeerDirectory directory;
+    private final VaultVersions vaultVersions;
+    private final FlowRetrier retrier = FlowRetrier.fromSettings();
+    private final AdmissionController admission = AdmissionController.shared();
+    private final IdempotencyStore idempotency = IdempotencyStore.shared();
 
     public FXForwardApi(CordaRPCOps rpcOps) {
         this.rpcOps = rpcOps;
         this.myIdentity = rpcOps.nodeInfo().getLegalIdentities().get(0);
+        this.directory = PeerDirectory.of(rpcOps);
+        this.vaultVersions = VaultVersions.of(rpcOps);
     }
 
     @GET
@@ -55,7 +92,7 @@ public class FXForwardApi {
     @Path("peers")
     @Produces(MediaType.APPLICATION_JSON)
     public Map<String, List<String>> peers() {
-        return ImmutableMap.of("peers", rpcOps.networkMapSnapshot()
+        return ImmutableMap.of("peers", directory.nodes()
                 .stream()
                 .filter(nodeInfo -> !nodeInfo.getLegalIdentities().get(0).equals(myIdentity))
                 .map(it -> it.getLegalIdentities().get(0).getName().getOrganisation())
@@ -65,12 +102,18 @@ public class FXForwardApi {
     @GET
     @Path("contracts")
     @Produces(MediaType.APPLICATION_JSON)
-    public List<FXForward> forwards() {
+    public Response forwards(@Context Request request, @QueryParam(value = "fields") String fields) {
+        final FieldSelection selection = FieldSelection.parse(fields);
+        return vaultVersions.conditionalGet(request, FXForward.class,
+                () -> new Projections(forwardsWithWellKnownParties(), selection));
+    }
+
+    private List<ForwardView> forwardsWithWellKnownParties() {
         List<StateAndRef<FXForward>> statesAndRefs = rpcOps.vaultQuery(FXForward.class).getStates();
 
         return statesAndRefs.stream()
-                .map(stateAndRef -> stateAndRef.getState().getData())
-                .map(state -> {
+                .map(stateAndRef -> {
+                    final FXForward state = stateAndRef.getState().getData();
                     AbstractParty possiblyWellKnownLender = rpcOps.wellKnownPartyFromAnonymous(state.getBuyer());
                     if (possiblyWellKnownLender == null) {
                         possiblyWellKnownLender = state.getBuyer();
@@ -81,39 +124,97 @@ public class FXForwardApi {
                         possiblyWellKnownBorrower = state.getSeller();
                     }
 
-                    return new FXForward(
-                            state.getBase(),
-                            state.getTerms(),
-                            possiblyWellKnownLender,
-                            possiblyWellKnownBorrower,
-                            state.getTenor(),
-                            state.getLinearId());
+                    return new ForwardView(state.withParties(possiblyWellKnownLender, possiblyWellKnownBorrower), stateAndRef.getRef());
                 })
                 .collect(toList());
     }
 
+    @GET
+    @Path("swaps")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response swaps(@Context Request request) {
+        return vaultVersions.conditionalGet(request, FXSwap.class, () -> rpcOps.vaultQuery(FXSwap.class).getStates()
+                .stream()
+                .map(it -> it.getState().getData())
+                .collect(toList()));
+    }
+
+    /** PVs of the open forwards at the latest rates; the book is loaded on the first call. */
+    @GET
+    @Path("mtm")
+    @Produces(MediaType.APPLICATION_JSON)
+    public MtmView mtm(@QueryParam(value = "trades") @DefaultValue("false") boolean trades) {
+        return MtmEngine.of(rpcOps).view(trades);
+    }
+
+    @GET
+    @Path("metrics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Long> metrics() {
+        return Metrics.web().getSnapshot();
+    }
+
     @GET
     @Path("cash")
     @Produces(MediaType.APPLICATION_JSON)
-    public List<StateAndRef<Cash.State>> cash() {
-        return rpcOps.vaultQuery(Cash.State.class).getStates();
+    public Response cash(@Context Request request, @QueryParam(value = "fields") String fields) {
+        final FieldSelection selection = FieldSelection.parse(fields);
+        return vaultVersions.conditionalGet(request, Cash.State.class, () -> new Projections(
+                rpcOps.vaultQuery(Cash.State.class).getStates().stream()
+                        .map(it -> new CashView(it.getState().getData(), it.getRef()))
+                        .collect(toList()),
+                selection));
     }
 
     @GET
     @Path("cash-balances")
     @Produces(MediaType.APPLICATION_JSON)
-    public Map<Currency, Amount<Currency>> cashBalances() {
-        return getCashBalances(rpcOps);
+    public Response cashBalances(@Context Request request) {
+        return vaultVersions.conditionalGet(request, Cash.State.class, () -> getCashBalances(rpcOps));
+    }
+
+    /**
+     * Streams all forward, token or cash states, consumed ones included, as CSV or NDJSON.
+     * Pass the {@code cursor} of the last row received to resume an interrupted export.
+     */
+    @GET
+    @Path("export")
+    public Response export(
+            @QueryParam(value = "type") @DefaultValue("forward") String type,
+            @QueryParam(value = "format") @DefaultValue("ndjson") String format,
+            @QueryParam(value = "cursor") String cursor,
+            @QueryParam(value = "pageSize") @DefaultValue("500") int pageSize) {
+
+        final VaultExporter.Kind kind;
+        final VaultExporter.Format exportFormat;
+        final ExportCursor from;
+        try {
+            kind = VaultExporter.Kind.valueOf(type.toUpperCase());
+            exportFormat = VaultExporter.Format.valueOf(format.toUpperCase());
+            from = cursor == null || cursor.isEmpty() ? null : ExportCursor.parse(cursor);
+        } catch (IllegalArgumentException e) {
+            return Response.status(BAD_REQUEST).entity(e.getMessage()).build();
+        }
+        final VaultExporter exporter = new VaultExporter(rpcOps, pageSize);
+
+        final StreamingOutput body = output -> {
+            final Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            exporter.export(kind, exportFormat, from, out, last -> { });
+            out.flush();
+        };
+        final String mediaType = exportFormat == VaultExporter.Format.CSV ? "text/csv" : "application/x-ndjson";
+        return Response.ok(body, mediaType).build();
     }
 
     @GET
     @Path("issue-currency")
     public Response selfIssueCash(
             @QueryParam(value = "amount") int amount,
-            @QueryParam(value = "currency") String currency) {
+            @QueryParam(value = "currency") String currency,
+            @HeaderParam(value = "Idempotency-Key") String idempotencyKey) {
 
         final Amount<Currency> issueAmount = new Amount<>((long) amount * 100, Currency.getInstance(currency));
-        final List<Party> notaries = rpcOps.notaryIdentities();
+        final List<Party> notaries = directory.notaries();
         if (notaries.isEmpty()) {
             throw new IllegalStateException("Could not find a notary.");
         }
@@ -121,14 +222,20 @@ public class FXForwardApi {
         final OpaqueBytes issueRef = OpaqueBytes.of(new byte[1]);
         final CashIssueFlow.IssueRequest issueRequest = new CashIssueFlow.IssueRequest(issueAmount, issueRef, notary);
 
-        try {
-            final FlowHandle<AbstractCashFlow.Result> flowHandle = rpcOps.startFlowDynamic(CashIssueFlow.class, issueRequest);
-            final AbstractCashFlow.Result result = flowHandle.getReturnValue().get();
-            final String msg = result.getStx().getTx().getOutputStates().get(0).toString();
-            return Response.status(CREATED).entity(msg).build();
-        } catch (Exception e) {
-            return Response.status(BAD_REQUEST).entity(e.getMessage()).build();
-        }
+        final String fingerprint = String.format("issue-currency:%d:%s", amount, currency);
+        return idempotency.execute(idempotencyKey, fingerprint, submission -> {
+            try {
+                final AbstractCashFlow.Result result = admission.run("CashIssueFlow", null, () -> {
+                    final FlowHandle<AbstractCashFlow.Result> flowHandle = rpcOps.startFlowDynamic(CashIssueFlow.class, issueRequest);
+                    submission.flowStarted(flowHandle.getId());
+                    return flowHandle.getReturnValue().get();
+                });
+                final String msg = result.getStx().getTx().getOutputStates().get(0).toString();
+                return Response.status(CREATED).entity(msg).build();
+            } catch (Exception e) {
+                return WebResponses.flowFailure(e);
+            }
+        });
     }
 
     @GET
@@ -139,9 +246,10 @@ public class FXForwardApi {
             @QueryParam(value = "terms") int terms,
             @QueryParam(value = "token") String token,
             @QueryParam(value = "party") String party,
-            @QueryParam(value = "tenor") String tenorStr) {
+            @QueryParam(value = "tenor") String tenorStr,
+            @HeaderParam(value = "Idempotency-Key") String idempotencyKey) {
 
-        final Set<Party> lenderIdentities = rpcOps.partiesFromName(party, false);
+        final Set<Party> lenderIdentities = directory.partiesFromName(party, false);
         if (lenderIdentities.size() != 1) {
             final String errMsg = String.format("Found %d identities for the lender.", lenderIdentities.size());
             throw new IllegalStateException(errMsg);
@@ -149,43 +257,198 @@ public class FXForwardApi {
         final Party buyer = lenderIdentities.iterator().next();
 
       final Amount currencyAmt = new Amount<>((long) base * 100, Currency.getInstance(currency));
-      final Amount tokenAmt = new Amount<>((long)terms, new Commodity(token, token, 0));
+      final Amount tokenAmt = new Amount<>((long)terms, TokenDefinitions.of(token));
 
         Tenor tenor = new Tenor(tenorStr);
-        try {
-            final FlowHandle<SignedTransaction> flowHandle = rpcOps.startFlowDynamic(
-                    IssueFXForward.Initiator.class,
-                currencyAmt, tokenAmt, buyer, tenor, true
-            );
-
-            final SignedTransaction result = flowHandle.getReturnValue().get();
-            final String msg = String.format("Transaction id %s committed to ledger.\n%s",
-                    result.getId(), result.getTx().getOutputStates().get(0));
-            return Response.status(CREATED).entity(msg).build();
-        } catch (Exception e) {
-            return Response.status(BAD_REQUEST).entity(e.getMessage()).build();
-        }
+        final String fingerprint = String.format("issue-contract:%d:%s:%d:%s:%s:%s", base, currency, terms, token, buyer.getName(), tenorStr);
+        return WebTracing.traced("GET /fxforward/issue-contract", trace -> idempotency.execute(idempotencyKey, fingerprint, submission -> {
+            try {
+                final SignedTransaction result = admission.run("IssueFXForward", buyer.getName().toString(), () -> {
+                    final FlowHandle<SignedTransaction> flowHandle = rpcOps.startFlowDynamic(
+                            IssueFXForward.Initiator.class,
+                        currencyAmt, tokenAmt, buyer, tenor, true, trace
+                    );
+                    submission.flowStarted(flowHandle.getId());
+                    return flowHandle.getReturnValue().get();
+                });
+                final String msg = String.format("Transaction id %s committed to ledger.\n%s",
+                        result.getId(), result.getTx().getOutputStates().get(0));
+                return Response.status(CREATED).entity(msg).build();
+            } catch (Exception e) {
+                return WebResponses.flowFailure(e);
+            }
+        }));
     }
 
     @GET
     @Path("settle-contract")
     public Response settleForward(
             @QueryParam(value = "contractId") String contractId,
-            @QueryParam(value = "tokenId") String tokenId
+            @QueryParam(value = "tokenId") String tokenId,
+            @QueryParam(value = "amount") Integer amount,
+            @QueryParam(value = "currency") String currency,
+            @QueryParam(value = "maxInputs") @DefaultValue("0") int maxInputs,
+            @HeaderParam(value = "Idempotency-Key") String idempotencyKey
             ) {
         UniqueIdentifier contract = UniqueIdentifier.Companion.fromString(contractId);
-        UniqueIdentifier token = UniqueIdentifier.Companion.fromString(tokenId);
+        // Without a token id only a settlement staged by stage-contract can be used.
+        UniqueIdentifier token = tokenId == null ? null : UniqueIdentifier.Companion.fromString(tokenId);
+        if (amount != null && currency == null) {
+            return Response.status(BAD_REQUEST).entity("A partial settlement amount needs its currency.").build();
+        }
+        final Amount<Currency> tranche = amount == null ? null : new Amount<>((long) amount * 100, Currency.getInstance(currency));
 
-        try {
-            final FlowHandle flowHandle = rpcOps.startFlowDynamic(
-                    SettleFXForward.Initiator.class,
-                contract, token, true);
+        final String fingerprint = String.format("settle-contract:%s:%s:%s:%s:%d", contractId, tokenId, amount, currency, maxInputs);
+        return WebTracing.traced("GET /fxforward/settle-contract", trace -> idempotency.execute(idempotencyKey, fingerprint, submission -> {
+            try {
+                // The buyer is only known once the flow has loaded the forward, so settlements are
+                // limited globally and per flow type but not per counterparty.
+                final FlowRetrier.Attempt<SignedTransaction> attempt = started -> admission.run("SettleFXForward", null, () -> {
+                    final FlowHandle<SignedTransaction> flowHandle = rpcOps.startFlowDynamic(
+                            SettleFXForward.Initiator.class,
+                        contract, token, true, tranche, maxInputs, trace);
+                    started.flowStarted(flowHandle.getId());
+                    return flowHandle.getReturnValue().get();
+                });
+                // Each attempt is a fresh flow, so cash and token inputs are re-selected after a conflict.
+                // A full settlement is safe to rerun: once the forward is gone a rerun fails to find it.
+                // A partial amount is relative to what is outstanding, so an attempt that committed
+                // before a transient error would be paid again; it is never retried.
+                final SignedTransaction result = tranche == null
+                        ? retrier.call("SettleFXForward", submission, attempt)
+                        : attempt.run(submission);
+
+                final List<FXForward> remaining = result.getTx().outputsOfType(FXForward.class);
+                final String msg = remaining.isEmpty()
+                        ? String.format("forward %s settled with token %s", contractId,
+                                result.getTx().outputsOfType(Token.class).get(0).getLinearId())
+                        : String.format("forward %s partially settled, %s outstanding", contractId, remaining.get(0).getBase());
+                return Response.status(CREATED).entity(msg).build();
+            } catch (Exception e) {
+                return WebResponses.flowFailure(e);
+            }
+        }));
+    }
+
+    @GET
+    @Path("stage-contract")
+    public Response stageForward(@QueryParam(value = "contractId") String contractId) {
+        final UniqueIdentifier contract = UniqueIdentifier.Companion.fromString(contractId);
+        return WebTracing.traced("GET /fxforward/stage-contract", trace -> {
+            try {
+                final SignedTransaction staged = admission.run("StageSettlement", null, () ->
+                        rpcOps.startFlowDynamic(StageSettlement.Initiator.class,
+                                contract, Settings.intSetting("staging.maxCashInputs", 100), trace).getReturnValue().get());
+                return Response.status(CREATED).entity(String.format(
+                        "settlement of forward %s staged as %s with token %s", contractId, staged.getId(),
+                        staged.getTx().outputsOfType(Token.class).get(0).getLinearId())).build();
+            } catch (Exception e) {
+                return WebResponses.flowFailure(e);
+            }
+        });
+    }
+
+    @GET
+    @Path("issue-swap")
+    public Response issueSwap(
+            @QueryParam(value = "nearBase") int nearBase,
+            @QueryParam(value = "farBase") int farBase,
+            @QueryParam(value = "currency") String currency,
+            @QueryParam(value = "terms") int terms,
+            @QueryParam(value = "token") String token,
+            @QueryParam(value = "party") String party,
+            @QueryParam(value = "nearTenor") String nearTenorStr,
+            @QueryParam(value = "farTenor") String farTenorStr,
+            @HeaderParam(value = "Idempotency-Key") String idempotencyKey) {
+
+        final Set<Party> buyerIdentities = directory.partiesFromName(party, false);
+        if (buyerIdentities.size() != 1) {
+            final String errMsg = String.format("Found %d identities for the buyer.", buyerIdentities.size());
+            throw new IllegalStateException(errMsg);
+        }
+        final Party buyer = buyerIdentities.iterator().next();
+
+        final Amount<Currency> nearAmt = new Amount<>((long) nearBase * 100, Currency.getInstance(currency));
+        final Amount<Currency> farAmt = new Amount<>((long) farBase * 100, Currency.getInstance(currency));
+        final Amount<Commodity> tokenAmt = new Amount<>((long) terms, TokenDefinitions.of(token));
+        final Tenor nearTenor = new Tenor(nearTenorStr);
+        final Tenor farTenor = new Tenor(farTenorStr);
+
+        final String fingerprint = String.format("issue-swap:%d:%d:%s:%d:%s:%s:%s:%s",
+                nearBase, farBase, currency, terms, token, buyer.getName(), nearTenorStr, farTenorStr);
+        return WebTracing.traced("GET /fxforward/issue-swap", trace -> idempotency.execute(idempotencyKey, fingerprint, submission -> {
+            try {
+                final SignedTransaction result = admission.run("IssueFXSwap", buyer.getName().toString(), () -> {
+                    final FlowHandle<SignedTransaction> flowHandle = rpcOps.startFlowDynamic(
+                            IssueFXSwap.Initiator.class,
+                            nearAmt, farAmt, tokenAmt, buyer, nearTenor, farTenor, true, trace);
+                    submission.flowStarted(flowHandle.getId());
+                    return flowHandle.getReturnValue().get();
+                });
+                final String msg = String.format("Transaction id %s committed to ledger.\n%s",
+                        result.getId(), result.getTx().getOutputStates().get(0));
+                return Response.status(CREATED).entity(msg).build();
+            } catch (Exception e) {
+                return WebResponses.flowFailure(e);
+            }
+        }));
+    }
+
+    /** Settles the swap's open leg; call it from the node that pays cash on that leg. */
+    @GET
+    @Path("settle-swap")
+    public Response settleSwap(
+            @QueryParam(value = "swapId") String swapId,
+            @QueryParam(value = "tokenId") String tokenId,
+            @HeaderParam(value = "Idempotency-Key") String idempotencyKey) {
+        final UniqueIdentifier swap = UniqueIdentifier.Companion.fromString(swapId);
+        final UniqueIdentifier token = UniqueIdentifier.Companion.fromString(tokenId);
+
+        final String fingerprint = String.format("settle-swap:%s:%s", swapId, tokenId);
+        return WebTracing.traced("GET /fxforward/settle-swap", trace -> idempotency.execute(idempotencyKey, fingerprint, submission -> {
+            try {
+                final SignedTransaction result = retrier.call("SettleFXSwap", submission, started -> admission.run("SettleFXSwap", null, () -> {
+                    final FlowHandle<SignedTransaction> flowHandle = rpcOps.startFlowDynamic(
+                            SettleFXSwap.Initiator.class,
+                            swap, token, trace);
+                    started.flowStarted(flowHandle.getId());
+                    return flowHandle.getReturnValue().get();
+                }));
+
+                final String leg = result.getTx().outputsOfType(FXSwap.class).isEmpty() ? "far" : "near";
+                final String msg = String.format("%s leg of swap %s settled with token %s", leg, swapId, tokenId);
+                return Response.status(CREATED).entity(msg).build();
+            } catch (Exception e) {
+                return WebResponses.flowFailure(e);
+            }
+        }));
+    }
+
+    /** Replaces the open forwards with {@code party} by their net, and reports what was removed. */
+    @GET
+    @Path("compress")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response compress(@QueryParam(value = "party") String party) {
+        final Set<Party> counterparties = directory.partiesFromName(party, false);
+        if (counterparties.size() != 1) {
+            final String errMsg = String.format("Found %d identities for the counterparty.", counterparties.size());
+            throw new IllegalStateException(errMsg);
+        }
+        final Party counterparty = counterparties.iterator().next();
 
-            flowHandle.getReturnValue().get();
-            final String msg = String.format("forward %s settled with token %s", contractId, tokenId);
-            return Response.status(CREATED).entity(msg).build();
+        try {
+            final CompressFXForwards.Report report = admission.run("CompressFXForwards", counterparty.getName().toString(), () ->
+                    rpcOps.startFlowDynamic(CompressFXForwards.Initiator.class, counterparty).getReturnValue().get());
+            return Response.ok(ImmutableMap.builder()
+                    .put("statesBefore", report.getStatesBefore())
+                    .put("statesAfter", report.getStatesAfter())
+                    .put("statesRemoved", report.getStatesRemoved())
+                    .put("baseNotionalRemoved", report.getBaseNotionalRemoved())
+                    .put("termsNotionalRemoved", report.getTermsNotionalRemoved())
+                    .put("txId", String.valueOf(report.getTxId()))
+                    .build()).build();
         } catch (Exception e) {
-            return Response.status(BAD_REQUEST).entity(e.getMessage()).build();
+            return WebResponses.flowFailure(e);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,7 +1,11 @@
 package com.finfabrik.corda;
 
+import com.finfabrik.corda.oracle.FixOf;
+import com.finfabrik.corda.oracle.RateFix;
 import net.corda.core.contracts.*;
 import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.ConstructorForDeserialization;
 import net.corda.core.transactions.LedgerTransaction;
 import net.corda.finance.contracts.asset.Cash;
 
@@ -9,6 +13,7 @@ import java.security.PublicKey;
 import java.util.Currency;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -22,10 +27,70 @@ public class FXForwardContract implements Contract {
     public static final String FORWARD_CONTRACT_ID = "com.finfabrik.corda.FXForwardContract";
 
     public interface Commands extends CommandData {
-        class Issue extends TypeOnlyCommandData implements Commands {
+        /**
+         * Issues a forward. {@code oracleKey} is the key of the rate oracle both parties trust, or null;
+         * every {@link RateFix} in the transaction must be signed with it.
+         */
+        class Issue implements Commands {
+            private final PublicKey oracleKey;
+
+            @ConstructorForDeserialization
+            public Issue(PublicKey oracleKey) {
+                this.oracleKey = oracleKey;
+            }
+
+            public Issue() {
+                this(null);
+            }
+
+            public PublicKey getOracleKey() {
+                return oracleKey;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof Issue && Objects.equals(oracleKey, ((Issue) obj).getOracleKey());
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hashCode(oracleKey);
+            }
         }
         class Settle extends TypeOnlyCommandData implements Commands {
         }
+        class IssueSwap extends TypeOnlyCommandData implements Commands {
+        }
+        class SettleNearLeg extends TypeOnlyCommandData implements Commands {
+        }
+        class SettleFarLeg extends TypeOnlyCommandData implements Commands {
+        }
+
+        /**
+         * Replaces offsetting forwards between two parties with their net. {@code firstPartyKeys} are
+         * the keys of one of the two parties, which tells the contract which side of each forward is whose.
+         */
+        class Compress implements Commands {
+            private final List<PublicKey> firstPartyKeys;
+
+            public Compress(List<PublicKey> firstPartyKeys) {
+                this.firstPartyKeys = firstPartyKeys;
+            }
+
+            public List<PublicKey> getFirstPartyKeys() {
+                return firstPartyKeys;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof Compress && firstPartyKeys.equals(((Compress) obj).getFirstPartyKeys());
+            }
+
+            @Override
+            public int hashCode() {
+                return firstPartyKeys.hashCode();
+            }
+        }
     }
 
     @Override
@@ -34,28 +99,47 @@ public class FXForwardContract implements Contract {
         final Commands commandData = command.getValue();
         final Set<PublicKey> setOfSigners = new HashSet<>(command.getSigners());
         if (commandData instanceof Commands.Issue) {
-            verifyIssue(tx, setOfSigners);
+            verifyIssue(tx, setOfSigners, (Commands.Issue) commandData);
         } else if (commandData instanceof Commands.Settle) {
             verifySettle(tx, setOfSigners);
+        } else if (commandData instanceof Commands.IssueSwap) {
+            verifyIssueSwap(tx, setOfSigners);
+        } else if (commandData instanceof Commands.SettleNearLeg) {
+            verifySettleSwapLeg(tx, setOfSigners, FXSwap.Leg.NEAR);
+        } else if (commandData instanceof Commands.SettleFarLeg) {
+            verifySettleSwapLeg(tx, setOfSigners, FXSwap.Leg.FAR);
+        } else if (commandData instanceof Commands.Compress) {
+            verifyCompress(tx, setOfSigners, (Commands.Compress) commandData);
         } else {
             throw new IllegalArgumentException("Unrecognised command.");
         }
     }
 
-    private Set<PublicKey> keysFromParticipants(FXForward FXForward) {
-        return FXForward
+    private Set<PublicKey> keysFromParticipants(LinearState state) {
+        return state
                 .getParticipants().stream()
                 .map(AbstractParty::getOwningKey)
                 .collect(toSet());
     }
 
-    private void verifyIssue(LedgerTransaction tx, Set<PublicKey> signers) {
+    private void verifyIssue(LedgerTransaction tx, Set<PublicKey> signers, Commands.Issue issue) {
         requireThat(req -> {
             req.using("No inputs should be consumed when issuing an FXForward.",
                     tx.getInputStates().isEmpty());
             req.using("Only one FXForward state should be created when issuing an FXForward.", tx.getOutputStates().size() == 1);
             FXForward FXForward = (FXForward) tx.getOutputStates().get(0);
             req.using("A newly issued FXForward must have a positive amount.", FXForward.getTerms().getQuantity() > 0);
+            req.using("A newly issued FXForward must have a value date.", FXForward.getValueDate() != null);
+            final FixOf pair = new FixOf(FXForward.getCurrency().getCurrencyCode(), FXForward.getTokenCode(), FXForward.getTenor());
+            final List<CommandWithParties<RateFix>> fixes = tx.commandsOfType(RateFix.class);
+            req.using("A rate fix must be for the forward's pair and tenor.",
+                    fixes.stream().allMatch(fix -> fix.getValue().getOf().equals(pair)));
+            final PublicKey oracleKey = issue.getOracleKey();
+            req.using("A rate fix needs the issue command to name the oracle.", fixes.isEmpty() || oracleKey != null);
+            req.using("The oracle cannot be the lender or the borrower.",
+                    oracleKey == null || !keysFromParticipants(FXForward).contains(oracleKey));
+            req.using("A rate fix must be signed by the oracle named in the issue command.",
+                    fixes.stream().allMatch(fix -> fix.getSigners().contains(oracleKey)));
             req.using("The lender and borrower cannot be the same identity.", !FXForward.getSeller().equals(FXForward.getBuyer()));
             req.using("Both lender and borrower together only may sign FXForward issue transaction.",
                     signers.equals(keysFromParticipants(FXForward)));
@@ -91,10 +175,90 @@ public class FXForwardContract implements Contract {
                 req.using("The seller may not change when settling.", inputFXForward.getSeller().equals(outputFXForward.getSeller()));
                 req.using("The buyer may not change when settling.", inputFXForward.getBuyer().equals(outputFXForward.getBuyer()));
                 req.using("The linearId may not change when settling.", inputFXForward.getLinearId().equals(outputFXForward.getLinearId()));
+                req.using("The amount outstanding must fall by exactly the amount paid.",
+                        outputFXForward.equals(inputFXForward.withBaseQuantity(amountToSettle.getQuantity() - sumPaid.getQuantity())));
             }
 
             req.using("Both lender and borrower together only must sign forward settle transaction.", signers.equals(keysFromParticipants(inputFXForward)));
             return null;
         });
     }
+
+    private void verifyIssueSwap(LedgerTransaction tx, Set<PublicKey> signers) {
+        requireThat(req -> {
+            req.using("No inputs should be consumed when issuing an FXSwap.", tx.getInputStates().isEmpty());
+            req.using("Only one FXSwap state should be created when issuing an FXSwap.",
+                    tx.getOutputStates().size() == 1 && tx.outputsOfType(FXSwap.class).size() == 1);
+            FXSwap swap = tx.outputsOfType(FXSwap.class).get(0);
+            req.using("Both legs must have a positive amount.",
+                    swap.getNearBaseQuantity() > 0 && swap.getFarBaseQuantity() > 0 && swap.getTermsQuantity() > 0);
+            req.using("The near and far legs must have different tenors.", !swap.getNearTenor().equals(swap.getFarTenor()));
+            req.using("A newly issued FXSwap cannot have a settled leg.", !swap.isNearSettled());
+            req.using("The buyer and seller cannot be the same identity.", !swap.getSeller().equals(swap.getBuyer()));
+            req.using("Both buyer and seller together only may sign FXSwap issue transaction.",
+                    signers.equals(keysFromParticipants(swap)));
+            return null;
+        });
+    }
+
+    private void verifySettleSwapLeg(LedgerTransaction tx, Set<PublicKey> signers, FXSwap.Leg leg) {
+        requireThat(req -> {
+            List<FXSwap> inputs = tx.inputsOfType(FXSwap.class);
+            req.using("There must be one input swap.", inputs.size() == 1);
+            FXSwap input = inputs.get(0);
+            req.using("The " + leg + " leg must be the swap's open leg.", input.getOpenLeg() == leg);
+
+            List<Cash.State> paid = tx.outputsOfType(Cash.State.class).stream()
+                    .filter(it -> it.getOwner().equals(input.cashReceiver(leg)))
+                    .collect(Collectors.toList());
+            req.using("There must be output cash paid to the recipient.", !paid.isEmpty());
+            req.using("The cash paid must be the leg's full amount.", withoutIssuer(sumCash(paid)).equals(input.baseFor(leg)));
+
+            List<Token> tokens = tx.outputsOfType(Token.class);
+            req.using("The swap's tokens must be delivered.", tokens.size() == 1
+                    && tokens.get(0).getTokenCode().equals(input.getTokenCode())
+                    && tokens.get(0).getQuantity() == input.getTermsQuantity());
+            // Tokens are owned by well-known parties, so only a swap between well-known parties can be matched here;
+            // a confidential swap relies on the payer, which builds the settlement, delivering the tokens to itself.
+            req.using("The swap's tokens must be delivered to the party paying the cash.",
+                    !(input.cashPayer(leg) instanceof Party) || tokens.get(0).getOwner().equals(input.cashPayer(leg)));
+
+            List<FXSwap> outputs = tx.outputsOfType(FXSwap.class);
+            if (leg == FXSwap.Leg.NEAR) {
+                req.using("The near leg settlement must leave the swap open for the far leg.",
+                        outputs.size() == 1 && outputs.get(0).equals(input.withNearSettled()));
+            } else {
+                req.using("There must be no output swap once the far leg has settled.", outputs.isEmpty());
+            }
+
+            req.using("Both buyer and seller together only must sign swap settle transactions.", signers.equals(keysFromParticipants(input)));
+            return null;
+        });
+    }
+
+    private void verifyCompress(LedgerTransaction tx, Set<PublicKey> signers, Commands.Compress compress) {
+        requireThat(req -> {
+            List<FXForward> inputs = tx.inputsOfType(FXForward.class);
+            List<FXForward> outputs = tx.outputsOfType(FXForward.class);
+            req.using("Compression must consume at least two forwards.", inputs.size() >= 2);
+            req.using("Compression may only consume and create forwards.",
+                    tx.getInputStates().size() == inputs.size() && tx.getOutputStates().size() == outputs.size());
+            req.using("Compression must reduce the number of forwards.", outputs.size() < inputs.size());
+
+            Set<PublicKey> firstParty = new HashSet<>(compress.getFirstPartyKeys());
+            Set<PublicKey> inputKeys = inputs.stream().flatMap(it -> keysFromParticipants(it).stream()).collect(toSet());
+            req.using("Every party to the compressed forwards must sign.", signers.equals(inputKeys));
+            req.using("Compressed forwards must be between the same two parties, one on each side.",
+                    inputs.stream().allMatch(it -> firstParty.contains(it.getSeller().getOwningKey()) != firstParty.contains(it.getBuyer().getOwningKey()))
+                    && outputs.stream().allMatch(it -> firstParty.contains(it.getSeller().getOwningKey()) != firstParty.contains(it.getBuyer().getOwningKey())
+                            && inputKeys.containsAll(keysFromParticipants(it))));
+            req.using("Compressed forwards must have value dates.",
+                    inputs.stream().allMatch(it -> it.getValueDate() != null) && outputs.stream().allMatch(it -> it.getValueDate() != null));
+            req.using("Compression must leave at most one forward per currency, token and value date.",
+                    outputs.stream().map(ForwardNetting.Bucket::of).distinct().count() == outputs.size());
+            req.using("Compression must leave every net position unchanged.",
+                    ForwardNetting.net(inputs, firstParty::contains).equals(ForwardNetting.net(outputs, firstParty::contains)));
+            return null;
+        });
+    }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.finfabrik.corda;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.finfabrik.corda.web.GzipEncoding;
 import com.google.common.collect.ImmutableList;
 import net.corda.core.messaging.CordaRPCOps;
 import net.corda.webserver.services.WebServerPluginRegistry;
@@ -11,7 +12,7 @@ import java.util.Map;
 import java.util.function.Function;
 
 public class FXForwardPlugin implements WebServerPluginRegistry {
-    private final List<Function<CordaRPCOps, ?>> webApis = ImmutableList.of(FXForwardApi::new);
+    private final List<Function<CordaRPCOps, ?>> webApis = ImmutableList.of(FXForwardApi::new, rpcOps -> new GzipEncoding());
 
     @Override
     public List<Function<CordaRPCOps, ?>> getWebApis() {
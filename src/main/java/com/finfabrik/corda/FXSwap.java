@@ -0,0 +1,192 @@
+package com.finfabrik.corda;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.LinearState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.ConstructorForDeserialization;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.finance.contracts.Commodity;
+import net.corda.finance.contracts.Tenor;
+
+import java.security.PublicKey;
+import java.util.Currency;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import static net.corda.core.utilities.EncodingUtils.toBase58String;
+
+/**
+ * An FX swap: on the near leg the seller pays {@link #getNearBase()} to the buyer for the tokens,
+ * on the far leg the buyer pays {@link #getFarBase()} back to the seller for the same tokens.
+ *
+ * Both legs are issued in one transaction. Settling the near leg replaces the state with one marked
+ * {@link #isNearSettled()}; settling the far leg consumes it.
+ */
+public class FXSwap implements LinearState {
+    @CordaSerializable
+    public enum Leg {NEAR, FAR}
+
+    private final long nearBaseQuantity;
+    private final long farBaseQuantity;
+    private final Currency currency;
+    private final long termsQuantity;
+    private final String tokenCode;
+    private final AbstractParty buyer;
+    private final AbstractParty seller;
+    private final Tenor nearTenor;
+    private final Tenor farTenor;
+    private final boolean nearSettled;
+    private final UniqueIdentifier linearId;
+
+    @ConstructorForDeserialization
+    public FXSwap(long nearBaseQuantity, long farBaseQuantity, Currency currency, long termsQuantity, String tokenCode,
+                  AbstractParty buyer, AbstractParty seller, Tenor nearTenor, Tenor farTenor, boolean nearSettled,
+                  UniqueIdentifier linearId) {
+        this.nearBaseQuantity = nearBaseQuantity;
+        this.farBaseQuantity = farBaseQuantity;
+        this.currency = currency;
+        this.termsQuantity = termsQuantity;
+        this.tokenCode = tokenCode;
+        this.buyer = buyer;
+        this.seller = seller;
+        this.nearTenor = nearTenor;
+        this.farTenor = farTenor;
+        this.nearSettled = nearSettled;
+        this.linearId = linearId;
+    }
+
+    public FXSwap(Amount<Currency> nearBase, Amount<Currency> farBase, Amount<Commodity> terms,
+                  AbstractParty buyer, AbstractParty seller, Tenor nearTenor, Tenor farTenor) {
+        this(nearBase.getQuantity(), farBase.getQuantity(), nearBase.getToken(), terms.getQuantity(),
+                terms.getToken().getCommodityCode(), buyer, seller, nearTenor, farTenor, false, new UniqueIdentifier());
+    }
+
+    public long getNearBaseQuantity() {
+        return nearBaseQuantity;
+    }
+
+    public long getFarBaseQuantity() {
+        return farBaseQuantity;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    public long getTermsQuantity() {
+        return termsQuantity;
+    }
+
+    public String getTokenCode() {
+        return tokenCode;
+    }
+
+    public Amount<Currency> getNearBase() {
+        return new Amount<>(nearBaseQuantity, currency);
+    }
+
+    public Amount<Currency> getFarBase() {
+        return new Amount<>(farBaseQuantity, currency);
+    }
+
+    public Amount<Commodity> getTerms() {
+        return new Amount<>(termsQuantity, TokenDefinitions.of(tokenCode));
+    }
+
+    public AbstractParty getBuyer() {
+        return buyer;
+    }
+
+    public AbstractParty getSeller() {
+        return seller;
+    }
+
+    public Tenor getNearTenor() {
+        return nearTenor;
+    }
+
+    public Tenor getFarTenor() {
+        return farTenor;
+    }
+
+    public boolean isNearSettled() {
+        return nearSettled;
+    }
+
+    /** The leg the next settlement covers. */
+    public Leg getOpenLeg() {
+        return nearSettled ? Leg.FAR : Leg.NEAR;
+    }
+
+    public Amount<Currency> baseFor(Leg leg) {
+        return leg == Leg.NEAR ? getNearBase() : getFarBase();
+    }
+
+    /** The party that pays cash and receives the tokens on {@code leg}. */
+    public AbstractParty cashPayer(Leg leg) {
+        return leg == Leg.NEAR ? seller : buyer;
+    }
+
+    public AbstractParty cashReceiver(Leg leg) {
+        return leg == Leg.NEAR ? buyer : seller;
+    }
+
+    public FXSwap withNearSettled() {
+        return new FXSwap(nearBaseQuantity, farBaseQuantity, currency, termsQuantity, tokenCode,
+                buyer, seller, nearTenor, farTenor, true, linearId);
+    }
+
+    @Override
+    public UniqueIdentifier getLinearId() {
+        return linearId;
+    }
+
+    @Override
+    public List<AbstractParty> getParticipants() {
+        return ImmutableList.of(buyer, seller);
+    }
+
+    public List<PublicKey> getParticipantKeys() {
+        return getParticipants().stream().map(AbstractParty::getOwningKey).collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FXSwap(%s): %s/%s %s for %s, %s then %s %s, near leg %s.",
+                linearId, describe(seller), describe(buyer), getTerms(), getNearBase(), nearTenor, getFarBase(), farTenor,
+                nearSettled ? "settled" : "open");
+    }
+
+    private static String describe(AbstractParty party) {
+        return party instanceof Party ? ((Party) party).getName().getOrganisation() : toBase58String(party.getOwningKey());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FXSwap)) {
+            return false;
+        }
+        FXSwap other = (FXSwap) obj;
+        return nearBaseQuantity == other.getNearBaseQuantity()
+            && farBaseQuantity == other.getFarBaseQuantity()
+            && currency.equals(other.getCurrency())
+            && termsQuantity == other.getTermsQuantity()
+            && tokenCode.equals(other.getTokenCode())
+            && buyer.equals(other.getBuyer())
+            && seller.equals(other.getSeller())
+            && nearTenor.equals(other.getNearTenor())
+            && farTenor.equals(other.getFarTenor())
+            && nearSettled == other.isNearSettled()
+            && linearId.equals(other.getLinearId());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(nearBaseQuantity, farBaseQuantity, currency, termsQuantity, tokenCode, buyer, seller,
+                nearTenor, farTenor, nearSettled, linearId);
+    }
+}
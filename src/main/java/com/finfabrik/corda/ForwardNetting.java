@@ -0,0 +1,132 @@
+package com.finfabrik.corda;
+
+import java.security.PublicKey;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Net positions of a set of forwards between two parties, by currency, token and value date.
+ *
+ * Positions are seen from the "first" party, the one whose keys {@code isFirstParty} accepts: a
+ * positive base means it pays that much currency on the value date, a positive terms means it
+ * receives that many tokens. Forwards that exactly offset leave no entry.
+ */
+public final class ForwardNetting {
+
+    private ForwardNetting() {
+    }
+
+    public static Map<Bucket, Position> net(Collection<FXForward> forwards, Predicate<PublicKey> isFirstParty) {
+        final Map<Bucket, Position> positions = new HashMap<>();
+        for (FXForward forward : forwards) {
+            final long sign = isFirstParty.test(forward.getSeller().getOwningKey()) ? 1 : -1;
+            positions.merge(Bucket.of(forward),
+                    new Position(sign * forward.getBaseQuantity(), sign * forward.getTermsQuantity()),
+                    Position::plus);
+        }
+        positions.values().removeIf(Position::isFlat);
+        return positions;
+    }
+
+    public static final class Bucket {
+        private final Currency currency;
+        private final String tokenCode;
+        private final LocalDate valueDate;
+
+        public Bucket(Currency currency, String tokenCode, LocalDate valueDate) {
+            this.currency = currency;
+            this.tokenCode = tokenCode;
+            this.valueDate = valueDate;
+        }
+
+        public static Bucket of(FXForward forward) {
+            return new Bucket(forward.getCurrency(), forward.getTokenCode(), forward.getValueDate());
+        }
+
+        public Currency getCurrency() {
+            return currency;
+        }
+
+        public String getTokenCode() {
+            return tokenCode;
+        }
+
+        public LocalDate getValueDate() {
+            return valueDate;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Bucket)) {
+                return false;
+            }
+            Bucket other = (Bucket) obj;
+            return currency.equals(other.currency) && tokenCode.equals(other.tokenCode) && Objects.equals(valueDate, other.valueDate);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(currency, tokenCode, valueDate);
+        }
+
+        @Override
+        public String toString() {
+            return currency + "/" + tokenCode + " " + valueDate;
+        }
+    }
+
+    public static final class Position {
+        private final long base;
+        private final long terms;
+
+        public Position(long base, long terms) {
+            this.base = base;
+            this.terms = terms;
+        }
+
+        public long getBase() {
+            return base;
+        }
+
+        public long getTerms() {
+            return terms;
+        }
+
+        public Position plus(Position other) {
+            return new Position(Math.addExact(base, other.base), Math.addExact(terms, other.terms));
+        }
+
+        public boolean isFlat() {
+            return base == 0 && terms == 0;
+        }
+
+        /** Whether a single forward can carry this position: both legs non-zero and in the same direction. */
+        public boolean isSingleForward() {
+            return (base > 0 && terms > 0) || (base < 0 && terms < 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Position)) {
+                return false;
+            }
+            Position other = (Position) obj;
+            return base == other.base && terms == other.terms;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(base, terms);
+        }
+
+        @Override
+        public String toString() {
+            return "Position(base=" + base + ", terms=" + terms + ")";
+        }
+    }
+}
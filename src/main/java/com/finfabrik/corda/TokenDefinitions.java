@@ -0,0 +1,26 @@
+package com.finfabrik.corda;
+
+import net.corda.finance.contracts.Commodity;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reference data for tokens. States only carry the token code on ledger; the full
+ * {@link Commodity} definition is looked up here and shared by every state that uses it.
+ */
+public final class TokenDefinitions {
+    private static final ConcurrentMap<String, Commodity> DEFINITIONS = new ConcurrentHashMap<>();
+
+    private TokenDefinitions() {
+    }
+
+    public static Commodity of(String code) {
+        return DEFINITIONS.computeIfAbsent(code, TokenDefinitions::define);
+    }
+
+    private static Commodity define(String code) {
+        final Commodity known = Commodity.Companion.getInstance(code);
+        return known != null ? known : new Commodity(code, code, 0);
+    }
+}
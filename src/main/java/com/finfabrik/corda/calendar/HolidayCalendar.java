@@ -0,0 +1,184 @@
+package com.finfabrik.corda.calendar;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Non-business days (weekends plus holidays) for the years {@value #FIRST_YEAR} to {@value #LAST_YEAR},
+ * held as one bit per day and built once when the calendar is loaded. Lookups and rolling work on epoch
+ * days and allocate nothing.
+ *
+ * The holidays themselves are only known for the calendar's covered years; outside them it still
+ * answers, but only for weekends, so callers check {@link #covers} before relying on a date.
+ */
+public final class HolidayCalendar {
+    public static final int FIRST_YEAR = 2000;
+    public static final int LAST_YEAR = 2100;
+
+    private static final long FIRST_DAY = LocalDate.of(FIRST_YEAR, 1, 1).toEpochDay();
+    private static final long END_DAY = LocalDate.of(LAST_YEAR + 1, 1, 1).toEpochDay();
+    private static final String YEARS = "years:";
+
+    private final String name;
+    private final long[] closed;
+    private final int firstCoveredYear;
+    private final int lastCoveredYear;
+    private final long firstCoveredDay;
+    private final long endCoveredDay;
+
+    private HolidayCalendar(String name, long[] closed, int firstCoveredYear, int lastCoveredYear) {
+        this.name = name;
+        this.closed = closed;
+        this.firstCoveredYear = firstCoveredYear;
+        this.lastCoveredYear = lastCoveredYear;
+        this.firstCoveredDay = LocalDate.of(firstCoveredYear, 1, 1).toEpochDay();
+        this.endCoveredDay = LocalDate.of(lastCoveredYear + 1, 1, 1).toEpochDay();
+    }
+
+    /** Closed only at weekends, which holds for every year. */
+    public static HolidayCalendar weekendsOnly(String name) {
+        return of(name, new ArrayList<>());
+    }
+
+    /** {@code holidays} is taken to be complete for every year the calendar can hold. */
+    public static HolidayCalendar of(String name, Collection<LocalDate> holidays) {
+        return of(name, holidays, FIRST_YEAR, LAST_YEAR);
+    }
+
+    /** {@code holidays} is complete for {@code firstCoveredYear} to {@code lastCoveredYear} only. */
+    public static HolidayCalendar of(String name, Collection<LocalDate> holidays, int firstCoveredYear, int lastCoveredYear) {
+        if (firstCoveredYear < FIRST_YEAR || lastCoveredYear > LAST_YEAR || firstCoveredYear > lastCoveredYear) {
+            throw new IllegalArgumentException(String.format(
+                    "Calendar %s cannot cover %d to %d.", name, firstCoveredYear, lastCoveredYear));
+        }
+        final long[] closed = new long[(int) ((END_DAY - FIRST_DAY + 63) / 64)];
+        for (long day = FIRST_DAY; day < END_DAY; day++) {
+            // Epoch day 0 was a Thursday, so this is 0 for Monday through 6 for Sunday.
+            if (Math.floorMod(day + 3, 7) >= 5) {
+                set(closed, day);
+            }
+        }
+        for (LocalDate holiday : holidays) {
+            final long day = holiday.toEpochDay();
+            if (day >= FIRST_DAY && day < END_DAY) {
+                set(closed, day);
+            }
+        }
+        return new HolidayCalendar(name, closed, firstCoveredYear, lastCoveredYear);
+    }
+
+    /**
+     * Reads one ISO date ({@code 2026-12-25}) per line; blank lines and {@code #} comments are ignored.
+     * A {@code years: 2026-2027} line gives the years the dates are complete for. Without one, the
+     * calendar covers the years from its first holiday to its last, or every year if it lists none.
+     */
+    public static HolidayCalendar parse(String name, BufferedReader reader) throws IOException {
+        final List<LocalDate> holidays = new ArrayList<>();
+        int firstCoveredYear = 0;
+        int lastCoveredYear = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final int comment = line.indexOf('#');
+            final String entry = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (entry.startsWith(YEARS)) {
+                final String[] range = entry.substring(YEARS.length()).trim().split("-");
+                if (range.length != 2) {
+                    throw new IllegalArgumentException(String.format("Calendar %s has a bad year range: %s", name, line));
+                }
+                firstCoveredYear = Integer.parseInt(range[0].trim());
+                lastCoveredYear = Integer.parseInt(range[1].trim());
+            } else if (!entry.isEmpty()) {
+                holidays.add(LocalDate.parse(entry));
+            }
+        }
+        if (firstCoveredYear == 0) {
+            if (holidays.isEmpty()) {
+                return of(name, holidays);
+            }
+            firstCoveredYear = LAST_YEAR;
+            lastCoveredYear = FIRST_YEAR;
+            for (LocalDate holiday : holidays) {
+                firstCoveredYear = Math.min(firstCoveredYear, holiday.getYear());
+                lastCoveredYear = Math.max(lastCoveredYear, holiday.getYear());
+            }
+        }
+        return of(name, holidays, firstCoveredYear, lastCoveredYear);
+    }
+
+    /** A calendar closed whenever either this one or {@code other} is, covering the years both cover. */
+    public HolidayCalendar join(HolidayCalendar other) {
+        final long[] joint = closed.clone();
+        for (int i = 0; i < joint.length; i++) {
+            joint[i] |= other.closed[i];
+        }
+        final int first = Math.max(firstCoveredYear, other.firstCoveredYear);
+        final int last = Math.min(lastCoveredYear, other.lastCoveredYear);
+        if (first > last) {
+            throw new IllegalArgumentException(String.format("Calendars %s (%d to %d) and %s (%d to %d) share no years.",
+                    name, firstCoveredYear, lastCoveredYear, other.name, other.firstCoveredYear, other.lastCoveredYear));
+        }
+        return new HolidayCalendar(name + "+" + other.name, joint, first, last);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getFirstCoveredYear() {
+        return firstCoveredYear;
+    }
+
+    public int getLastCoveredYear() {
+        return lastCoveredYear;
+    }
+
+    /** Whether the calendar's holidays are known for the year of {@code epochDay}. */
+    public boolean covers(long epochDay) {
+        return epochDay >= firstCoveredDay && epochDay < endCoveredDay;
+    }
+
+    public boolean isBusinessDay(LocalDate date) {
+        return isBusinessDay(date.toEpochDay());
+    }
+
+    public boolean isBusinessDay(long epochDay) {
+        if (epochDay < FIRST_DAY || epochDay >= END_DAY) {
+            throw new IllegalArgumentException(String.format(
+                    "Calendar %s only covers %d to %d.", name, FIRST_YEAR, LAST_YEAR));
+        }
+        final int index = (int) (epochDay - FIRST_DAY);
+        return (closed[index >>> 6] & (1L << index)) == 0;
+    }
+
+    /** The first business day on or after {@code epochDay}. */
+    public long following(long epochDay) {
+        while (!isBusinessDay(epochDay)) {
+            epochDay++;
+        }
+        return epochDay;
+    }
+
+    /** The last business day on or before {@code epochDay}. */
+    public long preceding(long epochDay) {
+        while (!isBusinessDay(epochDay)) {
+            epochDay--;
+        }
+        return epochDay;
+    }
+
+    public long addBusinessDays(long epochDay, int days) {
+        for (int i = 0; i < days; i++) {
+            epochDay = following(epochDay + 1);
+        }
+        return epochDay;
+    }
+
+    private static void set(long[] bits, long epochDay) {
+        final int index = (int) (epochDay - FIRST_DAY);
+        bits[index >>> 6] |= 1L << index;
+    }
+}
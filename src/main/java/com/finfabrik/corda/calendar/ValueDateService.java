@@ -0,0 +1,69 @@
+package com.finfabrik.corda.calendar;
+
+import com.finfabrik.corda.config.Settings;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.finance.contracts.Tenor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-side {@link ValueDates}. The calendar for a code is read from {@code <calendars.dir>/<CODE>.txt}
+ * (default directory {@code calendars}, relative to the node), then from the bundled
+ * {@code /calendars/<CODE>.txt}; codes with neither, such as most tokens, only close at weekends.
+ */
+@CordaService
+public class ValueDateService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(ValueDateService.class);
+
+    private final Path directory = Paths.get(Settings.stringSetting("calendars.dir", "calendars"));
+    private final Map<String, HolidayCalendar> calendars = new ConcurrentHashMap<>();
+    private final ValueDates valueDates = new ValueDates(code -> calendars.computeIfAbsent(code, this::load));
+
+    public ValueDateService(AppServiceHub serviceHub) {
+    }
+
+    public LocalDate valueDate(LocalDate tradeDate, Tenor tenor, String base, String terms) {
+        return valueDates.valueDate(tradeDate, tenor, base, terms);
+    }
+
+    public ValueDates getValueDates() {
+        return valueDates;
+    }
+
+    private HolidayCalendar load(String code) {
+        final String fileName = code + ".txt";
+        try {
+            final Path file = directory.resolve(fileName);
+            if (Files.isRegularFile(file)) {
+                logger.info("Loading {} holidays from {}", code, file.toAbsolutePath());
+                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    return HolidayCalendar.parse(code, reader);
+                }
+            }
+            try (InputStream bundled = ValueDateService.class.getResourceAsStream("/calendars/" + fileName)) {
+                if (bundled != null) {
+                    return HolidayCalendar.parse(code, new BufferedReader(new InputStreamReader(bundled, StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the " + code + " holiday calendar.", e);
+        }
+        logger.info("No holiday calendar for {}; only weekends are closed.", code);
+        return HolidayCalendar.weekendsOnly(code);
+    }
+}
@@ -0,0 +1,91 @@
+package com.finfabrik.corda.calendar;
+
+import com.google.common.collect.ImmutableSet;
+import net.corda.finance.contracts.Tenor;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a trade date and tenor into a value date for a currency pair.
+ *
+ * Spot is two business days after the trade date, one for the USD pairs that settle T+1. Day and
+ * week tenors are added to spot and rolled to the following business day. Month and year tenors use
+ * modified following, and a spot date on the last business day of its month maps to the last business
+ * day of the target month. Business days are those open on the calendars of both codes in the pair.
+ * A date outside the years both calendars cover is refused rather than rolled on weekends alone.
+ */
+public class ValueDates {
+    private static final Pattern TENOR = Pattern.compile("(\\d+)([DWMY])");
+    private static final Set<String> T_PLUS_ONE = ImmutableSet.of("CAD", "TRY", "RUB", "PHP");
+
+    private final Function<String, HolidayCalendar> calendars;
+    private final Map<String, HolidayCalendar> jointCalendars = new ConcurrentHashMap<>();
+
+    /** {@code calendars} returns the calendar for a currency or token code; it is called once per pair. */
+    public ValueDates(Function<String, HolidayCalendar> calendars) {
+        this.calendars = calendars;
+    }
+
+    public LocalDate spotDate(LocalDate tradeDate, String base, String terms) {
+        final HolidayCalendar calendar = calendar(base, terms);
+        return covered(calendar, LocalDate.ofEpochDay(calendar.addBusinessDays(tradeDate.toEpochDay(), spotLag(base, terms))));
+    }
+
+    public LocalDate valueDate(LocalDate tradeDate, Tenor tenor, String base, String terms) {
+        final Matcher matcher = TENOR.matcher(tenor.getName());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(String.format("Unsupported tenor %s.", tenor.getName()));
+        }
+        final int count = Integer.parseInt(matcher.group(1));
+        final HolidayCalendar calendar = calendar(base, terms);
+        final long spot = calendar.addBusinessDays(tradeDate.toEpochDay(), spotLag(base, terms));
+
+        switch (matcher.group(2)) {
+            case "D":
+                return covered(calendar, LocalDate.ofEpochDay(calendar.following(spot + count)));
+            case "W":
+                return covered(calendar, LocalDate.ofEpochDay(calendar.following(spot + 7L * count)));
+            default:
+                final int months = matcher.group(2).equals("Y") ? 12 * count : count;
+                return covered(calendar, monthsFromSpot(calendar, LocalDate.ofEpochDay(spot), months));
+        }
+    }
+
+    private static LocalDate covered(HolidayCalendar calendar, LocalDate date) {
+        if (!calendar.covers(date.toEpochDay())) {
+            throw new IllegalArgumentException(String.format(
+                    "%s falls outside %s, whose holidays are only listed for %d to %d; extend <calendars.dir>/<CODE>.txt.",
+                    date, calendar.getName(), calendar.getFirstCoveredYear(), calendar.getLastCoveredYear()));
+        }
+        return date;
+    }
+
+    private static LocalDate monthsFromSpot(HolidayCalendar calendar, LocalDate spot, int months) {
+        final YearMonth spotMonth = YearMonth.from(spot);
+        final YearMonth target = spotMonth.plusMonths(months);
+        final long targetMonthEnd = target.atEndOfMonth().toEpochDay();
+
+        if (spot.toEpochDay() == calendar.preceding(spotMonth.atEndOfMonth().toEpochDay())) {
+            return LocalDate.ofEpochDay(calendar.preceding(targetMonthEnd));
+        }
+        final long rolled = calendar.following(spot.plusMonths(months).toEpochDay());
+        return LocalDate.ofEpochDay(rolled <= targetMonthEnd ? rolled : calendar.preceding(targetMonthEnd));
+    }
+
+    private static int spotLag(String base, String terms) {
+        final boolean usd = base.equals("USD") || terms.equals("USD");
+        return usd && (T_PLUS_ONE.contains(base) || T_PLUS_ONE.contains(terms)) ? 1 : 2;
+    }
+
+    private HolidayCalendar calendar(String base, String terms) {
+        return jointCalendars.computeIfAbsent(base + "/" + terms,
+                pair -> calendars.apply(base).join(calendars.apply(terms)));
+    }
+}
@@ -0,0 +1,35 @@
+package com.finfabrik.corda.config;
+
+import java.time.Duration;
+
+/**
+ * CorDapp and webserver tuning knobs, read from {@code -Dfxforward.*} system properties so
+ * they can be set per node in the node's or webserver's JVM arguments.
+ */
+public final class Settings {
+    private static final String PREFIX = "fxforward.";
+
+    private Settings() {
+    }
+
+    public static int intSetting(String key, int defaultValue) {
+        return Integer.getInteger(PREFIX + key, defaultValue);
+    }
+
+    public static long longSetting(String key, long defaultValue) {
+        return Long.getLong(PREFIX + key, defaultValue);
+    }
+
+    public static boolean booleanSetting(String key, boolean defaultValue) {
+        final String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public static Duration millisSetting(String key, long defaultMillis) {
+        return Duration.ofMillis(longSetting(key, defaultMillis));
+    }
+
+    public static String stringSetting(String key, String defaultValue) {
+        return System.getProperty(PREFIX + key, defaultValue);
+    }
+}
@@ -0,0 +1,135 @@
+package com.finfabrik.corda.export;
+
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * Position in an export: the recorded time and state reference of the last row written, and the
+ * consumed time and state reference of the last earlier state written again because it was consumed.
+ * Rendered as {@code <recordedTime>/<txId>/<index>}, followed by {@code /<consumedTime>/<txId>/<index>}
+ * once a consumption has been written, so it can be passed back as a query parameter or stored in a
+ * checkpoint file.
+ *
+ * Without a consumed position, states consumed after the recorded time count as consumed since the
+ * cursor, which is what a cursor from a first export means.
+ */
+public final class ExportCursor implements Comparable<ExportCursor> {
+    private final Instant recordedTime;
+    private final StateRef ref;
+    private final Instant consumedTime;
+    private final StateRef consumedRef;
+
+    public ExportCursor(Instant recordedTime, StateRef ref, Instant consumedTime, StateRef consumedRef) {
+        if ((consumedTime == null) != (consumedRef == null)) {
+            throw new IllegalArgumentException("A consumed position needs both a time and a state reference.");
+        }
+        this.recordedTime = recordedTime;
+        this.ref = ref;
+        this.consumedTime = consumedTime;
+        this.consumedRef = consumedRef;
+    }
+
+    public ExportCursor(Instant recordedTime, StateRef ref) {
+        this(recordedTime, ref, null, null);
+    }
+
+    public static ExportCursor parse(String cursor) {
+        final String[] parts = cursor.trim().split("/");
+        if (parts.length != 3 && parts.length != 6) {
+            throw new IllegalArgumentException(
+                    "Cursor must be <recordedTime>/<txId>/<index>[/<consumedTime>/<txId>/<index>]: " + cursor);
+        }
+        return new ExportCursor(
+                Instant.parse(parts[0]),
+                new StateRef(SecureHash.parse(parts[1]), Integer.parseInt(parts[2])),
+                parts.length == 6 ? Instant.parse(parts[3]) : null,
+                parts.length == 6 ? new StateRef(SecureHash.parse(parts[4]), Integer.parseInt(parts[5])) : null);
+    }
+
+    public Instant getRecordedTime() {
+        return recordedTime;
+    }
+
+    public StateRef getRef() {
+        return ref;
+    }
+
+    /** Null until an export has written a consumption from before the recorded position. */
+    public Instant getConsumedTime() {
+        return consumedTime;
+    }
+
+    public StateRef getConsumedRef() {
+        return consumedRef;
+    }
+
+    /** The earliest consumed time a resumed export must look at. */
+    Instant consumedFrom() {
+        return consumedTime != null ? consumedTime : recordedTime;
+    }
+
+    /** Whether the state {@code ref}, consumed at {@code time}, was consumed after this position. */
+    boolean isConsumedSince(Instant time, StateRef ref) {
+        if (time == null) {
+            return false;
+        }
+        if (consumedTime == null) {
+            return time.isAfter(recordedTime);
+        }
+        return compare(time, ref, consumedTime, consumedRef) > 0;
+    }
+
+    /** This position with the consumed position moved to {@code time} and {@code ref}. */
+    ExportCursor withConsumed(Instant time, StateRef ref) {
+        return new ExportCursor(recordedTime, this.ref, time, ref);
+    }
+
+    /** The recorded position {@code time} and {@code ref}, keeping this consumed position. */
+    ExportCursor withRecorded(Instant time, StateRef ref) {
+        return new ExportCursor(time, ref, consumedTime, consumedRef);
+    }
+
+    /**
+     * Same ordering as the vault query sort: recorded time, then transaction id, then output index.
+     * The consumed position is not compared.
+     */
+    @Override
+    public int compareTo(ExportCursor other) {
+        return compare(recordedTime, ref, other.recordedTime, other.ref);
+    }
+
+    private static int compare(Instant time, StateRef ref, Instant otherTime, StateRef otherRef) {
+        int result = time.compareTo(otherTime);
+        if (result == 0) {
+            result = ref.getTxhash().toString().compareTo(otherRef.getTxhash().toString());
+        }
+        if (result == 0) {
+            result = Integer.compare(ref.getIndex(), otherRef.getIndex());
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ExportCursor)) {
+            return false;
+        }
+        ExportCursor other = (ExportCursor) obj;
+        return recordedTime.equals(other.recordedTime) && ref.equals(other.ref)
+                && Objects.equals(consumedTime, other.consumedTime) && Objects.equals(consumedRef, other.consumedRef);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(recordedTime, ref, consumedTime, consumedRef);
+    }
+
+    @Override
+    public String toString() {
+        final String recorded = recordedTime + "/" + ref.getTxhash() + "/" + ref.getIndex();
+        return consumedTime == null ? recorded : recorded + "/" + consumedTime + "/" + consumedRef.getTxhash() + "/" + consumedRef.getIndex();
+    }
+}
@@ -0,0 +1,62 @@
+package com.finfabrik.corda.export;
+
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.core.utilities.NetworkHostAndPort;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Command line front end for {@link VaultExporter}, used by the {@code exportVault} Gradle task.
+ *
+ * Usage: {@code <host:port> <user> <password> <forward|token|cash> <csv|ndjson> <output file> [page size]}
+ *
+ * The cursor of the last exported row is kept in {@code <output file>.cursor}. A rerun appends
+ * only rows recorded after it, so an end-of-day job picks up where the previous one stopped.
+ */
+public class VaultExportCli {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 6) {
+            System.err.println("Usage: <host:port> <user> <password> <forward|token|cash> <csv|ndjson> <output file> [page size]");
+            System.exit(1);
+        }
+        final NetworkHostAndPort address = NetworkHostAndPort.parse(args[0]);
+        final VaultExporter.Kind kind = VaultExporter.Kind.valueOf(args[3].toUpperCase());
+        final VaultExporter.Format format = VaultExporter.Format.valueOf(args[4].toUpperCase());
+        final Path output = Paths.get(args[5]);
+        final Path checkpointFile = Paths.get(args[5] + ".cursor");
+        final int pageSize = args.length > 6 ? Integer.parseInt(args[6]) : 500;
+
+        final ExportCursor from = Files.exists(checkpointFile)
+                ? ExportCursor.parse(new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8))
+                : null;
+
+        final CordaRPCConnection connection = new CordaRPCClient(address).start(args[1], args[2]);
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            final ExportCursor last = new VaultExporter(connection.getProxy(), pageSize)
+                    .export(kind, format, from, out, cursor -> saveCheckpoint(checkpointFile, cursor));
+            System.out.println("Exported up to " + last);
+        } finally {
+            connection.notifyServerAndClose();
+        }
+    }
+
+    private static void saveCheckpoint(Path checkpointFile, ExportCursor cursor) {
+        try {
+            final Path tmp = Paths.get(checkpointFile + ".tmp");
+            Files.write(tmp, cursor.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write export checkpoint " + checkpointFile, e);
+        }
+    }
+}
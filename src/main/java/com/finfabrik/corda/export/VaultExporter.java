@@ -0,0 +1,239 @@
+package com.finfabrik.corda.export;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.Token;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.BinaryComparisonOperator;
+import net.corda.core.node.services.vault.ColumnPredicate;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.finance.contracts.asset.Cash;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Streams every state of one type, consumed or not, out of the vault in recorded-time order.
+ *
+ * The vault is read one page at a time and each row is written as soon as it is formatted,
+ * so memory use does not grow with the size of the vault. Every row carries the cursor to
+ * resume from if the export is interrupted. Resuming from a cursor writes the states recorded
+ * since it and, again with their new status, the states recorded earlier but consumed since, so
+ * consumers should upsert rows by {@code txId} and {@code outputIndex}. The cursor keeps a consumed
+ * position too, so each consumption is written again only once.
+ */
+public class VaultExporter {
+    public enum Format { CSV, NDJSON }
+
+    public enum Kind {
+        FORWARD(FXForward.class, "type", "cursor", "txId", "outputIndex", "status", "recordedTime", "consumedTime",
+                "linearId", "buyer", "seller", "baseQuantity", "currency", "termsQuantity", "token", "tenor", "valueDate"),
+        TOKEN(Token.class, "type", "cursor", "txId", "outputIndex", "status", "recordedTime", "consumedTime",
+                "linearId", "owner", "quantity", "token"),
+        CASH(Cash.State.class, "type", "cursor", "txId", "outputIndex", "status", "recordedTime", "consumedTime",
+                "owner", "quantity", "currency", "issuer");
+
+        private final Class<? extends ContractState> stateType;
+        private final List<String> columns;
+
+        Kind(Class<? extends ContractState> stateType, String... columns) {
+            this.stateType = stateType;
+            this.columns = ImmutableList.copyOf(columns);
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+    }
+
+    private static final int PARTY_CACHE_SIZE = 1024;
+    private static final Sort RECORDED_ORDER = order(Sort.VaultStateAttribute.RECORDED_TIME);
+    private static final Sort CONSUMED_ORDER = order(Sort.VaultStateAttribute.CONSUMED_TIME);
+
+    private final CordaRPCOps rpcOps;
+    private final int pageSize;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<AbstractParty, String> partyNames = new LinkedHashMap<AbstractParty, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<AbstractParty, String> eldest) {
+            return size() > PARTY_CACHE_SIZE;
+        }
+    };
+
+    public VaultExporter(CordaRPCOps rpcOps, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive.");
+        }
+        this.rpcOps = rpcOps;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Writes all rows after {@code from} (or from the beginning if it is null).
+     * {@code checkpoint} is called with the cursor of the last row after each page is flushed.
+     *
+     * A resumed export first writes again, in consumed-time order, the states recorded up to
+     * {@code from} and consumed since its consumed position, then the states recorded since it in
+     * recorded-time order. Each phase moves its own half of the cursor, so neither is written twice.
+     *
+     * @return the cursor of the last row written, or {@code from} if there was nothing new.
+     */
+    public ExportCursor export(Kind kind, Format format, ExportCursor from, Writer out, Consumer<ExportCursor> checkpoint) throws IOException {
+        if (format == Format.CSV && from == null) {
+            out.write(String.join(",", kind.columns));
+            out.write('\n');
+        }
+        if (from == null) {
+            return exportPages(kind, format, new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL), RECORDED_ORDER, null, out, checkpoint,
+                    (last, meta) -> last == null
+                            ? new ExportCursor(meta.getRecordedTime(), meta.getRef())
+                            : last.withRecorded(meta.getRecordedTime(), meta.getRef()));
+        }
+
+        final QueryCriteria consumed = since(QueryCriteria.TimeInstantType.CONSUMED, BinaryComparisonOperator.GREATER_THAN_OR_EQUAL, from.consumedFrom())
+                .and(since(QueryCriteria.TimeInstantType.RECORDED, BinaryComparisonOperator.LESS_THAN_OR_EQUAL, from.getRecordedTime()));
+        final ExportCursor afterConsumed = exportPages(kind, format, consumed, CONSUMED_ORDER, from, out, checkpoint,
+                (last, meta) -> new ExportCursor(meta.getRecordedTime(), meta.getRef()).compareTo(from) <= 0
+                        && last.isConsumedSince(meta.getConsumedTime(), meta.getRef())
+                        ? last.withConsumed(meta.getConsumedTime(), meta.getRef())
+                        : null);
+
+        final QueryCriteria recorded = since(QueryCriteria.TimeInstantType.RECORDED, BinaryComparisonOperator.GREATER_THAN_OR_EQUAL, from.getRecordedTime());
+        // The time bounds are inclusive, so skip rows already written at the resume instant.
+        return exportPages(kind, format, recorded, RECORDED_ORDER, afterConsumed, out, checkpoint,
+                (last, meta) -> new ExportCursor(meta.getRecordedTime(), meta.getRef()).compareTo(from) > 0
+                        ? last.withRecorded(meta.getRecordedTime(), meta.getRef())
+                        : null);
+    }
+
+    /** Moves the cursor past one row, or returns null to skip a row that is not new. */
+    private interface Advance {
+        ExportCursor next(ExportCursor last, Vault.StateMetadata meta);
+    }
+
+    /** Writes every row {@code advance} accepts, page by page; returns the cursor after the last one. */
+    private ExportCursor exportPages(Kind kind, Format format, QueryCriteria criteria, Sort sort, ExportCursor last,
+                                     Writer out, Consumer<ExportCursor> checkpoint, Advance advance) throws IOException {
+        for (int pageNumber = 1; ; pageNumber++) {
+            final Vault.Page<? extends ContractState> page = rpcOps.vaultQueryBy(
+                    criteria, new PageSpecification(pageNumber, pageSize), sort, kind.stateType);
+            final List<? extends StateAndRef<? extends ContractState>> states = page.getStates();
+            final List<Vault.StateMetadata> metadata = page.getStatesMetadata();
+
+            for (int i = 0; i < states.size(); i++) {
+                final Vault.StateMetadata meta = metadata.get(i);
+                final ExportCursor cursor = advance.next(last, meta);
+                if (cursor == null) {
+                    continue;
+                }
+                writeRow(kind, format, row(kind, cursor, meta, states.get(i).getState().getData()), out);
+                last = cursor;
+            }
+            out.flush();
+            if (last != null) {
+                checkpoint.accept(last);
+            }
+
+            if (states.size() < pageSize || (long) pageNumber * pageSize >= page.getTotalStatesAvailable()) {
+                return last;
+            }
+        }
+    }
+
+    private static QueryCriteria since(QueryCriteria.TimeInstantType type, BinaryComparisonOperator operator, Instant bound) {
+        final QueryCriteria.TimeCondition condition = new QueryCriteria.TimeCondition(
+                type, new ColumnPredicate.BinaryComparison<>(operator, bound));
+        return new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL, null, null, null, null, condition);
+    }
+
+    private Map<String, Object> row(Kind kind, ExportCursor cursor, Vault.StateMetadata meta, ContractState state) {
+        final Map<String, Object> row = new LinkedHashMap<>();
+        row.put("type", kind.name().toLowerCase());
+        row.put("cursor", cursor.toString());
+        row.put("txId", meta.getRef().getTxhash().toString());
+        row.put("outputIndex", meta.getRef().getIndex());
+        row.put("status", meta.getStatus().name());
+        row.put("recordedTime", meta.getRecordedTime().toString());
+        final Instant consumedTime = meta.getConsumedTime();
+        row.put("consumedTime", consumedTime == null ? null : consumedTime.toString());
+
+        if (state instanceof FXForward) {
+            final FXForward forward = (FXForward) state;
+            row.put("linearId", forward.getLinearId().toString());
+            row.put("buyer", name(forward.getBuyer()));
+            row.put("seller", name(forward.getSeller()));
+            row.put("baseQuantity", forward.getBaseQuantity());
+            row.put("currency", forward.getCurrency().getCurrencyCode());
+            row.put("termsQuantity", forward.getTermsQuantity());
+            row.put("token", forward.getTokenCode());
+            row.put("tenor", forward.getTenor().getName());
+            row.put("valueDate", forward.getValueDate() == null ? null : forward.getValueDate().toString());
+        } else if (state instanceof Token) {
+            final Token token = (Token) state;
+            row.put("linearId", token.getLinearId().toString());
+            row.put("owner", name(token.getOwner()));
+            row.put("quantity", token.getQuantity());
+            row.put("token", token.getTokenCode());
+        } else if (state instanceof Cash.State) {
+            final Cash.State cash = (Cash.State) state;
+            row.put("owner", name(cash.getOwner()));
+            row.put("quantity", cash.getAmount().getQuantity());
+            row.put("currency", cash.getAmount().getToken().getProduct().getCurrencyCode());
+            row.put("issuer", name(cash.getAmount().getToken().getIssuer().getParty()));
+        }
+        return row;
+    }
+
+    private void writeRow(Kind kind, Format format, Map<String, Object> row, Writer out) throws IOException {
+        if (format == Format.NDJSON) {
+            out.write(mapper.writeValueAsString(row));
+        } else {
+            for (int i = 0; i < kind.columns.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write(csv(row.get(kind.columns.get(i))));
+            }
+        }
+        out.write('\n');
+    }
+
+    private static Sort order(Sort.VaultStateAttribute time) {
+        return new Sort(ImmutableList.of(
+                new Sort.SortColumn(new SortAttribute.Standard(time), Sort.Direction.ASC),
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.STATE_REF_TXN_ID), Sort.Direction.ASC),
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.STATE_REF_INDEX), Sort.Direction.ASC)));
+    }
+
+    private String name(AbstractParty party) {
+        return partyNames.computeIfAbsent(party, it -> {
+            final Party wellKnown = rpcOps.wellKnownPartyFromAnonymous(it);
+            return wellKnown != null ? wellKnown.getName().toString() : it.toString();
+        });
+    }
+
+    private static String csv(Object value) {
+        if (value == null) {
+            return "";
+        }
+        final String text = value.toString();
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0) {
+            return text;
+        }
+        return '"' + text.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,279 @@
+package com.finfabrik.corda.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.ForwardNetting;
+import com.finfabrik.corda.schema.FXForwardSchemaV1;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+
+import java.lang.reflect.Field;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Replaces the open forwards between this node and one counterparty with their net, one forward
+ * per currency, token and value date, in a single transaction under
+ * {@link FXForwardContract.Commands.Compress}.
+ *
+ * Buckets whose base and terms net in opposite directions cannot be carried by one forward and are
+ * left alone, as are forwards without a value date and buckets holding a single forward.
+ */
+public class CompressFXForwards {
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends InstrumentedFlow<Report> {
+        private static final int PAGE_SIZE = 500;
+
+        private final Party counterparty;
+        private final int maxStates;
+
+        public Initiator(Party counterparty, int maxStates) {
+            this.counterparty = counterparty;
+            this.maxStates = maxStates;
+        }
+
+        public Initiator(Party counterparty) {
+            this(counterparty, 500);
+        }
+
+        @Suspendable
+        @Override
+        public Report call() throws FlowException {
+            try {
+                return compress();
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        @Suspendable
+        private Report compress() throws FlowException {
+            final List<StateAndRef<FXForward>> candidates = queryForwardsWithCounterparty();
+            final Map<ForwardNetting.Bucket, List<StateAndRef<FXForward>>> byBucket = candidates.stream()
+                    .collect(Collectors.groupingBy(it -> ForwardNetting.Bucket.of(it.getState().getData()), LinkedHashMap::new, Collectors.toList()));
+
+            final List<StateAndRef<FXForward>> inputs = new ArrayList<>();
+            final List<FXForward> outputs = new ArrayList<>();
+            for (List<StateAndRef<FXForward>> bucket : byBucket.values()) {
+                if (bucket.size() < 2) {
+                    continue;
+                }
+                final List<FXForward> forwards = bucket.stream().map(it -> it.getState().getData()).collect(Collectors.toList());
+                final Map<ForwardNetting.Bucket, ForwardNetting.Position> net = ForwardNetting.net(forwards, this::isOurs);
+                if (net.isEmpty()) {
+                    inputs.addAll(bucket);
+                } else {
+                    final ForwardNetting.Position position = net.values().iterator().next();
+                    if (position.isSingleForward()) {
+                        inputs.addAll(bucket);
+                        outputs.add(netForward(forwards, position));
+                    }
+                }
+            }
+            if (inputs.isEmpty()) {
+                return new Report(counterparty.getName().toString(), candidates.size(), 0, 0, candidates.size(),
+                        new LinkedHashMap<>(), new LinkedHashMap<>(), null);
+            }
+
+            final List<PublicKey> ourKeys = inputs.stream()
+                    .map(it -> it.getState().getData())
+                    .flatMap(it -> Stream.of(it.getBuyer(), it.getSeller()))
+                    .map(AbstractParty::getOwningKey)
+                    .filter(this::isOurs)
+                    .distinct()
+                    .collect(Collectors.toList());
+            final List<PublicKey> allKeys = inputs.stream()
+                    .flatMap(it -> it.getState().getData().getParticipantKeys().stream())
+                    .distinct()
+                    .collect(Collectors.toList());
+
+            final TransactionBuilder builder = new TransactionBuilder(inputs.get(0).getState().getNotary());
+            inputs.forEach(builder::addInputState);
+            outputs.forEach(it -> builder.addOutputState(it, FXForwardContract.FORWARD_CONTRACT_ID));
+            builder.addCommand(new FXForwardContract.Commands.Compress(ourKeys), allKeys);
+            builder.verify(getServiceHub());
+
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder, ourKeys);
+            final FlowSession counterpartyFlow = initiateFlow(counterparty);
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, ImmutableSet.of(counterpartyFlow), ourKeys));
+            final SignedTransaction notarised = subFlow(new FinalityFlow(stx));
+
+            final List<FXForward> consumed = inputs.stream().map(it -> it.getState().getData()).collect(Collectors.toList());
+            return new Report(counterparty.getName().toString(), candidates.size(), inputs.size(), outputs.size(),
+                    candidates.size() - inputs.size() + outputs.size(),
+                    grossRemoved(consumed, outputs, true), grossRemoved(consumed, outputs, false), notarised.getId());
+        }
+
+        /**
+         * Up to {@code maxStates} unconsumed forwards with a value date whose two sides are this node and
+         * the counterparty. Confidential keys cannot be matched to the counterparty in the query, so every
+         * page is filtered here until enough have been found or the vault is exhausted.
+         */
+        private List<StateAndRef<FXForward>> queryForwardsWithCounterparty() throws FlowException {
+            final QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED)
+                    .and(new QueryCriteria.VaultCustomQueryCriteria<>(Builder.notNull(forwardField("valueDate"))));
+            final Sort sort = new Sort(ImmutableList.of(
+                    new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.STATE_REF_TXN_ID), Sort.Direction.ASC),
+                    new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.STATE_REF_INDEX), Sort.Direction.ASC)));
+            final Set<Party> pair = ImmutableSet.of(getOurIdentity(), counterparty);
+            final List<StateAndRef<FXForward>> matches = new ArrayList<>();
+            for (int page = 1; ; page++) {
+                final Vault.Page<FXForward> results = getServiceHub().getVaultService()
+                        .queryBy(FXForward.class, criteria, new PageSpecification(page, PAGE_SIZE), sort);
+                for (StateAndRef<FXForward> it : results.getStates()) {
+                    final Party buyer = wellKnown(it.getState().getData().getBuyer());
+                    final Party seller = wellKnown(it.getState().getData().getSeller());
+                    if (buyer != null && seller != null && !buyer.equals(seller) && pair.contains(buyer) && pair.contains(seller)) {
+                        matches.add(it);
+                        if (matches.size() >= maxStates) {
+                            return matches;
+                        }
+                    }
+                }
+                if ((long) page * PAGE_SIZE >= results.getTotalStatesAvailable()) {
+                    return matches;
+                }
+            }
+        }
+
+        private static Field forwardField(String name) throws FlowException {
+            try {
+                return FXForwardSchemaV1.PersistentFXForward.class.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                throw new FlowException("FXForward schema has no " + name + " column.", e);
+            }
+        }
+
+        /** One forward carrying {@code position}, with the parties and tenor of a forward in the same direction. */
+        private FXForward netForward(List<FXForward> forwards, ForwardNetting.Position position) {
+            final boolean weSell = position.getBase() > 0;
+            final FXForward template = forwards.stream()
+                    .filter(it -> isOurs(it.getSeller().getOwningKey()) == weSell)
+                    .findFirst()
+                    .get();
+            return new FXForward(Math.abs(position.getBase()), template.getCurrency(),
+                    Math.abs(position.getTerms()), template.getTokenCode(),
+                    template.getBuyer(), template.getSeller(), template.getTenor(), template.getValueDate(),
+                    new UniqueIdentifier());
+        }
+
+        private boolean isOurs(PublicKey key) {
+            return getOurIdentity().equals(getServiceHub().getIdentityService().partyFromKey(key));
+        }
+
+        private Party wellKnown(AbstractParty party) {
+            return getServiceHub().getIdentityService().wellKnownPartyFromAnonymous(party);
+        }
+
+        private static Map<String, Long> grossRemoved(List<FXForward> inputs, List<FXForward> outputs, boolean base) {
+            final Map<String, Long> removed = new LinkedHashMap<>();
+            inputs.forEach(it -> removed.merge(unit(it, base), quantity(it, base), Long::sum));
+            outputs.forEach(it -> removed.merge(unit(it, base), -quantity(it, base), Long::sum));
+            return removed;
+        }
+
+        private static String unit(FXForward forward, boolean base) {
+            return base ? forward.getCurrency().getCurrencyCode() : forward.getTokenCode();
+        }
+
+        private static long quantity(FXForward forward, boolean base) {
+            return base ? forward.getBaseQuantity() : forward.getTermsQuantity();
+        }
+    }
+
+    @InitiatedBy(Initiator.class)
+    public static class Responder extends InstrumentedFlow<SignedTransaction> {
+        private final FlowSession otherFlow;
+
+        public Responder(FlowSession otherFlow) {
+            this.otherFlow = otherFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final SignedTransaction stx = subFlow(new FXForwardBaseFlow.PolicySignTxFlow(otherFlow, SignTransactionFlow.Companion.tracker()));
+            final SignedTransaction committed = waitForLedgerCommit(stx.getId());
+            StageSettlement.releaseLocks(getServiceHub(), committed);
+            publishMessageStats();
+            return committed;
+        }
+    }
+
+    /**
+     * Forwards with the counterparty before and after a run, and the gross notional that no longer
+     * needs settling: base by currency code, terms by token code, in minor units.
+     */
+    @CordaSerializable
+    public static class Report {
+        private final String counterparty;
+        private final long statesBefore;
+        private final long inputsCompressed;
+        private final long outputsCreated;
+        private final long statesAfter;
+        private final Map<String, Long> baseNotionalRemoved;
+        private final Map<String, Long> termsNotionalRemoved;
+        private final SecureHash txId;
+
+        public Report(String counterparty, long statesBefore, long inputsCompressed, long outputsCreated, long statesAfter,
+                      Map<String, Long> baseNotionalRemoved, Map<String, Long> termsNotionalRemoved, SecureHash txId) {
+            this.counterparty = counterparty;
+            this.statesBefore = statesBefore;
+            this.inputsCompressed = inputsCompressed;
+            this.outputsCreated = outputsCreated;
+            this.statesAfter = statesAfter;
+            this.baseNotionalRemoved = baseNotionalRemoved;
+            this.termsNotionalRemoved = termsNotionalRemoved;
+            this.txId = txId;
+        }
+
+        public String getCounterparty() { return counterparty; }
+
+        public long getStatesBefore() { return statesBefore; }
+
+        public long getInputsCompressed() { return inputsCompressed; }
+
+        public long getOutputsCreated() { return outputsCreated; }
+
+        public long getStatesAfter() { return statesAfter; }
+
+        public long getStatesRemoved() { return statesBefore - statesAfter; }
+
+        public Map<String, Long> getBaseNotionalRemoved() { return baseNotionalRemoved; }
+
+        public Map<String, Long> getTermsNotionalRemoved() { return termsNotionalRemoved; }
+
+        public SecureHash getTxId() { return txId; }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d forwards -> %d, compressed %d into %d, removed base %s and terms %s (tx %s).",
+                    counterparty, statesBefore, statesAfter, inputsCompressed, outputsCreated,
+                    baseNotionalRemoved, termsNotionalRemoved, Objects.toString(txId, "none"));
+        }
+    }
+}
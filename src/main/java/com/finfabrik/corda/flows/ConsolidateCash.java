@@ -0,0 +1,191 @@
+package com.finfabrik.corda.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Issued;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.CryptoUtils;
+import net.corda.core.flows.FinalityFlow;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.schemas.CashSchemaV1;
+
+import java.lang.reflect.Field;
+import java.security.PublicKey;
+import java.util.Comparator;
+import java.util.Currency;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Merges small {@link Cash.State} fragments held by this node into larger states.
+ *
+ * Fragments are cash states below {@code fragmentThreshold} (in minor units). One run picks the
+ * currency/issuer with the most unlocked fragments, merges up to {@code maxInputs} of them in a
+ * single self-move, and re-issues the total as states of {@code targetDenomination} plus a
+ * remainder. Fragments are soft-locked first, so states already picked by a settlement are
+ * never touched.
+ */
+public class ConsolidateCash {
+    @StartableByService
+    @StartableByRPC
+    public static class Initiator extends FlowLogic<Report> {
+        private final long fragmentThreshold;
+        private final long targetDenomination;
+        private final int maxInputs;
+
+        public Initiator(long fragmentThreshold, long targetDenomination, int maxInputs) {
+            this.fragmentThreshold = fragmentThreshold;
+            this.targetDenomination = targetDenomination;
+            this.maxInputs = maxInputs;
+        }
+
+        @Suspendable
+        @Override
+        public Report call() throws FlowException {
+            final List<StateAndRef<Cash.State>> fragments = queryFragments();
+            final Map<Issued<Currency>, List<StateAndRef<Cash.State>>> byToken = fragments.stream()
+                    .collect(Collectors.groupingBy(it -> it.getState().getData().getAmount().getToken(), LinkedHashMap::new, Collectors.toList()));
+            if (byToken.isEmpty()) {
+                return Report.nothingToDo();
+            }
+
+            final Map.Entry<Issued<Currency>, List<StateAndRef<Cash.State>>> largest = byToken.entrySet().stream()
+                    .max(Comparator.comparingInt(it -> it.getValue().size()))
+                    .get();
+            final Issued<Currency> token = largest.getKey();
+            final List<StateAndRef<Cash.State>> inputs = ImmutableList.copyOf(
+                    largest.getValue().subList(0, Math.min(maxInputs, largest.getValue().size())));
+            final long statesBefore = countUnconsumed(token);
+            if (inputs.size() < 2) {
+                return new Report(token.getProduct().getCurrencyCode(), statesBefore, largest.getValue().size(), 0, 0, statesBefore);
+            }
+
+            final Set<StateRef> refs = inputs.stream().map(StateAndRef::getRef).collect(Collectors.toSet());
+            getServiceHub().getVaultService().softLockReserve(getRunId().getUuid(), NonEmptySet.copyOf(refs));
+
+            final Party notary = inputs.get(0).getState().getNotary();
+            final TransactionBuilder builder = new TransactionBuilder(notary);
+            long total = 0L;
+            for (StateAndRef<Cash.State> input : inputs) {
+                builder.addInputState(input);
+                total += input.getState().getData().getAmount().getQuantity();
+            }
+
+            int outputs = 0;
+            for (long remaining = total; remaining > 0; outputs++) {
+                final long chunk = remaining >= 2 * targetDenomination ? targetDenomination : remaining;
+                builder.addOutputState(new Cash.State(new Amount<>(chunk, token), getOurIdentity()), Cash.PROGRAM_ID);
+                remaining -= chunk;
+            }
+
+            final List<PublicKey> ownerKeys = inputs.stream()
+                    .map(it -> it.getState().getData().getOwner().getOwningKey())
+                    .distinct()
+                    .collect(Collectors.toList());
+            builder.addCommand(new Cash.Commands.Move(), ownerKeys);
+            builder.verify(getServiceHub());
+
+            final SignedTransaction stx = getServiceHub().signInitialTransaction(builder, ownerKeys);
+            subFlow(new FinalityFlow(stx));
+
+            return new Report(token.getProduct().getCurrencyCode(), statesBefore, largest.getValue().size(),
+                    inputs.size(), outputs, statesBefore - inputs.size() + outputs);
+        }
+
+        private List<StateAndRef<Cash.State>> queryFragments() throws FlowException {
+            final Field pennies = cashField("pennies");
+            final QueryCriteria unlocked = new QueryCriteria.VaultQueryCriteria(
+                    Vault.StateStatus.UNCONSUMED, null, null, null,
+                    new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, ImmutableList.of()),
+                    null);
+            final QueryCriteria small = new QueryCriteria.VaultCustomQueryCriteria<>(Builder.lessThan(pennies, fragmentThreshold));
+            final Sort smallestFirst = new Sort(ImmutableList.of(new Sort.SortColumn(
+                    new SortAttribute.Custom(CashSchemaV1.PersistentCashState.class, "pennies"), Sort.Direction.ASC)));
+
+            return getServiceHub().getVaultService().queryBy(
+                    Cash.State.class, unlocked.and(small), new PageSpecification(1, maxInputs * 4), smallestFirst).getStates();
+        }
+
+        /** Unconsumed cash of {@code token}'s currency from the same issuer and issuer reference. */
+        private long countUnconsumed(Issued<Currency> token) throws FlowException {
+            final QueryCriteria criteria = new QueryCriteria.VaultCustomQueryCriteria<>(
+                    Builder.equal(cashField("currency"), token.getProduct().getCurrencyCode()))
+                    .and(new QueryCriteria.VaultCustomQueryCriteria<>(
+                            Builder.equal(cashField("issuerPartyHash"), CryptoUtils.toStringShort(token.getIssuer().getParty().getOwningKey()))))
+                    .and(new QueryCriteria.VaultCustomQueryCriteria<>(
+                            Builder.equal(cashField("issuerRef"), token.getIssuer().getReference().getBytes())));
+            return getServiceHub().getVaultService().queryBy(
+                    Cash.State.class, criteria, new PageSpecification(1, 1)).getTotalStatesAvailable();
+        }
+
+        static Field cashField(String name) throws FlowException {
+            try {
+                return CashSchemaV1.PersistentCashState.class.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                throw new FlowException("Cash schema has no " + name + " column.", e);
+            }
+        }
+    }
+
+    /** Fragmentation of the merged currency before and after a run. */
+    @CordaSerializable
+    public static class Report {
+        private final String currency;
+        private final long statesBefore;
+        private final long fragmentsBefore;
+        private final long inputsMerged;
+        private final long outputsCreated;
+        private final long statesAfter;
+
+        public Report(String currency, long statesBefore, long fragmentsBefore, long inputsMerged, long outputsCreated, long statesAfter) {
+            this.currency = currency;
+            this.statesBefore = statesBefore;
+            this.fragmentsBefore = fragmentsBefore;
+            this.inputsMerged = inputsMerged;
+            this.outputsCreated = outputsCreated;
+            this.statesAfter = statesAfter;
+        }
+
+        static Report nothingToDo() {
+            return new Report("", 0, 0, 0, 0, 0);
+        }
+
+        public String getCurrency() { return currency; }
+
+        public long getStatesBefore() { return statesBefore; }
+
+        public long getFragmentsBefore() { return fragmentsBefore; }
+
+        public long getInputsMerged() { return inputsMerged; }
+
+        public long getOutputsCreated() { return outputsCreated; }
+
+        public long getStatesAfter() { return statesAfter; }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d cash states (%d fragments) -> %d, merged %d inputs into %d outputs.",
+                    currency, statesBefore, fragmentsBefore, statesAfter, inputsMerged, outputsCreated);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.finfabrik.corda.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.metrics.MetricsService;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.identity.PartyAndCertificate;
+import net.corda.core.node.StatesToRecord;
+import net.corda.core.node.services.IdentityService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.utilities.UntrustworthyData;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Copies a batch of finalised transactions to an observer node, such as a regulator, in one
+ * message and one acknowledgement.
+ *
+ * The observer checks that every transaction is an FXForward transaction, that the sender is one of
+ * its signers or participants, and that it carries all its required signatures, the notary's
+ * included, and records it with all the states it can see. The batch carries the certificates of
+ * the sender's confidential identities, so anonymous trades can be attributed to it too. It does not resolve or verify the
+ * backchain: the notary and the parties have already done that, and resolving it per transaction
+ * would cost the round trips batching saves. Recording is idempotent, so a batch resent after a
+ * lost acknowledgement does no harm.
+ */
+public class DistributeTransactions {
+    @CordaSerializable
+    public static class Batch {
+        private final List<SignedTransaction> transactions;
+        private final List<PartyAndCertificate> identities;
+
+        public Batch(List<SignedTransaction> transactions, List<PartyAndCertificate> identities) {
+            this.transactions = transactions;
+            this.identities = identities;
+        }
+
+        public List<SignedTransaction> getTransactions() {
+            return transactions;
+        }
+
+        public List<PartyAndCertificate> getIdentities() {
+            return identities;
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByService
+    public static class Initiator extends InstrumentedFlow<Integer> {
+        private final Party observer;
+        private final List<SignedTransaction> transactions;
+
+        public Initiator(Party observer, List<SignedTransaction> transactions) {
+            this.observer = observer;
+            this.transactions = transactions;
+        }
+
+        /** Returns how many transactions the observer recorded. */
+        @Suspendable
+        @Override
+        public Integer call() throws FlowException {
+            try {
+                final FlowSession session = initiateFlow(observer);
+                sendTo(session, new Batch(transactions, identities()));
+                return receiveFrom(session, Integer.class).unwrap((UntrustworthyData.Validator<Integer, Integer>) recorded -> {
+                    if (recorded != transactions.size()) {
+                        throw new FlowException(String.format("Sent %d transactions but %s recorded %d.", transactions.size(), observer, recorded));
+                    }
+                    return recorded;
+                });
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        /** The certificates of every key of ours that signed one of the transactions. */
+        private List<PartyAndCertificate> identities() {
+            final Set<PartyAndCertificate> identities = new LinkedHashSet<>();
+            for (SignedTransaction stx : transactions) {
+                for (PublicKey key : getServiceHub().getKeyManagementService().filterMyKeys(stx.getSigs().stream()
+                        .map(TransactionSignature::getBy)
+                        .collect(Collectors.toList()))) {
+                    final PartyAndCertificate identity = getServiceHub().getIdentityService().certificateFromKey(key);
+                    if (identity != null) {
+                        identities.add(identity);
+                    }
+                }
+            }
+            return new ArrayList<>(identities);
+        }
+    }
+
+    @InitiatedBy(Initiator.class)
+    public static class Receiver extends InstrumentedFlow<Integer> {
+        private final FlowSession sender;
+
+        public Receiver(FlowSession sender) {
+            this.sender = sender;
+        }
+
+        @Suspendable
+        @Override
+        public Integer call() throws FlowException {
+            final List<SignedTransaction> transactions = receiveFrom(sender, Batch.class)
+                    .unwrap((UntrustworthyData.Validator<Batch, List<SignedTransaction>>) batch -> {
+                        final Party counterparty = sender.getCounterparty();
+                        for (PartyAndCertificate identity : batch.getIdentities()) {
+                            if (!identity.getName().equals(counterparty.getName())) {
+                                throw new FlowException(String.format("%s sent an identity of %s.", counterparty, identity.getName()));
+                            }
+                            try {
+                                getServiceHub().getIdentityService().verifyAndRegisterIdentity(identity);
+                            } catch (GeneralSecurityException e) {
+                                throw new FlowException(String.format("%s sent an invalid identity: %s", counterparty, e.getMessage()));
+                            }
+                        }
+                        for (SignedTransaction stx : batch.getTransactions()) {
+                            if (stx.getTx().getCommands().stream().noneMatch(it -> it.getValue() instanceof FXForwardContract.Commands)) {
+                                throw new FlowException(String.format("Transaction %s from %s is not an FXForward transaction.",
+                                        stx.getId(), counterparty));
+                            }
+                            if (!isParty(stx, counterparty)) {
+                                throw new FlowException(String.format("%s is not a party to transaction %s.", counterparty, stx.getId()));
+                            }
+                            try {
+                                stx.verifyRequiredSignatures();
+                            } catch (SignatureException e) {
+                                throw new FlowException(String.format("Transaction %s from %s is not fully signed: %s",
+                                        stx.getId(), sender.getCounterparty(), e.getMessage()));
+                            }
+                        }
+                        return batch.getTransactions();
+                    });
+            getServiceHub().recordTransactions(StatesToRecord.ALL_VISIBLE, transactions);
+            getServiceHub().cordaService(MetricsService.class).getMetrics().increment("observers.received", transactions.size());
+            sendTo(sender, transactions.size());
+            publishMessageStats();
+            return transactions.size();
+        }
+
+        /** Whether {@code party} signed the transaction or is a participant in one of its outputs. */
+        private boolean isParty(SignedTransaction stx, Party party) {
+            final IdentityService identities = getServiceHub().getIdentityService();
+            return stx.getSigs().stream()
+                    .map(it -> identities.wellKnownPartyFromAnonymous(new AnonymousParty(it.getBy())))
+                    .anyMatch(party::equals)
+                    || stx.getTx().getOutputStates().stream()
+                    .flatMap(it -> it.getParticipants().stream())
+                    .map(identities::wellKnownPartyFromAnonymous)
+                    .anyMatch(party::equals);
+        }
+    }
+}
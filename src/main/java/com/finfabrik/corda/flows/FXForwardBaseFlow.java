@@ -1,27 +1,79 @@
 package com.finfabrik.corda.flows;
 
+import co.paralleluniverse.fibers.Suspendable;
 import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.FXSwap;
 import com.finfabrik.corda.Token;
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.policy.ResponderPolicyService;
+import com.finfabrik.corda.tracing.FlowTracer;
+import com.finfabrik.corda.tracing.Span;
+import com.finfabrik.corda.tracing.TraceContext;
+import com.finfabrik.corda.tracing.TracingService;
 import com.google.common.collect.ImmutableList;
+import net.corda.confidential.IdentitySyncFlow;
+import net.corda.confidential.SwapIdentitiesFlow;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.Issued;
+import net.corda.core.contracts.LinearState;
 import net.corda.core.contracts.StateAndRef;
 import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.flows.FlowException;
-import net.corda.core.flows.FlowLogic;
 import net.corda.core.flows.FlowSession;
+import net.corda.core.flows.SendStateAndRefFlow;
 import net.corda.core.flows.SignTransactionFlow;
 import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
 import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.PageSpecification;
 import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
 import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.NonEmptySet;
 import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.UntrustworthyData;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.schemas.CashSchemaV1;
 
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
 
-abstract class FXForwardBaseFlow extends FlowLogic<SignedTransaction> {
+abstract class FXForwardBaseFlow extends InstrumentedFlow<SignedTransaction> {
+    FlowTracer tracer;
+
+    FlowTracer startTracing(TraceContext parent, String flowName, boolean responder) {
+        tracer = new FlowTracer(getServiceHub().cordaService(TracingService.class), parent, flowName, responder);
+        return tracer;
+    }
+
+    void step(ProgressTracker.Step step) {
+        getProgressTracker().setCurrentStep(step);
+        tracer.step(step.getLabel());
+    }
 
     Party getFirstNotary() throws FlowException {
-        List<Party> notaries = getServiceHub().getNetworkMapCache().getNotaryIdentities();
+        return firstNotary(getServiceHub());
+    }
+
+    static Party firstNotary(ServiceHub serviceHub) throws FlowException {
+        List<Party> notaries = serviceHub.getNetworkMapCache().getNotaryIdentities();
         if (notaries.isEmpty()) {
             throw new FlowException("No available notary.");
         }
@@ -29,45 +81,212 @@ abstract class FXForwardBaseFlow extends FlowLogic<SignedTransaction> {
     }
 
     StateAndRef<FXForward> getForwardByLinearId(UniqueIdentifier contractId) throws FlowException {
+        return getByLinearId(FXForward.class, contractId);
+    }
+
+    StateAndRef<FXSwap> getSwapByLinearId(UniqueIdentifier swapId) throws FlowException {
+        return getByLinearId(FXSwap.class, swapId);
+    }
+
+    StateAndRef<Token> getTokenByLinearId(UniqueIdentifier tokenId) throws FlowException {
+        return getByLinearId(Token.class, tokenId);
+    }
+
+    private <S extends LinearState> StateAndRef<S> getByLinearId(Class<S> type, UniqueIdentifier linearId) throws FlowException {
         QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(
                 null,
-                ImmutableList.of(contractId),
+                ImmutableList.of(linearId),
                 Vault.StateStatus.UNCONSUMED,
                 null);
 
-        List<StateAndRef<FXForward>> forwards = getServiceHub().getVaultService().queryBy(FXForward.class, queryCriteria).getStates();
-        if (forwards.size() != 1) {
-            throw new FlowException(String.format("FXForward with id %s not found.", contractId));
+        List<StateAndRef<S>> states = getServiceHub().getVaultService().queryBy(type, queryCriteria).getStates();
+        if (states.size() != 1) {
+            throw new FlowException(String.format("%s with id %s not found.", type.getSimpleName(), linearId));
         }
-        return forwards.get(0);
+        return states.get(0);
     }
 
-    StateAndRef<Token> getTokenByLinearId(UniqueIdentifier tokenId) throws FlowException {
-        QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(
-            null,
-            ImmutableList.of(tokenId),
-            Vault.StateStatus.UNCONSUMED,
-            null);
-
-        List<StateAndRef<Token>> tokens = getServiceHub().getVaultService().queryBy(Token.class, queryCriteria).getStates();
-        if (tokens.size() != 1) {
-            throw new FlowException(String.format("Token with id %s not found.", tokenId));
+    /**
+     * Swaps fresh confidential identities with {@code counterparty} and returns ours and theirs, in that order.
+     */
+    @Suspendable
+    List<AnonymousParty> swapIdentities(Party counterparty) throws FlowException {
+        final Span swapping = tracer.start("SwapIdentitiesFlow");
+        final HashMap<Party, AnonymousParty> txKeys = subFlow(new SwapIdentitiesFlow(counterparty));
+        tracer.end(swapping);
+
+        if (txKeys.size() != 2) {
+            throw new IllegalStateException("Something went wrong when generating confidential identities.");
+        } else if (!txKeys.containsKey(getOurIdentity())) {
+            throw new FlowException("Couldn't create our conf. identity.");
+        } else if (!txKeys.containsKey(counterparty)) {
+            throw new FlowException("Couldn't create counterparty's conf. identity.");
+        }
+        return ImmutableList.of(txKeys.get(getOurIdentity()), txKeys.get(counterparty));
+    }
+
+    /**
+     * Counterparty side of a settlement: sends the requested token to the initiator, then signs and
+     * waits for the settlement transaction.
+     */
+    @Suspendable
+    SignedTransaction deliverToken(FlowSession initiator, String flowName) throws FlowException {
+        final TraceContext trace = receiveFrom(initiator, TraceContext.class).unwrap((UntrustworthyData.Validator<TraceContext, TraceContext>) data -> data);
+        startTracing(trace, flowName, true);
+        try {
+            UntrustworthyData<UniqueIdentifier> tokenId = receiveFrom(initiator, UniqueIdentifier.class);
+            final StateAndRef<Token> token = getTokenByLinearId(tokenId.unwrap((UntrustworthyData.Validator<UniqueIdentifier, UniqueIdentifier>) data -> data));
+            final SignedTransaction committed = completeDelivery(initiator, token);
+            tracer.finish();
+            return committed;
+        } catch (FlowException | RuntimeException e) {
+            tracer.fail(e);
+            throw e;
+        } finally {
+            publishMessageStats();
+        }
+    }
+
+    /**
+     * The rest of a settlement once tracing has started: sends {@code token} (if the settlement moves
+     * one), then signs and waits for the transaction.
+     */
+    @Suspendable
+    SignedTransaction completeDelivery(FlowSession initiator, StateAndRef<Token> token) throws FlowException {
+        if (token != null) {
+            final Span sending = tracer.start("SendStateAndRefFlow");
+            subFlow(new SendStateAndRefFlow(initiator, Collections.singletonList(token)));
+            tracer.end(sending);
+        }
+        final Span syncing = tracer.start("IdentitySyncFlow");
+        subFlow(new IdentitySyncFlow.Receive(initiator));
+        tracer.end(syncing);
+        final Span signing = tracer.start("SignTransactionFlow");
+        SignedTransaction stx = subFlow(new PolicySignTxFlow(initiator, SignTransactionFlow.Companion.tracker()));
+        tracer.end(signing);
+        final Span committing = tracer.start("WaitForLedgerCommit");
+        final SignedTransaction committed = waitForLedgerCommit(stx.getId());
+        tracer.end(committing.tag("tx.id", committed.getId()));
+        return committed;
+    }
+
+    /**
+     * Our largest unconsumed cash states in {@code currency} that are unlocked or locked under
+     * {@code lockId}, at most {@code limit}, largest first.
+     */
+    List<StateAndRef<Cash.State>> largestCash(Currency currency, UUID lockId, int limit) throws FlowException {
+        final QueryCriteria unlocked = new QueryCriteria.VaultQueryCriteria(
+                Vault.StateStatus.UNCONSUMED, null, null, null,
+                new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_AND_SPECIFIED, ImmutableList.of(lockId)),
+                null);
+        final QueryCriteria inCurrency = new QueryCriteria.VaultCustomQueryCriteria<>(
+                Builder.equal(ConsolidateCash.Initiator.cashField("currency"), currency.getCurrencyCode()));
+        final Sort largestFirst = new Sort(ImmutableList.of(new Sort.SortColumn(
+                new SortAttribute.Custom(CashSchemaV1.PersistentCashState.class, "pennies"), Sort.Direction.DESC)));
+        return getServiceHub().getVaultService().queryBy(
+                Cash.State.class, unlocked.and(inCurrency), new PageSpecification(1, limit), largestFirst).getStates();
+    }
+
+    /** {@link #largestCash}, soft-locked under {@code lockId}. */
+    List<StateAndRef<Cash.State>> reserveLargestCash(Currency currency, UUID lockId, int limit) throws FlowException {
+        final List<StateAndRef<Cash.State>> coins = largestCash(currency, lockId, limit);
+        reserve(lockId, coins);
+        return coins;
+    }
+
+    void reserve(UUID lockId, List<? extends StateAndRef<?>> states) {
+        if (!states.isEmpty()) {
+            getServiceHub().getVaultService().softLockReserve(lockId,
+                    NonEmptySet.copyOf(states.stream().map(StateAndRef::getRef).collect(Collectors.toSet())));
+        }
+    }
+
+    /**
+     * Spends {@code coins}, largest first, to pay {@code quantity} to {@code payee}, with change
+     * back to us; one payment and at most one change output per issuer. Returns the keys that must sign.
+     */
+    List<PublicKey> addCashPayment(TransactionBuilder builder, List<StateAndRef<Cash.State>> coins,
+                                   long quantity, AbstractParty payee) {
+        final Map<Issued<Currency>, Long> paid = new LinkedHashMap<>();
+        final Map<Issued<Currency>, Long> change = new LinkedHashMap<>();
+        final Set<PublicKey> ownerKeys = new LinkedHashSet<>();
+        long left = quantity;
+        for (StateAndRef<Cash.State> coin : coins) {
+            if (left == 0) {
+                break;
+            }
+            final Amount<Issued<Currency>> coinAmount = coin.getState().getData().getAmount();
+            final long pay = Math.min(coinAmount.getQuantity(), left);
+            builder.addInputState(coin);
+            ownerKeys.add(coin.getState().getData().getOwner().getOwningKey());
+            paid.merge(coinAmount.getToken(), pay, Long::sum);
+            if (coinAmount.getQuantity() > pay) {
+                change.merge(coinAmount.getToken(), coinAmount.getQuantity() - pay, Long::sum);
+            }
+            left -= pay;
+        }
+        paid.forEach((token, q) -> builder.addOutputState(new Cash.State(new Amount<>(q, token), payee), Cash.PROGRAM_ID));
+        change.forEach((token, q) -> builder.addOutputState(new Cash.State(new Amount<>(q, token), getOurIdentity()), Cash.PROGRAM_ID));
+        final List<PublicKey> keys = ImmutableList.copyOf(ownerKeys);
+        builder.addCommand(new Cash.Commands.Move(), keys);
+        return keys;
+    }
+
+    /** The rate oracle named by {@code fxforward.oracle.name}, or null when forwards are issued without fixes. */
+    Party configuredOracle() throws FlowException {
+        return configuredOracle(getServiceHub());
+    }
+
+    static Party configuredOracle(ServiceHub serviceHub) throws FlowException {
+        final String name = Settings.stringSetting("oracle.name", null);
+        if (name == null) {
+            return null;
+        }
+        final Party oracle = serviceHub.getIdentityService().wellKnownPartyFromX500Name(CordaX500Name.parse(name));
+        if (oracle == null) {
+            throw new FlowException(String.format("Rate oracle %s is not on the network.", name));
+        }
+        return oracle;
+    }
+
+    /**
+     * Rejects a forward issued with rates from an oracle we do not trust: the one named by
+     * {@code oracle.name} if we set it, and otherwise any well-known node.
+     */
+    static void checkOracle(ServiceHub serviceHub, SignedTransaction tx) throws FlowException {
+        final Party trusted = configuredOracle(serviceHub);
+        for (FXForwardContract.Commands.Issue issue : tx.getTx().getCommands().stream()
+                .map(Command::getValue)
+                .filter(FXForwardContract.Commands.Issue.class::isInstance)
+                .map(FXForwardContract.Commands.Issue.class::cast)
+                .collect(Collectors.toList())) {
+            final PublicKey oracleKey = issue.getOracleKey();
+            if (oracleKey == null) {
+                continue;
+            }
+            final boolean ok = trusted != null
+                    ? trusted.getOwningKey().equals(oracleKey)
+                    : serviceHub.getNetworkMapCache().getNodesByLegalIdentityKey(oracleKey).size() > 0;
+            if (!ok) {
+                throw new FlowException("The forward's rate oracle is not one we trust.");
+            }
         }
-        return tokens.get(0);
     }
 
     Party resolveIdentity(AbstractParty abstractParty) {
         return getServiceHub().getIdentityService().requireWellKnownPartyFromAnonymous(abstractParty);
     }
 
-    static class SignTxFlowNoChecking extends SignTransactionFlow {
-        SignTxFlowNoChecking(FlowSession otherFlow, ProgressTracker progressTracker) {
+    /** Signs only what the node's {@link ResponderPolicyService} accepts from the other side. */
+    static class PolicySignTxFlow extends SignTransactionFlow {
+        PolicySignTxFlow(FlowSession otherFlow, ProgressTracker progressTracker) {
             super(otherFlow, progressTracker);
         }
 
         @Override
-        protected void checkTransaction(SignedTransaction tx) {
-            // TODO: Add checking here.
+        protected void checkTransaction(SignedTransaction tx) throws FlowException {
+            checkOracle(getServiceHub(), tx);
+            getServiceHub().cordaService(ResponderPolicyService.class).check(tx, getOtherSideSession().getCounterparty());
         }
     }
 }
\ No newline at end of file
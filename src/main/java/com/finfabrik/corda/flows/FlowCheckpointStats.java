@@ -0,0 +1,69 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.metrics.Metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checkpoints taken during one flow run, by suspension point: a send, a receive or a sub-flow call
+ * made by the flow itself. With {@code -Dfxforward.checkpoint.measure=true} each entry also carries
+ * the size of the checkpoint the node stored at that point, read back from the checkpoint table;
+ * otherwise only counts are kept. A sub-flow counts as one suspension, sized by its last checkpoint.
+ */
+public class FlowCheckpointStats {
+    private final Map<String, long[]> points = new LinkedHashMap<>();
+    private long checkpoints;
+    private long bytes;
+    private long maxBytes;
+
+    /** {@code size} is negative when it was not measured. */
+    void suspended(String point, long size) {
+        final long[] stats = points.computeIfAbsent(point, it -> new long[3]);
+        stats[0]++;
+        checkpoints++;
+        if (size >= 0) {
+            stats[1] += size;
+            stats[2] = Math.max(stats[2], size);
+            bytes += size;
+            maxBytes = Math.max(maxBytes, size);
+        }
+    }
+
+    public long getCheckpoints() {
+        return checkpoints;
+    }
+
+    /** Total size of the measured checkpoints. */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Largest measured checkpoint at each suspension point, in the order the points were first reached. */
+    public Map<String, Long> getMaxBytesByPoint() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        points.forEach((point, stats) -> result.put(point, stats[2]));
+        return Collections.unmodifiableMap(result);
+    }
+
+    /** Adds this run to the {@code flow.<name>.checkpoint*} counters. */
+    public void publish(Metrics metrics, String flowName) {
+        final String prefix = "flow." + flowName + ".";
+        metrics.increment(prefix + "checkpoints", checkpoints);
+        metrics.increment(prefix + "checkpointBytes", bytes);
+        points.forEach((point, stats) -> {
+            metrics.increment(prefix + "checkpoint." + point + ".count", stats[0]);
+            metrics.increment(prefix + "checkpoint." + point + ".bytes", stats[1]);
+        });
+    }
+
+    @Override
+    public String toString() {
+        return String.format("checkpoints=%d bytes=%d maxBytes=%d byPoint=%s", checkpoints, bytes, maxBytes, getMaxBytesByPoint());
+    }
+}
@@ -0,0 +1,88 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Message counts for one flow run, as seen by the flow itself: sends and receives it makes on its own
+ * sessions, their serialized payload sizes, and the sub-flows it calls. Messages exchanged inside a
+ * sub-flow (signature collection, finality, state exchange) are not visible here, so protocol budgets
+ * cover both the direct counts and the sub-flows called.
+ *
+ * A round trip is counted each time the flow receives after having sent, i.e. each time it waits on a
+ * counterparty it has just written to.
+ */
+public class FlowMessageStats {
+    private long sends;
+    private long receives;
+    private long bytesSent;
+    private long bytesReceived;
+    private long roundTrips;
+    private boolean awaitingReply;
+    private final List<String> subFlows = new ArrayList<>();
+
+    void sent(long bytes) {
+        sends++;
+        bytesSent += bytes;
+        awaitingReply = true;
+    }
+
+    void received(long bytes) {
+        receives++;
+        bytesReceived += bytes;
+        if (awaitingReply) {
+            roundTrips++;
+            awaitingReply = false;
+        }
+    }
+
+    void subFlow(String name) {
+        subFlows.add(name);
+    }
+
+    public long getSends() {
+        return sends;
+    }
+
+    public long getReceives() {
+        return receives;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getRoundTrips() {
+        return roundTrips;
+    }
+
+    /** Names of the sub-flows called directly by the flow, in call order. */
+    public List<String> getSubFlows() {
+        return Collections.unmodifiableList(subFlows);
+    }
+
+    /** Adds this run to the {@code flow.<name>.*} counters. */
+    public void publish(Metrics metrics, String flowName) {
+        final String prefix = "flow." + flowName + ".";
+        metrics.increment(prefix + "runs");
+        metrics.increment(prefix + "sends", sends);
+        metrics.increment(prefix + "receives", receives);
+        metrics.increment(prefix + "bytesSent", bytesSent);
+        metrics.increment(prefix + "bytesReceived", bytesReceived);
+        metrics.increment(prefix + "roundTrips", roundTrips);
+        metrics.increment(prefix + "subFlows", subFlows.size());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sends=%d receives=%d bytesSent=%d bytesReceived=%d roundTrips=%d subFlows=%s",
+                sends, receives, bytesSent, bytesReceived, roundTrips, subFlows);
+    }
+}
@@ -0,0 +1,111 @@
+package com.finfabrik.corda.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.utilities.UntrustworthyData;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Base for the CorDapp's flows that keeps a {@link FlowMessageStats} and a {@link FlowCheckpointStats}
+ * for the run. Session traffic goes through {@link #sendTo} and {@link #receiveFrom} so it is counted;
+ * {@link #subFlow} is overridden to record the sub-flows called. Each of the three is a suspension
+ * point and is recorded as one. Flows call {@link #publishMessageStats()} once, when the run ends,
+ * to add both to the node metrics.
+ *
+ * Payload sizes cost a second serialisation of every message, so they are only measured with
+ * {@code -Dfxforward.messages.measureBytes=true}; otherwise the byte counts stay at zero.
+ */
+public abstract class InstrumentedFlow<T> extends FlowLogic<T> {
+    private static final String CHECKPOINT_SIZE_SQL =
+            "SELECT LENGTH(checkpoint_value) FROM node_checkpoints WHERE checkpoint_id = ?";
+
+    private final FlowMessageStats messageStats = new FlowMessageStats();
+    private final FlowCheckpointStats checkpointStats = new FlowCheckpointStats();
+
+    public FlowMessageStats getMessageStats() {
+        return messageStats;
+    }
+
+    public FlowCheckpointStats getCheckpointStats() {
+        return checkpointStats;
+    }
+
+    @Suspendable
+    protected void sendTo(FlowSession session, Object payload) throws FlowException {
+        messageStats.sent(measureBytes() ? sizeOf(payload) : 0L);
+        session.send(payload);
+        resumed("send." + payload.getClass().getSimpleName());
+    }
+
+    @Suspendable
+    protected <R> UntrustworthyData<R> receiveFrom(FlowSession session, Class<R> type) throws FlowException {
+        final UntrustworthyData<R> data = session.receive(type);
+        resumed("receive." + type.getSimpleName());
+        messageStats.received(measureBytes() ? data.unwrap((UntrustworthyData.Validator<R, Long>) InstrumentedFlow::sizeOf) : 0L);
+        return data;
+    }
+
+    @Suspendable
+    @Override
+    public <R> R subFlow(FlowLogic<R> subLogic) throws FlowException {
+        final String name = subFlowName(subLogic.getClass());
+        messageStats.subFlow(name);
+        final R result = super.subFlow(subLogic);
+        resumed("subFlow." + name);
+        return result;
+    }
+
+    protected void publishMessageStats() {
+        final Metrics metrics = getServiceHub().cordaService(MetricsService.class).getMetrics();
+        messageStats.publish(metrics, flowName(getClass()));
+        checkpointStats.publish(metrics, flowName(getClass()));
+    }
+
+    /**
+     * Records a suspension at {@code point}. Once the flow has resumed, its row in the checkpoint
+     * table holds the checkpoint taken there, so its size can be read back in the flow's own transaction.
+     */
+    private void resumed(String point) {
+        checkpointStats.suspended(point, Settings.booleanSetting("checkpoint.measure", false) ? storedCheckpointSize() : -1L);
+    }
+
+    private long storedCheckpointSize() {
+        try (PreparedStatement statement = getServiceHub().jdbcSession().prepareStatement(CHECKPOINT_SIZE_SQL)) {
+            statement.setString(1, getRunId().getUuid().toString());
+            try (ResultSet rows = statement.executeQuery()) {
+                return rows.next() ? rows.getLong(1) : -1L;
+            }
+        } catch (SQLException e) {
+            return -1L;
+        }
+    }
+
+    /** {@code Outer.Inner} for the nested Initiator/Responder classes, the simple name otherwise. */
+    static String flowName(Class<?> flowClass) {
+        final Class<?> outer = flowClass.getEnclosingClass();
+        return outer != null ? outer.getSimpleName() + "." + flowClass.getSimpleName() : flowClass.getSimpleName();
+    }
+
+    /** Anonymous sub-flows, such as inline {@code SignTransactionFlow}s, are named after what they extend. */
+    private static String subFlowName(Class<?> subFlowClass) {
+        return flowName(subFlowClass.isAnonymousClass() ? subFlowClass.getSuperclass() : subFlowClass);
+    }
+
+    private static boolean measureBytes() {
+        return Settings.booleanSetting("messages.measureBytes", false);
+    }
+
+    private static long sizeOf(Object payload) {
+        final SerializationFactory factory = SerializationFactory.Companion.getDefaultFactory();
+        return factory.serialize(payload, factory.getDefaultContext()).getSize();
+    }
+}
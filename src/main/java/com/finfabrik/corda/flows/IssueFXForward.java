@@ -3,24 +3,33 @@ package com.finfabrik.corda.flows;
 import co.paralleluniverse.fibers.Suspendable;
 import com.finfabrik.corda.FXForward;
 import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.calendar.ValueDateService;
+import com.finfabrik.corda.oracle.FixOf;
+import com.finfabrik.corda.oracle.RateFix;
+import com.finfabrik.corda.oracle.RateOracleFlows;
+import com.finfabrik.corda.tracing.Span;
+import com.finfabrik.corda.tracing.TraceContext;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import net.corda.confidential.SwapIdentitiesFlow;
 import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Command;
+import net.corda.core.crypto.TransactionSignature;
 import net.corda.core.flows.*;
 import net.corda.core.identity.AnonymousParty;
 import net.corda.core.identity.Party;
+import net.corda.core.transactions.FilteredTransaction;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
 import net.corda.core.utilities.ProgressTracker.Step;
+import net.corda.core.utilities.UntrustworthyData;
 import net.corda.finance.contracts.Commodity;
 import net.corda.finance.contracts.Tenor;
 
 import java.security.PublicKey;
 import java.time.Duration;
+import java.time.LocalDate;
 import java.util.Currency;
-import java.util.HashMap;
 import java.util.List;
 
 public class IssueFXForward {
@@ -32,16 +41,17 @@ public class IssueFXForward {
         private final Party buyer;
         private final Tenor tenor;
         private final Boolean anonymous;
+        private final TraceContext trace;
 
-        private final Step INITIALISING = new Step("Performing initial steps.");
-        private final Step BUILDING = new Step("Performing initial steps.");
-        private final Step SIGNING = new Step("Signing transaction.");
-        private final Step COLLECTING = new Step("Collecting counterparty signature.") {
+        private static final Step INITIALISING = new Step("Performing initial steps.");
+        private static final Step BUILDING = new Step("Building transaction.");
+        private static final Step SIGNING = new Step("Signing transaction.");
+        private static final Step COLLECTING = new Step("Collecting counterparty signature.") {
             @Override public ProgressTracker childProgressTracker() {
                 return CollectSignaturesFlow.Companion.tracker();
             }
         };
-        private final Step FINALISING = new Step("Finalising transaction.") {
+        private static final Step FINALISING = new Step("Finalising transaction.") {
             @Override public ProgressTracker childProgressTracker() {
                 return FinalityFlow.Companion.tracker();
             }
@@ -51,12 +61,17 @@ public class IssueFXForward {
                 INITIALISING, BUILDING, SIGNING, COLLECTING, FINALISING
         );
 
-        public Initiator(Amount<Currency> base, Amount<Commodity> terms, Party buyer, Tenor tenor, Boolean anonymous) {
+        public Initiator(Amount<Currency> base, Amount<Commodity> terms, Party buyer, Tenor tenor, Boolean anonymous, TraceContext trace) {
             this.base = base;
             this.terms = terms;
             this.buyer = buyer;
             this.tenor = tenor;
             this.anonymous = anonymous;
+            this.trace = trace;
+        }
+
+        public Initiator(Amount<Currency> base, Amount<Commodity> terms, Party buyer, Tenor tenor, Boolean anonymous) {
+            this(base, terms, buyer, tenor, anonymous, null);
         }
 
         @Override
@@ -67,59 +82,120 @@ public class IssueFXForward {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            progressTracker.setCurrentStep(INITIALISING);
-            final FXForward FXForward = createForward();
-            final PublicKey ourSigningKey = FXForward.getSeller().getOwningKey();
+            startTracing(trace, "IssueFXForward.Initiator", false);
+            try {
+                final SignedTransaction result = issue();
+                tracer.finish();
+                return result;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
 
-            progressTracker.setCurrentStep(BUILDING);
-            final List<PublicKey> requiredSigners = FXForward.getParticipantKeys();
+        /**
+         * Each stage hands the next only what it needs, so the checkpoints taken while collecting
+         * and finalising carry the signed proposal, not the builder or the oracle's answer.
+         */
+        @Suspendable
+        private SignedTransaction issue() throws FlowException {
+            return finalise(collect(propose()));
+        }
 
+        @Suspendable
+        private SignedTransaction propose() throws FlowException {
+            step(INITIALISING);
+            final FXForward forward = createForward();
+            final Party oracle = configuredOracle();
+            final RateFix fix = oracle == null ? null : queryFix(oracle, forward);
+            final SignedTransaction ptx = buildAndSign(forward, fix, oracle);
+            return oracle == null ? ptx : ptx.withAdditionalSignature(attest(oracle, ptx));
+        }
+
+        private SignedTransaction buildAndSign(FXForward forward, RateFix fix, Party oracle) {
+            step(BUILDING);
             final TransactionBuilder utx = new TransactionBuilder(getFirstNotary())
-                    .addOutputState(FXForward, FXForwardContract.FORWARD_CONTRACT_ID)
-                    .addCommand(new FXForwardContract.Commands.Issue(), requiredSigners)
+                    .addOutputState(forward, FXForwardContract.FORWARD_CONTRACT_ID)
+                    .addCommand(new FXForwardContract.Commands.Issue(oracle == null ? null : oracle.getOwningKey()), forward.getParticipantKeys())
                     .setTimeWindow(getServiceHub().getClock().instant(), Duration.ofSeconds(30));
+            if (fix != null) {
+                utx.addCommand(fix, oracle.getOwningKey());
+            }
 
-            progressTracker.setCurrentStep(SIGNING);
-            final SignedTransaction ptx = getServiceHub().signInitialTransaction(utx, ourSigningKey);
+            step(SIGNING);
+            return getServiceHub().signInitialTransaction(utx, forward.getSeller().getOwningKey());
+        }
 
-            progressTracker.setCurrentStep(COLLECTING);
-            final FlowSession lenderFlow = initiateFlow(buyer);
+        @Suspendable
+        private RateFix queryFix(Party oracle, FXForward forward) throws FlowException {
+            final Span fixing = tracer.start("QueryRates");
+            final FixOf of = new FixOf(forward.getCurrency().getCurrencyCode(), forward.getTokenCode(), tenor);
+            final RateFix fix = subFlow(new RateOracleFlows.QueryRates(oracle, ImmutableList.of(of))).get(0);
+            tracer.end(fixing);
+            return fix;
+        }
+
+        @Suspendable
+        private TransactionSignature attest(Party oracle, SignedTransaction ptx) throws FlowException {
+            // The oracle sees only its own command; everything else is torn off.
+            final FilteredTransaction ftx = ptx.getTx().buildFilteredTransaction(
+                    element -> element instanceof Command && ((Command<?>) element).getValue() instanceof RateFix);
+            final Span attesting = tracer.start("SignFixes");
+            final TransactionSignature signature = subFlow(new RateOracleFlows.SignFixes(oracle, ImmutableList.of(ftx))).get(0);
+            tracer.end(attesting);
+            return signature;
+        }
+
+        @Suspendable
+        private SignedTransaction collect(SignedTransaction ptx) throws FlowException {
+            step(COLLECTING);
+            final PublicKey ourSigningKey = ptx.getTx().outputsOfType(FXForward.class).get(0).getSeller().getOwningKey();
+            final FlowSession buyerFlow = initiateFlow(buyer);
+            sendTo(buyerFlow, tracer.context());
+            final Span collecting = tracer.start("CollectSignaturesFlow");
             final SignedTransaction stx = subFlow(new CollectSignaturesFlow(
                     ptx,
-                    ImmutableSet.of(lenderFlow),
+                    ImmutableSet.of(buyerFlow),
                     ImmutableList.of(ourSigningKey),
                     COLLECTING.childProgressTracker())
             );
+            tracer.end(collecting);
+            return stx;
+        }
 
-            progressTracker.setCurrentStep(FINALISING);
-            return subFlow(new FinalityFlow(stx, FINALISING.childProgressTracker()));
+        @Suspendable
+        private SignedTransaction finalise(SignedTransaction stx) throws FlowException {
+            step(FINALISING);
+            final Span finalising = tracer.start("FinalityFlow");
+            final SignedTransaction notarised = subFlow(new FinalityFlow(stx, FINALISING.childProgressTracker()));
+            tracer.end(finalising.tag("tx.id", notarised.getId()));
+            return notarised;
         }
 
         @Suspendable
         private FXForward createForward() throws FlowException {
-            if (anonymous) {
-                final HashMap<Party, AnonymousParty> txKeys = subFlow(new SwapIdentitiesFlow(buyer));
-
-                if (txKeys.size() != 2) {
-                    throw new IllegalStateException("Something went wrong when generating confidential identities.");
-                } else if (!txKeys.containsKey(getOurIdentity())) {
-                    throw new FlowException("Couldn't create our conf. identity.");
-                } else if (!txKeys.containsKey(buyer)) {
-                    throw new FlowException("Couldn't create buyer's conf. identity.");
-                }
+            final LocalDate valueDate = getServiceHub().cordaService(ValueDateService.class).valueDate(
+                    LocalDate.now(getServiceHub().getClock()),
+                    tenor,
+                    base.getToken().getCurrencyCode(),
+                    terms.getToken().getCommodityCode());
 
-                final AnonymousParty anonymousMe = txKeys.get(getOurIdentity());
-                final AnonymousParty anonymousLender = txKeys.get(buyer);
+            if (anonymous) {
+                final List<AnonymousParty> identities = swapIdentities(buyer);
+                final AnonymousParty anonymousMe = identities.get(0);
+                final AnonymousParty anonymousLender = identities.get(1);
 
-                return new FXForward(base, terms, anonymousLender, anonymousMe, tenor);
+                return new FXForward(base, terms, anonymousLender, anonymousMe, tenor, valueDate);
             } else {
-                return new FXForward(base, terms, buyer, getOurIdentity(), tenor);
+                return new FXForward(base, terms, buyer, getOurIdentity(), tenor, valueDate);
             }
         }
     }
 
     @InitiatedBy(Initiator.class)
-    public static class Responder extends FlowLogic<SignedTransaction> {
+    public static class Responder extends FXForwardBaseFlow {
         private final FlowSession otherFlow;
 
         public Responder(FlowSession otherFlow) {
@@ -129,8 +205,30 @@ public class IssueFXForward {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            final SignedTransaction stx = subFlow(new FXForwardBaseFlow.SignTxFlowNoChecking(otherFlow, SignTransactionFlow.Companion.tracker()));
-            return waitForLedgerCommit(stx.getId());
+            final TraceContext trace = receiveFrom(otherFlow, TraceContext.class).unwrap((UntrustworthyData.Validator<TraceContext, TraceContext>) data -> data);
+            startTracing(trace, "IssueFXForward.Responder", true);
+            try {
+                final SignedTransaction committed = signAndWait();
+                tracer.finish();
+                return committed;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction signAndWait() throws FlowException {
+            final Span signing = tracer.start("SignTransactionFlow");
+            final SignedTransaction stx = subFlow(new FXForwardBaseFlow.PolicySignTxFlow(otherFlow, SignTransactionFlow.Companion.tracker()));
+            tracer.end(signing);
+
+            final Span committing = tracer.start("WaitForLedgerCommit");
+            final SignedTransaction committed = waitForLedgerCommit(stx.getId());
+            tracer.end(committing.tag("tx.id", committed.getId()));
+            return committed;
         }
     }
 }
\ No newline at end of file
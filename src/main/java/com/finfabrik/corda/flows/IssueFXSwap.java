@@ -0,0 +1,179 @@
+package com.finfabrik.corda.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.FXSwap;
+import com.finfabrik.corda.tracing.Span;
+import com.finfabrik.corda.tracing.TraceContext;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.ProgressTracker.Step;
+import net.corda.core.utilities.UntrustworthyData;
+import net.corda.finance.contracts.Commodity;
+import net.corda.finance.contracts.Tenor;
+
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.Currency;
+import java.util.List;
+
+/**
+ * Books both legs of an FX swap as one {@link FXSwap} state, with one signature round and one
+ * notarisation instead of the two that separate forwards need.
+ */
+public class IssueFXSwap {
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FXForwardBaseFlow {
+        private final Amount<Currency> nearBase;
+        private final Amount<Currency> farBase;
+        private final Amount<Commodity> terms;
+        private final Party buyer;
+        private final Tenor nearTenor;
+        private final Tenor farTenor;
+        private final Boolean anonymous;
+        private final TraceContext trace;
+
+        private final Step INITIALISING = new Step("Performing initial steps.");
+        private final Step BUILDING = new Step("Building and verifying transaction.");
+        private final Step SIGNING = new Step("Signing transaction.");
+        private final Step COLLECTING = new Step("Collecting counterparty signature.") {
+            @Override public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final Step FINALISING = new Step("Finalising transaction.") {
+            @Override public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                INITIALISING, BUILDING, SIGNING, COLLECTING, FINALISING
+        );
+
+        public Initiator(Amount<Currency> nearBase, Amount<Currency> farBase, Amount<Commodity> terms, Party buyer,
+                         Tenor nearTenor, Tenor farTenor, Boolean anonymous, TraceContext trace) {
+            this.nearBase = nearBase;
+            this.farBase = farBase;
+            this.terms = terms;
+            this.buyer = buyer;
+            this.nearTenor = nearTenor;
+            this.farTenor = farTenor;
+            this.anonymous = anonymous;
+            this.trace = trace;
+        }
+
+        public Initiator(Amount<Currency> nearBase, Amount<Currency> farBase, Amount<Commodity> terms, Party buyer,
+                         Tenor nearTenor, Tenor farTenor, Boolean anonymous) {
+            this(nearBase, farBase, terms, buyer, nearTenor, farTenor, anonymous, null);
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            startTracing(trace, "IssueFXSwap.Initiator", false);
+            try {
+                final SignedTransaction result = issue();
+                tracer.finish();
+                return result;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction issue() throws FlowException {
+            step(INITIALISING);
+            final FXSwap swap;
+            if (anonymous) {
+                final List<AnonymousParty> identities = swapIdentities(buyer);
+                swap = new FXSwap(nearBase, farBase, terms, identities.get(1), identities.get(0), nearTenor, farTenor);
+            } else {
+                swap = new FXSwap(nearBase, farBase, terms, buyer, getOurIdentity(), nearTenor, farTenor);
+            }
+            final PublicKey ourSigningKey = swap.getSeller().getOwningKey();
+
+            step(BUILDING);
+            final TransactionBuilder utx = new TransactionBuilder(getFirstNotary())
+                    .addOutputState(swap, FXForwardContract.FORWARD_CONTRACT_ID)
+                    .addCommand(new FXForwardContract.Commands.IssueSwap(), swap.getParticipantKeys())
+                    .setTimeWindow(getServiceHub().getClock().instant(), Duration.ofSeconds(30));
+            utx.verify(getServiceHub());
+
+            step(SIGNING);
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(utx, ourSigningKey);
+
+            step(COLLECTING);
+            final FlowSession buyerFlow = initiateFlow(buyer);
+            sendTo(buyerFlow, tracer.context());
+            final Span collecting = tracer.start("CollectSignaturesFlow");
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(
+                    ptx,
+                    ImmutableSet.of(buyerFlow),
+                    ImmutableList.of(ourSigningKey),
+                    COLLECTING.childProgressTracker())
+            );
+            tracer.end(collecting);
+
+            step(FINALISING);
+            final Span finalising = tracer.start("FinalityFlow");
+            final SignedTransaction notarised = subFlow(new FinalityFlow(stx, FINALISING.childProgressTracker()));
+            tracer.end(finalising.tag("tx.id", notarised.getId()));
+            return notarised;
+        }
+    }
+
+    @InitiatedBy(Initiator.class)
+    public static class Responder extends FXForwardBaseFlow {
+        private final FlowSession otherFlow;
+
+        public Responder(FlowSession otherFlow) {
+            this.otherFlow = otherFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final TraceContext trace = receiveFrom(otherFlow, TraceContext.class).unwrap((UntrustworthyData.Validator<TraceContext, TraceContext>) data -> data);
+            startTracing(trace, "IssueFXSwap.Responder", true);
+            try {
+                final SignedTransaction committed = signAndWait();
+                tracer.finish();
+                return committed;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction signAndWait() throws FlowException {
+            final Span signing = tracer.start("SignTransactionFlow");
+            final SignedTransaction stx = subFlow(new FXForwardBaseFlow.PolicySignTxFlow(otherFlow, SignTransactionFlow.Companion.tracker()));
+            tracer.end(signing);
+
+            final Span committing = tracer.start("WaitForLedgerCommit");
+            final SignedTransaction committed = waitForLedgerCommit(stx.getId());
+            tracer.end(committing.tag("tx.id", committed.getId()));
+            return committed;
+        }
+    }
+}
@@ -5,12 +5,17 @@ import com.finfabrik.corda.FXForward;
 import com.finfabrik.corda.FXForwardContract;
 import com.finfabrik.corda.Token;
 import com.finfabrik.corda.TokenContract;
+import com.finfabrik.corda.services.SettlementStagingService;
+import com.finfabrik.corda.tracing.Span;
+import com.finfabrik.corda.tracing.TraceContext;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import net.corda.confidential.IdentitySyncFlow;
 import net.corda.core.contracts.*;
+import net.corda.core.crypto.TransactionSignature;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
@@ -19,12 +24,24 @@ import net.corda.core.utilities.UntrustworthyData;
 import net.corda.finance.contracts.asset.Cash;
 
 import java.security.PublicKey;
-import java.util.Collections;
 import java.util.Currency;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import static net.corda.finance.contracts.GetBalances.getCashBalance;
 
+/**
+ * Settles a forward: the seller pays the base amount in cash and receives the buyer's token.
+ *
+ * By default the whole outstanding amount is paid in one transaction. With {@code amount}, only
+ * that much is settled and the forward stays on ledger with the rest outstanding. With
+ * {@code maxCashInputs}, no transaction spends more than that many cash states: the amount is
+ * paid in successive tranches, each reducing the forward, and the token moves with the tranche
+ * that settles the forward in full.
+ *
+ * When the whole amount is settled and {@link StageSettlement} has a current staged settlement for
+ * the forward, that transaction is only notarised; {@code tokenId} may then be null.
+ */
 public class SettleFXForward {
     @InitiatingFlow
     @StartableByRPC
@@ -32,17 +49,20 @@ public class SettleFXForward {
         private final UniqueIdentifier contractId;
         private final UniqueIdentifier tokenId;
         private final Boolean anonymous;
+        private final Amount<Currency> amount;
+        private final int maxCashInputs;
+        private final TraceContext trace;
 
-        private final Step PREPARATION = new Step("Obtaining IOU from vault.");
-        private final Step BUILDING = new Step("Building and verifying transaction.");
-        private final Step SIGNING = new Step("Signing transaction.");
-        private final Step COLLECTING = new Step("Collecting counterparty signature.") {
+        private static final Step PREPARATION = new Step("Obtaining IOU from vault.");
+        private static final Step BUILDING = new Step("Building and verifying transaction.");
+        private static final Step SIGNING = new Step("Signing transaction.");
+        private static final Step COLLECTING = new Step("Collecting counterparty signature.") {
             @Override
             public ProgressTracker childProgressTracker() {
                 return CollectSignaturesFlow.Companion.tracker();
             }
         };
-        private final Step FINALISING = new Step("Finalising transaction.") {
+        private static final Step FINALISING = new Step("Finalising transaction.") {
             @Override
             public ProgressTracker childProgressTracker() {
                 return FinalityFlow.Companion.tracker();
@@ -53,10 +73,26 @@ public class SettleFXForward {
                 PREPARATION, BUILDING, SIGNING, COLLECTING, FINALISING
         );
 
-        public Initiator(UniqueIdentifier contractId, UniqueIdentifier tokenId, Boolean anonymous) {
+        /**
+         * @param amount how much base to settle, or null for everything outstanding.
+         * @param maxCashInputs the most cash states one transaction may spend, or 0 for no limit.
+         */
+        public Initiator(UniqueIdentifier contractId, UniqueIdentifier tokenId, Boolean anonymous,
+                         Amount<Currency> amount, int maxCashInputs, TraceContext trace) {
             this.contractId = contractId;
             this.tokenId = tokenId;
             this.anonymous = anonymous;
+            this.amount = amount;
+            this.maxCashInputs = maxCashInputs;
+            this.trace = trace;
+        }
+
+        public Initiator(UniqueIdentifier contractId, UniqueIdentifier tokenId, Boolean anonymous, TraceContext trace) {
+            this(contractId, tokenId, anonymous, null, 0, trace);
+        }
+
+        public Initiator(UniqueIdentifier contractId, UniqueIdentifier tokenId, Boolean anonymous) {
+            this(contractId, tokenId, anonymous, null);
         }
 
         @Override
@@ -67,76 +103,218 @@ public class SettleFXForward {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            startTracing(trace, "SettleFXForward.Initiator", false);
+            try {
+                final SignedTransaction result = settle();
+                tracer.finish();
+                return result;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
 
-            progressTracker.setCurrentStep(PREPARATION);
-            final StateAndRef<FXForward> contractToSettle = getForwardByLinearId(contractId);
-            final FXForward inputFXForward = contractToSettle.getState().getData();
-
-            final Party sellerIdentity = resolveIdentity(inputFXForward.getSeller());
-            final Party buyerIdentity = resolveIdentity(inputFXForward.getBuyer());
+        /**
+         * Pays tranches until the requested amount is settled; returns the last tranche's transaction.
+         *
+         * Vault queries, coin selection and transaction building happen in methods that do not
+         * suspend, so a checkpoint holds the quantities and the proposal in flight, not the forward,
+         * the coins or the builder.
+         */
+        @Suspendable
+        private SignedTransaction settle() throws FlowException {
+            step(PREPARATION);
+            long toSettle = pledged();
+            if (amount == null && maxCashInputs == 0) {
+                final SignedTransaction staged = finaliseStaged();
+                if (staged != null) {
+                    return staged;
+                }
+            }
+            // Settling live makes any staged transaction stale, and frees the cash it reserved for this settlement.
+            getServiceHub().cordaService(SettlementStagingService.class).discard(contractId);
+            if (tokenId == null) {
+                throw new FlowException(String.format("No staged settlement of %s; a token id is required.", contractId));
+            }
+            final Party buyer = resolveIdentity(getForwardByLinearId(contractId).getState().getData().getBuyer());
+            SignedTransaction last = null;
+            while (toSettle > 0) {
+                final long outstanding = getForwardByLinearId(contractId).getState().getData().getBaseQuantity();
+                last = settleTranche(buyer, outstanding, toSettle);
+                final List<FXForward> remaining = last.getTx().outputsOfType(FXForward.class);
+                toSettle -= outstanding - (remaining.isEmpty() ? 0L : remaining.get(0).getBaseQuantity());
+            }
+            return last;
+        }
 
-            if (!sellerIdentity.equals(getOurIdentity())) {
+        /** Checks that we are the seller and {@link #amount} can be settled; returns the quantity to settle. */
+        private long pledged() throws FlowException {
+            final FXForward original = getForwardByLinearId(contractId).getState().getData();
+            if (!resolveIdentity(original.getSeller()).equals(getOurIdentity())) {
                 throw new FlowException("Settle FXForward flow must be initiated by the seller.");
             }
-
-            Amount<Currency> cashToSettle = inputFXForward.getBase();
-            final Amount<Currency> cashBalance = getCashBalance(getServiceHub(), cashToSettle.getToken());
-            if (cashBalance.getQuantity() <= 0L) {
-                throw new FlowException(String.format("Seller has no %s to settle.", cashToSettle.getToken()));
-            } else if (cashBalance.getQuantity() < cashToSettle.getQuantity()) {
+            final Amount<Currency> outstanding = original.getBase();
+            if (amount != null && (amount.getQuantity() <= 0 || !amount.getToken().equals(outstanding.getToken()))) {
+                throw new FlowException(String.format("Cannot settle %s of a %s forward.", amount, outstanding.getToken()));
+            } else if (amount != null && amount.getQuantity() > outstanding.getQuantity()) {
                 throw new FlowException(String.format(
-                        "Seller has only %s but needs %s to settle.", cashBalance, cashToSettle));
-            } else if (cashToSettle.getQuantity() < cashToSettle.getQuantity()) {
-                throw new FlowException(String.format(
-                        "There's only %s left to settle but you pledged %s.", cashToSettle, cashToSettle));
+                        "There's only %s left to settle but you pledged %s.", outstanding, amount));
             }
+            return amount == null ? outstanding.getQuantity() : amount.getQuantity();
+        }
 
-            FlowSession buyerSession = initiateFlow(buyerIdentity);
-            buyerSession.send(tokenId);
-            List<StateAndRef<Token>> stateAndRefs = subFlow(new ReceiveStateAndRefFlow<Token>(buyerSession));
+        /**
+         * Notarises the settlement {@link StageSettlement} prepared for this forward, if one is current,
+         * and returns it; null when there is none or the notary rejected it, e.g. because the buyer
+         * spent the staged token, in which case it is discarded and we settle live.
+         */
+        @Suspendable
+        private SignedTransaction finaliseStaged() throws FlowException {
+            final SettlementStagingService staging = getServiceHub().cordaService(SettlementStagingService.class);
+            final SignedTransaction stx = staging.current(contractId, tokenId);
+            if (stx == null) {
+                return null;
+            }
+            step(FINALISING);
+            final Span finalising = tracer.start("FinalityFlow");
+            try {
+                final SignedTransaction notarised = subFlow(new FinalityFlow(stx, FINALISING.childProgressTracker()));
+                tracer.end(finalising.tag("tx.id", notarised.getId()).tag("staged", true));
+                staging.settled(contractId);
+                return notarised;
+            } catch (NotaryException e) {
+                tracer.end(finalising.tag("staged", true).tag("rejected", e.getError().getClass().getSimpleName()));
+                staging.discard(contractId);
+                return null;
+            }
+        }
 
-            StateAndRef<Token> tokenInput = stateAndRefs.get(0);
-            Token token = tokenInput.getState().getData();
-            Token ourToken = token.withNewOwner(sellerIdentity);
+        /** Settles up to {@code wanted} of the {@code outstanding} forward in one transaction. */
+        @Suspendable
+        private SignedTransaction settleTranche(Party buyer, long outstanding, long wanted) throws FlowException {
+            step(PREPARATION);
+            final long tranche = reserveTranche(wanted);
+            final boolean settlesInFull = tranche == outstanding;
 
-            final List<PublicKey> requiredSigners = inputFXForward.getParticipantKeys();
-            final Command settleCommand = new Command<>(new FXForwardContract.Commands.Settle(), requiredSigners);
+            final FlowSession buyerSession = initiateFlow(buyer);
+            sendTo(buyerSession, tracer.context());
+            sendTo(buyerSession, new Tranche(settlesInFull ? tokenId : null));
+            final StateAndRef<Token> tokenInput = settlesInFull ? receiveToken(buyerSession) : null;
+
+            final SignedTransaction ptx = buildAndSign(tranche, tokenInput);
+            return finalise(collect(buyerSession, ptx), tranche);
+        }
 
-            final Command<TokenContract.Commands.Transfer> transferCommand = new Command<>(new TokenContract.Commands.Transfer(), requiredSigners);
+        /**
+         * How much of {@code wanted} this tranche pays: all of it, if the balance covers it, or
+         * with {@link #maxCashInputs} as much as our largest coins cover, which are soft-locked to this flow.
+         */
+        private long reserveTranche(long wanted) throws FlowException {
+            final Currency currency = getForwardByLinearId(contractId).getState().getData().getCurrency();
+            final long tranche;
+            if (maxCashInputs > 0) {
+                tranche = Math.min(wanted, reserveLargestCash(currency, getRunId().getUuid(), maxCashInputs).stream()
+                        .mapToLong(it -> it.getState().getData().getAmount().getQuantity()).sum());
+            } else {
+                tranche = wanted;
+                final Amount<Currency> cashBalance = getCashBalance(getServiceHub(), currency);
+                if (cashBalance.getQuantity() < tranche) {
+                    throw new FlowException(String.format(
+                            "Seller has only %s but needs %s to settle.", cashBalance, new Amount<>(tranche, currency)));
+                }
+            }
+            if (tranche <= 0L) {
+                throw new FlowException(String.format("Seller has no %s to settle.", currency));
+            }
+            return tranche;
+        }
+
+        @Suspendable
+        private StateAndRef<Token> receiveToken(FlowSession buyerSession) throws FlowException {
+            final Span exchanging = tracer.start("ReceiveStateAndRefFlow");
+            final List<StateAndRef<Token>> stateAndRefs = subFlow(new ReceiveStateAndRefFlow<Token>(buyerSession));
+            tracer.end(exchanging);
+            return stateAndRefs.get(0);
+        }
 
-            progressTracker.setCurrentStep(BUILDING);
+        /**
+         * Builds, verifies and signs the tranche paying {@code tranche}, taking {@code tokenInput}
+         * when it settles the forward in full. With {@link #maxCashInputs} the coins are selected
+         * again: those reserved by {@link #reserveTranche} are still ours and still the largest.
+         */
+        private SignedTransaction buildAndSign(long tranche, StateAndRef<Token> tokenInput) throws FlowException {
+            step(BUILDING);
+            final StateAndRef<FXForward> contractToSettle = getForwardByLinearId(contractId);
+            final FXForward inputFXForward = contractToSettle.getState().getData();
+            final Currency currency = inputFXForward.getCurrency();
+            final List<PublicKey> requiredSigners = inputFXForward.getParticipantKeys();
             final TransactionBuilder builder = new TransactionBuilder(getFirstNotary())
-                    .addInputState(tokenInput)
-                    .addCommand(transferCommand)
-                    .addOutputState(ourToken, TokenContract.Companion.getToken_CONTRACT_ID())
                     .addInputState(contractToSettle)
-                    .addCommand(settleCommand);
+                    .addCommand(new Command<>(new FXForwardContract.Commands.Settle(), requiredSigners));
 
-            final List<PublicKey> cashSigningKeys = Cash.generateSpend(
-                    getServiceHub(),
-                    builder,
-                    cashToSettle,
-                    inputFXForward.getBuyer(),
-                    ImmutableSet.of()).getSecond();
+            if (tokenInput != null) {
+                final Token ourToken = tokenInput.getState().getData().withNewOwner(resolveIdentity(inputFXForward.getSeller()));
+                builder.addInputState(tokenInput)
+                        .addCommand(new Command<>(new TokenContract.Commands.Transfer(), requiredSigners))
+                        .addOutputState(ourToken, TokenContract.Companion.getToken_CONTRACT_ID());
+            } else {
+                builder.addOutputState(inputFXForward.withBaseQuantity(inputFXForward.getBaseQuantity() - tranche),
+                        FXForwardContract.FORWARD_CONTRACT_ID);
+            }
+
+            final List<PublicKey> cashSigningKeys = maxCashInputs > 0
+                    ? addCashPayment(builder, reserveLargestCash(currency, getRunId().getUuid(), maxCashInputs), tranche, inputFXForward.getBuyer())
+                    : Cash.generateSpend(getServiceHub(), builder, new Amount<>(tranche, currency), inputFXForward.getBuyer(), ImmutableSet.of()).getSecond();
 
-            progressTracker.setCurrentStep(SIGNING);
+            step(SIGNING);
             builder.verify(getServiceHub());
             final List<PublicKey> signingKeys = new ImmutableList.Builder<PublicKey>()
                     .addAll(cashSigningKeys)
                     .add(inputFXForward.getSeller().getOwningKey())
                     .build();
-            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder, signingKeys);
+            return getServiceHub().signInitialTransaction(builder, signingKeys);
+        }
 
-            progressTracker.setCurrentStep(COLLECTING);
+        @Suspendable
+        private SignedTransaction collect(FlowSession buyerSession, SignedTransaction ptx) throws FlowException {
+            step(COLLECTING);
+            final Span syncing = tracer.start("IdentitySyncFlow");
             subFlow(new IdentitySyncFlow.Send(buyerSession, ptx.getTx()));
+            tracer.end(syncing);
+            final Span collecting = tracer.start("CollectSignaturesFlow");
             final SignedTransaction stx = subFlow(new CollectSignaturesFlow(
                     ptx,
                     ImmutableSet.of(buyerSession),
-                    signingKeys,
+                    ptx.getSigs().stream().map(TransactionSignature::getBy).collect(Collectors.toList()),
                     COLLECTING.childProgressTracker()));
+            tracer.end(collecting);
+            return stx;
+        }
 
-            progressTracker.setCurrentStep(FINALISING);
-            return subFlow(new FinalityFlow(stx, FINALISING.childProgressTracker()));
+        @Suspendable
+        private SignedTransaction finalise(SignedTransaction stx, long tranche) throws FlowException {
+            step(FINALISING);
+            final Span finalising = tracer.start("FinalityFlow");
+            final SignedTransaction notarised = subFlow(new FinalityFlow(stx, FINALISING.childProgressTracker()));
+            tracer.end(finalising.tag("tx.id", notarised.getId()).tag("tranche", tranche));
+            return notarised;
+        }
+    }
+
+    /** Tells the buyer whether this settlement transaction takes its token, and which one. */
+    @CordaSerializable
+    public static class Tranche {
+        private final UniqueIdentifier tokenId;
+
+        public Tranche(UniqueIdentifier tokenId) {
+            this.tokenId = tokenId;
+        }
+
+        /** The token to deliver, or null for a tranche that leaves part of the forward outstanding. */
+        public UniqueIdentifier getTokenId() {
+            return tokenId;
         }
     }
 
@@ -151,13 +329,21 @@ public class SettleFXForward {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-
-            UntrustworthyData<UniqueIdentifier> tokenId = sourceFlow.receive(UniqueIdentifier.class);
-            final StateAndRef<Token> token = getTokenByLinearId(tokenId.unwrap((UntrustworthyData.Validator<UniqueIdentifier, UniqueIdentifier>) data -> data));
-            subFlow(new SendStateAndRefFlow(sourceFlow, Collections.singletonList(token)));
-            subFlow(new IdentitySyncFlow.Receive(sourceFlow));
-            SignedTransaction stx = subFlow(new SignTxFlowNoChecking(sourceFlow, SignTransactionFlow.Companion.tracker()));
-            return waitForLedgerCommit(stx.getId());
+            final TraceContext trace = receiveFrom(sourceFlow, TraceContext.class).unwrap((UntrustworthyData.Validator<TraceContext, TraceContext>) data -> data);
+            startTracing(trace, "SettleFXForward.Responder", true);
+            try {
+                final Tranche tranche = receiveFrom(sourceFlow, Tranche.class).unwrap((UntrustworthyData.Validator<Tranche, Tranche>) data -> data);
+                final StateAndRef<Token> token = tranche.getTokenId() == null ? null : getTokenByLinearId(tranche.getTokenId());
+                final SignedTransaction committed = completeDelivery(sourceFlow, token);
+                StageSettlement.releaseLocks(getServiceHub(), committed);
+                tracer.finish();
+                return committed;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,184 @@
+package com.finfabrik.corda.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.FXSwap;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.TokenContract;
+import com.finfabrik.corda.tracing.Span;
+import com.finfabrik.corda.tracing.TraceContext;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.confidential.IdentitySyncFlow;
+import net.corda.core.contracts.*;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.ProgressTracker.Step;
+import net.corda.finance.contracts.asset.Cash;
+
+import java.security.PublicKey;
+import java.util.Currency;
+import java.util.List;
+
+import static net.corda.finance.contracts.GetBalances.getCashBalance;
+
+/**
+ * Settles the open leg of an {@link FXSwap}: the party paying cash on that leg (the seller on the
+ * near leg, the buyer on the far leg) runs the initiator and receives the counterparty's token.
+ * The near leg updates the swap in place; the far leg consumes it.
+ */
+public class SettleFXSwap {
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Initiator extends FXForwardBaseFlow {
+        private final UniqueIdentifier swapId;
+        private final UniqueIdentifier tokenId;
+        private final TraceContext trace;
+
+        private final Step PREPARATION = new Step("Obtaining swap from vault.");
+        private final Step BUILDING = new Step("Building and verifying transaction.");
+        private final Step SIGNING = new Step("Signing transaction.");
+        private final Step COLLECTING = new Step("Collecting counterparty signature.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final Step FINALISING = new Step("Finalising transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                PREPARATION, BUILDING, SIGNING, COLLECTING, FINALISING
+        );
+
+        public Initiator(UniqueIdentifier swapId, UniqueIdentifier tokenId, TraceContext trace) {
+            this.swapId = swapId;
+            this.tokenId = tokenId;
+            this.trace = trace;
+        }
+
+        public Initiator(UniqueIdentifier swapId, UniqueIdentifier tokenId) {
+            this(swapId, tokenId, null);
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            startTracing(trace, "SettleFXSwap.Initiator", false);
+            try {
+                final SignedTransaction result = settle();
+                tracer.finish();
+                return result;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction settle() throws FlowException {
+            step(PREPARATION);
+            final StateAndRef<FXSwap> swapToSettle = getSwapByLinearId(swapId);
+            final FXSwap swap = swapToSettle.getState().getData();
+            final FXSwap.Leg leg = swap.getOpenLeg();
+
+            final Party payer = resolveIdentity(swap.cashPayer(leg));
+            final Party receiver = resolveIdentity(swap.cashReceiver(leg));
+            if (!payer.equals(getOurIdentity())) {
+                throw new FlowException(String.format("The %s leg must be settled by %s, which pays its cash.", leg, payer.getName()));
+            }
+
+            final Amount<Currency> cashToPay = swap.baseFor(leg);
+            final Amount<Currency> cashBalance = getCashBalance(getServiceHub(), cashToPay.getToken());
+            if (cashBalance.getQuantity() < cashToPay.getQuantity()) {
+                throw new FlowException(String.format("Only %s available but the %s leg needs %s.", cashBalance, leg, cashToPay));
+            }
+
+            final FlowSession receiverSession = initiateFlow(receiver);
+            sendTo(receiverSession, tracer.context());
+            sendTo(receiverSession, tokenId);
+            final Span exchanging = tracer.start("ReceiveStateAndRefFlow");
+            final List<StateAndRef<Token>> stateAndRefs = subFlow(new ReceiveStateAndRefFlow<Token>(receiverSession));
+            tracer.end(exchanging);
+            final StateAndRef<Token> tokenInput = stateAndRefs.get(0);
+
+            final List<PublicKey> requiredSigners = swap.getParticipantKeys();
+            final CommandData settleCommand = leg == FXSwap.Leg.NEAR
+                    ? new FXForwardContract.Commands.SettleNearLeg()
+                    : new FXForwardContract.Commands.SettleFarLeg();
+
+            step(BUILDING);
+            final TransactionBuilder builder = new TransactionBuilder(getFirstNotary())
+                    .addInputState(tokenInput)
+                    .addCommand(new TokenContract.Commands.Transfer(), requiredSigners)
+                    .addOutputState(tokenInput.getState().getData().withNewOwner(payer), TokenContract.Companion.getToken_CONTRACT_ID())
+                    .addInputState(swapToSettle)
+                    .addCommand(settleCommand, requiredSigners);
+            if (leg == FXSwap.Leg.NEAR) {
+                builder.addOutputState(swap.withNearSettled(), FXForwardContract.FORWARD_CONTRACT_ID);
+            }
+
+            final List<PublicKey> cashSigningKeys = Cash.generateSpend(
+                    getServiceHub(),
+                    builder,
+                    cashToPay,
+                    swap.cashReceiver(leg),
+                    ImmutableSet.of()).getSecond();
+
+            step(SIGNING);
+            builder.verify(getServiceHub());
+            final List<PublicKey> signingKeys = new ImmutableList.Builder<PublicKey>()
+                    .addAll(cashSigningKeys)
+                    .add(swap.cashPayer(leg).getOwningKey())
+                    .build();
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder, signingKeys);
+
+            step(COLLECTING);
+            final Span syncing = tracer.start("IdentitySyncFlow");
+            subFlow(new IdentitySyncFlow.Send(receiverSession, ptx.getTx()));
+            tracer.end(syncing);
+            final Span collecting = tracer.start("CollectSignaturesFlow");
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(
+                    ptx,
+                    ImmutableSet.of(receiverSession),
+                    signingKeys,
+                    COLLECTING.childProgressTracker()));
+            tracer.end(collecting);
+
+            step(FINALISING);
+            final Span finalising = tracer.start("FinalityFlow");
+            final SignedTransaction notarised = subFlow(new FinalityFlow(stx, FINALISING.childProgressTracker()));
+            tracer.end(finalising.tag("tx.id", notarised.getId()));
+            return notarised;
+        }
+    }
+
+    @InitiatedBy(Initiator.class)
+    public static class Responder extends FXForwardBaseFlow {
+        private final FlowSession sourceFlow;
+
+        public Responder(FlowSession sourceFlow) {
+            this.sourceFlow = sourceFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            return deliverToken(sourceFlow, "SettleFXSwap.Responder");
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.finfabrik.corda.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.TokenContract;
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.metrics.MetricsService;
+import com.finfabrik.corda.services.SettlementStagingService;
+import com.finfabrik.corda.tracing.Span;
+import com.finfabrik.corda.tracing.TraceContext;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.confidential.IdentitySyncFlow;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.ProgressTracker.Step;
+import net.corda.core.utilities.UntrustworthyData;
+import net.corda.finance.contracts.asset.Cash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Prepares the full settlement of a forward ahead of its value date.
+ *
+ * The seller reserves enough of its largest cash states and the buyer reserves a token matching
+ * the forward's terms, both soft-locked under a lock id derived from the forward, so neither is
+ * picked by other flows. The settlement transaction is then built, verified and signed by both
+ * sides and handed to the {@link SettlementStagingService}. At cutoff {@link SettleFXForward}
+ * only has to notarise it. Staging again releases the previous reservations first, so a forward
+ * can be re-staged whenever its staged transaction is no longer current. The seller's cash is
+ * released when the staged transaction is used or dropped, the buyer's token by
+ * {@link #releaseLocks} once the forward is settled or compressed by any transaction.
+ */
+public class StageSettlement {
+    private static final Logger logger = LoggerFactory.getLogger(StageSettlement.class);
+    private static final int MAX_TOKENS = 500;
+
+    /** Soft-lock id for the inputs reserved to settle {@code contractId}, the same on both nodes and across restarts. */
+    public static UUID lockId(UniqueIdentifier contractId) {
+        return UUID.nameUUIDFromBytes(("settlement:" + contractId.getId()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Releases whatever was reserved to settle the forwards {@code stx} consumes. The buyer calls this
+     * once a settlement or compression of its forwards commits, since a staged transaction that was
+     * not used would otherwise keep its token locked. Call from a flow.
+     */
+    public static void releaseLocks(ServiceHub serviceHub, SignedTransaction stx) {
+        final QueryCriteria consumed = new QueryCriteria.VaultQueryCriteria(
+                Vault.StateStatus.ALL, null, stx.getTx().getInputs(), null, null, null);
+        for (StateAndRef<FXForward> forward : serviceHub.getVaultService().queryBy(FXForward.class, consumed).getStates()) {
+            serviceHub.getVaultService().softLockRelease(lockId(forward.getState().getData().getLinearId()), null);
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class Initiator extends FXForwardBaseFlow {
+        private static final Step RESERVING = new Step("Reserving cash.");
+        private static final Step EXCHANGING = new Step("Receiving the buyer's token.");
+        private static final Step BUILDING = new Step("Building and verifying transaction.");
+        private static final Step COLLECTING = new Step("Collecting counterparty signature.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+
+        private final UniqueIdentifier contractId;
+        private final int maxCashInputs;
+        private final TraceContext trace;
+        private final ProgressTracker progressTracker = new ProgressTracker(RESERVING, EXCHANGING, BUILDING, COLLECTING);
+
+        /** @param maxCashInputs the most cash states the settlement may spend. */
+        public Initiator(UniqueIdentifier contractId, int maxCashInputs, TraceContext trace) {
+            this.contractId = contractId;
+            this.maxCashInputs = maxCashInputs;
+            this.trace = trace;
+        }
+
+        public Initiator(UniqueIdentifier contractId) {
+            this(contractId, Settings.intSetting("staging.maxCashInputs", 100), null);
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            startTracing(trace, "StageSettlement.Initiator", false);
+            try {
+                final SignedTransaction result = stage();
+                tracer.finish();
+                return result;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction stage() throws FlowException {
+            step(RESERVING);
+            final Party buyer = reserveCash();
+
+            step(EXCHANGING);
+            final FlowSession buyerSession = initiateFlow(buyer);
+            sendTo(buyerSession, tracer.context());
+            sendTo(buyerSession, contractId);
+            final Span exchanging = tracer.start("ReceiveStateAndRefFlow");
+            final List<StateAndRef<Token>> tokens = subFlow(new ReceiveStateAndRefFlow<Token>(buyerSession));
+            tracer.end(exchanging);
+
+            final SignedTransaction ptx = buildAndSign(tokens.get(0));
+
+            step(COLLECTING);
+            final Span syncing = tracer.start("IdentitySyncFlow");
+            subFlow(new IdentitySyncFlow.Send(buyerSession, ptx.getTx()));
+            tracer.end(syncing);
+            final Span collecting = tracer.start("CollectSignaturesFlow");
+            final SignedTransaction stx = subFlow(new CollectSignaturesFlow(
+                    ptx,
+                    ImmutableSet.of(buyerSession),
+                    ptx.getSigs().stream().map(TransactionSignature::getBy).collect(Collectors.toList()),
+                    COLLECTING.childProgressTracker()));
+            tracer.end(collecting.tag("tx.id", stx.getId()));
+
+            getServiceHub().cordaService(SettlementStagingService.class).stage(contractId, stx);
+            return stx;
+        }
+
+        /** Releases any earlier reservation and soft-locks the fewest of our largest coins that cover the forward. */
+        private Party reserveCash() throws FlowException {
+            final FXForward forward = getForwardByLinearId(contractId).getState().getData();
+            if (!resolveIdentity(forward.getSeller()).equals(getOurIdentity())) {
+                throw new FlowException("Settlement must be staged by the seller.");
+            }
+            final UUID lockId = lockId(contractId);
+            getServiceHub().getVaultService().softLockRelease(lockId, null);
+
+            final List<StateAndRef<Cash.State>> needed = new ArrayList<>();
+            long covered = 0L;
+            for (StateAndRef<Cash.State> coin : largestCash(forward.getCurrency(), lockId, maxCashInputs)) {
+                if (covered >= forward.getBaseQuantity()) {
+                    break;
+                }
+                needed.add(coin);
+                covered += coin.getState().getData().getAmount().getQuantity();
+            }
+            if (covered < forward.getBaseQuantity()) {
+                throw new FlowException(String.format("Seller's %d largest %s states cover only %d of %s.",
+                        maxCashInputs, forward.getCurrency(), covered, forward.getBase()));
+            }
+            reserve(lockId, needed);
+            return resolveIdentity(forward.getBuyer());
+        }
+
+        /**
+         * Builds, verifies and signs the full settlement taking {@code tokenInput}. The coins are
+         * selected again: those reserved by {@link #reserveCash} are still ours and still the largest.
+         */
+        private SignedTransaction buildAndSign(StateAndRef<Token> tokenInput) throws FlowException {
+            step(BUILDING);
+            final StateAndRef<FXForward> contractToSettle = getForwardByLinearId(contractId);
+            final FXForward forward = contractToSettle.getState().getData();
+            final Token token = tokenInput.getState().getData();
+            if (!token.getTokenCode().equals(forward.getTokenCode()) || token.getQuantity() != forward.getTermsQuantity()) {
+                throw new FlowException(String.format("Buyer offered %d %s for a forward of %s.",
+                        token.getQuantity(), token.getTokenCode(), forward.getTerms()));
+            }
+
+            final List<PublicKey> requiredSigners = forward.getParticipantKeys();
+            final TransactionBuilder builder = new TransactionBuilder(getFirstNotary())
+                    .addInputState(contractToSettle)
+                    .addCommand(new Command<>(new FXForwardContract.Commands.Settle(), requiredSigners))
+                    .addInputState(tokenInput)
+                    .addCommand(new Command<>(new TokenContract.Commands.Transfer(), requiredSigners))
+                    .addOutputState(token.withNewOwner(resolveIdentity(forward.getSeller())), TokenContract.Companion.getToken_CONTRACT_ID());
+            final List<PublicKey> cashSigningKeys = addCashPayment(builder,
+                    largestCash(forward.getCurrency(), lockId(contractId), maxCashInputs), forward.getBaseQuantity(), forward.getBuyer());
+
+            builder.verify(getServiceHub());
+            final List<PublicKey> signingKeys = new ImmutableList.Builder<PublicKey>()
+                    .addAll(cashSigningKeys)
+                    .add(forward.getSeller().getOwningKey())
+                    .build();
+            return getServiceHub().signInitialTransaction(builder, signingKeys);
+        }
+    }
+
+    @InitiatedBy(Initiator.class)
+    public static class Responder extends FXForwardBaseFlow {
+        private final FlowSession sellerFlow;
+
+        public Responder(FlowSession sellerFlow) {
+            this.sellerFlow = sellerFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final TraceContext trace = receiveFrom(sellerFlow, TraceContext.class).unwrap((UntrustworthyData.Validator<TraceContext, TraceContext>) data -> data);
+            startTracing(trace, "StageSettlement.Responder", true);
+            try {
+                final SignedTransaction stx = sign();
+                tracer.finish();
+                return stx;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction sign() throws FlowException {
+            final UniqueIdentifier contractId = receiveFrom(sellerFlow, UniqueIdentifier.class).unwrap((UntrustworthyData.Validator<UniqueIdentifier, UniqueIdentifier>) data -> data);
+
+            final Span sending = tracer.start("SendStateAndRefFlow");
+            subFlow(new SendStateAndRefFlow(sellerFlow, Collections.singletonList(reserveToken(contractId))));
+            tracer.end(sending);
+            final Span syncing = tracer.start("IdentitySyncFlow");
+            subFlow(new IdentitySyncFlow.Receive(sellerFlow));
+            tracer.end(syncing);
+            // Signed now, notarised at cutoff: nothing is recorded until the seller settles.
+            final Span signing = tracer.start("SignTransactionFlow");
+            final SignedTransaction stx = subFlow(new PolicySignTxFlow(sellerFlow, SignTransactionFlow.Companion.tracker()));
+            tracer.end(signing.tag("tx.id", stx.getId()));
+            return stx;
+        }
+
+        /** Releases any earlier reservation and soft-locks one of our tokens matching the forward's terms. */
+        private StateAndRef<Token> reserveToken(UniqueIdentifier contractId) throws FlowException {
+            final FXForward forward = getForwardByLinearId(contractId).getState().getData();
+            if (!resolveIdentity(forward.getBuyer()).equals(getOurIdentity())
+                    || !resolveIdentity(forward.getSeller()).equals(sellerFlow.getCounterparty())) {
+                throw new FlowException(String.format("Forward %s is not one we buy from %s.", contractId, sellerFlow.getCounterparty()));
+            }
+            final UUID lockId = lockId(contractId);
+            getServiceHub().getVaultService().softLockRelease(lockId, null);
+
+            final QueryCriteria available = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, null,
+                    new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_AND_SPECIFIED, ImmutableList.of(lockId)), null);
+            final StateAndRef<Token> token = getServiceHub().getVaultService()
+                    .queryBy(Token.class, available, new PageSpecification(1, MAX_TOKENS)).getStates().stream()
+                    .filter(it -> it.getState().getData().getOwner().equals(getOurIdentity()))
+                    .filter(it -> it.getState().getData().getTokenCode().equals(forward.getTokenCode()))
+                    .filter(it -> it.getState().getData().getQuantity() == forward.getTermsQuantity())
+                    .findFirst()
+                    .orElseThrow(() -> new FlowException(String.format("No free token of %s to deliver.", forward.getTerms())));
+            reserve(lockId, ImmutableList.of(token));
+            return token;
+        }
+    }
+
+    /**
+     * Stages every forward we sell that settles within {@code leadDays} and has no current staged settlement.
+     * A forward that fails to stage, for whatever reason, is counted as {@code staging.forwardFailures},
+     * has any cash reserved for it released, and does not stop the rest; the next run tries it again.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class StageDue extends InstrumentedFlow<List<UniqueIdentifier>> {
+        private static final int PAGE_SIZE = 500;
+
+        private final int leadDays;
+
+        public StageDue(int leadDays) {
+            this.leadDays = leadDays;
+        }
+
+        @Suspendable
+        @Override
+        public List<UniqueIdentifier> call() throws FlowException {
+            final List<UniqueIdentifier> staged = new ArrayList<>();
+            for (UniqueIdentifier contractId : due()) {
+                try {
+                    subFlow(new Initiator(contractId));
+                    staged.add(contractId);
+                } catch (FlowException | RuntimeException e) {
+                    getServiceHub().cordaService(SettlementStagingService.class).discard(contractId);
+                    getServiceHub().cordaService(MetricsService.class).getMetrics().increment("staging.forwardFailures");
+                    logger.warn("Could not stage settlement of {}: {}", contractId, e.toString());
+                }
+            }
+            publishMessageStats();
+            return staged;
+        }
+
+        private List<UniqueIdentifier> due() {
+            final LocalDate horizon = LocalDate.now(getServiceHub().getClock()).plusDays(leadDays);
+            final SettlementStagingService staging = getServiceHub().cordaService(SettlementStagingService.class);
+            final QueryCriteria open = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+            final List<UniqueIdentifier> due = new ArrayList<>();
+            for (int page = 1; ; page++) {
+                final Vault.Page<FXForward> forwards = getServiceHub().getVaultService().queryBy(
+                        FXForward.class, open, new PageSpecification(page, PAGE_SIZE));
+                for (StateAndRef<FXForward> state : forwards.getStates()) {
+                    final FXForward forward = state.getState().getData();
+                    if (forward.getValueDate() != null && !forward.getValueDate().isAfter(horizon)
+                            && getServiceHub().getKeyManagementService().filterMyKeys(ImmutableList.of(forward.getSeller().getOwningKey())).iterator().hasNext()
+                            && staging.current(forward.getLinearId(), null) == null) {
+                        due.add(forward.getLinearId());
+                    }
+                }
+                if ((long) page * PAGE_SIZE >= forwards.getTotalStatesAvailable()) {
+                    return due;
+                }
+            }
+        }
+    }
+}
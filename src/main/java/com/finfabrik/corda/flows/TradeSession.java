@@ -0,0 +1,482 @@
+package com.finfabrik.corda.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.calendar.ValueDateService;
+import com.finfabrik.corda.oracle.FixOf;
+import com.finfabrik.corda.oracle.RateFix;
+import com.finfabrik.corda.oracle.RateOracleFlows;
+import com.finfabrik.corda.policy.ResponderPolicyService;
+import com.finfabrik.corda.services.TradeSessionService;
+import com.finfabrik.corda.tracing.FlowTracer;
+import com.finfabrik.corda.tracing.Span;
+import com.finfabrik.corda.tracing.TraceContext;
+import com.finfabrik.corda.tracing.TracingService;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.FilteredTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.UntrustworthyData;
+import net.corda.finance.contracts.Commodity;
+import net.corda.finance.contracts.Tenor;
+
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Issues many forwards with one counterparty over a single flow session.
+ *
+ * {@link IssueFXForward} starts a flow pair per trade, so every trade pays for the session
+ * handshake, the responder's start-up and a {@link FinalityFlow} broadcast. Here the seller's
+ * {@link Initiator} takes trades queued in the {@link TradeSessionService} and sends up to
+ * {@code window} signed proposals in one {@link Window}; the buyer's {@link Responder} checks and
+ * signs all of them in one {@link Reply}. Up to {@code depth} windows are in flight at once, so the
+ * buyer signs the next window while the seller notarises the last. The seller notarises each trade,
+ * records it, and sends the window's notarised transactions to the buyer straight away, before
+ * taking on more work. The session stays open while trades keep arriving and closes with a last
+ * {@link Window}.
+ *
+ * Forwards are issued between well-known identities: swapping confidential identities per trade
+ * would add back the round trips the session saves. Settlement still runs through
+ * {@link SettleFXForward}, which needs the buyer's token and backchain resolution.
+ */
+public class TradeSession {
+    /** One forward to issue, under a linear id chosen by the submitter so it can be found on ledger. */
+    @CordaSerializable
+    public static class Request {
+        private final Amount<Currency> base;
+        private final Amount<Commodity> terms;
+        private final Tenor tenor;
+        private final UniqueIdentifier linearId;
+
+        public Request(Amount<Currency> base, Amount<Commodity> terms, Tenor tenor, UniqueIdentifier linearId) {
+            this.base = base;
+            this.terms = terms;
+            this.tenor = tenor;
+            this.linearId = linearId;
+        }
+
+        public Request(Amount<Currency> base, Amount<Commodity> terms, Tenor tenor) {
+            this(base, terms, tenor, new UniqueIdentifier());
+        }
+
+        public Amount<Currency> getBase() {
+            return base;
+        }
+
+        public Amount<Commodity> getTerms() {
+            return terms;
+        }
+
+        public Tenor getTenor() {
+            return tenor;
+        }
+
+        public UniqueIdentifier getLinearId() {
+            return linearId;
+        }
+    }
+
+    /**
+     * Proposals for the buyer to sign, or notarised transactions for it to record, or both. The buyer
+     * replies only when there are proposals, and stops after the {@code last} window.
+     */
+    @CordaSerializable
+    public static class Window {
+        private final List<SignedTransaction> proposals;
+        private final List<SignedTransaction> finalised;
+        private final boolean last;
+
+        public Window(List<SignedTransaction> proposals, List<SignedTransaction> finalised, boolean last) {
+            this.proposals = proposals;
+            this.finalised = finalised;
+            this.last = last;
+        }
+
+        static Window propose(List<SignedTransaction> proposals) {
+            return new Window(proposals, ImmutableList.of(), false);
+        }
+
+        static Window record(List<SignedTransaction> finalised, boolean last) {
+            return new Window(ImmutableList.of(), finalised, last);
+        }
+
+        public List<SignedTransaction> getProposals() {
+            return proposals;
+        }
+
+        public List<SignedTransaction> getFinalised() {
+            return finalised;
+        }
+
+        public boolean isLast() {
+            return last;
+        }
+    }
+
+    /** The buyer's signature on each proposal it accepts, and its reason for each it rejects. */
+    @CordaSerializable
+    public static class Reply {
+        private final Map<SecureHash, TransactionSignature> signatures;
+        private final Map<SecureHash, String> rejections;
+
+        public Reply(Map<SecureHash, TransactionSignature> signatures, Map<SecureHash, String> rejections) {
+            this.signatures = signatures;
+            this.rejections = rejections;
+        }
+
+        public Map<SecureHash, TransactionSignature> getSignatures() {
+            return signatures;
+        }
+
+        public Map<SecureHash, String> getRejections() {
+            return rejections;
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByService
+    public static class Initiator extends InstrumentedFlow<Integer> {
+        private final Party buyer;
+        private final int window;
+        private final int depth;
+        private FlowTracer tracer;
+
+        /**
+         * @param window the most trades proposed per window.
+         * @param depth the most windows sent before their replies are read.
+         */
+        public Initiator(Party buyer, int window, int depth) {
+            this.buyer = buyer;
+            this.window = window;
+            this.depth = depth;
+        }
+
+        /** Returns how many forwards were issued over the session. */
+        @Suspendable
+        @Override
+        public Integer call() throws FlowException {
+            tracer = new FlowTracer(getServiceHub().cordaService(TracingService.class), null, "TradeSession.Initiator", false);
+            try {
+                final int issued = trade();
+                tracer.finish();
+                return issued;
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        /**
+         * Keeps up to {@link #depth} windows in flight. Transactions notarised here reach the buyer
+         * before the next proposal is built, and on the way out if the session fails, so the buyer's
+         * ledger never misses a forward the seller has recorded.
+         */
+        @Suspendable
+        private int trade() throws FlowException {
+            final TradeSessionService sessions = getServiceHub().cordaService(TradeSessionService.class);
+            final FlowSession buyerSession = initiateFlow(buyer);
+            sendTo(buyerSession, tracer.context());
+
+            final Deque<List<SignedTransaction>> inFlight = new ArrayDeque<>();
+            final List<SignedTransaction> unsent = new ArrayList<>();
+            int issued = 0;
+            try {
+                while (true) {
+                    while (inFlight.size() < depth) {
+                        final List<Request> requests = sessions.take(buyer, window);
+                        if (requests.isEmpty()) {
+                            break;
+                        }
+                        final List<SignedTransaction> proposals = propose(sessions, requests);
+                        if (!proposals.isEmpty()) {
+                            sendTo(buyerSession, Window.propose(proposals));
+                            inFlight.add(proposals);
+                        }
+                    }
+                    if (inFlight.isEmpty()) {
+                        if (sessions.closeIfIdle(buyer)) {
+                            sendTo(buyerSession, Window.record(ImmutableList.of(), true));
+                            return issued;
+                        }
+                        continue;
+                    }
+
+                    final List<SignedTransaction> proposals = inFlight.poll();
+                    final Span windowSpan = tracer.start("Window");
+                    final Reply reply = receiveFrom(buyerSession, Reply.class).unwrap((UntrustworthyData.Validator<Reply, Reply>) data -> data);
+                    final int notarised = finalise(sessions, proposals, reply, unsent);
+                    if (!unsent.isEmpty()) {
+                        sendTo(buyerSession, Window.record(ImmutableList.copyOf(unsent), false));
+                        unsent.clear();
+                    }
+                    issued += notarised;
+                    tracer.end(windowSpan.tag("proposed", proposals.size()).tag("issued", notarised));
+                }
+            } catch (FlowException | RuntimeException e) {
+                if (!unsent.isEmpty()) {
+                    try {
+                        sendTo(buyerSession, Window.record(ImmutableList.copyOf(unsent), true));
+                    } catch (FlowException | RuntimeException notSent) {
+                        e.addSuppressed(notSent);
+                    }
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Builds and signs one proposal per request; with an oracle configured, fixes the whole window
+         * in one query and one attestation. If that fails, or a value date falls outside the calendars,
+         * the window's trades fail and the session goes on.
+         */
+        @Suspendable
+        private List<SignedTransaction> propose(TradeSessionService sessions, List<Request> requests) throws FlowException {
+            try {
+                return proposeOrThrow(requests);
+            } catch (FlowException | IllegalArgumentException e) {
+                requests.forEach(request -> sessions.failed(request.getLinearId(), e.getMessage()));
+                return ImmutableList.of();
+            }
+        }
+
+        @Suspendable
+        private List<SignedTransaction> proposeOrThrow(List<Request> requests) throws FlowException {
+            final Party oracle = FXForwardBaseFlow.configuredOracle(getServiceHub());
+            final List<RateFix> fixes = oracle == null ? null : subFlow(new RateOracleFlows.QueryRates(oracle, requests.stream()
+                    .map(it -> new FixOf(it.getBase().getToken().getCurrencyCode(), it.getTerms().getToken().getCommodityCode(), it.getTenor()))
+                    .collect(Collectors.toList())));
+            final List<SignedTransaction> proposals = buildAndSign(requests, fixes, oracle);
+            if (oracle == null) {
+                return proposals;
+            }
+            final List<FilteredTransaction> torn = proposals.stream().map(ptx -> ptx.getTx().buildFilteredTransaction(
+                    element -> element instanceof Command && ((Command<?>) element).getValue() instanceof RateFix))
+                    .collect(Collectors.toList());
+            final List<TransactionSignature> attestations = subFlow(new RateOracleFlows.SignFixes(oracle, torn));
+            final List<SignedTransaction> attested = new ArrayList<>();
+            for (int i = 0; i < proposals.size(); i++) {
+                attested.add(proposals.get(i).withAdditionalSignature(attestations.get(i)));
+            }
+            return attested;
+        }
+
+        private List<SignedTransaction> buildAndSign(List<Request> requests, List<RateFix> fixes, Party oracle) throws FlowException {
+            final Party notary = FXForwardBaseFlow.firstNotary(getServiceHub());
+            final ValueDateService valueDates = getServiceHub().cordaService(ValueDateService.class);
+            final LocalDate today = LocalDate.now(getServiceHub().getClock());
+            final List<SignedTransaction> proposals = new ArrayList<>();
+            for (int i = 0; i < requests.size(); i++) {
+                final Request request = requests.get(i);
+                final String baseCode = request.getBase().getToken().getCurrencyCode();
+                final String tokenCode = request.getTerms().getToken().getCommodityCode();
+                final FXForward forward = new FXForward(
+                        request.getBase().getQuantity(), request.getBase().getToken(),
+                        request.getTerms().getQuantity(), tokenCode,
+                        buyer, getOurIdentity(), request.getTenor(),
+                        valueDates.valueDate(today, request.getTenor(), baseCode, tokenCode),
+                        request.getLinearId());
+                final TransactionBuilder utx = new TransactionBuilder(notary)
+                        .addOutputState(forward, FXForwardContract.FORWARD_CONTRACT_ID)
+                        .addCommand(new FXForwardContract.Commands.Issue(oracle == null ? null : oracle.getOwningKey()), forward.getParticipantKeys())
+                        .setTimeWindow(getServiceHub().getClock().instant(), Duration.ofSeconds(30));
+                if (fixes != null) {
+                    utx.addCommand(fixes.get(i), oracle.getOwningKey());
+                }
+                proposals.add(getServiceHub().signInitialTransaction(utx, getOurIdentity().getOwningKey()));
+            }
+            return proposals;
+        }
+
+        /**
+         * Notarises and records each proposal the buyer validly signed, adding it to {@code notarised}
+         * as soon as it is recorded, and reports every trade in the window to the
+         * {@link TradeSessionService} as it completes or fails. Returns how many were notarised.
+         */
+        @Suspendable
+        private int finalise(TradeSessionService sessions, List<SignedTransaction> proposals, Reply reply,
+                             List<SignedTransaction> notarised) throws FlowException {
+            int count = 0;
+            for (SignedTransaction ptx : proposals) {
+                final UniqueIdentifier linearId = ptx.getTx().outputsOfType(FXForward.class).get(0).getLinearId();
+                final String unsigned = unsigned(buyer, ptx, reply);
+                if (unsigned != null) {
+                    sessions.failed(linearId, unsigned);
+                    continue;
+                }
+                try {
+                    final SignedTransaction stx = ptx.withAdditionalSignature(reply.getSignatures().get(ptx.getId()));
+                    final List<TransactionSignature> notarySignatures = subFlow(new NotaryFlow.Client(stx));
+                    final SignedTransaction recorded = stx.withAdditionalSignatures(notarySignatures);
+                    getServiceHub().recordTransactions(ImmutableList.of(recorded));
+                    notarised.add(recorded);
+                    sessions.completed(linearId, recorded);
+                    count++;
+                } catch (FlowException e) {
+                    sessions.failed(linearId, e.getMessage());
+                }
+            }
+            return count;
+        }
+
+        /** Why {@code reply} does not carry {@code buyer}'s valid signature on {@code ptx}, or null if it does. */
+        static String unsigned(Party buyer, SignedTransaction ptx, Reply reply) {
+            final TransactionSignature signature = reply.getSignatures().get(ptx.getId());
+            if (signature == null) {
+                return reply.getRejections().getOrDefault(ptx.getId(), "Not signed by the buyer.");
+            }
+            try {
+                if (signature.getBy().equals(buyer.getOwningKey()) && signature.verify(ptx.getId())) {
+                    return null;
+                }
+            } catch (InvalidKeyException | SignatureException e) {
+                // Reported as invalid below.
+            }
+            return "The buyer's signature is not valid.";
+        }
+    }
+
+    @InitiatedBy(Initiator.class)
+    public static class Responder extends InstrumentedFlow<Integer> {
+        private final FlowSession sellerFlow;
+        private FlowTracer tracer;
+
+        public Responder(FlowSession sellerFlow) {
+            this.sellerFlow = sellerFlow;
+        }
+
+        /** Returns how many forwards were recorded over the session. */
+        @Suspendable
+        @Override
+        public Integer call() throws FlowException {
+            final TraceContext trace = receiveFrom(sellerFlow, TraceContext.class).unwrap((UntrustworthyData.Validator<TraceContext, TraceContext>) data -> data);
+            tracer = new FlowTracer(getServiceHub().cordaService(TracingService.class), trace, "TradeSession.Responder", true);
+
+            // Ids of the proposals we signed and have not yet seen notarised.
+            final Set<SecureHash> signed = new HashSet<>();
+            int recorded = 0;
+            try {
+                while (true) {
+                    final Window window = receiveFrom(sellerFlow, Window.class).unwrap((UntrustworthyData.Validator<Window, Window>) data -> data);
+                    recorded += record(window.getFinalised(), signed);
+                    if (window.isLast()) {
+                        tracer.finish();
+                        return recorded;
+                    }
+                    if (!window.getProposals().isEmpty()) {
+                        final Span signing = tracer.start("SignWindow");
+                        sendTo(sellerFlow, sign(window.getProposals(), signed));
+                        tracer.end(signing.tag("proposed", window.getProposals().size()));
+                    }
+                }
+            } catch (FlowException | RuntimeException e) {
+                tracer.fail(e);
+                throw e;
+            } finally {
+                publishMessageStats();
+            }
+        }
+
+        private Reply sign(List<SignedTransaction> proposals, Set<SecureHash> signed) {
+            final ResponderPolicyService policy = getServiceHub().cordaService(ResponderPolicyService.class);
+            final Map<SecureHash, TransactionSignature> signatures = new HashMap<>();
+            final Map<SecureHash, String> rejections = new HashMap<>();
+            for (SignedTransaction ptx : proposals) {
+                try {
+                    checkProposal(ptx);
+                    policy.check(ptx, sellerFlow.getCounterparty());
+                    signatures.put(ptx.getId(), getServiceHub().createSignature(ptx, getOurIdentity().getOwningKey()));
+                    signed.add(ptx.getId());
+                } catch (FlowException e) {
+                    rejections.put(ptx.getId(), e.getMessage());
+                }
+            }
+            return new Reply(signatures, rejections);
+        }
+
+        /** A proposal must issue exactly one forward that we buy from the seller, and verify. */
+        private void checkProposal(SignedTransaction ptx) throws FlowException {
+            final List<FXForward> forwards = ptx.getTx().outputsOfType(FXForward.class);
+            if (!ptx.getTx().getInputs().isEmpty() || forwards.size() != 1 || ptx.getTx().getOutputs().size() != 1) {
+                throw new FlowException("A trade session only issues single forwards.");
+            }
+            final FXForward forward = forwards.get(0);
+            if (!getOurIdentity().equals(forward.getBuyer()) || !sellerFlow.getCounterparty().equals(forward.getSeller())) {
+                throw new FlowException(String.format("Forward %s is not one we buy from %s.", forward.getLinearId(), sellerFlow.getCounterparty()));
+            }
+            FXForwardBaseFlow.checkOracle(getServiceHub(), ptx);
+            verify(ptx, false);
+        }
+
+        /** Records the notarised transactions of proposals we signed. */
+        private int record(List<SignedTransaction> finalised, Set<SecureHash> signed) throws FlowException {
+            for (SignedTransaction stx : finalised) {
+                if (!signed.remove(stx.getId())) {
+                    throw new FlowException(String.format("Transaction %s was not proposed in this session.", stx.getId()));
+                }
+                verify(stx, true);
+            }
+            if (!finalised.isEmpty()) {
+                getServiceHub().recordTransactions(finalised);
+            }
+            return finalised.size();
+        }
+
+        private void verify(SignedTransaction stx, boolean checkSufficientSignatures) throws FlowException {
+            try {
+                stx.verify(getServiceHub(), checkSufficientSignatures);
+            } catch (SignatureException e) {
+                throw new FlowException(String.format("Transaction %s is not properly signed: %s", stx.getId(), e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Queues {@code requests} for a session with {@code buyer} and returns the linear ids their forwards
+     * will have, without waiting for them to be issued. An RPC client cannot be handed the per-trade
+     * futures of {@link TradeSessionService#submit}, so it polls the vault by these ids: a trade the
+     * buyer rejects, or one lost with a failed session, never appears there. Each such trade is counted
+     * as {@code session.rejected} or {@code session.failures} and logged with its linear id and reason.
+     * Code running on the node calls {@link TradeSessionService#submit} for the outcome instead.
+     */
+    @StartableByRPC
+    public static class Submit extends FlowLogic<List<UniqueIdentifier>> {
+        private final Party buyer;
+        private final List<Request> requests;
+
+        public Submit(Party buyer, List<Request> requests) {
+            this.buyer = buyer;
+            this.requests = requests;
+        }
+
+        @Override
+        public List<UniqueIdentifier> call() {
+            final TradeSessionService sessions = getServiceHub().cordaService(TradeSessionService.class);
+            requests.forEach(request -> sessions.submit(buyer, request));
+            return requests.stream().map(Request::getLinearId).collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.finfabrik.corda.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import net.corda.core.contracts.StateRef;
+import net.corda.finance.contracts.asset.Cash;
+
+import java.io.IOException;
+
+import static com.finfabrik.corda.json.ProjectionsSerializer.partyName;
+
+public final class CashView implements Projection {
+    private final Cash.State cash;
+    private final StateRef ref;
+
+    public CashView(Cash.State cash, StateRef ref) {
+        this.cash = cash;
+        this.ref = ref;
+    }
+
+    @Override
+    public void writeFields(JsonGenerator gen, FieldSelection fields) throws IOException {
+        if (fields.includes("txId")) gen.writeStringField("txId", ref.getTxhash().toString());
+        if (fields.includes("outputIndex")) gen.writeNumberField("outputIndex", ref.getIndex());
+        if (fields.includes("owner")) gen.writeStringField("owner", partyName(cash.getOwner()));
+        if (fields.includes("quantity")) gen.writeNumberField("quantity", cash.getAmount().getQuantity());
+        if (fields.includes("currency")) gen.writeStringField("currency", cash.getAmount().getToken().getProduct().getCurrencyCode());
+        if (fields.includes("issuer")) gen.writeStringField("issuer", partyName(cash.getAmount().getToken().getIssuer().getParty()));
+    }
+}
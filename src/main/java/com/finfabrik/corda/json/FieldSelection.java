@@ -0,0 +1,32 @@
+package com.finfabrik.corda.json;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/** The set of fields requested with {@code ?fields=a,b,c}; empty or absent means all fields. */
+public final class FieldSelection {
+    private static final FieldSelection ALL = new FieldSelection(null);
+
+    private final Set<String> fields;
+
+    private FieldSelection(Set<String> fields) {
+        this.fields = fields;
+    }
+
+    public static FieldSelection parse(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return ALL;
+        }
+        return new FieldSelection(ImmutableSet.copyOf(Arrays.stream(fields.split(","))
+                .map(String::trim)
+                .filter(it -> !it.isEmpty())
+                .collect(Collectors.toList())));
+    }
+
+    public boolean includes(String field) {
+        return fields == null || fields.contains(field);
+    }
+}
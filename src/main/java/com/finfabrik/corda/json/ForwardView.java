@@ -0,0 +1,36 @@
+package com.finfabrik.corda.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.finfabrik.corda.FXForward;
+import net.corda.core.contracts.StateRef;
+
+import java.io.IOException;
+
+import static com.finfabrik.corda.json.ProjectionsSerializer.partyName;
+
+public final class ForwardView implements Projection {
+    private final FXForward forward;
+    private final StateRef ref;
+
+    public ForwardView(FXForward forward, StateRef ref) {
+        this.forward = forward;
+        this.ref = ref;
+    }
+
+    @Override
+    public void writeFields(JsonGenerator gen, FieldSelection fields) throws IOException {
+        if (fields.includes("linearId")) gen.writeStringField("linearId", forward.getLinearId().toString());
+        if (fields.includes("txId")) gen.writeStringField("txId", ref.getTxhash().toString());
+        if (fields.includes("outputIndex")) gen.writeNumberField("outputIndex", ref.getIndex());
+        if (fields.includes("buyer")) gen.writeStringField("buyer", partyName(forward.getBuyer()));
+        if (fields.includes("seller")) gen.writeStringField("seller", partyName(forward.getSeller()));
+        if (fields.includes("base")) gen.writeNumberField("base", forward.getBaseQuantity());
+        if (fields.includes("currency")) gen.writeStringField("currency", forward.getCurrency().getCurrencyCode());
+        if (fields.includes("terms")) gen.writeNumberField("terms", forward.getTermsQuantity());
+        if (fields.includes("token")) gen.writeStringField("token", forward.getTokenCode());
+        if (fields.includes("tenor")) gen.writeStringField("tenor", forward.getTenor().getName());
+        if (fields.includes("valueDate")) {
+            gen.writeStringField("valueDate", forward.getValueDate() == null ? null : forward.getValueDate().toString());
+        }
+    }
+}
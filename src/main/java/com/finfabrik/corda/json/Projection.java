@@ -0,0 +1,13 @@
+package com.finfabrik.corda.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * A flat, read-only view of a state for the JSON APIs. Fields are written by hand rather than
+ * through bean reflection, and only the ones in the {@link FieldSelection} are emitted.
+ */
+public interface Projection {
+    void writeFields(JsonGenerator gen, FieldSelection fields) throws IOException;
+}
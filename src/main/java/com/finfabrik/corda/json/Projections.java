@@ -0,0 +1,25 @@
+package com.finfabrik.corda.json;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.util.List;
+
+/** Response entity for a list of projections; serialised by {@link ProjectionsSerializer} as a JSON array. */
+@JsonSerialize(using = ProjectionsSerializer.class)
+public final class Projections {
+    private final List<? extends Projection> rows;
+    private final FieldSelection fields;
+
+    public Projections(List<? extends Projection> rows, FieldSelection fields) {
+        this.rows = rows;
+        this.fields = fields;
+    }
+
+    public List<? extends Projection> getRows() {
+        return rows;
+    }
+
+    public FieldSelection getFields() {
+        return fields;
+    }
+}
@@ -0,0 +1,34 @@
+package com.finfabrik.corda.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+
+import java.io.IOException;
+
+import static net.corda.core.utilities.EncodingUtils.toBase58String;
+
+/**
+ * Writes {@link Projections} as a JSON array of flat objects. It is bound to {@link Projections}
+ * alone through {@code @JsonSerialize}, so the webserver's mapper serialises every other type,
+ * parties and amounts in other responses included, exactly as before.
+ */
+public class ProjectionsSerializer extends JsonSerializer<Projections> {
+    @Override
+    public void serialize(Projections value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        gen.writeStartArray();
+        for (Projection row : value.getRows()) {
+            gen.writeStartObject();
+            row.writeFields(gen, value.getFields());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+    }
+
+    /** A well-known party's X.500 name, otherwise the base58 form of its key. */
+    static String partyName(AbstractParty party) {
+        return party instanceof Party ? ((Party) party).getName().toString() : toBase58String(party.getOwningKey());
+    }
+}
@@ -0,0 +1,29 @@
+package com.finfabrik.corda.json;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.finfabrik.corda.Token;
+import net.corda.core.contracts.StateRef;
+
+import java.io.IOException;
+
+import static com.finfabrik.corda.json.ProjectionsSerializer.partyName;
+
+public final class TokenView implements Projection {
+    private final Token token;
+    private final StateRef ref;
+
+    public TokenView(Token token, StateRef ref) {
+        this.token = token;
+        this.ref = ref;
+    }
+
+    @Override
+    public void writeFields(JsonGenerator gen, FieldSelection fields) throws IOException {
+        if (fields.includes("linearId")) gen.writeStringField("linearId", token.getLinearId().toString());
+        if (fields.includes("txId")) gen.writeStringField("txId", ref.getTxhash().toString());
+        if (fields.includes("outputIndex")) gen.writeNumberField("outputIndex", ref.getIndex());
+        if (fields.includes("owner")) gen.writeStringField("owner", partyName(token.getOwner()));
+        if (fields.includes("quantity")) gen.writeNumberField("quantity", token.getQuantity());
+        if (fields.includes("token")) gen.writeStringField("token", token.getTokenCode());
+    }
+}
@@ -0,0 +1,114 @@
+package com.finfabrik.corda.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Lightweight registry of named counters, gauges and timers.
+ *
+ * One instance lives in the webserver ({@link #web()}) and one in each node
+ * ({@link MetricsService}). Both are published over JMX so the Jolokia agent can scrape them.
+ */
+public final class Metrics implements MetricsMXBean {
+    private static final Metrics WEB = new Metrics("com.finfabrik.corda:type=Metrics,scope=web");
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public Metrics(String objectName) {
+        register(objectName);
+    }
+
+    public static Metrics web() {
+        return WEB;
+    }
+
+    public void increment(String name) {
+        increment(name, 1L);
+    }
+
+    public void increment(String name, long delta) {
+        counters.computeIfAbsent(name, it -> new LongAdder()).add(delta);
+    }
+
+    public long count(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0L : counter.sum();
+    }
+
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, it -> new Timer());
+    }
+
+    @Override
+    public SortedMap<String, Long> getSnapshot() {
+        SortedMap<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+        timers.forEach((name, timer) -> timer.snapshotInto(name, snapshot));
+        return snapshot;
+    }
+
+    private void register(String objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics MBean " + objectName, e);
+        }
+    }
+
+    public static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long startNanos() {
+            return System.nanoTime();
+        }
+
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        private void snapshotInto(String name, Map<String, Long> snapshot) {
+            long n = count.sum();
+            long total = TimeUnit.NANOSECONDS.toMicros(totalNanos.sum());
+            snapshot.put(name + ".count", n);
+            snapshot.put(name + ".totalMicros", total);
+            snapshot.put(name + ".meanMicros", n == 0 ? 0L : total / n);
+            snapshot.put(name + ".maxMicros", TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+        }
+    }
+}
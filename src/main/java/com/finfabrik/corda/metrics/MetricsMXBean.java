@@ -0,0 +1,7 @@
+package com.finfabrik.corda.metrics;
+
+import java.util.SortedMap;
+
+public interface MetricsMXBean {
+    SortedMap<String, Long> getSnapshot();
+}
@@ -0,0 +1,25 @@
+package com.finfabrik.corda.metrics;
+
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import javax.management.ObjectName;
+
+/**
+ * Node-side holder for the CorDapp's {@link Metrics}. Flows reach it through
+ * {@code getServiceHub().cordaService(MetricsService.class)}.
+ */
+@CordaService
+public class MetricsService extends SingletonSerializeAsToken {
+    private final Metrics metrics;
+
+    public MetricsService(AppServiceHub serviceHub) {
+        String node = serviceHub.getMyInfo().getLegalIdentities().get(0).getName().toString();
+        this.metrics = new Metrics("com.finfabrik.corda:type=Metrics,scope=node,node=" + ObjectName.quote(node));
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,261 @@
+package com.finfabrik.corda.mtm;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.TokenDefinitions;
+import com.finfabrik.corda.oracle.FixOf;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Open forwards held as columns of primitives, one row per trade, with the present value of each
+ * trade and the total per counterparty and currency.
+ *
+ * Rows are keyed by {@link StateRef} so vault updates can be replayed safely. A removed row is
+ * filled by the last one, so the columns stay dense. Trades are priced off the rate for their
+ * pair and tenor (terms tokens per unit of base currency). {@link #revalue} reprices only the
+ * trades whose rate moved, across all cores once the book reaches {@code parallelThreshold} rows.
+ * PVs are undiscounted, in minor units of the base currency, and positive when the trade is in
+ * our favour.
+ */
+public final class ForwardBook {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int parallelThreshold;
+
+    // Columns, one entry per row.
+    private long[] baseQuantity = new long[INITIAL_CAPACITY];
+    /** Terms in token major units, scaled to the base currency's minor units: pv = sign * (terms / rate - base). */
+    private double[] scaledTerms = new double[INITIAL_CAPACITY];
+    private byte[] sign = new byte[INITIAL_CAPACITY];
+    private int[] currencyIndex = new int[INITIAL_CAPACITY];
+    private int[] tokenIndex = new int[INITIAL_CAPACITY];
+    private int[] rateIndex = new int[INITIAL_CAPACITY];
+    private int[] totalIndex = new int[INITIAL_CAPACITY];
+    private long[] valueDay = new long[INITIAL_CAPACITY];
+    private double[] pv = new double[INITIAL_CAPACITY];
+    private StateRef[] refs = new StateRef[INITIAL_CAPACITY];
+    private UniqueIdentifier[] linearIds = new UniqueIdentifier[INITIAL_CAPACITY];
+    private int size;
+
+    private final Map<StateRef, Integer> rows = new HashMap<>();
+
+    // Dictionaries the index columns point into.
+    private final Dictionary<Currency> currencies = new Dictionary<>();
+    private final Dictionary<String> tokens = new Dictionary<>();
+    private final Dictionary<String> counterparties = new Dictionary<>();
+    private final Dictionary<FixOf> rateKeys = new Dictionary<>();
+    /** Counterparty and currency, as {@code counterpartyIndex << 32 | currencyIndex}. */
+    private final Dictionary<Long> totalKeys = new Dictionary<>();
+
+    private double[] rates = new double[16];
+    private double[] totals = new double[16];
+    private Map<FixOf, BigDecimal> lastRates = Collections.emptyMap();
+
+    public ForwardBook(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Adds the forward recorded at {@code ref}, which we trade with {@code counterparty} and sell
+     * if {@code weSell}. It is priced straight away at the last rates seen.
+     */
+    public synchronized void add(StateRef ref, FXForward forward, String counterparty, boolean weSell) {
+        if (rows.containsKey(ref)) {
+            return;
+        }
+        ensureCapacity(size + 1);
+        final int row = size++;
+        rows.put(ref, row);
+
+        final int ccy = currencies.indexOf(forward.getCurrency());
+        final int rateKey = rateKeys.indexOf(new FixOf(forward.getCurrency().getCurrencyCode(), forward.getTokenCode(), forward.getTenor()));
+        if (rateKey >= rates.length) {
+            rates = Arrays.copyOf(rates, rates.length * 2);
+        }
+        rates[rateKey] = rateOrNaN(lastRates.get(rateKeys.get(rateKey)));
+        final int total = totalKeys.indexOf(((long) counterparties.indexOf(counterparty) << 32) | ccy);
+        if (total >= totals.length) {
+            totals = Arrays.copyOf(totals, totals.length * 2);
+        }
+
+        baseQuantity[row] = forward.getBaseQuantity();
+        scaledTerms[row] = BigDecimal.valueOf(forward.getTermsQuantity())
+                .movePointLeft(TokenDefinitions.of(forward.getTokenCode()).getDefaultFractionDigits())
+                .movePointRight(forward.getCurrency().getDefaultFractionDigits())
+                .doubleValue();
+        sign[row] = (byte) (weSell ? 1 : -1);
+        currencyIndex[row] = ccy;
+        tokenIndex[row] = tokens.indexOf(forward.getTokenCode());
+        rateIndex[row] = rateKey;
+        totalIndex[row] = total;
+        valueDay[row] = forward.getValueDate() == null ? Long.MIN_VALUE : forward.getValueDate().toEpochDay();
+        refs[row] = ref;
+        linearIds[row] = forward.getLinearId();
+        pv[row] = price(row);
+        if (!Double.isNaN(pv[row])) {
+            totals[total] += pv[row];
+        }
+    }
+
+    /** Drops the row for {@code ref}, if there is one. */
+    public synchronized void remove(StateRef ref) {
+        final Integer removed = rows.remove(ref);
+        if (removed == null) {
+            return;
+        }
+        final int row = removed;
+        if (!Double.isNaN(pv[row])) {
+            totals[totalIndex[row]] -= pv[row];
+        }
+        final int last = --size;
+        if (row != last) {
+            baseQuantity[row] = baseQuantity[last];
+            scaledTerms[row] = scaledTerms[last];
+            sign[row] = sign[last];
+            currencyIndex[row] = currencyIndex[last];
+            tokenIndex[row] = tokenIndex[last];
+            rateIndex[row] = rateIndex[last];
+            totalIndex[row] = totalIndex[last];
+            valueDay[row] = valueDay[last];
+            pv[row] = pv[last];
+            refs[row] = refs[last];
+            linearIds[row] = linearIds[last];
+            rows.put(refs[row], row);
+        }
+        refs[last] = null;
+        linearIds[last] = null;
+    }
+
+    /**
+     * Takes a new set of rates and reprices the trades whose rate changed. Returns how many trades
+     * were repriced.
+     */
+    public synchronized int revalue(Map<FixOf, BigDecimal> newRates) {
+        lastRates = newRates;
+        final boolean[] moved = new boolean[rateKeys.size()];
+        boolean anyMoved = false;
+        for (int key = 0; key < moved.length; key++) {
+            final double rate = rateOrNaN(newRates.get(rateKeys.get(key)));
+            if (Double.compare(rate, rates[key]) != 0) {
+                rates[key] = rate;
+                moved[key] = true;
+                anyMoved = true;
+            }
+        }
+        if (!anyMoved) {
+            return 0;
+        }
+
+        final IntStream rowsToPrice = IntStream.range(0, size).filter(row -> moved[rateIndex[row]]);
+        final int repriced = (size >= parallelThreshold ? rowsToPrice.parallel() : rowsToPrice)
+                .map(row -> {
+                    pv[row] = price(row);
+                    return 1;
+                })
+                .sum();
+
+        Arrays.fill(totals, 0.0);
+        for (int row = 0; row < size; row++) {
+            if (!Double.isNaN(pv[row])) {
+                totals[totalIndex[row]] += pv[row];
+            }
+        }
+        return repriced;
+    }
+
+    /** The current PVs: totals always, and one entry per trade if {@code includeTrades}. */
+    public synchronized MtmView view(boolean includeTrades) {
+        final Map<String, Map<String, Long>> byCounterparty = new LinkedHashMap<>();
+        for (int key = 0; key < totalKeys.size(); key++) {
+            final long packed = totalKeys.get(key);
+            byCounterparty.computeIfAbsent(counterparties.get((int) (packed >>> 32)), it -> new LinkedHashMap<>())
+                    .put(currencies.get((int) packed).getCurrencyCode(), Math.round(totals[key]));
+        }
+
+        int unpriced = 0;
+        final List<MtmView.TradePv> trades = new ArrayList<>(includeTrades ? size : 0);
+        for (int row = 0; row < size; row++) {
+            final boolean priced = !Double.isNaN(pv[row]);
+            if (!priced) {
+                unpriced++;
+            }
+            if (includeTrades) {
+                trades.add(new MtmView.TradePv(linearIds[row].toString(),
+                        counterparties.get(counterpartyOf(row)),
+                        currencies.get(currencyIndex[row]).getCurrencyCode(),
+                        tokens.get(tokenIndex[row]),
+                        valueDay[row] == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(valueDay[row]).toString(),
+                        priced ? Math.round(pv[row]) : null));
+            }
+        }
+        return new MtmView(size, unpriced, byCounterparty, includeTrades ? trades : null);
+    }
+
+    private int counterpartyOf(int row) {
+        return (int) (totalKeys.get(totalIndex[row]) >>> 32);
+    }
+
+    private double price(int row) {
+        final double rate = rates[rateIndex[row]];
+        return sign[row] * (scaledTerms[row] / rate - baseQuantity[row]);
+    }
+
+    private static double rateOrNaN(BigDecimal rate) {
+        return rate == null || rate.signum() <= 0 ? Double.NaN : rate.doubleValue();
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= baseQuantity.length) {
+            return;
+        }
+        final int capacity = Math.max(needed, baseQuantity.length * 2);
+        baseQuantity = Arrays.copyOf(baseQuantity, capacity);
+        scaledTerms = Arrays.copyOf(scaledTerms, capacity);
+        sign = Arrays.copyOf(sign, capacity);
+        currencyIndex = Arrays.copyOf(currencyIndex, capacity);
+        tokenIndex = Arrays.copyOf(tokenIndex, capacity);
+        rateIndex = Arrays.copyOf(rateIndex, capacity);
+        totalIndex = Arrays.copyOf(totalIndex, capacity);
+        valueDay = Arrays.copyOf(valueDay, capacity);
+        pv = Arrays.copyOf(pv, capacity);
+        refs = Arrays.copyOf(refs, capacity);
+        linearIds = Arrays.copyOf(linearIds, capacity);
+    }
+
+    /** Interns values to dense int indices. */
+    private static final class Dictionary<T> {
+        private final Map<T, Integer> indices = new HashMap<>();
+        private final List<T> values = new ArrayList<>();
+
+        int indexOf(T value) {
+            return indices.computeIfAbsent(value, it -> {
+                values.add(it);
+                return values.size() - 1;
+            });
+        }
+
+        T get(int index) {
+            return values.get(index);
+        }
+
+        int size() {
+            return values.size();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.finfabrik.corda.mtm;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.oracle.FixOf;
+import com.finfabrik.corda.oracle.RateFeed;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Subscription;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link ForwardBook} of the node's open forwards in the webserver and revalues it on every
+ * rate tick.
+ *
+ * The book is loaded from the vault once, page by page, and then follows {@code vaultTrackBy}
+ * updates; updates that arrive during the load are replayed after it. The rate file
+ * ({@code mtm.ratesFile}, default {@code rates.csv}, in the oracle's format) is polled every
+ * {@code mtm.pollMs} (1000), and a changed file is one tick.
+ *
+ * There is one engine per RPC connection, and it lives as long as the connection's vault feed. When
+ * the feed fails or completes, the engine stops polling and is dropped, and the next request builds
+ * a new one. Counterparty names are cached for at most {@code mtm.partyNameCacheSize} (10000)
+ * parties, least recently used first out.
+ */
+public final class MtmEngine {
+    private static final Logger logger = LoggerFactory.getLogger(MtmEngine.class);
+    private static final Map<CordaRPCOps, MtmEngine> ENGINES = new IdentityHashMap<>();
+    private static final int PAGE_SIZE = 1000;
+    private static final int PARTY_NAME_CACHE_SIZE = Settings.intSetting("mtm.partyNameCacheSize", 10_000);
+
+    private final CordaRPCOps rpcOps;
+    private final Party me;
+    private final ForwardBook book = new ForwardBook(Settings.intSetting("mtm.parallelThreshold", 50_000));
+    private final Path ratesFile = Paths.get(Settings.stringSetting("mtm.ratesFile", "rates.csv"));
+    private final RateFeed feed = new RateFeed(ratesFile);
+    private final Map<AbstractParty, String> partyNames = Collections.synchronizedMap(
+            new LinkedHashMap<AbstractParty, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<AbstractParty, String> eldest) {
+                    return size() > PARTY_NAME_CACHE_SIZE;
+                }
+            });
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "mtm-rate-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private List<Vault.Update<FXForward>> pending = new ArrayList<>();
+    private Map<FixOf, BigDecimal> lastRates = Collections.emptyMap();
+    private Subscription subscription;
+    private boolean closed;
+
+    private MtmEngine(CordaRPCOps rpcOps) {
+        this.rpcOps = rpcOps;
+        this.me = rpcOps.nodeInfo().getLegalIdentities().get(0);
+    }
+
+    public static synchronized MtmEngine of(CordaRPCOps rpcOps) {
+        MtmEngine engine = ENGINES.get(rpcOps);
+        if (engine == null) {
+            engine = new MtmEngine(rpcOps);
+            // Registered before it starts, so a feed that fails during the load can drop it again.
+            ENGINES.put(rpcOps, engine);
+            try {
+                engine.start();
+            } catch (RuntimeException e) {
+                engine.close();
+                throw e;
+            }
+        }
+        return engine;
+    }
+
+    public MtmView view(boolean includeTrades) {
+        return book.view(includeTrades);
+    }
+
+    private void start() {
+        // Only the update stream matters; keep the snapshot to a single row.
+        final DataFeed<Vault.Page<FXForward>, Vault.Update<FXForward>> updates = rpcOps.vaultTrackBy(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED),
+                new PageSpecification(1, 1),
+                new Sort(Collections.emptyList()),
+                FXForward.class);
+        final Subscription subscribed = updates.getUpdates().subscribe(this::onUpdate,
+                error -> {
+                    logger.error("Vault feed for the MTM book failed; the book is dropped and reloaded on the next request.", error);
+                    close();
+                },
+                this::close);
+        synchronized (this) {
+            subscription = subscribed;
+            if (closed) {
+                subscribed.unsubscribe();
+                return;
+            }
+        }
+
+        load();
+        final List<Vault.Update<FXForward>> replay;
+        synchronized (this) {
+            replay = pending;
+            pending = null;
+        }
+        replay.forEach(this::apply);
+
+        final long pollMillis = Settings.longSetting("mtm.pollMs", 1000);
+        synchronized (this) {
+            if (!closed) {
+                poller.scheduleWithFixedDelay(this::poll, 0, pollMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /** Stops following the vault and polling rates, and forgets this engine so the next request starts afresh. */
+    private void close() {
+        synchronized (MtmEngine.class) {
+            ENGINES.remove(rpcOps, this);
+        }
+        synchronized (this) {
+            closed = true;
+            poller.shutdownNow();
+            if (subscription != null) {
+                subscription.unsubscribe();
+            }
+        }
+    }
+
+    private void load() {
+        final QueryCriteria unconsumed = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+        for (int page = 1; ; page++) {
+            final Vault.Page<FXForward> states = rpcOps.vaultQueryBy(
+                    unconsumed, new PageSpecification(page, PAGE_SIZE), new Sort(Collections.emptyList()), FXForward.class);
+            states.getStates().forEach(this::add);
+            if ((long) page * PAGE_SIZE >= states.getTotalStatesAvailable()) {
+                break;
+            }
+        }
+    }
+
+    private void onUpdate(Vault.Update<FXForward> update) {
+        synchronized (this) {
+            if (pending != null) {
+                pending.add(update);
+                return;
+            }
+        }
+        apply(update);
+    }
+
+    private void apply(Vault.Update<FXForward> update) {
+        update.getConsumed().forEach(it -> book.remove(it.getRef()));
+        update.getProduced().forEach(this::add);
+    }
+
+    private void add(StateAndRef<FXForward> state) {
+        final FXForward forward = state.getState().getData();
+        final boolean weSell = me.getName().toString().equals(partyName(forward.getSeller()));
+        book.add(state.getRef(), forward, partyName(weSell ? forward.getBuyer() : forward.getSeller()), weSell);
+    }
+
+    private String partyName(AbstractParty party) {
+        final String cached = partyNames.get(party);
+        if (cached != null) {
+            return cached;
+        }
+        // Resolved outside the cache's lock; two threads may both ask the node, and the answer is the same.
+        final Party wellKnown = rpcOps.wellKnownPartyFromAnonymous(party);
+        final String name = wellKnown == null ? party.toString() : wellKnown.getName().toString();
+        partyNames.put(party, name);
+        return name;
+    }
+
+    private void poll() {
+        if (!Files.exists(ratesFile)) {
+            return;
+        }
+        try {
+            final Map<FixOf, BigDecimal> rates = feed.rates();
+            if (rates == lastRates) {
+                return;
+            }
+            lastRates = rates;
+            final long start = System.nanoTime();
+            final int repriced = book.revalue(rates);
+            Metrics.web().timer("mtm.revalue").recordSince(start);
+            Metrics.web().increment("mtm.repriced", repriced);
+        } catch (RuntimeException e) {
+            logger.warn("Could not read rates for the MTM book.", e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.finfabrik.corda.mtm;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What {@code /fxforward/mtm} returns: PV totals by counterparty and currency, and optionally one
+ * entry per trade. Trades without a rate are counted as unpriced and left out of the totals.
+ */
+public final class MtmView {
+    private final int trades;
+    private final int unpriced;
+    private final Map<String, Map<String, Long>> counterparties;
+    private final List<TradePv> tradePvs;
+
+    public MtmView(int trades, int unpriced, Map<String, Map<String, Long>> counterparties, List<TradePv> tradePvs) {
+        this.trades = trades;
+        this.unpriced = unpriced;
+        this.counterparties = counterparties;
+        this.tradePvs = tradePvs;
+    }
+
+    public int getTrades() {
+        return trades;
+    }
+
+    public int getUnpriced() {
+        return unpriced;
+    }
+
+    public Map<String, Map<String, Long>> getCounterparties() {
+        return counterparties;
+    }
+
+    public List<TradePv> getTradePvs() {
+        return tradePvs;
+    }
+
+    public static final class TradePv {
+        private final String linearId;
+        private final String counterparty;
+        private final String currency;
+        private final String token;
+        private final String valueDate;
+        private final Long pv;
+
+        public TradePv(String linearId, String counterparty, String currency, String token, String valueDate, Long pv) {
+            this.linearId = linearId;
+            this.counterparty = counterparty;
+            this.currency = currency;
+            this.token = token;
+            this.valueDate = valueDate;
+            this.pv = pv;
+        }
+
+        public String getLinearId() {
+            return linearId;
+        }
+
+        public String getCounterparty() {
+            return counterparty;
+        }
+
+        public String getCurrency() {
+            return currency;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getValueDate() {
+            return valueDate;
+        }
+
+        public Long getPv() {
+            return pv;
+        }
+    }
+}
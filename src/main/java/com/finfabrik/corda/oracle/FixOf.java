@@ -0,0 +1,53 @@
+package com.finfabrik.corda.oracle;
+
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.finance.contracts.Tenor;
+
+import java.util.Objects;
+
+/**
+ * What a {@link RateFix} is for: the forward rate of {@code base} against {@code terms} at {@code tenor}.
+ */
+@CordaSerializable
+public class FixOf {
+    private final String base;
+    private final String terms;
+    private final Tenor tenor;
+
+    public FixOf(String base, String terms, Tenor tenor) {
+        this.base = base;
+        this.terms = terms;
+        this.tenor = tenor;
+    }
+
+    public String getBase() {
+        return base;
+    }
+
+    public String getTerms() {
+        return terms;
+    }
+
+    public Tenor getTenor() {
+        return tenor;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FixOf)) {
+            return false;
+        }
+        FixOf other = (FixOf) obj;
+        return base.equals(other.getBase()) && terms.equals(other.getTerms()) && tenor.equals(other.getTenor());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(base, terms, tenor);
+    }
+
+    @Override
+    public String toString() {
+        return base + "/" + terms + " " + tenor.getName();
+    }
+}
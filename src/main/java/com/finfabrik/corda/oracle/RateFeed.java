@@ -0,0 +1,71 @@
+package com.finfabrik.corda.oracle;
+
+import net.corda.finance.contracts.Tenor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Forward rates read from a local file with one {@code BASE/TERMS,TENOR,RATE} line per rate, e.g.
+ * {@code GBP/FAB,1M,0.0123}. The file is re-read when its modification time changes, so the feed
+ * can be updated in place.
+ */
+public class RateFeed {
+    private final Path file;
+    private long loadedModified = -1;
+    private Map<FixOf, BigDecimal> rates = Collections.emptyMap();
+
+    public RateFeed(Path file) {
+        this.file = file;
+    }
+
+    /** The current rate for {@code of}, or null if the feed has none. */
+    public BigDecimal rate(FixOf of) {
+        return rates().get(of);
+    }
+
+    /**
+     * Every rate in the feed. The same map is returned until the file changes, so callers can
+     * tell a new tick by identity.
+     */
+    public synchronized Map<FixOf, BigDecimal> rates() {
+        try {
+            final long modified = Files.getLastModifiedTime(file).toMillis();
+            if (modified != loadedModified) {
+                rates = Collections.unmodifiableMap(load());
+                loadedModified = modified;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read rate feed " + file, e);
+        }
+        return rates;
+    }
+
+    private Map<FixOf, BigDecimal> load() throws IOException {
+        final Map<FixOf, BigDecimal> loaded = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split(",");
+                final String[] pair = fields[0].trim().split("/");
+                if (fields.length != 3 || pair.length != 2) {
+                    throw new IOException("Malformed rate line: " + line);
+                }
+                loaded.put(new FixOf(pair[0], pair[1], new Tenor(fields[1].trim())), new BigDecimal(fields[2].trim()));
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,54 @@
+package com.finfabrik.corda.oracle;
+
+import net.corda.core.contracts.CommandData;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * The oracle's forward rate for a {@link FixOf} during the fixing window starting at {@code window}.
+ * Added to a transaction as a command signed by the oracle, which attests the rate.
+ */
+public class RateFix implements CommandData {
+    private final FixOf of;
+    private final Instant window;
+    private final BigDecimal rate;
+
+    public RateFix(FixOf of, Instant window, BigDecimal rate) {
+        this.of = of;
+        this.window = window;
+        this.rate = rate;
+    }
+
+    public FixOf getOf() {
+        return of;
+    }
+
+    public Instant getWindow() {
+        return window;
+    }
+
+    public BigDecimal getRate() {
+        return rate;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RateFix)) {
+            return false;
+        }
+        RateFix other = (RateFix) obj;
+        return of.equals(other.getOf()) && window.equals(other.getWindow()) && rate.compareTo(other.getRate()) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(of, window, rate.stripTrailingZeros());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RateFix(%s = %s @ %s)", of, rate.toPlainString(), window);
+    }
+}
@@ -0,0 +1,132 @@
+package com.finfabrik.corda.oracle;
+
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import net.corda.core.contracts.Command;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.FilteredTransaction;
+
+import java.math.BigDecimal;
+import java.nio.file.Paths;
+import java.security.PublicKey;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves forward rates from a {@link RateFeed} and signs transactions that carry them.
+ *
+ * Each rate is fixed once per fixing window ({@code fxforward.oracle.windowMs}, default one minute)
+ * and cached, so the feed is read once per pair and tenor per window however many issuances ask.
+ * Fixes from the current and the previous window are signed; older ones are dropped from the cache
+ * and rejected. Signing takes a batch of torn-off transactions so a client can get many issuances
+ * signed in one round trip.
+ */
+@CordaService
+public class RateOracle extends SingletonSerializeAsToken {
+    private final AppServiceHub serviceHub;
+    private final PublicKey oracleKey;
+    private final RateFeed feed = new RateFeed(Paths.get(Settings.stringSetting("oracle.ratesFile", "rates.csv")));
+    private final long windowMillis = Settings.longSetting("oracle.windowMs", 60_000);
+    private volatile Fixes fixes = new Fixes(Instant.EPOCH, new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+
+    public RateOracle(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.oracleKey = serviceHub.getMyInfo().getLegalIdentities().get(0).getOwningKey();
+    }
+
+    public PublicKey getOracleKey() {
+        return oracleKey;
+    }
+
+    public List<RateFix> fix(List<FixOf> queries) {
+        final Fixes now = fixesForNow();
+        final List<RateFix> result = new ArrayList<>(queries.size());
+        for (FixOf of : queries) {
+            result.add(now.current.computeIfAbsent(of, key -> fromFeed(key, now.window)));
+        }
+        metrics().increment("oracle.fixesServed", queries.size());
+        return result;
+    }
+
+    /**
+     * Signs each transaction after checking that everything visible in it is a {@link RateFix}
+     * command for this oracle that matches a fix it has served. Any bad transaction fails the batch.
+     */
+    public List<TransactionSignature> sign(List<FilteredTransaction> batch) {
+        final Metrics metrics = metrics();
+        final long start = metrics.timer("oracle.signBatch").startNanos();
+        final Fixes now = fixesForNow();
+        final List<TransactionSignature> signatures = new ArrayList<>(batch.size());
+        for (FilteredTransaction ftx : batch) {
+            ftx.verify();
+            if (!ftx.checkWithFun(component -> isAttestable(component, now))) {
+                metrics.increment("oracle.rejected");
+                throw new IllegalArgumentException(String.format(
+                        "Transaction %s shows something other than fixes this oracle served.", ftx.getId()));
+            }
+            signatures.add(serviceHub.createSignature(ftx, oracleKey));
+        }
+        metrics.increment("oracle.signed", batch.size());
+        metrics.timer("oracle.signBatch").recordSince(start);
+        return signatures;
+    }
+
+    private boolean isAttestable(Object component, Fixes now) {
+        if (!(component instanceof Command) || !(((Command<?>) component).getValue() instanceof RateFix)) {
+            return false;
+        }
+        final Command<?> command = (Command<?>) component;
+        final RateFix fix = (RateFix) command.getValue();
+        final Map<FixOf, RateFix> window = fix.getWindow().equals(now.window) ? now.current : now.previous;
+        return command.getSigners().contains(oracleKey) && fix.equals(window.get(fix.getOf()));
+    }
+
+    private RateFix fromFeed(FixOf of, Instant window) {
+        final BigDecimal rate = feed.rate(of);
+        if (rate == null) {
+            throw new IllegalArgumentException("No rate available for " + of);
+        }
+        metrics().increment("oracle.feedReads");
+        return new RateFix(of, window, rate);
+    }
+
+    /**
+     * Rolls the cache over when a new fixing window starts and returns the current window with its
+     * fixes. A roll-over replaces the whole {@link Fixes} rather than clearing maps in place, so a
+     * caller holding the old one keeps a window and fixes that belong together.
+     */
+    private synchronized Fixes fixesForNow() {
+        final long now = serviceHub.getClock().millis();
+        final Instant window = Instant.ofEpochMilli(now - now % windowMillis);
+        final Fixes last = fixes;
+        if (window.isAfter(last.window)) {
+            final boolean adjacent = window.toEpochMilli() - last.window.toEpochMilli() == windowMillis;
+            fixes = new Fixes(window, new ConcurrentHashMap<>(), adjacent ? last.current : new ConcurrentHashMap<>());
+        }
+        return fixes;
+    }
+
+    private Metrics metrics() {
+        return serviceHub.cordaService(MetricsService.class).getMetrics();
+    }
+
+    /** One fixing window, the fixes served in it, and those of the window before. */
+    private static final class Fixes {
+        private final Instant window;
+        private final Map<FixOf, RateFix> current;
+        private final Map<FixOf, RateFix> previous;
+
+        private Fixes(Instant window, Map<FixOf, RateFix> current, Map<FixOf, RateFix> previous) {
+            this.window = window;
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+}
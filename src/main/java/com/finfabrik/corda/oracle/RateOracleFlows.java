@@ -0,0 +1,140 @@
+package com.finfabrik.corda.oracle;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.finfabrik.corda.flows.InstrumentedFlow;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.flows.InitiatedBy;
+import net.corda.core.flows.InitiatingFlow;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.FilteredTransaction;
+import net.corda.core.utilities.UntrustworthyData;
+
+import java.util.List;
+
+/**
+ * Client and oracle sides of rate queries and fix signing. Both take a batch so one round trip
+ * serves any number of forwards.
+ */
+public class RateOracleFlows {
+    @InitiatingFlow
+    @StartableByRPC
+    public static class QueryRates extends InstrumentedFlow<List<RateFix>> {
+        private final Party oracle;
+        private final List<FixOf> queries;
+
+        public QueryRates(Party oracle, List<FixOf> queries) {
+            this.oracle = oracle;
+            this.queries = queries;
+        }
+
+        @Suspendable
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<RateFix> call() throws FlowException {
+            final FlowSession session = initiateFlow(oracle);
+            sendTo(session, queries);
+            final List<RateFix> fixes = receiveFrom(session, List.class).unwrap((UntrustworthyData.Validator<List, List<RateFix>>) data -> {
+                if (data.size() != queries.size()) {
+                    throw new FlowException(String.format("Asked for %d rates but got %d.", queries.size(), data.size()));
+                }
+                for (int i = 0; i < data.size(); i++) {
+                    final RateFix fix = (RateFix) data.get(i);
+                    if (!fix.getOf().equals(queries.get(i))) {
+                        throw new FlowException(String.format("Asked for %s but got %s.", queries.get(i), fix));
+                    }
+                }
+                return (List<RateFix>) data;
+            });
+            publishMessageStats();
+            return fixes;
+        }
+    }
+
+    @InitiatedBy(QueryRates.class)
+    public static class QueryRatesHandler extends InstrumentedFlow<Void> {
+        private final FlowSession client;
+
+        public QueryRatesHandler(FlowSession client) {
+            this.client = client;
+        }
+
+        @Suspendable
+        @Override
+        @SuppressWarnings("unchecked")
+        public Void call() throws FlowException {
+            final List<FixOf> queries = receiveFrom(client, List.class).unwrap((UntrustworthyData.Validator<List, List<FixOf>>) data -> data);
+            final List<RateFix> fixes;
+            try {
+                fixes = getServiceHub().cordaService(RateOracle.class).fix(queries);
+            } catch (IllegalArgumentException e) {
+                throw new FlowException(e.getMessage());
+            }
+            sendTo(client, fixes);
+            publishMessageStats();
+            return null;
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class SignFixes extends InstrumentedFlow<List<TransactionSignature>> {
+        private final Party oracle;
+        private final List<FilteredTransaction> batch;
+
+        public SignFixes(Party oracle, List<FilteredTransaction> batch) {
+            this.oracle = oracle;
+            this.batch = batch;
+        }
+
+        @Suspendable
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<TransactionSignature> call() throws FlowException {
+            final FlowSession session = initiateFlow(oracle);
+            sendTo(session, batch);
+            final List<TransactionSignature> signatures = receiveFrom(session, List.class).unwrap((UntrustworthyData.Validator<List, List<TransactionSignature>>) data -> {
+                if (data.size() != batch.size()) {
+                    throw new FlowException(String.format("Sent %d transactions but got %d signatures.", batch.size(), data.size()));
+                }
+                for (int i = 0; i < data.size(); i++) {
+                    final TransactionSignature signature = (TransactionSignature) data.get(i);
+                    if (!signature.getBy().equals(oracle.getOwningKey()) || !signature.isValid(batch.get(i).getId())) {
+                        throw new FlowException("Invalid oracle signature for " + batch.get(i).getId());
+                    }
+                }
+                return (List<TransactionSignature>) data;
+            });
+            publishMessageStats();
+            return signatures;
+        }
+    }
+
+    @InitiatedBy(SignFixes.class)
+    public static class SignFixesHandler extends InstrumentedFlow<Void> {
+        private final FlowSession client;
+
+        public SignFixesHandler(FlowSession client) {
+            this.client = client;
+        }
+
+        @Suspendable
+        @Override
+        @SuppressWarnings("unchecked")
+        public Void call() throws FlowException {
+            final List<FilteredTransaction> batch = receiveFrom(client, List.class).unwrap((UntrustworthyData.Validator<List, List<FilteredTransaction>>) data -> data);
+            final List<TransactionSignature> signatures;
+            try {
+                signatures = getServiceHub().cordaService(RateOracle.class).sign(batch);
+            } catch (RuntimeException e) {
+                // Covers rejected fixes as well as Merkle proofs that don't verify.
+                throw new FlowException(e.getMessage());
+            }
+            sendTo(client, signatures);
+            publishMessageStats();
+            return null;
+        }
+    }
+}
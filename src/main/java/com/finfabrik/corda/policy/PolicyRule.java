@@ -0,0 +1,13 @@
+package com.finfabrik.corda.policy;
+
+/**
+ * One check a responder makes before signing. Rules are built once from configuration and
+ * evaluated for every proposed transaction, so {@link #check} should only read precomputed lookups.
+ */
+public interface PolicyRule {
+    /** Short name used in metric names and rejection messages. */
+    String getName();
+
+    /** Null when the transaction passes, otherwise why it was rejected. */
+    String check(ProposedTransaction tx);
+}
@@ -0,0 +1,469 @@
+package com.finfabrik.corda.policy;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.FXSwap;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.calendar.ValueDates;
+import com.finfabrik.corda.config.Settings;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.finance.contracts.Tenor;
+import net.corda.finance.contracts.asset.Cash;
+
+import java.math.BigDecimal;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The responder rules, and how they are read from {@code -Dfxforward.policy.*}:
+ * <ul>
+ *     <li>{@code policy.counterparties}: X500 names separated by {@code ;}, the only parties we sign for.</li>
+ *     <li>{@code policy.pairs}: e.g. {@code GBP/FAB,USD/FAB}, the only currency/token pairs we trade.</li>
+ *     <li>{@code policy.minTenor}, {@code policy.maxTenor}: e.g. {@code 1W} and {@code 1Y}.</li>
+ *     <li>{@code policy.notionalCaps}: e.g. {@code GBP:1000000,USD:1500000} in major units, per forward or swap leg.</li>
+ *     <li>{@code policy.checkOwnStates} (true): we are the buyer of what we issue, and only FX commands spend our states.</li>
+ *     <li>{@code policy.checkValueDates} (true): a new forward's value date is the one our calendars give its tenor.</li>
+ *     <li>{@code policy.checkSettlement} (true): a settlement must pay us the full base amount we are owed and take
+ *     only the forward's tokens from us.</li>
+ * </ul>
+ * Unset keys add no rule.
+ */
+public final class PolicyRules {
+    private static final Splitter COMMA = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final Splitter SEMICOLON = Splitter.on(';').trimResults().omitEmptyStrings();
+    private static final Pattern TENOR = Pattern.compile("(\\d+)([DWMY])");
+    private static final Map<String, Integer> TENOR_DAYS = new ConcurrentHashMap<>();
+
+    private PolicyRules() {
+    }
+
+    /** {@code valueDates} and {@code clock} are the node's, for recomputing the value dates of new forwards. */
+    public static List<PolicyRule> fromSettings(ValueDates valueDates, Clock clock) {
+        final ImmutableList.Builder<PolicyRule> rules = ImmutableList.builder();
+        final String counterparties = Settings.stringSetting("policy.counterparties", null);
+        if (counterparties != null) {
+            final Set<CordaX500Name> names = new HashSet<>();
+            SEMICOLON.split(counterparties).forEach(it -> names.add(CordaX500Name.parse(it)));
+            rules.add(new Counterparties(names));
+        }
+        final String pairs = Settings.stringSetting("policy.pairs", null);
+        if (pairs != null) {
+            rules.add(Pairs.parse(pairs));
+        }
+        final String minTenor = Settings.stringSetting("policy.minTenor", null);
+        final String maxTenor = Settings.stringSetting("policy.maxTenor", null);
+        if (minTenor != null || maxTenor != null) {
+            rules.add(new TenorRange(minTenor == null ? 0 : tenorDays(new Tenor(minTenor)),
+                    maxTenor == null ? Integer.MAX_VALUE : tenorDays(new Tenor(maxTenor))));
+        }
+        final String caps = Settings.stringSetting("policy.notionalCaps", null);
+        if (caps != null) {
+            rules.add(NotionalCaps.parse(caps));
+        }
+        if (Settings.booleanSetting("policy.checkOwnStates", true)) {
+            rules.add(new OwnStates());
+        }
+        if (Settings.booleanSetting("policy.checkValueDates", true)) {
+            rules.add(new ValueDateCheck(valueDates, clock));
+        }
+        if (Settings.booleanSetting("policy.checkSettlement", true)) {
+            rules.add(new SettlementAmounts());
+        }
+        return rules.build();
+    }
+
+    /** Calendar days a tenor nominally spans, months as 30 and years as 365; parsed once per tenor name. */
+    static int tenorDays(Tenor tenor) {
+        return TENOR_DAYS.computeIfAbsent(tenor.getName(), name -> {
+            final Matcher matcher = TENOR.matcher(name);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Unsupported tenor " + name);
+            }
+            final int n = Integer.parseInt(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "D": return n;
+                case "W": return n * 7;
+                case "M": return n * 30;
+                default: return n * 365;
+            }
+        });
+    }
+
+    /** Signs only for the listed legal names. */
+    public static final class Counterparties implements PolicyRule {
+        private final Set<CordaX500Name> allowed;
+
+        public Counterparties(Set<CordaX500Name> allowed) {
+            this.allowed = ImmutableSet.copyOf(allowed);
+        }
+
+        @Override
+        public String getName() {
+            return "counterparties";
+        }
+
+        @Override
+        public String check(ProposedTransaction tx) {
+            return allowed.contains(tx.getCounterparty().getName()) ? null : "counterparty is not on the allowed list";
+        }
+    }
+
+    /** New forwards and swaps must be in one of the listed currency/token pairs. */
+    public static final class Pairs implements PolicyRule {
+        private final Map<Currency, Set<String>> allowed;
+
+        public Pairs(Map<Currency, Set<String>> allowed) {
+            this.allowed = ImmutableMap.copyOf(allowed);
+        }
+
+        static Pairs parse(String pairs) {
+            final Map<Currency, Set<String>> allowed = new HashMap<>();
+            for (String pair : COMMA.split(pairs)) {
+                final int slash = pair.indexOf('/');
+                allowed.computeIfAbsent(Currency.getInstance(pair.substring(0, slash)), it -> new HashSet<>())
+                        .add(pair.substring(slash + 1));
+            }
+            return new Pairs(allowed);
+        }
+
+        @Override
+        public String getName() {
+            return "pairs";
+        }
+
+        @Override
+        public String check(ProposedTransaction tx) {
+            final List<ContractState> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                final ContractState state = outputs.get(i);
+                if (state instanceof FXForward && !allowed(((FXForward) state).getCurrency(), ((FXForward) state).getTokenCode())) {
+                    return "currency/token pair is not allowed";
+                }
+                if (state instanceof FXSwap && !allowed(((FXSwap) state).getCurrency(), ((FXSwap) state).getTokenCode())) {
+                    return "currency/token pair is not allowed";
+                }
+            }
+            return null;
+        }
+
+        private boolean allowed(Currency currency, String tokenCode) {
+            final Set<String> tokens = allowed.get(currency);
+            return tokens != null && tokens.contains(tokenCode);
+        }
+    }
+
+    /** New forwards and both swap legs must have tenors within [minDays, maxDays]. */
+    public static final class TenorRange implements PolicyRule {
+        private final int minDays;
+        private final int maxDays;
+
+        public TenorRange(int minDays, int maxDays) {
+            this.minDays = minDays;
+            this.maxDays = maxDays;
+        }
+
+        @Override
+        public String getName() {
+            return "tenors";
+        }
+
+        @Override
+        public String check(ProposedTransaction tx) {
+            final List<ContractState> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                final ContractState state = outputs.get(i);
+                if (state instanceof FXForward && !inRange(((FXForward) state).getTenor())) {
+                    return "tenor is outside the allowed range";
+                }
+                if (state instanceof FXSwap && !(inRange(((FXSwap) state).getNearTenor()) && inRange(((FXSwap) state).getFarTenor()))) {
+                    return "tenor is outside the allowed range";
+                }
+            }
+            return null;
+        }
+
+        private boolean inRange(Tenor tenor) {
+            final int days = tenorDays(tenor);
+            return days >= minDays && days <= maxDays;
+        }
+    }
+
+    /** Caps the base notional of each new forward and each swap leg, in minor units per currency. */
+    public static final class NotionalCaps implements PolicyRule {
+        private final Map<Currency, Long> caps;
+
+        public NotionalCaps(Map<Currency, Long> caps) {
+            this.caps = ImmutableMap.copyOf(caps);
+        }
+
+        static NotionalCaps parse(String caps) {
+            final Map<Currency, Long> parsed = new HashMap<>();
+            for (String cap : COMMA.split(caps)) {
+                final int colon = cap.indexOf(':');
+                final Currency currency = Currency.getInstance(cap.substring(0, colon));
+                parsed.put(currency, new BigDecimal(cap.substring(colon + 1))
+                        .movePointRight(currency.getDefaultFractionDigits()).longValueExact());
+            }
+            return new NotionalCaps(parsed);
+        }
+
+        @Override
+        public String getName() {
+            return "notionalCaps";
+        }
+
+        @Override
+        public String check(ProposedTransaction tx) {
+            final List<ContractState> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                final ContractState state = outputs.get(i);
+                if (state instanceof FXForward) {
+                    final FXForward forward = (FXForward) state;
+                    if (overCap(forward.getCurrency(), forward.getBaseQuantity())) {
+                        return "notional is over the cap";
+                    }
+                } else if (state instanceof FXSwap) {
+                    final FXSwap swap = (FXSwap) state;
+                    if (overCap(swap.getCurrency(), Math.max(swap.getNearBaseQuantity(), swap.getFarBaseQuantity()))) {
+                        return "notional is over the cap";
+                    }
+                }
+            }
+            return null;
+        }
+
+        private boolean overCap(Currency currency, long quantity) {
+            final Long cap = caps.get(currency);
+            return cap != null && quantity > cap;
+        }
+    }
+
+    /**
+     * What the counterparty may do with our side: a forward or swap it issues must have us as the
+     * buyer, and it may only spend our states under a command that settles or compresses an FX trade.
+     * Tokens may only leave us in a settlement; a responder never pays cash or spends anything else.
+     */
+    public static final class OwnStates implements PolicyRule {
+        @Override
+        public String getName() {
+            return "ownStates";
+        }
+
+        @Override
+        public String check(ProposedTransaction tx) {
+            if (tx.hasCommand(FXForwardContract.Commands.Issue.class) || tx.hasCommand(FXForwardContract.Commands.IssueSwap.class)) {
+                final List<ContractState> outputs = tx.getOutputs();
+                for (int i = 0; i < outputs.size(); i++) {
+                    final ContractState state = outputs.get(i);
+                    if (state instanceof FXForward && !buying(tx, ((FXForward) state).getBuyer(), ((FXForward) state).getSeller())) {
+                        return "we are not the buyer of the forward";
+                    }
+                    if (state instanceof FXSwap && !buying(tx, ((FXSwap) state).getBuyer(), ((FXSwap) state).getSeller())) {
+                        return "we are not the buyer of the swap";
+                    }
+                }
+            }
+            final boolean settles = tx.hasCommand(FXForwardContract.Commands.Settle.class)
+                    || tx.hasCommand(FXForwardContract.Commands.SettleNearLeg.class)
+                    || tx.hasCommand(FXForwardContract.Commands.SettleFarLeg.class);
+            final boolean moves = settles || tx.hasCommand(FXForwardContract.Commands.Compress.class);
+            final List<ContractState> inputs = tx.getInputs();
+            for (int i = 0; i < inputs.size(); i++) {
+                final ContractState state = inputs.get(i);
+                if (!ours(tx, state)) {
+                    continue;
+                }
+                if (state instanceof FXForward || state instanceof FXSwap) {
+                    if (!moves) {
+                        return "spends our trade without settling or compressing it";
+                    }
+                } else if (state instanceof Token) {
+                    if (!settles) {
+                        return "spends our token outside a settlement";
+                    }
+                } else {
+                    return "spends our " + state.getClass().getSimpleName();
+                }
+            }
+            return null;
+        }
+
+        private static boolean buying(ProposedTransaction tx, AbstractParty buyer, AbstractParty seller) {
+            return tx.isOurs(buyer.getOwningKey()) && !tx.isOurs(seller.getOwningKey());
+        }
+
+        private static boolean ours(ProposedTransaction tx, ContractState state) {
+            final List<AbstractParty> participants = state.getParticipants();
+            for (int i = 0; i < participants.size(); i++) {
+                if (tx.isOurs(participants.get(i).getOwningKey())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A forward being issued must carry the value date our own calendars give its tenor, traded today
+     * or, for a proposal built just before midnight, yesterday.
+     */
+    public static final class ValueDateCheck implements PolicyRule {
+        private final ValueDates valueDates;
+        private final Clock clock;
+
+        public ValueDateCheck(ValueDates valueDates, Clock clock) {
+            this.valueDates = valueDates;
+            this.clock = clock;
+        }
+
+        @Override
+        public String getName() {
+            return "valueDates";
+        }
+
+        @Override
+        public String check(ProposedTransaction tx) {
+            if (!tx.hasCommand(FXForwardContract.Commands.Issue.class)) {
+                return null;
+            }
+            final List<ContractState> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                final ContractState state = outputs.get(i);
+                if (state instanceof FXForward) {
+                    final String rejection = check((FXForward) state);
+                    if (rejection != null) {
+                        return rejection;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private String check(FXForward forward) {
+            if (forward.getValueDate() == null) {
+                return "forward has no value date";
+            }
+            final LocalDate today = LocalDate.now(clock);
+            final String base = forward.getCurrency().getCurrencyCode();
+            try {
+                if (forward.getValueDate().equals(valueDates.valueDate(today, forward.getTenor(), base, forward.getTokenCode()))
+                        || forward.getValueDate().equals(valueDates.valueDate(today.minusDays(1), forward.getTenor(), base, forward.getTokenCode()))) {
+                    return null;
+                }
+            } catch (IllegalArgumentException e) {
+                return "value date cannot be checked: " + e.getMessage();
+            }
+            return "value date is not the tenor's value date on our calendars";
+        }
+    }
+
+    /**
+     * When a transaction settles a forward or swap leg on which we receive cash, the cash paid to
+     * our keys in that currency must cover the full base amount, or for a forward settled in
+     * tranches, the amount by which the outstanding base falls. A forward's settlement may take at
+     * most one token from us, only when it settles in full, and only of the forward's terms; the
+     * contract already checks the token a swap leg delivers.
+     */
+    public static final class SettlementAmounts implements PolicyRule {
+        @Override
+        public String getName() {
+            return "settlementAmounts";
+        }
+
+        @Override
+        public String check(ProposedTransaction tx) {
+            if (!tx.hasCommand(FXForwardContract.Commands.Settle.class)
+                    && !tx.hasCommand(FXForwardContract.Commands.SettleNearLeg.class)
+                    && !tx.hasCommand(FXForwardContract.Commands.SettleFarLeg.class)) {
+                return null;
+            }
+            final List<ContractState> inputs = tx.getInputs();
+            for (int i = 0; i < inputs.size(); i++) {
+                final ContractState state = inputs.get(i);
+                if (state instanceof FXForward) {
+                    final FXForward forward = (FXForward) state;
+                    if (tx.isOurs(forward.getBuyer().getOwningKey())) {
+                        final long remaining = remaining(tx, forward);
+                        if (cashToUs(tx, forward.getCurrency()) < forward.getBaseQuantity() - remaining) {
+                            return "settlement pays us less than the forward's base amount";
+                        }
+                        final String delivery = checkDelivery(tx, forward, remaining == 0);
+                        if (delivery != null) {
+                            return delivery;
+                        }
+                    }
+                } else if (state instanceof FXSwap) {
+                    final FXSwap swap = (FXSwap) state;
+                    final FXSwap.Leg leg = swap.getOpenLeg();
+                    if (tx.isOurs(swap.cashReceiver(leg).getOwningKey())
+                            && cashToUs(tx, swap.getCurrency()) < swap.baseFor(leg).getQuantity()) {
+                        return "settlement pays us less than the swap leg's base amount";
+                    }
+                }
+            }
+            return null;
+        }
+
+        /** Null if the tokens leaving us are at most one token of the forward's terms, and none on a partial tranche. */
+        private static String checkDelivery(ProposedTransaction tx, FXForward forward, boolean settlesInFull) {
+            int delivered = 0;
+            final List<ContractState> inputs = tx.getInputs();
+            for (int i = 0; i < inputs.size(); i++) {
+                final ContractState state = inputs.get(i);
+                if (state instanceof Token && tx.isOurs(((Token) state).getOwner().getOwningKey())) {
+                    final Token token = (Token) state;
+                    if (!settlesInFull) {
+                        return "a partial settlement takes our token";
+                    }
+                    if (!token.getTokenCode().equals(forward.getTokenCode()) || token.getQuantity() != forward.getTermsQuantity()) {
+                        return "settlement takes a token other than the forward's terms";
+                    }
+                    delivered++;
+                }
+            }
+            return delivered > 1 ? "settlement takes more than one of our tokens" : null;
+        }
+
+        /** Base left outstanding on the forward after a tranche, zero if it is fully settled. */
+        private static long remaining(ProposedTransaction tx, FXForward input) {
+            final List<ContractState> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                final ContractState state = outputs.get(i);
+                if (state instanceof FXForward && ((FXForward) state).getLinearId().equals(input.getLinearId())) {
+                    return ((FXForward) state).getBaseQuantity();
+                }
+            }
+            return 0;
+        }
+
+        private static long cashToUs(ProposedTransaction tx, Currency currency) {
+            long total = 0;
+            final List<ContractState> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                final ContractState state = outputs.get(i);
+                if (state instanceof Cash.State) {
+                    final Cash.State cash = (Cash.State) state;
+                    if (cash.getAmount().getToken().getProduct().equals(currency) && tx.isOurs(cash.getOwner().getOwningKey())) {
+                        total += cash.getAmount().getQuantity();
+                    }
+                }
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.finfabrik.corda.policy;
+
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.WireTransaction;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * What a responder is asked to sign, as the policy rules see it. Inputs are only loaded from the
+ * vault if a rule asks for them.
+ */
+public final class ProposedTransaction {
+    private final Party counterparty;
+    private final List<ContractState> outputs;
+    private final List<CommandData> commands;
+    private final Supplier<List<ContractState>> inputLoader;
+    private final Predicate<PublicKey> isOurs;
+    private List<ContractState> inputs;
+
+    public ProposedTransaction(Party counterparty, List<ContractState> outputs, List<CommandData> commands,
+                               Supplier<List<ContractState>> inputLoader, Predicate<PublicKey> isOurs) {
+        this.counterparty = counterparty;
+        this.outputs = outputs;
+        this.commands = commands;
+        this.inputLoader = inputLoader;
+        this.isOurs = isOurs;
+    }
+
+    /** A transaction received from {@code counterparty}, whose inputs must already be resolved on this node. */
+    public static ProposedTransaction of(SignedTransaction stx, Party counterparty, ServiceHub serviceHub) {
+        final WireTransaction wtx = stx.getTx();
+        final List<ContractState> outputs = new ArrayList<>(wtx.getOutputs().size());
+        wtx.getOutputs().forEach(it -> outputs.add(it.getData()));
+        final List<CommandData> commands = new ArrayList<>(wtx.getCommands().size());
+        wtx.getCommands().forEach(it -> commands.add(it.getValue()));
+        final Party us = serviceHub.getMyInfo().getLegalIdentities().get(0);
+        return new ProposedTransaction(counterparty, outputs, commands, () -> {
+            final List<ContractState> inputs = new ArrayList<>(wtx.getInputs().size());
+            for (StateRef ref : wtx.getInputs()) {
+                inputs.add(serviceHub.loadState(ref).getData());
+            }
+            return inputs;
+        }, key -> us.equals(serviceHub.getIdentityService().partyFromKey(key)));
+    }
+
+    public Party getCounterparty() {
+        return counterparty;
+    }
+
+    public List<ContractState> getOutputs() {
+        return outputs;
+    }
+
+    public List<CommandData> getCommands() {
+        return commands;
+    }
+
+    public List<ContractState> getInputs() {
+        if (inputs == null) {
+            inputs = inputLoader.get();
+        }
+        return inputs;
+    }
+
+    public boolean isOurs(PublicKey key) {
+        return isOurs.test(key);
+    }
+
+    public boolean hasCommand(Class<? extends CommandData> type) {
+        for (int i = 0; i < commands.size(); i++) {
+            if (type.isInstance(commands.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
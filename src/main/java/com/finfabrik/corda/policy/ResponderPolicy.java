@@ -0,0 +1,53 @@
+package com.finfabrik.corda.policy;
+
+import com.finfabrik.corda.metrics.Metrics;
+
+import java.util.List;
+
+/**
+ * A fixed list of {@link PolicyRule}s evaluated in order, stopping at the first rejection. Metric
+ * names and timers are looked up once here, so evaluating a transaction records
+ * {@code policy.<rule>} timings and {@code policy.<rule>.rejected} counts without building strings.
+ */
+public final class ResponderPolicy {
+    private final PolicyRule[] rules;
+    private final Metrics.Timer[] timers;
+    private final String[] rejectedCounters;
+    private final Metrics.Timer total;
+    private final Metrics metrics;
+
+    public ResponderPolicy(List<PolicyRule> rules, Metrics metrics) {
+        this.rules = rules.toArray(new PolicyRule[0]);
+        this.timers = new Metrics.Timer[this.rules.length];
+        this.rejectedCounters = new String[this.rules.length];
+        for (int i = 0; i < this.rules.length; i++) {
+            timers[i] = metrics.timer("policy." + this.rules[i].getName());
+            rejectedCounters[i] = "policy." + this.rules[i].getName() + ".rejected";
+        }
+        this.total = metrics.timer("policy.evaluate");
+        this.metrics = metrics;
+    }
+
+    public int size() {
+        return rules.length;
+    }
+
+    /** Null when every rule passes, otherwise the first rejection as {@code rule: reason}. */
+    public String evaluate(ProposedTransaction tx) {
+        final long start = total.startNanos();
+        try {
+            for (int i = 0; i < rules.length; i++) {
+                final long ruleStart = timers[i].startNanos();
+                final String rejection = rules[i].check(tx);
+                timers[i].recordSince(ruleStart);
+                if (rejection != null) {
+                    metrics.increment(rejectedCounters[i]);
+                    return rules[i].getName() + ": " + rejection;
+                }
+            }
+            return null;
+        } finally {
+            total.recordSince(start);
+        }
+    }
+}
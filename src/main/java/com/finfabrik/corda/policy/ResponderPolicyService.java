@@ -0,0 +1,46 @@
+package com.finfabrik.corda.policy;
+
+import com.finfabrik.corda.calendar.ValueDateService;
+import com.finfabrik.corda.metrics.MetricsService;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+
+/**
+ * The node's {@link ResponderPolicy}, compiled once from {@code -Dfxforward.policy.*}.
+ */
+@CordaService
+public class ResponderPolicyService extends SingletonSerializeAsToken {
+    private final AppServiceHub serviceHub;
+    private volatile ResponderPolicy policy;
+
+    public ResponderPolicyService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+    }
+
+    /** Compiled on first use, once the metrics and value date services are up. */
+    public ResponderPolicy getPolicy() {
+        if (policy == null) {
+            synchronized (this) {
+                if (policy == null) {
+                    policy = new ResponderPolicy(PolicyRules.fromSettings(
+                            serviceHub.cordaService(ValueDateService.class).getValueDates(), serviceHub.getClock()),
+                            serviceHub.cordaService(MetricsService.class).getMetrics());
+                }
+            }
+        }
+        return policy;
+    }
+
+    /** Throws if the policy rejects {@code stx}, proposed to us by {@code counterparty}. */
+    public void check(SignedTransaction stx, Party counterparty) throws FlowException {
+        final String rejection = getPolicy().evaluate(ProposedTransaction.of(stx, counterparty, serviceHub));
+        if (rejection != null) {
+            throw new FlowException(String.format("Transaction %s from %s rejected by policy: %s",
+                    stx.getId(), counterparty.getName(), rejection));
+        }
+    }
+}
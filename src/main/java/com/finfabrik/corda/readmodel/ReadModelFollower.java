@@ -0,0 +1,340 @@
+package com.finfabrik.corda.readmodel;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.metrics.Metrics;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.BinaryComparisonOperator;
+import net.corda.core.node.services.vault.ColumnPredicate;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.finance.contracts.asset.Cash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Subscription;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the node's forward, token and cash updates over RPC into a {@link ReadModelStore}.
+ *
+ * On start it subscribes to {@code vaultTrackBy} for the three types, buffering updates, then
+ * catches up from the store's watermark: every state recorded or consumed since then, less
+ * {@code overlap}, is read page by page and merged. A store without a watermark is loaded in full.
+ * The buffered updates are replayed after that and later ones are applied as they arrive.
+ *
+ * Vault updates carry no node time, so the watermark is advanced separately: every
+ * {@code markInterval} the node is asked when the last update applied here was recorded or
+ * consumed, and that time is saved. Updates arrive and are applied in the order the node sent
+ * them, so everything before it is in the store too. The overlap covers updates committed on the
+ * node at the same moment, and because every write is a merge it only costs re-reading a few
+ * states. If a feed fails or an update cannot be applied, the watermark stops where it is, so a
+ * restart catches up from before the gap.
+ */
+public final class ReadModelFollower {
+    private static final Logger logger = LoggerFactory.getLogger(ReadModelFollower.class);
+
+    private final CordaRPCOps rpcOps;
+    private final ReadModelStore store;
+    private final Metrics metrics;
+    private final int pageSize;
+    private final Duration overlap;
+    private final Duration markInterval;
+    private final Party me;
+    private final Map<AbstractParty, String> partyNames = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService marker = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "read-model-watermark");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private List<Runnable> pending = new ArrayList<>();
+    private boolean stopped;
+    private volatile Instant lastUpdate;
+    private volatile Instant watermark;
+    // The last state applied from a live update, and whether it was consumed rather than produced.
+    private volatile StateRef lastAppliedRef;
+    private volatile boolean lastAppliedConsumed;
+    private volatile boolean markingStopped;
+
+    public ReadModelFollower(CordaRPCOps rpcOps, ReadModelStore store, Metrics metrics,
+                             int pageSize, Duration overlap, Duration markInterval) {
+        this.rpcOps = rpcOps;
+        this.store = store;
+        this.metrics = metrics;
+        this.pageSize = pageSize;
+        this.overlap = overlap;
+        this.markInterval = markInterval;
+        this.me = rpcOps.nodeInfo().getLegalIdentities().get(0);
+    }
+
+    public void start() throws SQLException {
+        follow(ReadModelStore.Table.FORWARDS, FXForward.class);
+        follow(ReadModelStore.Table.TOKENS, Token.class);
+        follow(ReadModelStore.Table.CASH, Cash.State.class);
+
+        // Read before catching up, so nothing after it is missed if we stop before the next mark.
+        final Instant mark = latestNodeTime();
+        watermark = store.watermark();
+        catchUp(watermark);
+        if (mark != null) {
+            store.setWatermark(mark);
+            watermark = mark;
+        }
+        store.commit();
+
+        // Under the lock live updates take, so none can overtake a buffered one.
+        synchronized (this) {
+            pending.forEach(Runnable::run);
+            pending = null;
+        }
+        metrics.gauge("readModel.watermarkAgeMs", () -> watermark == null ? 0L : Duration.between(watermark, Instant.now()).toMillis());
+        marker.scheduleWithFixedDelay(this::mark, markInterval.toMillis(), markInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops following: the feeds are dropped and the watermark stays where it was last marked, so a
+     * follower started later on the same store catches up from there. The store is left open.
+     */
+    public void stop() throws InterruptedException {
+        subscriptions.forEach(Subscription::unsubscribe);
+        marker.shutdown();
+        marker.awaitTermination(markInterval.toMillis() + 10_000, TimeUnit.MILLISECONDS);
+        // Waits out an update being applied; any still queued behind it is dropped.
+        synchronized (this) {
+            stopped = true;
+        }
+    }
+
+    /** When the last live update was applied, or null if none has been. */
+    public Instant getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /** Node time up to which the store is known to be complete. */
+    public Instant getWatermark() {
+        return watermark;
+    }
+
+    private <T extends ContractState> void follow(ReadModelStore.Table table, Class<T> type) {
+        // Only the update stream matters; keep the snapshot to a single row.
+        final DataFeed<Vault.Page<T>, Vault.Update<T>> feed = rpcOps.vaultTrackBy(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED),
+                new PageSpecification(1, 1),
+                new Sort(Collections.emptyList()),
+                type);
+        subscriptions.add(feed.getUpdates().subscribe(
+                update -> onUpdate(() -> apply(table, update)),
+                error -> {
+                    logger.error("Vault feed for " + table + " failed; the read model is no longer updated.", error);
+                    stopMarking();
+                }));
+    }
+
+    private synchronized void onUpdate(Runnable apply) {
+        if (stopped) {
+            return;
+        }
+        if (pending != null) {
+            pending.add(apply);
+            return;
+        }
+        apply.run();
+    }
+
+    private synchronized void apply(ReadModelStore.Table table, Vault.Update<? extends ContractState> update) {
+        final long start = System.nanoTime();
+        try {
+            for (StateAndRef<? extends ContractState> consumed : update.getConsumed()) {
+                store.consume(table, consumed.getRef());
+            }
+            for (StateAndRef<? extends ContractState> produced : update.getProduced()) {
+                put(produced.getRef(), ReadModelStore.UNCONSUMED, produced.getState().getData());
+            }
+            store.commit();
+            if (!update.getProduced().isEmpty()) {
+                lastAppliedRef = last(update.getProduced()).getRef();
+                lastAppliedConsumed = false;
+            } else if (!update.getConsumed().isEmpty()) {
+                lastAppliedRef = last(update.getConsumed()).getRef();
+                lastAppliedConsumed = true;
+            }
+            lastUpdate = Instant.now();
+            metrics.increment("readModel.updates");
+            metrics.timer("readModel.apply").recordSince(start);
+        } catch (SQLException | RuntimeException e) {
+            metrics.increment("readModel.failures");
+            logger.error("Could not apply a " + table + " update to the read model.", e);
+            rollbackQuietly();
+            stopMarking();
+        }
+    }
+
+    private static <T> T last(Set<T> items) {
+        T last = null;
+        for (T item : items) {
+            last = item;
+        }
+        return last;
+    }
+
+    /** Merges every state recorded or consumed since {@code watermark} (everything, if it is null). */
+    private void catchUp(Instant watermark) throws SQLException {
+        final QueryCriteria criteria;
+        if (watermark == null) {
+            criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL, types());
+        } else {
+            final Instant from = watermark.minus(overlap);
+            criteria = since(QueryCriteria.TimeInstantType.RECORDED, from)
+                    .or(since(QueryCriteria.TimeInstantType.CONSUMED, from));
+        }
+        final Sort byRef = new Sort(ImmutableList.of(
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.STATE_REF_TXN_ID), Sort.Direction.ASC),
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.STATE_REF_INDEX), Sort.Direction.ASC)));
+        long merged = 0;
+        for (int pageNumber = 1; ; pageNumber++) {
+            final Vault.Page<ContractState> page = rpcOps.vaultQueryBy(
+                    criteria, new PageSpecification(pageNumber, pageSize), byRef, ContractState.class);
+            final List<StateAndRef<ContractState>> states = page.getStates();
+            for (int i = 0; i < states.size(); i++) {
+                put(states.get(i).getRef(), page.getStatesMetadata().get(i).getStatus().name(), states.get(i).getState().getData());
+            }
+            merged += states.size();
+            store.commit();
+            if (states.size() < pageSize || (long) pageNumber * pageSize >= page.getTotalStatesAvailable()) {
+                break;
+            }
+        }
+        metrics.increment("readModel.caughtUp", merged);
+        logger.info("Read model caught up {} states since {}.", merged, watermark == null ? "the beginning" : watermark);
+    }
+
+    private void put(StateRef ref, String status, ContractState state) throws SQLException {
+        if (state instanceof FXForward) {
+            final FXForward forward = (FXForward) state;
+            final boolean weSell = me.getName().toString().equals(partyName(forward.getSeller()));
+            store.putForward(ref, status, forward, partyName(weSell ? forward.getBuyer() : forward.getSeller()), weSell);
+        } else if (state instanceof Token) {
+            final Token token = (Token) state;
+            store.putToken(ref, status, token, partyName(token.getOwner()));
+        } else if (state instanceof Cash.State) {
+            final Cash.State cash = (Cash.State) state;
+            store.putCash(ref, status, cash, partyName(cash.getOwner()), partyName(cash.getAmount().getToken().getIssuer().getParty()));
+        }
+    }
+
+    /** Advances the watermark to the node time of the last update applied, never past a failed one. */
+    private void mark() {
+        final StateRef ref = lastAppliedRef;
+        if (markingStopped || ref == null) {
+            return;
+        }
+        try {
+            final Instant mark = nodeTime(ref, lastAppliedConsumed);
+            if (mark == null || (watermark != null && !mark.isAfter(watermark))) {
+                return;
+            }
+            synchronized (this) {
+                if (markingStopped) {
+                    return;
+                }
+                store.setWatermark(mark);
+                store.commit();
+                watermark = mark;
+            }
+        } catch (SQLException | RuntimeException e) {
+            logger.warn("Could not advance the read model watermark.", e);
+            rollbackQuietly();
+        }
+    }
+
+    private void stopMarking() {
+        if (!markingStopped) {
+            markingStopped = true;
+            metrics.increment("readModel.markingStopped");
+            logger.warn("Read model watermark stopped at {}; restart to catch up from there.", watermark);
+        }
+    }
+
+    /** When the node recorded, or consumed, {@code ref}. */
+    private Instant nodeTime(StateRef ref, boolean consumed) {
+        final Vault.Page<ContractState> page = rpcOps.vaultQueryBy(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL, types(), ImmutableList.of(ref), null, null, null),
+                new PageSpecification(1, 1), new Sort(Collections.emptyList()), ContractState.class);
+        if (page.getStatesMetadata().isEmpty()) {
+            return null;
+        }
+        final Vault.StateMetadata meta = page.getStatesMetadata().get(0);
+        return consumed ? meta.getConsumedTime() : meta.getRecordedTime();
+    }
+
+    private Instant latestNodeTime() {
+        final Instant recorded = latest(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL, types()),
+                Sort.VaultStateAttribute.RECORDED_TIME);
+        final Instant consumed = latest(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.CONSUMED, types()),
+                Sort.VaultStateAttribute.CONSUMED_TIME);
+        if (recorded == null || consumed == null) {
+            return recorded == null ? consumed : recorded;
+        }
+        return recorded.isAfter(consumed) ? recorded : consumed;
+    }
+
+    private Instant latest(QueryCriteria criteria, Sort.VaultStateAttribute attribute) {
+        final Vault.Page<ContractState> page = rpcOps.vaultQueryBy(criteria, new PageSpecification(1, 1),
+                new Sort(ImmutableList.of(new Sort.SortColumn(new SortAttribute.Standard(attribute), Sort.Direction.DESC))),
+                ContractState.class);
+        if (page.getStatesMetadata().isEmpty()) {
+            return null;
+        }
+        final Vault.StateMetadata meta = page.getStatesMetadata().get(0);
+        return attribute == Sort.VaultStateAttribute.RECORDED_TIME ? meta.getRecordedTime() : meta.getConsumedTime();
+    }
+
+    private static QueryCriteria since(QueryCriteria.TimeInstantType type, Instant from) {
+        final QueryCriteria.TimeCondition condition = new QueryCriteria.TimeCondition(type,
+                new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.GREATER_THAN_OR_EQUAL, from));
+        return new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL, types(), null, null, null, condition);
+    }
+
+    private static Set<Class<? extends ContractState>> types() {
+        return ImmutableSet.of(FXForward.class, Token.class, Cash.State.class);
+    }
+
+    private String partyName(AbstractParty party) {
+        return partyNames.computeIfAbsent(party, it -> {
+            final Party wellKnown = rpcOps.wellKnownPartyFromAnonymous(it);
+            return wellKnown == null ? it.toString() : wellKnown.getName().toString();
+        });
+    }
+
+    private void rollbackQuietly() {
+        try {
+            store.rollback();
+        } catch (SQLException e) {
+            logger.warn("Could not roll back the read model.", e);
+        }
+    }
+}
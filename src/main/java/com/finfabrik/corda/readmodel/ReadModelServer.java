@@ -0,0 +1,182 @@
+package com.finfabrik.corda.readmodel;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.metrics.Metrics;
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.core.utilities.NetworkHostAndPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Reporting process that serves forward, token and cash queries from a {@link ReadModelStore}
+ * instead of the node vault, used by the {@code readModel} Gradle task.
+ *
+ * Usage: {@code <host:port> <user> <password>}. Settings ({@code -Dfxforward.readModel.*}):
+ * {@code db} (JDBC URL, default {@code jdbc:h2:file:./build/readmodel/readmodel}), {@code port} (10080),
+ * {@code threads} (4), {@code pageSize} (500), {@code overlapMs} (60000) and {@code markMs} (10000).
+ *
+ * Endpoints, all GET under {@code /api/readmodel/}:
+ * {@code forwards?counterparty=&currency=&status=&maturesFrom=&maturesTo=&limit=},
+ * {@code forward-totals?by=counterparty|currency|maturity}, {@code tokens?owner=&token=&status=&limit=},
+ * {@code cash-balances}, {@code status} and {@code metrics}.
+ */
+public class ReadModelServer {
+    private static final Logger logger = LoggerFactory.getLogger(ReadModelServer.class);
+    private static final int MAX_LIMIT = 10_000;
+
+    private final ReadModelStore store;
+    private final ReadModelFollower follower;
+    private final Metrics metrics;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public ReadModelServer(ReadModelStore store, ReadModelFollower follower, Metrics metrics) {
+        this.store = store;
+        this.follower = follower;
+        this.metrics = metrics;
+    }
+
+    public static void main(String[] args) throws IOException, SQLException {
+        if (args.length < 3) {
+            System.err.println("Usage: <host:port> <user> <password>");
+            System.exit(1);
+        }
+        final CordaRPCConnection connection = new CordaRPCClient(NetworkHostAndPort.parse(args[0])).start(args[1], args[2]);
+        final ReadModelStore store = ReadModelStore.open(
+                Settings.stringSetting("readModel.db", "jdbc:h2:file:./build/readmodel/readmodel"));
+        final Metrics metrics = new Metrics("com.finfabrik.corda:type=Metrics,scope=readModel");
+        final ReadModelFollower follower = new ReadModelFollower(connection.getProxy(), store, metrics,
+                Settings.intSetting("readModel.pageSize", 500),
+                Settings.millisSetting("readModel.overlapMs", 60_000),
+                Settings.millisSetting("readModel.markMs", 10_000));
+        follower.start();
+
+        final HttpServer http = HttpServer.create(new InetSocketAddress(Settings.intSetting("readModel.port", 10080)), 0);
+        http.createContext("/api/readmodel/", new ReadModelServer(store, follower, metrics)::handle);
+        http.setExecutor(Executors.newFixedThreadPool(Settings.intSetting("readModel.threads", 4)));
+        http.start();
+        logger.info("Read model serving on {}.", http.getAddress());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            http.stop(1);
+            try {
+                follower.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            connection.notifyServerAndClose();
+            try {
+                store.close();
+            } catch (SQLException e) {
+                logger.warn("Could not close the read model store.", e);
+            }
+        }, "read-model-shutdown"));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        final String endpoint = exchange.getRequestURI().getPath().substring("/api/readmodel/".length());
+        int status = 200;
+        Object body;
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                status = 405;
+                body = error("Only GET is supported.");
+            } else {
+                body = route(endpoint, query(exchange.getRequestURI().getRawQuery()));
+                if (body == null) {
+                    status = 404;
+                    body = error("No such endpoint: " + endpoint);
+                }
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            status = 400;
+            body = error(e.getMessage());
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Read model query " + endpoint + " failed.", e);
+            status = 500;
+            body = error("Query failed.");
+        }
+
+        final byte[] bytes = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        metrics.timer("readModel.query." + (status == 404 ? "unknown" : endpoint)).recordSince(start);
+    }
+
+    private Object route(String endpoint, Map<String, String> params) throws SQLException {
+        switch (endpoint) {
+            case "forwards":
+                return store.forwards(params.get("counterparty"), params.get("currency"), params.get("status"),
+                        date(params.get("maturesFrom")), date(params.get("maturesTo")), limit(params.get("limit")));
+            case "forward-totals":
+                return store.forwardTotals(params.get("by"));
+            case "tokens":
+                return store.tokens(params.get("owner"), params.get("token"), params.get("status"), limit(params.get("limit")));
+            case "cash-balances":
+                return store.cashBalances();
+            case "status":
+                final Map<String, Object> status = new LinkedHashMap<>();
+                status.put("watermark", String.valueOf(follower.getWatermark()));
+                status.put("lastUpdate", String.valueOf(follower.getLastUpdate()));
+                status.put("rows", store.counts());
+                return status;
+            case "metrics":
+                return metrics.getSnapshot();
+            default:
+                return null;
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+        final Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0 && eq < pair.length() - 1) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8.name()),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8.name()));
+            }
+        }
+        return params;
+    }
+
+    private static LocalDate date(String value) {
+        return value == null ? null : LocalDate.parse(value);
+    }
+
+    private static int limit(String value) {
+        final int limit = value == null ? 1000 : Integer.parseInt(value);
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT + ".");
+        }
+        return limit;
+    }
+
+    private static Map<String, String> error(String message) {
+        return ImmutableMap.of("error", message == null ? "Bad request." : message);
+    }
+}
@@ -0,0 +1,310 @@
+package com.finfabrik.corda.readmodel;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.Token;
+import net.corda.core.contracts.StateRef;
+import net.corda.finance.contracts.asset.Cash;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embedded SQL projection of the node's forwards, tokens and cash, kept by {@link ReadModelFollower}
+ * and queried by {@link ReadModelServer}.
+ *
+ * Rows are keyed by state reference and written with MERGE, so applying the same state twice is
+ * harmless; consumed states stay in the store with status {@code CONSUMED}. Writes go through one
+ * connection and become visible at {@link #commit()}, together with the watermark of the node time
+ * they cover. Queries use a second connection and only see committed rows.
+ */
+public final class ReadModelStore implements AutoCloseable {
+    public enum Table { FORWARDS, TOKENS, CASH }
+
+    public static final String UNCONSUMED = "UNCONSUMED";
+    public static final String CONSUMED = "CONSUMED";
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS forwards (tx_id VARCHAR(64) NOT NULL, output_index INT NOT NULL, "
+                    + "linear_id VARCHAR(64), status VARCHAR(10) NOT NULL, counterparty VARCHAR(255), we_sell BOOLEAN, "
+                    + "currency VARCHAR(3), base_quantity BIGINT, token_code VARCHAR(32), terms_quantity BIGINT, "
+                    + "tenor VARCHAR(8), value_date DATE, PRIMARY KEY (tx_id, output_index))",
+            "CREATE INDEX IF NOT EXISTS forwards_counterparty ON forwards (counterparty, status)",
+            "CREATE INDEX IF NOT EXISTS forwards_currency ON forwards (currency, status)",
+            "CREATE INDEX IF NOT EXISTS forwards_maturity ON forwards (status, value_date)",
+            "CREATE TABLE IF NOT EXISTS tokens (tx_id VARCHAR(64) NOT NULL, output_index INT NOT NULL, "
+                    + "linear_id VARCHAR(64), status VARCHAR(10) NOT NULL, owner VARCHAR(255), token_code VARCHAR(32), "
+                    + "quantity BIGINT, PRIMARY KEY (tx_id, output_index))",
+            "CREATE INDEX IF NOT EXISTS tokens_owner ON tokens (owner, status)",
+            "CREATE INDEX IF NOT EXISTS tokens_code ON tokens (token_code, status)",
+            "CREATE TABLE IF NOT EXISTS cash (tx_id VARCHAR(64) NOT NULL, output_index INT NOT NULL, "
+                    + "status VARCHAR(10) NOT NULL, owner VARCHAR(255), issuer VARCHAR(255), currency VARCHAR(3), "
+                    + "quantity BIGINT, PRIMARY KEY (tx_id, output_index))",
+            "CREATE INDEX IF NOT EXISTS cash_currency ON cash (currency, status)",
+            "CREATE TABLE IF NOT EXISTS read_model (name VARCHAR(64) PRIMARY KEY, value VARCHAR(255))"
+    };
+
+    private final Connection writer;
+    private final Connection reader;
+
+    private ReadModelStore(Connection writer, Connection reader) throws SQLException {
+        this.writer = writer;
+        this.reader = reader;
+        writer.setAutoCommit(false);
+        try (Statement statement = writer.createStatement()) {
+            for (String ddl : SCHEMA) {
+                statement.execute(ddl);
+            }
+        }
+        writer.commit();
+    }
+
+    /** Opens the store at {@code jdbcUrl}, e.g. {@code jdbc:h2:file:build/readmodel/readmodel}, creating its tables if needed. */
+    public static ReadModelStore open(String jdbcUrl) throws SQLException {
+        final Connection writer = DriverManager.getConnection(jdbcUrl);
+        return new ReadModelStore(writer, DriverManager.getConnection(jdbcUrl));
+    }
+
+    public synchronized void putForward(StateRef ref, String status, FXForward forward, String counterparty, boolean weSell) throws SQLException {
+        try (PreparedStatement statement = writer.prepareStatement("MERGE INTO forwards KEY (tx_id, output_index) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            bindRef(statement, ref);
+            statement.setString(3, forward.getLinearId().toString());
+            statement.setString(4, status);
+            statement.setString(5, counterparty);
+            statement.setBoolean(6, weSell);
+            statement.setString(7, forward.getCurrency().getCurrencyCode());
+            statement.setLong(8, forward.getBaseQuantity());
+            statement.setString(9, forward.getTokenCode());
+            statement.setLong(10, forward.getTermsQuantity());
+            statement.setString(11, forward.getTenor().getName());
+            statement.setDate(12, forward.getValueDate() == null ? null : Date.valueOf(forward.getValueDate()));
+            statement.executeUpdate();
+        }
+    }
+
+    public synchronized void putToken(StateRef ref, String status, Token token, String owner) throws SQLException {
+        try (PreparedStatement statement = writer.prepareStatement("MERGE INTO tokens KEY (tx_id, output_index) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            bindRef(statement, ref);
+            statement.setString(3, token.getLinearId().toString());
+            statement.setString(4, status);
+            statement.setString(5, owner);
+            statement.setString(6, token.getTokenCode());
+            statement.setLong(7, token.getQuantity());
+            statement.executeUpdate();
+        }
+    }
+
+    public synchronized void putCash(StateRef ref, String status, Cash.State cash, String owner, String issuer) throws SQLException {
+        try (PreparedStatement statement = writer.prepareStatement("MERGE INTO cash KEY (tx_id, output_index) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            bindRef(statement, ref);
+            statement.setString(3, status);
+            statement.setString(4, owner);
+            statement.setString(5, issuer);
+            statement.setString(6, cash.getAmount().getToken().getProduct().getCurrencyCode());
+            statement.setLong(7, cash.getAmount().getQuantity());
+            statement.executeUpdate();
+        }
+    }
+
+    /** Marks a state consumed; a state the store has not seen yet is left for its produced update to insert. */
+    public synchronized void consume(Table table, StateRef ref) throws SQLException {
+        try (PreparedStatement statement = writer.prepareStatement(
+                "UPDATE " + table.name() + " SET status = ? WHERE tx_id = ? AND output_index = ?")) {
+            statement.setString(1, CONSUMED);
+            statement.setString(2, ref.getTxhash().toString());
+            statement.setInt(3, ref.getIndex());
+            statement.executeUpdate();
+        }
+    }
+
+    /** Node time up to which every update is in the store, or null before the first load. */
+    public synchronized Instant watermark() throws SQLException {
+        try (PreparedStatement statement = writer.prepareStatement("SELECT value FROM read_model WHERE name = 'watermark'");
+             ResultSet rows = statement.executeQuery()) {
+            return rows.next() ? Instant.parse(rows.getString(1)) : null;
+        }
+    }
+
+    public synchronized void setWatermark(Instant watermark) throws SQLException {
+        try (PreparedStatement statement = writer.prepareStatement("MERGE INTO read_model KEY (name) VALUES ('watermark', ?)")) {
+            statement.setString(1, watermark.toString());
+            statement.executeUpdate();
+        }
+    }
+
+    public synchronized void commit() throws SQLException {
+        writer.commit();
+    }
+
+    public synchronized void rollback() throws SQLException {
+        writer.rollback();
+    }
+
+    /** Forwards matching every non-null filter, earliest value date first. {@code status} defaults to unconsumed. */
+    public List<Map<String, Object>> forwards(String counterparty, String currency, String status,
+                                              LocalDate maturesFrom, LocalDate maturesTo, int limit) throws SQLException {
+        final Where where = new Where()
+                .equal("status", status == null ? UNCONSUMED : status)
+                .equal("counterparty", counterparty)
+                .equal("currency", currency)
+                .atLeast("value_date", maturesFrom == null ? null : Date.valueOf(maturesFrom))
+                .atMost("value_date", maturesTo == null ? null : Date.valueOf(maturesTo));
+        return query("SELECT tx_id, output_index, linear_id, status, counterparty, we_sell, currency, base_quantity, "
+                + "token_code, terms_quantity, tenor, value_date FROM forwards" + where
+                + " ORDER BY value_date, tx_id, output_index LIMIT ?", where.withLimit(limit));
+    }
+
+    /**
+     * Open forward totals per currency and one of {@code counterparty}, {@code currency} or
+     * {@code maturity}: trade count and base quantity bought and sold.
+     */
+    public List<Map<String, Object>> forwardTotals(String by) throws SQLException {
+        final String key;
+        switch (by == null ? "counterparty" : by) {
+            case "counterparty": key = "counterparty, currency"; break;
+            case "currency": key = "currency"; break;
+            case "maturity": key = "value_date, currency"; break;
+            default: throw new IllegalArgumentException("Totals are by counterparty, currency or maturity, not " + by);
+        }
+        return query("SELECT " + key + ", COUNT(*) AS trades, "
+                + "SUM(CASE WHEN we_sell THEN 0 ELSE base_quantity END) AS bought, "
+                + "SUM(CASE WHEN we_sell THEN base_quantity ELSE 0 END) AS sold "
+                + "FROM forwards WHERE status = ? GROUP BY " + key + " ORDER BY " + key, listOf(UNCONSUMED));
+    }
+
+    public List<Map<String, Object>> tokens(String owner, String tokenCode, String status, int limit) throws SQLException {
+        final Where where = new Where()
+                .equal("status", status == null ? UNCONSUMED : status)
+                .equal("owner", owner)
+                .equal("token_code", tokenCode);
+        return query("SELECT tx_id, output_index, linear_id, status, owner, token_code, quantity FROM tokens" + where
+                + " ORDER BY tx_id, output_index LIMIT ?", where.withLimit(limit));
+    }
+
+    public List<Map<String, Object>> cashBalances() throws SQLException {
+        return query("SELECT currency, SUM(quantity) AS quantity, COUNT(*) AS states FROM cash WHERE status = ? "
+                + "GROUP BY currency ORDER BY currency", listOf(UNCONSUMED));
+    }
+
+    /** Unconsumed and total rows per table. */
+    public Map<String, Object> counts() throws SQLException {
+        final Map<String, Object> counts = new LinkedHashMap<>();
+        for (Table table : Table.values()) {
+            final Map<String, Object> row = query("SELECT COUNT(*) AS total, "
+                    + "SUM(CASE WHEN status = ? THEN 1 ELSE 0 END) AS unconsumed FROM " + table.name(), listOf(UNCONSUMED)).get(0);
+            counts.put(table.name().toLowerCase(), row);
+        }
+        return counts;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            reader.close();
+        } finally {
+            synchronized (this) {
+                writer.close();
+            }
+        }
+    }
+
+    private List<Map<String, Object>> query(String sql, List<Object> params) throws SQLException {
+        synchronized (reader) {
+            try (PreparedStatement statement = reader.prepareStatement(sql)) {
+                for (int i = 0; i < params.size(); i++) {
+                    statement.setObject(i + 1, params.get(i));
+                }
+                try (ResultSet rows = statement.executeQuery()) {
+                    final ResultSetMetaData meta = rows.getMetaData();
+                    final List<Map<String, Object>> result = new ArrayList<>();
+                    while (rows.next()) {
+                        final Map<String, Object> row = new LinkedHashMap<>();
+                        for (int column = 1; column <= meta.getColumnCount(); column++) {
+                            final Object value = rows.getObject(column);
+                            row.put(fieldName(meta.getColumnLabel(column)), value instanceof Date ? value.toString() : value);
+                        }
+                        result.add(row);
+                    }
+                    return result;
+                }
+            }
+        }
+    }
+
+    private static void bindRef(PreparedStatement statement, StateRef ref) throws SQLException {
+        statement.setString(1, ref.getTxhash().toString());
+        statement.setInt(2, ref.getIndex());
+    }
+
+    /** {@code BASE_QUANTITY} to {@code baseQuantity}. */
+    private static String fieldName(String column) {
+        final StringBuilder name = new StringBuilder(column.length());
+        boolean upper = false;
+        for (char c : column.toLowerCase().toCharArray()) {
+            if (c == '_') {
+                upper = true;
+            } else {
+                name.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        }
+        return name.toString();
+    }
+
+    private static List<Object> listOf(Object value) {
+        final List<Object> list = new ArrayList<>();
+        list.add(value);
+        return list;
+    }
+
+    /** WHERE clause built from the filters that were given. */
+    private static final class Where {
+        private final StringBuilder sql = new StringBuilder();
+        private final List<Object> params = new ArrayList<>();
+
+        Where equal(String column, Object value) {
+            return add(column, "=", value);
+        }
+
+        Where atLeast(String column, Object value) {
+            return add(column, ">=", value);
+        }
+
+        Where atMost(String column, Object value) {
+            return add(column, "<=", value);
+        }
+
+        private Where add(String column, String operator, Object value) {
+            if (value != null) {
+                sql.append(params.isEmpty() ? " WHERE " : " AND ").append(column).append(' ').append(operator).append(" ?");
+                params.add(value);
+            }
+            return this;
+        }
+
+        List<Object> withLimit(int limit) {
+            final List<Object> withLimit = new ArrayList<>(params);
+            withLimit.add(limit);
+            return withLimit;
+        }
+
+        @Override
+        public String toString() {
+            return sql.toString();
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.finfabrik.corda.schema;
+
+/**
+ * Family of schemas for {@link com.finfabrik.corda.FXForward}.
+ */
+public class FXForwardSchema {
+}
@@ -0,0 +1,92 @@
+package com.finfabrik.corda.schema;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.LocalDate;
+import java.util.UUID;
+
+/**
+ * Forwards as a vault table, indexed by value date so maturity queries don't scan every state.
+ */
+public class FXForwardSchemaV1 extends MappedSchema {
+    public FXForwardSchemaV1() {
+        super(FXForwardSchema.class, 1, ImmutableList.of(PersistentFXForward.class));
+    }
+
+    @Entity
+    @Table(name = "fx_forward_states", indexes = {
+            @Index(name = "fx_forward_value_date_idx", columnList = "value_date"),
+            @Index(name = "fx_forward_linear_id_idx", columnList = "linear_id")
+    })
+    public static class PersistentFXForward extends PersistentState {
+        @Column(name = "linear_id") private final UUID linearId;
+        @Column(name = "buyer_key") private final String buyerKey;
+        @Column(name = "seller_key") private final String sellerKey;
+        @Column(name = "base_quantity") private final long baseQuantity;
+        @Column(name = "currency") private final String currency;
+        @Column(name = "terms_quantity") private final long termsQuantity;
+        @Column(name = "token_code") private final String tokenCode;
+        @Column(name = "tenor") private final String tenor;
+        @Column(name = "value_date", nullable = true) private final LocalDate valueDate;
+
+        public PersistentFXForward(UUID linearId, String buyerKey, String sellerKey, long baseQuantity, String currency,
+                                   long termsQuantity, String tokenCode, String tenor, LocalDate valueDate) {
+            this.linearId = linearId;
+            this.buyerKey = buyerKey;
+            this.sellerKey = sellerKey;
+            this.baseQuantity = baseQuantity;
+            this.currency = currency;
+            this.termsQuantity = termsQuantity;
+            this.tokenCode = tokenCode;
+            this.tenor = tenor;
+            this.valueDate = valueDate;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentFXForward() {
+            this(null, null, null, 0L, null, 0L, null, null, null);
+        }
+
+        public UUID getLinearId() {
+            return linearId;
+        }
+
+        public String getBuyerKey() {
+            return buyerKey;
+        }
+
+        public String getSellerKey() {
+            return sellerKey;
+        }
+
+        public long getBaseQuantity() {
+            return baseQuantity;
+        }
+
+        public String getCurrency() {
+            return currency;
+        }
+
+        public long getTermsQuantity() {
+            return termsQuantity;
+        }
+
+        public String getTokenCode() {
+            return tokenCode;
+        }
+
+        public String getTenor() {
+            return tenor;
+        }
+
+        public LocalDate getValueDate() {
+            return valueDate;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.finfabrik.corda.services;
+
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.flows.ConsolidateCash;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link ConsolidateCash} in the background while the node is idle.
+ *
+ * The node counts as idle when the vault has seen no updates for
+ * {@code fxforward.consolidation.idleMs}. At most one consolidation runs at a time,
+ * and runs are at least {@code fxforward.consolidation.minIntervalMs} apart, so live
+ * settlements keep priority. Disabled unless {@code fxforward.consolidation.enabled=true}.
+ *
+ * Token states are left alone: a {@code Token} is not fungible and cannot be merged.
+ */
+@CordaService
+public class CashConsolidationService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(CashConsolidationService.class);
+
+    private final AppServiceHub serviceHub;
+    private final AtomicLong lastVaultActivity = new AtomicLong(System.currentTimeMillis());
+    private final Duration idle = Settings.millisSetting("consolidation.idleMs", 30_000);
+    private final Duration minInterval = Settings.millisSetting("consolidation.minIntervalMs", 60_000);
+    private final long fragmentThreshold = Settings.longSetting("consolidation.fragmentThreshold", 100_00);
+    private final long targetDenomination = Settings.longSetting("consolidation.targetDenomination", 1_000_00);
+    private final int maxInputs = Settings.intSetting("consolidation.maxInputs", 50);
+    private long lastRun = 0L;
+
+    public CashConsolidationService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        if (!Settings.booleanSetting("consolidation.enabled", false)) {
+            return;
+        }
+
+        serviceHub.getVaultService().getUpdates().subscribe(update -> lastVaultActivity.set(System.currentTimeMillis()));
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "cash-consolidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long checkMillis = Settings.longSetting("consolidation.checkIntervalMs", 10_000);
+        scheduler.scheduleWithFixedDelay(this::tick, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        final long now = System.currentTimeMillis();
+        if (now - lastVaultActivity.get() < idle.toMillis() || now - lastRun < minInterval.toMillis()) {
+            return;
+        }
+        lastRun = now;
+
+        final Metrics metrics = serviceHub.cordaService(MetricsService.class).getMetrics();
+        try {
+            final ConsolidateCash.Report report = serviceHub.startFlow(
+                    new ConsolidateCash.Initiator(fragmentThreshold, targetDenomination, maxInputs))
+                    .getReturnValue().get(minInterval.toMillis(), TimeUnit.MILLISECONDS);
+            if (report.getInputsMerged() == 0) {
+                return;
+            }
+            logger.info("Cash consolidation: {}", report);
+            metrics.increment("consolidation.runs");
+            metrics.increment("consolidation.inputsMerged", report.getInputsMerged());
+            metrics.increment("consolidation.outputsCreated", report.getOutputsCreated());
+            metrics.gauge("consolidation." + report.getCurrency() + ".statesBefore", report::getStatesBefore);
+            metrics.gauge("consolidation." + report.getCurrency() + ".statesAfter", report::getStatesAfter);
+        } catch (Exception e) {
+            metrics.increment("consolidation.failures");
+            logger.warn("Cash consolidation failed", e);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.finfabrik.corda.services;
+
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.flows.DistributeTransactions;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Copies every recorded FXForward transaction (issue, settlement, swap and compression) to the
+ * observer nodes named in {@code fxforward.observers.names}, comma-separated X.500 names.
+ *
+ * Transactions are queued per observer as the node records them, so trades never wait on the
+ * observers or on the disk. A background thread ships each queue with {@link DistributeTransactions}
+ * in batches of up to {@code observers.batchSize} (100): as soon as a queue holds a full batch, and
+ * otherwise every {@code observers.delayMs} (1000). Each observer has at most one batch in flight and
+ * the thread never waits for one, so an observer that is down holds up only its own queue. A batch
+ * that fails goes back to the head of its queue and is retried on the next run. One that is not
+ * acknowledged within {@code observers.timeoutMs} (60000) is counted as overdue and left to finish:
+ * the messages are delivered once the observer is back, and no further batch is started meanwhile.
+ * Disabled unless {@code fxforward.observers.enabled=true}.
+ *
+ * Only the node that built a transaction, the one whose signature comes first, ships it, so an
+ * observer receives each trade once from the seller or the initiating party. Every queued and every
+ * acknowledged transaction is appended by the same background thread to a journal under
+ * {@code observers.journalDir} ({@code observers}); on start the node requeues whatever the journal
+ * has not seen acknowledged, so transactions queued at shutdown are still sent.
+ *
+ * The node counts {@code observers.sent}, {@code observers.batches}, {@code observers.failures} and
+ * {@code observers.overdue}, times each transaction from being recorded here to being acknowledged by
+ * the observer as {@code observers.lag}, and gauges {@code observers.queued} and
+ * {@code observers.oldestQueuedMs}.
+ */
+@CordaService
+public class ObserverDistributionService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(ObserverDistributionService.class);
+
+    private final AppServiceHub serviceHub;
+    private final int batchSize = Settings.intSetting("observers.batchSize", 100);
+    private final Duration delay = Settings.millisSetting("observers.delayMs", 1_000);
+    private final Duration timeout = Settings.millisSetting("observers.timeoutMs", 60_000);
+    private final Map<CordaX500Name, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean syncScheduled = new AtomicBoolean();
+    private final AtomicBoolean gaugesRegistered = new AtomicBoolean();
+    private ScheduledExecutorService scheduler;
+    private Journal journal;
+
+    public ObserverDistributionService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        if (!Settings.booleanSetting("observers.enabled", false)) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "observer-distribution");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final CordaX500Name us = serviceHub.getMyInfo().getLegalIdentities().get(0).getName();
+        journal = new Journal(Paths.get(Settings.stringSetting("observers.journalDir", "observers"),
+                us.getOrganisation().replaceAll("[^A-Za-z0-9._-]", "_") + ".journal"));
+        // Restoring runs first on the scheduler thread, before any entry recorded from here on is written.
+        scheduler.execute(this::restore);
+        serviceHub.getValidatedTransactions().getUpdates().subscribe(this::recorded);
+        scheduler.scheduleWithFixedDelay(this::flush, delay.toMillis(), delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /** Runs on the thread recording the transaction, so it only queues, in memory. */
+    private void recorded(SignedTransaction stx) {
+        if (stx.getTx().getCommands().stream().noneMatch(it -> it.getValue() instanceof FXForwardContract.Commands)
+                || !builtByUs(stx)) {
+            return;
+        }
+        final Queued queued = new Queued(stx);
+        boolean full = false;
+        for (CordaX500Name observer : observers()) {
+            journal.queued(observer, stx.getId());
+            full |= enqueue(observer, queued);
+        }
+        if (syncScheduled.compareAndSet(false, true)) {
+            scheduler.execute(this::sync);
+        }
+        if (full) {
+            scheduleFlush();
+        }
+    }
+
+    /** Returns whether the observer's queue now holds a full batch. */
+    private boolean enqueue(CordaX500Name observer, Queued queued) {
+        final ConcurrentLinkedDeque<Queued> queue = outboxes.computeIfAbsent(observer, it -> new Outbox()).queue;
+        queue.add(queued);
+        return queue.size() >= batchSize;
+    }
+
+    /** The first signature is the one the building node added before collecting the others. */
+    private boolean builtByUs(SignedTransaction stx) {
+        return !stx.getSigs().isEmpty() && serviceHub.getKeyManagementService()
+                .filterMyKeys(Collections.singletonList(stx.getSigs().get(0).getBy())).iterator().hasNext();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.execute(this::flush);
+        }
+    }
+
+    private void sync() {
+        syncScheduled.set(false);
+        journal.sync();
+    }
+
+    /** Requeues what the journal recorded as queued but never acknowledged before the last shutdown. */
+    private void restore() {
+        int restored = 0;
+        for (Map.Entry<CordaX500Name, Set<SecureHash>> entry : journal.pending().entrySet()) {
+            for (SecureHash id : entry.getValue()) {
+                final SignedTransaction stx = serviceHub.getValidatedTransactions().getTransaction(id);
+                if (stx == null) {
+                    logger.warn("Journal names transaction {} for observer {} but it is not recorded here", id, entry.getKey());
+                    journal.acknowledged(entry.getKey(), id);
+                    continue;
+                }
+                enqueue(entry.getKey(), new Queued(stx));
+                restored++;
+            }
+        }
+        if (restored > 0) {
+            logger.info("Requeued {} transactions for observers from the journal", restored);
+        }
+    }
+
+    /** Starts a batch for every observer with transactions queued and none in flight. Scheduler thread only. */
+    private void flush() {
+        flushScheduled.set(false);
+        if (gaugesRegistered.compareAndSet(false, true)) {
+            metrics().gauge("observers.queued", () -> outboxes.values().stream().mapToLong(Outbox::size).sum());
+            metrics().gauge("observers.oldestQueuedMs", () -> outboxes.values().stream()
+                    .mapToLong(Outbox::oldestQueuedNanos)
+                    .filter(it -> it != Long.MAX_VALUE)
+                    .map(it -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - it))
+                    .max().orElse(0L));
+        }
+        journal.sync();
+        outboxes.forEach((observer, outbox) -> {
+            if (outbox.inFlight != null) {
+                checkOverdue(observer, outbox);
+            } else if (!outbox.queue.isEmpty()) {
+                ship(observer, outbox);
+            }
+        });
+    }
+
+    private void ship(CordaX500Name name, Outbox outbox) {
+        final List<Queued> batch = new ArrayList<>();
+        while (batch.size() < batchSize && !outbox.queue.isEmpty()) {
+            batch.add(outbox.queue.pollFirst());
+        }
+        try {
+            final Party observer = serviceHub.getIdentityService().wellKnownPartyFromX500Name(name);
+            if (observer == null) {
+                throw new IllegalStateException(String.format("Observer %s is not on the network.", name));
+            }
+            final List<SignedTransaction> transactions = batch.stream().map(it -> it.stx).collect(Collectors.toList());
+            outbox.inFlight = batch;
+            outbox.shippedNanos = System.nanoTime();
+            outbox.overdue = false;
+            serviceHub.startFlow(new DistributeTransactions.Initiator(observer, transactions)).getReturnValue().toCompletableFuture()
+                    .whenComplete((recorded, error) -> scheduler.execute(() -> shipped(name, outbox, error)));
+        } catch (RuntimeException e) {
+            outbox.inFlight = null;
+            failed(name, outbox, batch, e);
+        }
+    }
+
+    /** Called on the scheduler thread once the observer has acknowledged the batch in flight, or failed to. */
+    private void shipped(CordaX500Name name, Outbox outbox, Throwable error) {
+        final List<Queued> batch = outbox.inFlight;
+        outbox.inFlight = null;
+        if (error != null) {
+            failed(name, outbox, batch, error);
+            return;
+        }
+        batch.forEach(it -> journal.acknowledged(name, it.stx.getId()));
+        final Metrics metrics = metrics();
+        metrics.increment("observers.batches");
+        metrics.increment("observers.sent", batch.size());
+        final Metrics.Timer lag = metrics.timer("observers.lag");
+        batch.forEach(it -> lag.recordSince(it.queuedNanos));
+        if (!outbox.queue.isEmpty()) {
+            // Keep going while batches succeed.
+            scheduleFlush();
+        }
+    }
+
+    private void failed(CordaX500Name name, Outbox outbox, List<Queued> batch, Throwable error) {
+        metrics().increment("observers.failures");
+        logger.warn("Could not send {} transactions to observer {}", batch.size(), name, error);
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            outbox.queue.addFirst(batch.get(i));
+        }
+    }
+
+    /**
+     * Services cannot kill a flow, and the flow's messages reach the observer once it is back, so an
+     * unacknowledged batch is reported once and left running rather than sent again alongside it.
+     */
+    private void checkOverdue(CordaX500Name name, Outbox outbox) {
+        if (!outbox.overdue && System.nanoTime() - outbox.shippedNanos > timeout.toNanos()) {
+            outbox.overdue = true;
+            metrics().increment("observers.overdue");
+            logger.warn("Observer {} has not acknowledged {} transactions within {}; holding its queue of {} until it does",
+                    name, outbox.inFlight.size(), timeout, outbox.queue.size());
+        }
+    }
+
+    /** Read on every transaction, so observers can be named after the node has started. */
+    private List<CordaX500Name> observers() {
+        final String names = Settings.stringSetting("observers.names", "");
+        final CordaX500Name us = serviceHub.getMyInfo().getLegalIdentities().get(0).getName();
+        return Arrays.stream(names.split(","))
+                .map(String::trim)
+                .filter(it -> !it.isEmpty())
+                .map(CordaX500Name::parse)
+                .filter(it -> !it.equals(us))
+                .collect(Collectors.toList());
+    }
+
+    private Metrics metrics() {
+        return serviceHub.cordaService(MetricsService.class).getMetrics();
+    }
+
+    /**
+     * An append-only log of queued and acknowledged transaction ids, one per line as
+     * {@code Q} or {@code A}, the transaction id and the observer's name, separated by tabs. Entries
+     * are buffered in memory by any thread and written by {@link #sync} on the scheduler thread; the
+     * file is compacted to the still-pending entries when the node starts.
+     */
+    private static class Journal {
+        private final Path file;
+        private final ConcurrentLinkedQueue<String> unwritten = new ConcurrentLinkedQueue<>();
+
+        private Journal(Path file) {
+            this.file = file;
+        }
+
+        private void queued(CordaX500Name observer, SecureHash id) {
+            unwritten.add(line("Q", observer, id));
+        }
+
+        private void acknowledged(CordaX500Name observer, SecureHash id) {
+            unwritten.add(line("A", observer, id));
+        }
+
+        /** Reads the ids still waiting for each observer, in the order they were queued, and compacts the file. */
+        private Map<CordaX500Name, Set<SecureHash>> pending() {
+            final Map<CordaX500Name, Set<SecureHash>> pending = new LinkedHashMap<>();
+            if (!Files.exists(file)) {
+                return pending;
+            }
+            try {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    final String[] fields = line.split("\t");
+                    if (fields.length != 3) {
+                        continue;
+                    }
+                    final Set<SecureHash> ids = pending.computeIfAbsent(CordaX500Name.parse(fields[2]), it -> new LinkedHashSet<>());
+                    if (fields[0].equals("Q")) {
+                        ids.add(SecureHash.parse(fields[1]));
+                    } else {
+                        ids.remove(SecureHash.parse(fields[1]));
+                    }
+                }
+                final List<String> lines = new ArrayList<>();
+                pending.forEach((observer, ids) -> ids.forEach(id -> lines.add(line("Q", observer, id))));
+                final Path tmp = Paths.get(file + ".tmp");
+                Files.write(tmp, lines, StandardCharsets.UTF_8);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.warn("Could not read the observer journal {}", file, e);
+            }
+            return pending;
+        }
+
+        /** Appends every buffered entry in one write. */
+        private void sync() {
+            final List<String> lines = new ArrayList<>();
+            for (String line = unwritten.poll(); line != null; line = unwritten.poll()) {
+                lines.add(line);
+            }
+            if (lines.isEmpty()) {
+                return;
+            }
+            try {
+                if (file.getParent() != null) {
+                    Files.createDirectories(file.getParent());
+                }
+                Files.write(file, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                logger.warn("Could not write {} entries to the observer journal {}", lines.size(), file, e);
+            }
+        }
+
+        private static String line(String op, CordaX500Name observer, SecureHash id) {
+            return op + "\t" + id + "\t" + observer;
+        }
+    }
+
+    /** One observer's queue and the batch, if any, it has in flight. */
+    private static class Outbox {
+        private final ConcurrentLinkedDeque<Queued> queue = new ConcurrentLinkedDeque<>();
+        // Written on the scheduler thread only; volatile for the gauges.
+        private volatile List<Queued> inFlight;
+        private long shippedNanos;
+        private boolean overdue;
+
+        private long size() {
+            final List<Queued> batch = inFlight;
+            return queue.size() + (batch == null ? 0 : batch.size());
+        }
+
+        /** When the oldest unacknowledged transaction was queued, or {@link Long#MAX_VALUE} if there is none. */
+        private long oldestQueuedNanos() {
+            final List<Queued> batch = inFlight;
+            final Queued oldest = batch != null && !batch.isEmpty() ? batch.get(0) : queue.peekFirst();
+            return oldest == null ? Long.MAX_VALUE : oldest.queuedNanos;
+        }
+    }
+
+    private static class Queued {
+        private final SignedTransaction stx;
+        private final long queuedNanos = System.nanoTime();
+
+        private Queued(SignedTransaction stx) {
+            this.stx = stx;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.finfabrik.corda.services;
+
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.flows.StageSettlement;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settlement transactions prepared by {@link StageSettlement} ahead of the value date, fully signed
+ * and waiting only for notarisation, keyed by the forward they settle.
+ *
+ * A staged transaction stops being current once any of its inputs in our vault is consumed;
+ * {@link #current} then drops it. With {@code fxforward.staging.enabled=true} the service runs
+ * {@link StageSettlement.StageDue} every {@code staging.pollMs} (300000) to stage forwards we sell
+ * whose value date is within {@code staging.leadDays} (1), and to re-stage any that were dropped.
+ * Dropping or using a staged transaction releases the cash reserved for it. Staged transactions
+ * are held in memory; after a restart they are staged again, reusing the same soft locks.
+ */
+@CordaService
+public class SettlementStagingService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(SettlementStagingService.class);
+
+    private final AppServiceHub serviceHub;
+    private final Map<UniqueIdentifier, SignedTransaction> staged = new ConcurrentHashMap<>();
+    private final Set<UniqueIdentifier> invalidated = ConcurrentHashMap.newKeySet();
+
+    public SettlementStagingService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        if (!Settings.booleanSetting("staging.enabled", false)) {
+            return;
+        }
+
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "settlement-staging");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long pollMillis = Settings.longSetting("staging.pollMs", 300_000);
+        scheduler.scheduleWithFixedDelay(this::tick, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        final Metrics metrics = metrics();
+        try {
+            final List<UniqueIdentifier> stagedNow = serviceHub.startFlow(
+                    new StageSettlement.StageDue(Settings.intSetting("staging.leadDays", 1)))
+                    .getReturnValue().get();
+            if (!stagedNow.isEmpty()) {
+                logger.info("Staged settlements for {}", stagedNow);
+            }
+        } catch (Exception e) {
+            metrics.increment("staging.failures");
+            logger.warn("Settlement staging failed", e);
+        }
+    }
+
+    public void stage(UniqueIdentifier contractId, SignedTransaction stx) {
+        staged.put(contractId, stx);
+        metrics().increment(invalidated.remove(contractId) ? "staging.restaged" : "staging.staged");
+    }
+
+    /**
+     * The staged settlement of {@code contractId} if all its inputs in our vault are unconsumed and,
+     * when {@code tokenId} is given, it delivers that token; null otherwise. Call from a flow.
+     */
+    public SignedTransaction current(UniqueIdentifier contractId, UniqueIdentifier tokenId) {
+        final SignedTransaction stx = staged.get(contractId);
+        if (stx == null) {
+            return null;
+        }
+        final QueryCriteria spent = new QueryCriteria.VaultQueryCriteria(
+                Vault.StateStatus.CONSUMED, null, stx.getTx().getInputs(), null, null, null);
+        if (!serviceHub.getVaultService().queryBy(ContractState.class, spent).getStates().isEmpty()) {
+            discard(contractId);
+            return null;
+        }
+        if (tokenId != null && stx.getTx().outputsOfType(Token.class).stream().noneMatch(it -> it.getLinearId().equals(tokenId))) {
+            return null;
+        }
+        return stx;
+    }
+
+    /**
+     * Drops the staged settlement of {@code contractId}, e.g. after the notary rejected it or before
+     * settling live, and releases the cash reserved for it; the next run re-stages it. The lock is
+     * released even with nothing staged, since locks outlive a restart. Call from a flow.
+     */
+    public void discard(UniqueIdentifier contractId) {
+        if (staged.remove(contractId) != null) {
+            invalidated.add(contractId);
+            metrics().increment("staging.invalidated");
+        }
+        serviceHub.getVaultService().softLockRelease(StageSettlement.lockId(contractId), null);
+    }
+
+    /** Forgets the staged settlement of {@code contractId} once it has been notarised. Call from a flow. */
+    public void settled(UniqueIdentifier contractId) {
+        if (staged.remove(contractId) != null) {
+            metrics().increment("staging.used");
+        }
+        serviceHub.getVaultService().softLockRelease(StageSettlement.lockId(contractId), null);
+    }
+
+    public boolean isStaged(UniqueIdentifier contractId) {
+        return staged.containsKey(contractId);
+    }
+
+    private Metrics metrics() {
+        return serviceHub.cordaService(MetricsService.class).getMetrics();
+    }
+}
@@ -0,0 +1,177 @@
+package com.finfabrik.corda.services;
+
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.flows.TradeSession;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queues trades for {@link TradeSession} and hands each caller its signed transaction.
+ *
+ * {@link #submit} queues a trade for a buyer and, unless a session with that buyer is already
+ * open, starts one. The session takes up to {@code fxforward.session.window} (16) trades per window,
+ * keeps up to {@code fxforward.session.pipelineDepth} (4) windows in flight, and stays open until
+ * {@link #closeIfIdle} finds the queue empty, so trades submitted while it runs join it instead of
+ * starting flows of their own. If a session fails, the trades it had taken fail with it
+ * and any still queued get a new session.
+ *
+ * The node counts {@code session.submitted}, {@code session.opened}, {@code session.issued},
+ * {@code session.rejected} and {@code session.failures}, gauges {@code session.queued}, and times
+ * each trade from submission to notarisation as {@code session.tradeLatency}. Queued trades are
+ * held in memory and are lost on restart; the caller's future never completes for them.
+ */
+@CordaService
+public class TradeSessionService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(TradeSessionService.class);
+
+    private final AppServiceHub serviceHub;
+    private final int window = Settings.intSetting("session.window", 16);
+    private final int pipelineDepth = Settings.intSetting("session.pipelineDepth", 4);
+    private final Map<Party, Deque<Submitted>> queues = new HashMap<>();
+    private final Set<Party> open = new HashSet<>();
+    private final Map<UniqueIdentifier, Submitted> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean gaugeRegistered = new AtomicBoolean();
+
+    public TradeSessionService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+    }
+
+    /** Queues {@code request} for a session with {@code buyer}; completes with the notarised transaction. */
+    public CompletableFuture<SignedTransaction> submit(Party buyer, TradeSession.Request request) {
+        final Submitted submitted = new Submitted(buyer, request);
+        pending.put(request.getLinearId(), submitted);
+        final boolean start;
+        synchronized (this) {
+            queues.computeIfAbsent(buyer, it -> new ArrayDeque<>()).add(submitted);
+            start = open.add(buyer);
+        }
+        if (gaugeRegistered.compareAndSet(false, true)) {
+            // Registered on first use: other services may not be up yet while this one is constructed.
+            metrics().gauge("session.queued", this::queued);
+        }
+        metrics().increment("session.submitted");
+        if (start) {
+            open(buyer);
+        }
+        return submitted.result;
+    }
+
+    /** Up to {@code max} queued trades for {@code buyer}, oldest first. Called by the session's initiator. */
+    public synchronized List<TradeSession.Request> take(Party buyer, int max) {
+        final Deque<Submitted> queue = queues.getOrDefault(buyer, new ArrayDeque<>());
+        if (queue.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<TradeSession.Request> taken = new ArrayList<>();
+        while (taken.size() < max && !queue.isEmpty()) {
+            final Submitted submitted = queue.poll();
+            submitted.taken = true;
+            taken.add(submitted.request);
+        }
+        return taken;
+    }
+
+    /**
+     * Closes the session with {@code buyer} if no trades are queued for it, so the next {@link #submit}
+     * starts a new one. Returns false, leaving the session open, if trades arrived since the last
+     * {@link #take}. Called by the session's initiator once it has nothing in flight.
+     */
+    public synchronized boolean closeIfIdle(Party buyer) {
+        if (!queues.getOrDefault(buyer, new ArrayDeque<>()).isEmpty()) {
+            return false;
+        }
+        open.remove(buyer);
+        return true;
+    }
+
+    public void completed(UniqueIdentifier linearId, SignedTransaction stx) {
+        final Submitted submitted = pending.remove(linearId);
+        if (submitted != null) {
+            metrics().increment("session.issued");
+            metrics().timer("session.tradeLatency").recordSince(submitted.submittedNanos);
+            submitted.result.complete(stx);
+        }
+    }
+
+    public void failed(UniqueIdentifier linearId, String reason) {
+        final Submitted submitted = pending.remove(linearId);
+        if (submitted != null) {
+            logger.info("Trade {} with {} was not issued: {}", linearId, submitted.buyer, reason);
+            metrics().increment("session.rejected");
+            submitted.result.completeExceptionally(new FlowException(reason));
+        }
+    }
+
+    private void open(Party buyer) {
+        metrics().increment("session.opened");
+        serviceHub.startFlow(new TradeSession.Initiator(buyer, window, pipelineDepth)).getReturnValue().toCompletableFuture()
+                .whenComplete((issued, error) -> {
+                    if (error != null) {
+                        sessionFailed(buyer, error);
+                    }
+                });
+    }
+
+    private void sessionFailed(Party buyer, Throwable error) {
+        logger.warn("Trade session with {} failed", buyer, error);
+        metrics().increment("session.failures");
+        // One session per buyer at a time, so every trade taken for the buyer and still pending was taken by it.
+        pending.forEach((linearId, submitted) -> {
+            if (submitted.buyer.equals(buyer) && submitted.taken && pending.remove(linearId, submitted)) {
+                logger.info("Trade {} with {} was lost with its session.", linearId, buyer);
+                submitted.result.completeExceptionally(error);
+            }
+        });
+        final boolean restart;
+        synchronized (this) {
+            open.remove(buyer);
+            restart = !queues.getOrDefault(buyer, new ArrayDeque<>()).isEmpty() && open.add(buyer);
+        }
+        if (restart) {
+            open(buyer);
+        }
+    }
+
+    private synchronized long queued() {
+        return queues.values().stream().mapToLong(Deque::size).sum();
+    }
+
+    private Metrics metrics() {
+        return serviceHub.cordaService(MetricsService.class).getMetrics();
+    }
+
+    private static class Submitted {
+        private final Party buyer;
+        private final long submittedNanos = System.nanoTime();
+        private final CompletableFuture<SignedTransaction> result = new CompletableFuture<>();
+        private final TradeSession.Request request;
+        private volatile boolean taken;
+
+        private Submitted(Party buyer, TradeSession.Request request) {
+            this.buyer = buyer;
+            this.request = request;
+        }
+    }
+}
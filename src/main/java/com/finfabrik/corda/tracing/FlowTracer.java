@@ -0,0 +1,65 @@
+package com.finfabrik.corda.tracing;
+
+/**
+ * Emits the spans of one flow run: a span for the whole flow, one per progress step and one
+ * per sub-flow call.
+ *
+ * Flows keep the tracer in a field, so it holds nothing but open spans and the tokenized
+ * {@link TracingService}, both of which survive checkpointing.
+ */
+public class FlowTracer {
+    private final TracingService tracing;
+    private final Span flowSpan;
+    private Span stepSpan;
+
+    public FlowTracer(TracingService tracing, TraceContext parent, String flowName, boolean server) {
+        this.tracing = tracing;
+        this.flowSpan = new Span(parent != null ? parent : TraceContext.newTrace(), flowName);
+        this.flowSpan.tag("flow.role", server ? "responder" : "initiator");
+    }
+
+    /** Ends the current step span, if any, and starts one for {@code stepName}. */
+    public void step(String stepName) {
+        endStep();
+        stepSpan = new Span(flowSpan.context(), stepName);
+    }
+
+    /** Starts a span for a sub-flow or other call, nested under the current step. */
+    public Span start(String name) {
+        return new Span(current().context(), name);
+    }
+
+    public void end(Span span) {
+        tracing.getExporter().export(span, null);
+    }
+
+    /** Context to hand to a counterparty, parented on the current step. */
+    public TraceContext context() {
+        return current().context();
+    }
+
+    public String getTraceId() {
+        return flowSpan.getTraceId();
+    }
+
+    public void finish() {
+        endStep();
+        tracing.getExporter().export(flowSpan, null);
+    }
+
+    public void fail(Throwable error) {
+        flowSpan.tag("error", error.getMessage());
+        finish();
+    }
+
+    private Span current() {
+        return stepSpan != null ? stepSpan : flowSpan;
+    }
+
+    private void endStep() {
+        if (stepSpan != null) {
+            tracing.getExporter().export(stepSpan, null);
+            stepSpan = null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.finfabrik.corda.tracing;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An open span. Flows keep these in fields and locals across suspension points, so a span
+ * only holds plain values and is carried along in the flow checkpoint.
+ */
+public class Span {
+    private final String traceId;
+    private final String id;
+    private final String parentId;
+    private final String name;
+    private final long startMicros;
+    private final Map<String, String> tags = new LinkedHashMap<>();
+
+    public Span(TraceContext parent, String name) {
+        this.traceId = parent.getTraceId();
+        this.id = TraceContext.newId();
+        this.parentId = parent.getParentSpanId();
+        this.name = name;
+        this.startMicros = nowMicros();
+    }
+
+    static long nowMicros() {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
+
+    /** Context for work caused by this span, e.g. a child span or a message to a counterparty. */
+    public TraceContext context() {
+        return new TraceContext(traceId, id);
+    }
+
+    public Span tag(String key, Object value) {
+        tags.put(key, String.valueOf(value));
+        return this;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getParentId() {
+        return parentId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getStartMicros() {
+        return startMicros;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+}
@@ -0,0 +1,148 @@
+package com.finfabrik.corda.tracing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.metrics.Metrics;
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes finished spans as Zipkin v2 JSON, one span per line, to a local file. Files from
+ * the webserver and every node can be concatenated and loaded into Zipkin (or any tool that
+ * reads its format) to rebuild per-settlement timelines offline.
+ *
+ * Writing happens on a background thread behind a bounded queue; when the queue is full
+ * spans are dropped and counted rather than slowing the caller down. Tracing is off unless
+ * {@code fxforward.tracing.enabled=true}; spans go to {@code fxforward.tracing.file}, in which
+ * {@code {service}} is replaced by the service name so that each node can write its own file.
+ *
+ * {@link #close} writes out what is queued and stops the writer thread. Nodes close their
+ * exporter when they stop, and the webserver's is closed when its JVM exits.
+ */
+public class SpanExporter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SpanExporter.class);
+    private static final long CLOSE_WAIT_MILLIS = 5_000;
+    private static final SpanExporter WEB = new SpanExporter("webserver", Metrics.web());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(WEB::close, "span-exporter-shutdown"));
+    }
+
+    private final String serviceName;
+    private final boolean enabled;
+    private final Metrics metrics;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final BlockingQueue<Map<String, Object>> queue;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public SpanExporter(String serviceName, Metrics metrics) {
+        this.serviceName = serviceName;
+        this.metrics = metrics;
+        this.enabled = Settings.booleanSetting("tracing.enabled", false);
+        this.queue = new ArrayBlockingQueue<>(Settings.intSetting("tracing.queueSize", 10_000));
+        if (enabled) {
+            final Path file = Paths.get(Settings.stringSetting("tracing.file", "traces/spans.ndjson").replace("{service}", serviceName));
+            writer = new Thread(() -> drain(file), "span-exporter-" + serviceName);
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            writer = null;
+        }
+    }
+
+    /** The exporter shared by every API in this webserver. */
+    public static SpanExporter web() {
+        return WEB;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void export(Span span, String kind) {
+        if (!enabled || closed) {
+            return;
+        }
+        final Map<String, Object> zipkin = new LinkedHashMap<>();
+        zipkin.put("traceId", span.getTraceId());
+        zipkin.put("id", span.getId());
+        if (span.getParentId() != null) {
+            zipkin.put("parentId", span.getParentId());
+        }
+        zipkin.put("name", span.getName());
+        if (kind != null) {
+            zipkin.put("kind", kind);
+        }
+        zipkin.put("timestamp", span.getStartMicros());
+        zipkin.put("duration", Math.max(1L, Span.nowMicros() - span.getStartMicros()));
+        zipkin.put("localEndpoint", ImmutableMap.of("serviceName", serviceName));
+        if (!span.getTags().isEmpty()) {
+            zipkin.put("tags", span.getTags());
+        }
+        if (!queue.offer(zipkin)) {
+            metrics.increment("tracing.dropped");
+        }
+    }
+
+    private void drain(Path file) {
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (Writer out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                while (!closed || !queue.isEmpty()) {
+                    final Map<String, Object> span = queue.poll(1, TimeUnit.SECONDS);
+                    if (span == null) {
+                        out.flush();
+                        continue;
+                    }
+                    out.write(mapper.writeValueAsString(span));
+                    out.write('\n');
+                    metrics.increment("tracing.exported");
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Span export to {} stopped.", file, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops taking spans, waits up to five seconds for the writer to write out the queue and close
+     * the file, then interrupts it. Later spans are ignored. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.join(CLOSE_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            logger.warn("Span exporter for {} did not finish writing; {} spans left unwritten.", serviceName, queue.size());
+            writer.interrupt();
+        }
+    }
+}
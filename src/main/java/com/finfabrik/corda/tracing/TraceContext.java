@@ -0,0 +1,42 @@
+package com.finfabrik.corda.tracing;
+
+import net.corda.core.serialization.CordaSerializable;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The trace a piece of work belongs to and the span that caused it. Created by the web API,
+ * passed into initiating flows and sent to responders as the first message of each session.
+ * Ids use the Zipkin/B3 hex format.
+ */
+@CordaSerializable
+public class TraceContext {
+    private final String traceId;
+    private final String parentSpanId;
+
+    public TraceContext(String traceId, String parentSpanId) {
+        this.traceId = traceId;
+        this.parentSpanId = parentSpanId;
+    }
+
+    public static TraceContext newTrace() {
+        return new TraceContext(newId() + newId(), null);
+    }
+
+    static String newId() {
+        return String.format("%016x", ThreadLocalRandom.current().nextLong());
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    @Override
+    public String toString() {
+        return traceId + (parentSpanId == null ? "" : "/" + parentSpanId);
+    }
+}
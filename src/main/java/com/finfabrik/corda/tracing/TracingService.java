@@ -0,0 +1,27 @@
+package com.finfabrik.corda.tracing;
+
+import com.finfabrik.corda.metrics.MetricsService;
+import kotlin.Unit;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+/** Node-side {@link SpanExporter}, closed when the node stops; flows reach it through {@link FlowTracer}. */
+@CordaService
+public class TracingService extends SingletonSerializeAsToken {
+    private final SpanExporter exporter;
+
+    public TracingService(AppServiceHub serviceHub) {
+        this.exporter = new SpanExporter(
+                serviceHub.getMyInfo().getLegalIdentities().get(0).getName().getOrganisation(),
+                serviceHub.cordaService(MetricsService.class).getMetrics());
+        serviceHub.registerUnloadHandler(() -> {
+            exporter.close();
+            return Unit.INSTANCE;
+        });
+    }
+
+    public SpanExporter getExporter() {
+        return exporter;
+    }
+}
@@ -0,0 +1,173 @@
+package com.finfabrik.corda.web;
+
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.metrics.Metrics;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many flows the webserver has running on the node at once.
+ *
+ * A flow needs a permit from the pool for its counterparty, if it has one, from the pool for its
+ * flow type and from the global pool, taken in that order so that a flow waiting on a busy
+ * counterparty or flow type never holds a global permit others could use. When a pool is exhausted
+ * the request waits in a bounded queue for up to {@code maxWait}. If the queue is full or the wait
+ * times out, the request is rejected with {@link AdmissionRejectedException}, which the APIs turn
+ * into a 429 with a Retry-After hint. A counterparty's pool is dropped once no request holds or
+ * waits for it, so the controller only keeps pools for counterparties with flows in progress.
+ */
+public final class AdmissionController {
+    private static final AdmissionController SHARED = fromSettings();
+
+    private final Semaphore global;
+    private final int maxPerFlow;
+    private final int maxPerCounterparty;
+    private final int queueSize;
+    private final Duration maxWait;
+    private final int retryAfterSeconds;
+    private final Metrics metrics;
+    private final ConcurrentMap<String, Semaphore> perFlow = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CounterpartyPool> perCounterparty = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public AdmissionController(int maxInFlight, int maxPerFlow, int maxPerCounterparty, int queueSize,
+                               Duration maxWait, int retryAfterSeconds, Metrics metrics) {
+        this.global = new Semaphore(maxInFlight, true);
+        this.maxPerFlow = maxPerFlow;
+        this.maxPerCounterparty = maxPerCounterparty;
+        this.queueSize = queueSize;
+        this.maxWait = maxWait;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.metrics = metrics;
+        metrics.gauge("admission.queueDepth", waiting::get);
+        metrics.gauge("admission.inFlight", inFlight::get);
+        metrics.gauge("admission.counterparties", perCounterparty::size);
+    }
+
+    private static AdmissionController fromSettings() {
+        return new AdmissionController(
+                Settings.intSetting("admission.maxInFlight", 64),
+                Settings.intSetting("admission.maxPerFlow", 32),
+                Settings.intSetting("admission.maxPerCounterparty", 16),
+                Settings.intSetting("admission.queueSize", 128),
+                Settings.millisSetting("admission.maxWaitMs", 5000),
+                Settings.intSetting("admission.retryAfterSeconds", 1),
+                Metrics.web());
+    }
+
+    /** The controller shared by every API in this webserver. */
+    public static AdmissionController shared() {
+        return SHARED;
+    }
+
+    /**
+     * Runs {@code flow} once admitted. {@code counterparty} may be null when the flow has none
+     * or it is not known before the flow starts.
+     */
+    public <T> T run(String flowType, String counterparty, Callable<T> flow) throws Exception {
+        final long deadline = System.nanoTime() + maxWait.toNanos();
+        final long start = System.nanoTime();
+        final Semaphore flowPool = perFlow.computeIfAbsent(flowType, it -> new Semaphore(maxPerFlow, true));
+        final CounterpartyPool counterpartyPool = counterparty == null ? null : enter(counterparty);
+        try {
+            if (counterpartyPool != null) {
+                acquire(counterpartyPool.permits, deadline, "counterparty");
+            }
+            try {
+                acquire(flowPool, deadline, "flow");
+                try {
+                    acquire(global, deadline, "global");
+                    try {
+                        metrics.timer("admission.wait").recordSince(start);
+                        metrics.increment("admission.admitted");
+                        inFlight.incrementAndGet();
+                        try {
+                            return flow.call();
+                        } finally {
+                            inFlight.decrementAndGet();
+                        }
+                    } finally {
+                        global.release();
+                    }
+                } finally {
+                    flowPool.release();
+                }
+            } finally {
+                if (counterpartyPool != null) {
+                    counterpartyPool.permits.release();
+                }
+            }
+        } finally {
+            if (counterpartyPool != null) {
+                leave(counterparty);
+            }
+        }
+    }
+
+    /** Registers a user of the counterparty's pool, creating the pool if it has none. */
+    private CounterpartyPool enter(String counterparty) {
+        return perCounterparty.compute(counterparty, (name, pool) -> {
+            final CounterpartyPool entered = pool == null ? new CounterpartyPool(maxPerCounterparty) : pool;
+            entered.users++;
+            return entered;
+        });
+    }
+
+    /** Drops the counterparty's pool once its last user has left. */
+    private void leave(String counterparty) {
+        perCounterparty.computeIfPresent(counterparty, (name, pool) -> --pool.users == 0 ? null : pool);
+    }
+
+    private void acquire(Semaphore pool, long deadline, String poolName) throws AdmissionRejectedException, InterruptedException {
+        if (pool.tryAcquire()) {
+            return;
+        }
+        if (waiting.incrementAndGet() > queueSize) {
+            waiting.decrementAndGet();
+            throw reject("queueFull");
+        }
+        try {
+            if (!pool.tryAcquire(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                throw reject(poolName);
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private AdmissionRejectedException reject(String reason) {
+        metrics.increment("admission.rejected");
+        metrics.increment("admission.rejected." + reason);
+        return new AdmissionRejectedException(reason, retryAfterSeconds);
+    }
+
+    /** Only read or changed inside the map's compute functions, which run one at a time per key. */
+    private static final class CounterpartyPool {
+        private final Semaphore permits;
+        private int users;
+
+        private CounterpartyPool(int permits) {
+            this.permits = new Semaphore(permits, true);
+        }
+    }
+
+    public static class AdmissionRejectedException extends Exception {
+        private final int retryAfterSeconds;
+
+        AdmissionRejectedException(String reason, int retryAfterSeconds) {
+            super(String.format("Too many flows in progress (%s limit reached), retry in %ds.", reason, retryAfterSeconds));
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.finfabrik.corda.web;
+
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.metrics.Metrics;
+import net.corda.client.rpc.RPCException;
+import net.corda.core.flows.NotaryError;
+import net.corda.core.flows.NotaryException;
+import net.corda.core.flows.UnexpectedFlowEndException;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Re-runs a flow that failed with a notary double-spend conflict or a transient error.
+ *
+ * Each attempt starts a fresh flow, so the flow queries the vault and runs coin selection
+ * again instead of reusing the inputs that lost the race. Backoff is exponential with full
+ * jitter so that competing settlements spread out rather than colliding again.
+ *
+ * A lost RPC connection or a timed-out wait is only retried if the attempt had not started its
+ * flow: once the node has accepted the flow it may commit whatever the connection missed, and a
+ * second run could settle the same forward again.
+ */
+public final class FlowRetrier {
+    public enum Failure { CONFLICT, TRANSIENT, FATAL }
+
+    /** One run of a flow. */
+    public interface Attempt<T> {
+        /** Starts the flow and waits for it, passing its id to {@code started} as soon as the node has accepted it. */
+        T run(IdempotencyStore.Submission started) throws Exception;
+    }
+
+    private final int maxAttempts;
+    private final Duration baseDelay;
+    private final Duration maxDelay;
+    private final Metrics metrics;
+
+    public FlowRetrier(int maxAttempts, Duration baseDelay, Duration maxDelay, Metrics metrics) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1.");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.metrics = metrics;
+    }
+
+    public static FlowRetrier fromSettings() {
+        return new FlowRetrier(
+                Settings.intSetting("retry.maxAttempts", 4),
+                Settings.millisSetting("retry.baseDelayMs", 100),
+                Settings.millisSetting("retry.maxDelayMs", 2000),
+                Metrics.web());
+    }
+
+    /** Runs {@code attempt} until it succeeds or fails for good, passing each flow it starts on to {@code submission}. */
+    public <T> T call(String flowName, IdempotencyStore.Submission submission, Attempt<T> attempt) throws Exception {
+        final String prefix = "flow." + flowName;
+        for (int attemptNo = 1; ; attemptNo++) {
+            metrics.increment(prefix + ".attempts");
+            final AtomicBoolean started = new AtomicBoolean();
+            try {
+                T result = attempt.run(id -> {
+                    started.set(true);
+                    submission.flowStarted(id);
+                });
+                metrics.increment(prefix + ".succeeded");
+                return result;
+            } catch (Exception e) {
+                final Throwable cause = unwrap(e);
+                final Failure failure = classify(cause, started.get());
+                if (failure == Failure.FATAL && isTransportFailure(cause)) {
+                    metrics.increment(prefix + ".unknownOutcomes");
+                }
+                if (failure == Failure.CONFLICT) {
+                    metrics.increment(prefix + ".conflicts");
+                } else if (failure == Failure.TRANSIENT) {
+                    metrics.increment(prefix + ".transientFailures");
+                }
+                if (failure == Failure.FATAL) {
+                    metrics.increment(prefix + ".failed");
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+                if (attemptNo >= maxAttempts) {
+                    metrics.increment(prefix + ".exhausted");
+                    throw new RetriesExhaustedException(failure, attemptNo, cause);
+                }
+                metrics.increment(prefix + ".retries");
+                Thread.sleep(backoffMillis(attemptNo));
+            }
+        }
+    }
+
+    long backoffMillis(int attemptNo) {
+        final long ceiling = Math.min(maxDelay.toMillis(), baseDelay.toMillis() << Math.min(attemptNo - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    static Throwable unwrap(Throwable t) {
+        Throwable current = t;
+        while (current instanceof ExecutionException && current.getCause() != null) {
+            current = current.getCause();
+        }
+        return current;
+    }
+
+    /** How an attempt failed with {@code t}; {@code started} is whether it got as far as starting its flow. */
+    static Failure classify(Throwable t, boolean started) {
+        for (Throwable current = t; current != null; current = current.getCause()) {
+            if (current instanceof NotaryException) {
+                final NotaryError error = ((NotaryException) current).getError();
+                if (error instanceof NotaryError.Conflict) {
+                    return Failure.CONFLICT;
+                }
+                return error instanceof NotaryError.TimeWindowInvalid ? Failure.TRANSIENT : Failure.FATAL;
+            }
+            // The flow ended on the node, so it committed nothing a rerun could repeat.
+            if (current instanceof UnexpectedFlowEndException) {
+                return Failure.TRANSIENT;
+            }
+            if (isTransportFailure(current)) {
+                return started ? Failure.FATAL : Failure.TRANSIENT;
+            }
+            if (current.getCause() == current) {
+                break;
+            }
+        }
+        return Failure.FATAL;
+    }
+
+    /** Whether {@code t} is the RPC connection failing or the wait for the node timing out, rather than the flow failing. */
+    public static boolean isTransportFailure(Throwable t) {
+        return t instanceof RPCException || t instanceof TimeoutException;
+    }
+
+    public static class RetriesExhaustedException extends Exception {
+        private final Failure failure;
+        private final int attempts;
+
+        RetriesExhaustedException(Failure failure, int attempts, Throwable cause) {
+            super(String.format("Gave up after %d attempts (%s): %s", attempts, failure, cause.getMessage()), cause);
+            this.failure = failure;
+            this.attempts = attempts;
+        }
+
+        public Failure getFailure() {
+            return failure;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.finfabrik.corda.web;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips response bodies for clients that send {@code Accept-Encoding: gzip}. Registered through
+ * {@code webApis} so it applies to every endpoint served by the webserver.
+ */
+@Provider
+public class GzipEncoding implements WriterInterceptor {
+    @Context
+    private HttpHeaders headers;
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        if (!acceptsGzip() || context.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            context.proceed();
+            return;
+        }
+        context.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, "gzip");
+        context.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        final OutputStream original = context.getOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(original, 8192);
+        context.setOutputStream(gzip);
+        try {
+            context.proceed();
+        } finally {
+            gzip.finish();
+            context.setOutputStream(original);
+        }
+    }
+
+    private boolean acceptsGzip() {
+        final List<String> values = headers.getRequestHeader(HttpHeaders.ACCEPT_ENCODING);
+        return values != null && values.stream().anyMatch(it -> it.toLowerCase().contains("gzip"));
+    }
+}
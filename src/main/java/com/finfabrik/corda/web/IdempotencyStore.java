@@ -0,0 +1,223 @@
+package com.finfabrik.corda.web;
+
+import com.finfabrik.corda.config.Settings;
+import com.finfabrik.corda.metrics.Metrics;
+import net.corda.core.flows.StateMachineRunId;
+
+import javax.ws.rs.core.Response;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Deduplicates flow-starting requests that carry an idempotency key.
+ *
+ * The first request with a key runs and records the id of the flow it started and the
+ * response it produced. A repeat of that key attaches to the same outcome: it waits up to
+ * {@code idempotency.replayWaitMs} for the flow if it is still running, and otherwise gets 409
+ * with {@code Retry-After}, or gets the stored response straight away. A failure is forgotten,
+ * so a client can retry it, only if no flow was started: once a flow has started it may have
+ * committed whatever the response says, so its outcome is kept like any other. Reusing a key
+ * with different parameters is rejected with 422.
+ *
+ * The store keeps completed keys for {@code idempotency.ttlMs} and evicts the oldest completed
+ * keys beyond {@code idempotency.maxEntries}; keys whose flow is still running are never evicted.
+ */
+public final class IdempotencyStore {
+    public static final String FLOW_ID_HEADER = "X-Flow-Id";
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+    private static final int UNPROCESSABLE_ENTITY = 422;
+    private static final IdempotencyStore SHARED = new IdempotencyStore(
+            Settings.intSetting("idempotency.maxEntries", 10_000),
+            Settings.millisSetting("idempotency.ttlMs", Duration.ofHours(24).toMillis()),
+            Settings.millisSetting("idempotency.replayWaitMs", 30_000),
+            Metrics.web());
+
+    /** Lets the request record the flow it started against its key. */
+    public interface Submission {
+        void flowStarted(StateMachineRunId id);
+    }
+
+    private final int maxEntries;
+    private final Duration ttl;
+    private final Duration replayWait;
+    private final Metrics metrics;
+    // In insertion order, so oldest first by creation time.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    public IdempotencyStore(int maxEntries, Duration ttl, Duration replayWait, Metrics metrics) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.replayWait = replayWait;
+        this.metrics = metrics;
+        metrics.gauge("idempotency.entries", this::size);
+    }
+
+    public static IdempotencyStore shared() {
+        return SHARED;
+    }
+
+    /**
+     * Runs {@code action} unless {@code key} has been seen. Without a key the action always runs.
+     * {@code fingerprint} identifies the request parameters the key was first used with.
+     */
+    public Response execute(String key, String fingerprint, Function<Submission, Response> action) {
+        if (key == null || key.isEmpty()) {
+            return action.apply(id -> { });
+        }
+
+        final Entry entry;
+        final boolean owner;
+        synchronized (entries) {
+            final Entry existing = entries.get(key);
+            if (existing != null && !existing.expired(ttl)) {
+                entry = existing;
+                owner = false;
+            } else {
+                entry = new Entry(fingerprint);
+                entries.remove(key);
+                entries.put(key, entry);
+                evict();
+                owner = true;
+            }
+        }
+
+        if (!owner) {
+            if (!entry.fingerprint.equals(fingerprint)) {
+                metrics.increment("idempotency.mismatched");
+                return Response.status(UNPROCESSABLE_ENTITY)
+                        .entity(String.format("Idempotency key %s was already used for a different request.", key))
+                        .build();
+            }
+            final Stored stored = await(entry);
+            if (stored == null) {
+                metrics.increment("idempotency.replayTimeouts");
+                final Response.ResponseBuilder inProgress = Response.status(Response.Status.CONFLICT)
+                        .entity(String.format("The request with idempotency key %s is still running.", key))
+                        .header("Retry-After", 1);
+                if (entry.flowId != null) {
+                    inProgress.header(FLOW_ID_HEADER, entry.flowId.getUuid().toString());
+                }
+                return inProgress.build();
+            }
+            metrics.increment("idempotency.replayed");
+            return stored.toResponse(entry.flowId, true);
+        }
+
+        metrics.increment("idempotency.executed");
+        try {
+            final Response response = action.apply(id -> entry.flowId = id);
+            final Stored stored = new Stored(response.getStatus(), response.getEntity(), response.getHeaderString("Retry-After"));
+            if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                forgetUnlessStarted(key, entry);
+            }
+            entry.outcome.complete(stored);
+            return stored.toResponse(entry.flowId, false);
+        } catch (RuntimeException e) {
+            forgetUnlessStarted(key, entry);
+            entry.outcome.complete(new Stored(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), e.getMessage(), null));
+            throw e;
+        }
+    }
+
+    /** The outcome of {@code entry}, or null if it is still running after {@link #replayWait}. */
+    private Stored await(Entry entry) {
+        try {
+            return entry.outcome.get(replayWait.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // The outcome is only ever completed normally.
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /** A failed attempt that never started a flow cannot have committed anything, so its key may be reused. */
+    private void forgetUnlessStarted(String key, Entry entry) {
+        if (entry.flowId != null) {
+            metrics.increment("idempotency.keptFailures");
+            return;
+        }
+        synchronized (entries) {
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Drops completed entries past their TTL, and the oldest completed entries while there are more
+     * than {@link #maxEntries}. Entries still running are skipped, not waited for. Called with the lock held.
+     */
+    private void evict() {
+        final Iterator<Entry> oldestFirst = entries.values().iterator();
+        while (oldestFirst.hasNext()) {
+            final Entry entry = oldestFirst.next();
+            if (!entry.olderThan(ttl) && entries.size() <= maxEntries) {
+                // Entries are in creation order, so none after this one is past its TTL either.
+                return;
+            }
+            if (entry.outcome.isDone()) {
+                oldestFirst.remove();
+                metrics.increment("idempotency.evicted");
+            }
+        }
+    }
+
+    private long size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static final class Entry {
+        private final String fingerprint;
+        private final long createdAt = System.currentTimeMillis();
+        private final CompletableFuture<Stored> outcome = new CompletableFuture<>();
+        private volatile StateMachineRunId flowId;
+
+        Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        boolean olderThan(Duration ttl) {
+            return System.currentTimeMillis() - createdAt > ttl.toMillis();
+        }
+
+        boolean expired(Duration ttl) {
+            return outcome.isDone() && olderThan(ttl);
+        }
+    }
+
+    private static final class Stored {
+        private final int status;
+        private final Object entity;
+        private final String retryAfter;
+
+        Stored(int status, Object entity, String retryAfter) {
+            this.status = status;
+            this.entity = entity;
+            this.retryAfter = retryAfter;
+        }
+
+        Response toResponse(StateMachineRunId flowId, boolean replayed) {
+            final Response.ResponseBuilder builder = Response.status(status).entity(entity);
+            if (flowId != null) {
+                builder.header(FLOW_ID_HEADER, flowId.getUuid().toString());
+            }
+            if (retryAfter != null) {
+                builder.header("Retry-After", retryAfter);
+            }
+            if (replayed) {
+                builder.header(REPLAYED_HEADER, "true");
+            }
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.finfabrik.corda.web;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.NetworkMapCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * In-memory copy of the network map for the web APIs.
+ *
+ * Subscribes to {@link CordaRPCOps#networkMapFeed()} once per RPC connection and keeps the node
+ * list, notaries and a name index up to date as nodes join, leave or change. Lookups never go
+ * over RPC. If the feed fails, the next lookup subscribes again.
+ *
+ * The node list is read after subscribing, with the lock held: a change made before the
+ * subscription is already in it, and one made after waits for the lock and is applied on top.
+ */
+public final class PeerDirectory {
+    private static final Logger logger = LoggerFactory.getLogger(PeerDirectory.class);
+    // Keyed by identity: equals/hashCode on an RPC proxy would be sent to the node.
+    private static final Map<CordaRPCOps, PeerDirectory> DIRECTORIES = new IdentityHashMap<>();
+
+    private final CordaRPCOps rpcOps;
+    private volatile View view;
+
+    private PeerDirectory(CordaRPCOps rpcOps) {
+        this.rpcOps = rpcOps;
+    }
+
+    /** The directory shared by every API built on this RPC connection. */
+    public static synchronized PeerDirectory of(CordaRPCOps rpcOps) {
+        return DIRECTORIES.computeIfAbsent(rpcOps, PeerDirectory::new);
+    }
+
+    public List<NodeInfo> nodes() {
+        return view().nodes;
+    }
+
+    public List<Party> notaries() {
+        return view().notaries.asList();
+    }
+
+    public boolean isNotary(NodeInfo nodeInfo) {
+        final Set<Party> notaries = view().notaries;
+        return nodeInfo.getLegalIdentities().stream().anyMatch(notaries::contains);
+    }
+
+    /**
+     * Same matching rules as {@link CordaRPCOps#partiesFromName}, answered from memory: parties with a
+     * name attribute (common name, unit, organisation, locality, state or country) equal to
+     * {@code query}, or containing it ignoring case unless {@code exactMatch}.
+     */
+    public Set<Party> partiesFromName(String query, boolean exactMatch) {
+        final String needle = query.toLowerCase(Locale.ROOT);
+        final ImmutableSet.Builder<Party> matches = ImmutableSet.builder();
+        view().byName.values().forEach(party -> {
+            if (attributes(party.getName()).anyMatch(it -> exactMatch ? it.equals(query) : it.toLowerCase(Locale.ROOT).contains(needle))) {
+                matches.add(party);
+            }
+        });
+        return matches.build();
+    }
+
+    private View view() {
+        View current = view;
+        if (current == null) {
+            synchronized (this) {
+                current = view;
+                if (current == null) {
+                    current = subscribe();
+                }
+            }
+        }
+        return current;
+    }
+
+    /** Called with the lock held, so updates delivered meanwhile wait in {@link #apply} for the view. */
+    private View subscribe() {
+        // Notaries come from the network parameters, which cannot change while the node is running.
+        final ImmutableSet<Party> notaries = ImmutableSet.copyOf(rpcOps.notaryIdentities());
+        final DataFeed<List<NodeInfo>, NetworkMapCache.MapChange> feed = rpcOps.networkMapFeed();
+        feed.getUpdates().subscribe(this::apply, this::failed);
+        // The feed's own snapshot misses changes made before the subscription above took effect.
+        final View initial = new View(ImmutableList.copyOf(rpcOps.networkMapSnapshot()), notaries);
+        view = initial;
+        return initial;
+    }
+
+    private synchronized void failed(Throwable error) {
+        logger.warn("Network map feed failed, will resubscribe on next lookup.", error);
+        view = null;
+    }
+
+    private synchronized void apply(NetworkMapCache.MapChange change) {
+        final View current = view;
+        if (current == null) {
+            return;
+        }
+        final Map<CordaX500Name, NodeInfo> nodes = new LinkedHashMap<>();
+        current.nodes.forEach(node -> nodes.put(key(node), node));
+        if (change instanceof NetworkMapCache.MapChange.Removed) {
+            nodes.remove(key(change.getNode()));
+        } else {
+            if (change instanceof NetworkMapCache.MapChange.Modified) {
+                nodes.remove(key(((NetworkMapCache.MapChange.Modified) change).getPreviousNode()));
+            }
+            nodes.put(key(change.getNode()), change.getNode());
+        }
+        view = new View(ImmutableList.copyOf(nodes.values()), current.notaries);
+    }
+
+    private static CordaX500Name key(NodeInfo node) {
+        return node.getLegalIdentities().get(0).getName();
+    }
+
+    private static Stream<String> attributes(CordaX500Name name) {
+        return Stream.of(name.getCommonName(), name.getOrganisationUnit(), name.getOrganisation(),
+                name.getLocality(), name.getState(), name.getCountry())
+                .filter(it -> it != null);
+    }
+
+    /** Immutable snapshot, replaced wholesale on every change so readers never lock. */
+    private static final class View {
+        private final List<NodeInfo> nodes;
+        private final ImmutableSet<Party> notaries;
+        private final Map<String, Party> byName;
+
+        View(List<NodeInfo> nodes, ImmutableSet<Party> notaries) {
+            this.nodes = nodes;
+            this.notaries = notaries;
+            final Map<String, Party> byName = new LinkedHashMap<>();
+            nodes.stream()
+                    .flatMap(node -> node.getLegalIdentities().stream())
+                    .forEach(party -> byName.put(party.getName().toString(), party));
+            this.byName = byName;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.finfabrik.corda.web;
+
+import com.finfabrik.corda.metrics.Metrics;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Version counters for the vault, one per state type, driven by {@code vaultTrackBy} updates.
+ *
+ * A counter moves whenever a state of its type is produced or consumed, so it makes a cheap
+ * ETag: a conditional GET whose tag still matches is answered with 304 without querying the
+ * vault. Tags include a per-process epoch so they never survive a webserver restart. A counter
+ * outlives its feed: if the feed fails it is bumped and the next request resubscribes, bumping it
+ * again for the changes it missed, so a tag issued before the failure never matches afterwards.
+ */
+public final class VaultVersions {
+    private static final Logger logger = LoggerFactory.getLogger(VaultVersions.class);
+    private static final Map<CordaRPCOps, VaultVersions> VERSIONS = new IdentityHashMap<>();
+    private static final String EPOCH = Long.toHexString(System.currentTimeMillis());
+
+    private final CordaRPCOps rpcOps;
+    private final ConcurrentMap<Class<? extends ContractState>, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Set<Class<? extends ContractState>> tracked = ConcurrentHashMap.newKeySet();
+
+    private VaultVersions(CordaRPCOps rpcOps) {
+        this.rpcOps = rpcOps;
+    }
+
+    public static synchronized VaultVersions of(CordaRPCOps rpcOps) {
+        return VERSIONS.computeIfAbsent(rpcOps, VaultVersions::new);
+    }
+
+    /**
+     * Answers a GET on a vault-backed resource. The tag is read before {@code body} runs, so if the
+     * vault changes mid-query the client gets an older tag and simply refetches next time.
+     */
+    public Response conditionalGet(Request request, Class<? extends ContractState> type, Supplier<?> body) {
+        final EntityTag tag = new EntityTag(type.getSimpleName() + "-" + EPOCH + "-" + version(type));
+        final Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            Metrics.web().increment("http.notModified");
+            return notModified.build();
+        }
+        return Response.ok(body.get()).tag(tag).build();
+    }
+
+    long version(Class<? extends ContractState> type) {
+        final AtomicLong counter = counters.computeIfAbsent(type, it -> new AtomicLong());
+        if (!tracked.contains(type)) {
+            synchronized (this) {
+                if (!tracked.contains(type)) {
+                    track(type, counter);
+                    // Whatever changed while the type was not tracked was not counted.
+                    counter.incrementAndGet();
+                    tracked.add(type);
+                }
+            }
+        }
+        return counter.get();
+    }
+
+    private void track(Class<? extends ContractState> type, AtomicLong counter) {
+        // Only the update stream matters; keep the snapshot to a single row.
+        final DataFeed<Vault.Page<ContractState>, Vault.Update<ContractState>> feed = rpcOps.vaultTrackBy(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL),
+                new PageSpecification(1, 1),
+                new Sort(Collections.emptyList()),
+                type);
+        feed.getUpdates().subscribe(update -> counter.incrementAndGet(), error -> {
+            logger.warn("Vault feed for {} failed, will resubscribe on next request.", type.getName(), error);
+            // Bump first so no client can keep a tag issued while the feed was down.
+            counter.incrementAndGet();
+            tracked.remove(type);
+        });
+    }
+}
@@ -0,0 +1,41 @@
+package com.finfabrik.corda.web;
+
+import javax.ws.rs.core.Response;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.CONFLICT;
+import static javax.ws.rs.core.Response.Status.SERVICE_UNAVAILABLE;
+
+public final class WebResponses {
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private WebResponses() {
+    }
+
+    /**
+     * Maps a failed flow run to an HTTP response. Conflicts and transient failures that
+     * survived all retries are reported as 409/503, and requests turned away by the
+     * {@link AdmissionController} as 429, so callers can tell them from bad input. A connection
+     * lost without a retry is 503 without {@code Retry-After}: the flow may still commit.
+     */
+    public static Response flowFailure(Exception e) {
+        if (e instanceof AdmissionController.AdmissionRejectedException) {
+            return Response.status(TOO_MANY_REQUESTS)
+                    .entity(e.getMessage())
+                    .header("Retry-After", ((AdmissionController.AdmissionRejectedException) e).getRetryAfterSeconds())
+                    .build();
+        }
+        if (e instanceof FlowRetrier.RetriesExhaustedException) {
+            FlowRetrier.RetriesExhaustedException exhausted = (FlowRetrier.RetriesExhaustedException) e;
+            Response.Status status = exhausted.getFailure() == FlowRetrier.Failure.CONFLICT ? CONFLICT : SERVICE_UNAVAILABLE;
+            return Response.status(status).entity(exhausted.getMessage()).header("Retry-After", 1).build();
+        }
+        final Throwable cause = FlowRetrier.unwrap(e);
+        if (FlowRetrier.isTransportFailure(cause)) {
+            return Response.status(SERVICE_UNAVAILABLE)
+                    .entity("Lost the node; if the flow started, its outcome is unknown: " + cause.getMessage())
+                    .build();
+        }
+        return Response.status(BAD_REQUEST).entity(e.getMessage()).build();
+    }
+}
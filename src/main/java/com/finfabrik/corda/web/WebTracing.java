@@ -0,0 +1,30 @@
+package com.finfabrik.corda.web;
+
+import com.finfabrik.corda.tracing.Span;
+import com.finfabrik.corda.tracing.SpanExporter;
+import com.finfabrik.corda.tracing.TraceContext;
+
+import javax.ws.rs.core.Response;
+import java.util.function.Function;
+
+public final class WebTracing {
+    public static final String TRACE_ID_HEADER = "X-Trace-Id";
+
+    private WebTracing() {
+    }
+
+    /**
+     * Starts a new trace for an API call. The handler gets the context to pass into the flows it
+     * starts; the response carries the trace id so callers can find the trace later.
+     */
+    public static Response traced(String name, Function<TraceContext, Response> handler) {
+        final Span span = new Span(TraceContext.newTrace(), name);
+        try {
+            final Response response = handler.apply(span.context());
+            span.tag("http.status_code", response.getStatus());
+            return Response.fromResponse(response).header(TRACE_ID_HEADER, span.getTraceId()).build();
+        } finally {
+            SpanExporter.web().export(span, "SERVER");
+        }
+    }
+}
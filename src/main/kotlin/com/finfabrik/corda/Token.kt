@@ -4,14 +4,27 @@ import net.corda.core.contracts.Amount
 import net.corda.core.contracts.LinearState
 import net.corda.core.contracts.UniqueIdentifier
 import net.corda.core.identity.Party
+import net.corda.core.serialization.DeprecatedConstructorForDeserialization
 import net.corda.finance.contracts.Commodity
 
 
-data class Token(val amount: Amount<Commodity>,
+/**
+ * Only the quantity and token code are stored on ledger; the [Commodity] is resolved from [TokenDefinitions].
+ */
+data class Token(val quantity: Long,
+                 val tokenCode: String,
                  val owner: Party,
                  override val linearId: UniqueIdentifier = UniqueIdentifier()): LinearState {
 
+    /** Schema version 1 stored the whole [Amount]; kept so existing vault states still deserialize. */
+    @DeprecatedConstructorForDeserialization(1)
+    constructor(amount: Amount<Commodity>,
+                owner: Party,
+                linearId: UniqueIdentifier = UniqueIdentifier()) : this(amount.quantity, amount.token.commodityCode, owner, linearId)
+
+    val amount: Amount<Commodity> get() = Amount(quantity, TokenDefinitions.of(tokenCode))
+
     override val participants: List<Party> get() = listOf(owner)
 
     fun withNewOwner(newOwner: Party) = copy(owner = newOwner)
-}
\ No newline at end of file
+}
@@ -2,6 +2,15 @@ package com.finfabrik.corda
 
 import com.finfabrik.corda.flows.TokenIssueFlow
 import com.finfabrik.corda.flows.TokenTransferFlow
+import com.finfabrik.corda.json.FieldSelection
+import com.finfabrik.corda.json.Projections
+import com.finfabrik.corda.json.TokenView
+import com.finfabrik.corda.web.AdmissionController
+import com.finfabrik.corda.web.FlowRetrier
+import com.finfabrik.corda.web.IdempotencyStore
+import com.finfabrik.corda.web.PeerDirectory
+import com.finfabrik.corda.web.VaultVersions
+import com.finfabrik.corda.web.WebResponses
 import net.corda.core.contracts.Amount
 import net.corda.core.contracts.ContractState
 import net.corda.core.contracts.StateAndRef
@@ -13,17 +22,19 @@ import net.corda.core.messaging.startTrackedFlow
 import net.corda.core.messaging.vaultQueryBy
 import net.corda.core.node.NodeInfo
 import net.corda.core.utilities.loggerFor
-import net.corda.finance.contracts.Commodity
 import net.corda.finance.contracts.asset.Cash
 import net.corda.finance.contracts.getCashBalances
 import org.bouncycastle.asn1.x500.X500Name
 import org.bouncycastle.asn1.x500.style.BCStyle
 import org.slf4j.Logger
 import javax.ws.rs.GET
+import javax.ws.rs.HeaderParam
 import javax.ws.rs.Path
 import javax.ws.rs.Produces
 import javax.ws.rs.QueryParam
+import javax.ws.rs.core.Context
 import javax.ws.rs.core.MediaType
+import javax.ws.rs.core.Request
 import javax.ws.rs.core.Response
 
 
@@ -31,6 +42,11 @@ import javax.ws.rs.core.Response
 class TokenApi(val rpcOps: CordaRPCOps) {
     private val me = rpcOps.nodeInfo().legalIdentities.first().name
     private val myLegalName = me.x500Name
+    private val retrier = FlowRetrier.fromSettings()
+    private val admission = AdmissionController.shared()
+    private val idempotency = IdempotencyStore.shared()
+    private val directory = PeerDirectory.of(rpcOps)
+    private val vaultVersions = VaultVersions.of(rpcOps)
 
     companion object {
         private val logger: Logger = loggerFor<TokenApi>()
@@ -38,7 +54,7 @@ class TokenApi(val rpcOps: CordaRPCOps) {
 
     fun X500Name.toDisplayString() : String  = BCStyle.INSTANCE.toString(this)
 
-    private fun isNotary(nodeInfo: NodeInfo) = rpcOps.notaryIdentities().any { nodeInfo.isLegalIdentity(it) }
+    private fun isNotary(nodeInfo: NodeInfo) = directory.isNotary(nodeInfo)
     private fun isMe(nodeInfo: NodeInfo) = nodeInfo.legalIdentities.first().name == me
     private fun isNetworkMap(nodeInfo : NodeInfo) = nodeInfo.legalIdentities.single().name.organisation == "Network Map Service"
 
@@ -51,7 +67,7 @@ class TokenApi(val rpcOps: CordaRPCOps) {
     @Path("peers")
     @Produces(MediaType.APPLICATION_JSON)
     fun getPeers(): Map<String, List<String>> {
-        return mapOf("peers" to rpcOps.networkMapSnapshot()
+        return mapOf("peers" to directory.nodes()
                 .filter { isNotary(it).not() && isMe(it).not() && isNetworkMap(it).not() }
                 .map { it.legalIdentities.first().name.x500Name.toDisplayString() })
     }
@@ -59,8 +75,11 @@ class TokenApi(val rpcOps: CordaRPCOps) {
     @GET
     @Path("tokens")
     @Produces(MediaType.APPLICATION_JSON)
-    fun getTokens(): List<StateAndRef<ContractState>> {
-        return rpcOps.vaultQueryBy<Token>().states
+    fun getTokens(@Context request: Request, @QueryParam(value = "fields") fields: String?): Response {
+        val selection = FieldSelection.parse(fields)
+        return vaultVersions.conditionalGet(request, Token::class.java) {
+            Projections(rpcOps.vaultQueryBy<Token>().states.map { TokenView(it.state.data, it.ref) }, selection)
+        }
     }
 
     @GET
@@ -78,43 +97,53 @@ class TokenApi(val rpcOps: CordaRPCOps) {
     @GET
     @Path("issue-token")
     fun issueToken(@QueryParam(value = "amount") amount: Int,
-                   @QueryParam(value = "token") token: String): Response {
+                   @QueryParam(value = "token") token: String,
+                   @HeaderParam(value = "Idempotency-Key") idempotencyKey: String?): Response {
         val me = rpcOps.nodeInfo().legalIdentities.first()
-        try {
-            val state = Token(Amount(amount.toLong(), Commodity(token, token)), me)
-            val result = rpcOps.startTrackedFlow(::TokenIssueFlow, state).returnValue.get()
-            return Response
-                    .status(Response.Status.CREATED)
-                    .entity("Transaction id ${result.id} committed to ledger.\n${result.tx.outputs.single()}")
-                    .build()
-        } catch (e: Exception) {
-            return Response
-                    .status(Response.Status.BAD_REQUEST)
-                    .entity(e.message)
-                    .build()
+        return idempotency.execute(idempotencyKey, "issue-token:$amount:$token") { submission ->
+            try {
+                val state = Token(Amount(amount.toLong(), TokenDefinitions.of(token)), me)
+                val result = admission.run("TokenIssueFlow", null) {
+                    val handle = rpcOps.startTrackedFlow(::TokenIssueFlow, state)
+                    submission.flowStarted(handle.id)
+                    handle.returnValue.get()
+                }
+                Response
+                        .status(Response.Status.CREATED)
+                        .entity("Transaction id ${result.id} committed to ledger.\n${result.tx.outputs.single()}")
+                        .build()
+            } catch (e: Exception) {
+                WebResponses.flowFailure(e)
+            }
         }
     }
 
     @GET
     @Path("transfer-token")
     fun transferToken(@QueryParam(value = "id") id: String,
-                      @QueryParam(value = "party") party: String): Response {
+                      @QueryParam(value = "party") party: String,
+                      @HeaderParam(value = "Idempotency-Key") idempotencyKey: String?): Response {
         val linearId = UniqueIdentifier.fromString(id)
-        val lenderIdentities = rpcOps.partiesFromName(party, false)
+        val lenderIdentities = directory.partiesFromName(party, false)
         if (lenderIdentities.size != 1) {
             val errMsg = String.format("Found %d identities for the new lender.", lenderIdentities.size)
             throw IllegalStateException(errMsg)
         }
         val newLender = lenderIdentities.iterator().next()
-        try {
-            rpcOps.startFlow(::TokenTransferFlow, linearId, newLender).returnValue.get()
-            return Response.status(Response.Status.CREATED).entity("Token $id transferred to $party.").build()
+        return idempotency.execute(idempotencyKey, "transfer-token:$id:${newLender.name}") { submission ->
+            try {
+                retrier.call("TokenTransferFlow", submission) { started ->
+                    admission.run("TokenTransferFlow", newLender.name.toString()) {
+                        val handle = rpcOps.startFlow(::TokenTransferFlow, linearId, newLender)
+                        started.flowStarted(handle.id)
+                        handle.returnValue.get()
+                    }
+                }
+                Response.status(Response.Status.CREATED).entity("Token $id transferred to $party.").build()
 
-        } catch (e: Exception) {
-            return Response
-                    .status(Response.Status.BAD_REQUEST)
-                    .entity(e.message)
-                    .build()
+            } catch (e: Exception) {
+                WebResponses.flowFailure(e)
+            }
         }
     }
 }
\ No newline at end of file
@@ -15,6 +15,10 @@ class TokenContract : Contract {
     interface Commands : CommandData {
         class Issue : TypeOnlyCommandData(), Commands
         class Transfer : TypeOnlyCommandData(), Commands
+        /** Issues any number of tokens, to any number of owners, in one transaction. */
+        class IssueBatch : TypeOnlyCommandData(), Commands
+        /** Moves any number of tokens, each to its own new owner, in one transaction. */
+        class TransferBatch : TypeOnlyCommandData(), Commands
     }
 
     override fun verify(tx: LedgerTransaction) {
@@ -40,6 +44,31 @@ class TokenContract : Contract {
                 "Only the owner property may change." using (input == output.withNewOwner(input.owner))
                 "The owner property must change in a transfer." using (input.owner != output.owner)
             }
+            is Commands.IssueBatch -> requireThat {
+                val tokens = tx.outputsOfType<Token>()
+                "No inputs should be consumed when issuing Tokens." using (tx.inputs.isEmpty())
+                "A batch issue must create at least one Token and nothing else." using
+                        (tokens.isNotEmpty() && tokens.size == tx.outputs.size)
+                "Every newly issued Token must have a positive amount." using (tokens.all { it.amount.quantity > 0 })
+                "Every Token must have a distinct linear id." using (tokens.map { it.linearId }.toSet().size == tokens.size)
+                "The owners of the issued Tokens together only must sign a batch issue." using
+                        (command.signers.toSet() == tokens.map { it.owner.owningKey }.toSet())
+            }
+            is Commands.TransferBatch -> requireThat {
+                val inputs = tx.inputsOfType<Token>().associateBy { it.linearId }
+                val outputs = tx.outputsOfType<Token>().associateBy { it.linearId }
+
+                "A batch transfer must move at least one Token." using (inputs.isNotEmpty())
+                "A batch transfer must consume and create only Tokens, each once." using
+                        (inputs.size == tx.inputs.size && outputs.size == tx.outputs.size)
+                "Every consumed Token must be re-created under the same linear id." using (inputs.keys == outputs.keys)
+                "Only the owner property may change." using
+                        (inputs.all { (id, input) -> input == outputs.getValue(id).withNewOwner(input.owner) })
+                "The owner property must change in a transfer." using
+                        (inputs.all { (id, input) -> input.owner != outputs.getValue(id).owner })
+                "The old and new owners together only must sign a batch transfer." using
+                        (command.signers.toSet() == (inputs.values + outputs.values).map { it.owner.owningKey }.toSet())
+            }
         }
     }
 }
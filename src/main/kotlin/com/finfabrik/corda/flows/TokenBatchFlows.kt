@@ -0,0 +1,120 @@
+package com.finfabrik.corda.flows
+
+import co.paralleluniverse.fibers.Suspendable
+import com.finfabrik.corda.Token
+import com.finfabrik.corda.TokenContract
+import net.corda.core.contracts.StateAndContract
+import net.corda.core.contracts.UniqueIdentifier
+import net.corda.core.contracts.requireThat
+import net.corda.core.flows.*
+import net.corda.core.identity.Party
+import net.corda.core.node.services.Vault
+import net.corda.core.node.services.queryBy
+import net.corda.core.node.services.vault.PageSpecification
+import net.corda.core.node.services.vault.QueryCriteria
+import net.corda.core.transactions.SignedTransaction
+import net.corda.core.transactions.TransactionBuilder
+
+
+/**
+ * Issues [tokens], which may belong to several owners, in one transaction. Each owner other than
+ * us signs once, however many of the tokens are theirs.
+ */
+@InitiatingFlow
+@StartableByRPC
+class TokenBatchIssueFlow(val tokens: List<Token>): InstrumentedFlow<SignedTransaction>() {
+    @Suspendable
+    override fun call(): SignedTransaction {
+        try {
+            require(tokens.isNotEmpty()) { "A batch issue needs at least one Token." }
+            val notary = serviceHub.networkMapCache.notaryIdentities.first()
+            val owners = tokens.map { it.owner }.toSet()
+
+            val builder = TransactionBuilder(notary = notary)
+            tokens.forEach { builder.addOutputState(it, TokenContract.Token_CONTRACT_ID) }
+            builder.addCommand(TokenContract.Commands.IssueBatch(), owners.map { it.owningKey })
+
+            builder.verify(serviceHub)
+            val ptx = serviceHub.signInitialTransaction(builder)
+
+            val sessions = (owners - ourIdentity).map { initiateFlow(it) }.toSet()
+            val stx = subFlow(CollectSignaturesFlow(ptx, sessions))
+
+            return subFlow(FinalityFlow(stx))
+        } finally {
+            publishMessageStats()
+        }
+    }
+}
+
+@InitiatedBy(TokenBatchIssueFlow::class)
+class TokenBatchIssueFlowResponder(val flowSession: FlowSession): InstrumentedFlow<Unit>() {
+    @Suspendable
+    override fun call() {
+        val signedTransactionFlow = object : SignTransactionFlow(flowSession) {
+            override fun checkTransaction(stx: SignedTransaction) = requireThat {
+                "This must be a Token transaction" using (stx.tx.outputs.all { it.data is Token })
+            }
+        }
+        subFlow(signedTransactionFlow)
+        publishMessageStats()
+    }
+}
+
+/**
+ * Moves each of our tokens in [newOwners] to the party it maps to, all in one transaction. Every
+ * new owner signs once for all the tokens it receives.
+ */
+@InitiatingFlow
+@StartableByRPC
+class TokenBatchTransferFlow(val newOwners: Map<UniqueIdentifier, Party>): InstrumentedFlow<SignedTransaction>() {
+    @Suspendable
+    override fun call(): SignedTransaction {
+        try {
+            require(newOwners.isNotEmpty()) { "A batch transfer needs at least one Token." }
+            val queryCriteria = QueryCriteria.LinearStateQueryCriteria(
+                    linearId = newOwners.keys.toList(), status = Vault.StateStatus.UNCONSUMED)
+            val inputs = serviceHub.vaultService.queryBy<Token>(queryCriteria, PageSpecification(1, newOwners.size)).states
+            if (inputs.size != newOwners.size) {
+                val missing = newOwners.keys - inputs.map { it.state.data.linearId }
+                throw FlowException("Tokens $missing not found.")
+            }
+            if (inputs.any { it.state.data.owner != ourIdentity }) {
+                throw IllegalArgumentException("Token transfer can only be initiated by the Token lender.")
+            }
+
+            val notary = serviceHub.networkMapCache.notaryIdentities.first()
+            val builder = TransactionBuilder(notary = notary)
+            inputs.forEach {
+                builder.withItems(it, StateAndContract(
+                        it.state.data.withNewOwner(newOwners.getValue(it.state.data.linearId)), TokenContract.Token_CONTRACT_ID))
+            }
+            val parties = newOwners.values.toSet() + ourIdentity
+            builder.addCommand(TokenContract.Commands.TransferBatch(), parties.map { it.owningKey })
+
+            builder.verify(serviceHub)
+            val ptx = serviceHub.signInitialTransaction(builder)
+
+            val sessions = (parties - ourIdentity).map { initiateFlow(it) }.toSet()
+            val stx = subFlow(CollectSignaturesFlow(ptx, sessions))
+
+            return subFlow(FinalityFlow(stx))
+        } finally {
+            publishMessageStats()
+        }
+    }
+}
+
+@InitiatedBy(TokenBatchTransferFlow::class)
+class TokenBatchTransferFlowResponder(val flowSession: FlowSession): InstrumentedFlow<Unit>() {
+    @Suspendable
+    override fun call() {
+        val signedTransactionFlow = object : SignTransactionFlow(flowSession) {
+            override fun checkTransaction(stx: SignedTransaction) = requireThat {
+                "This must be a Token transaction" using (stx.tx.outputs.all { it.data is Token })
+            }
+        }
+        subFlow(signedTransactionFlow)
+        publishMessageStats()
+    }
+}
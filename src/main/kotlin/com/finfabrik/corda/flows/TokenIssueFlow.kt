@@ -12,30 +12,34 @@ import net.corda.core.transactions.TransactionBuilder
 
 @InitiatingFlow
 @StartableByRPC
-class TokenIssueFlow(val state: Token): FlowLogic<SignedTransaction>() {
+class TokenIssueFlow(val state: Token): InstrumentedFlow<SignedTransaction>() {
     @Suspendable
     override fun call(): SignedTransaction {
-        val notary = serviceHub.networkMapCache.notaryIdentities.first()
+        try {
+            val notary = serviceHub.networkMapCache.notaryIdentities.first()
 
-        val issueCommand = Command(TokenContract.Commands.Issue(), state.participants.map { it.owningKey })
+            val issueCommand = Command(TokenContract.Commands.Issue(), state.participants.map { it.owningKey })
 
-        val builder = TransactionBuilder(notary = notary)
+            val builder = TransactionBuilder(notary = notary)
 
-        builder.addOutputState(state, TokenContract.Token_CONTRACT_ID)
-        builder.addCommand(issueCommand)
+            builder.addOutputState(state, TokenContract.Token_CONTRACT_ID)
+            builder.addCommand(issueCommand)
 
-        builder.verify(serviceHub)
-        val ptx = serviceHub.signInitialTransaction(builder)
+            builder.verify(serviceHub)
+            val ptx = serviceHub.signInitialTransaction(builder)
 
-        val sessions = (state.participants - ourIdentity).map { initiateFlow(it) }.toSet()
-        val stx = subFlow(CollectSignaturesFlow(ptx, sessions))
+            val sessions = (state.participants - ourIdentity).map { initiateFlow(it) }.toSet()
+            val stx = subFlow(CollectSignaturesFlow(ptx, sessions))
 
-        return subFlow(FinalityFlow(stx))
+            return subFlow(FinalityFlow(stx))
+        } finally {
+            publishMessageStats()
+        }
     }
 }
 
 @InitiatedBy(TokenIssueFlow::class)
-class TokenIssueFlowResponder(val flowSession: FlowSession): FlowLogic<Unit>() {
+class TokenIssueFlowResponder(val flowSession: FlowSession): InstrumentedFlow<Unit>() {
     @Suspendable
     override fun call() {
         val signedTransactionFlow = object : SignTransactionFlow(flowSession) {
@@ -45,5 +49,6 @@ class TokenIssueFlowResponder(val flowSession: FlowSession): FlowLogic<Unit>() {
             }
         }
         subFlow(signedTransactionFlow)
+        publishMessageStats()
     }
 }
\ No newline at end of file
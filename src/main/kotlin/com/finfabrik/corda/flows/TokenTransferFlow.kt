@@ -18,41 +18,45 @@ import net.corda.core.transactions.TransactionBuilder
 @InitiatingFlow
 @StartableByRPC
 class TokenTransferFlow(val linearId: UniqueIdentifier,
-                        val newLender: Party): FlowLogic<SignedTransaction>() {
+                        val newLender: Party): InstrumentedFlow<SignedTransaction>() {
     @Suspendable
     override fun call(): SignedTransaction {
-        val queryCriteria = QueryCriteria.LinearStateQueryCriteria(linearId = listOf(linearId))
-        val TokenStateAndRef =  serviceHub.vaultService.queryBy<Token>(queryCriteria).states.single()
-        val inputToken = TokenStateAndRef.state.data
+        try {
+            val queryCriteria = QueryCriteria.LinearStateQueryCriteria(linearId = listOf(linearId))
+            val TokenStateAndRef =  serviceHub.vaultService.queryBy<Token>(queryCriteria).states.single()
+            val inputToken = TokenStateAndRef.state.data
 
-        if (ourIdentity != inputToken.owner) {
-            throw IllegalArgumentException("Token transfer can only be initiated by the Token lender.")
-        }
+            if (ourIdentity != inputToken.owner) {
+                throw IllegalArgumentException("Token transfer can only be initiated by the Token lender.")
+            }
 
-        val outputToken = inputToken.withNewOwner(newLender)
+            val outputToken = inputToken.withNewOwner(newLender)
 
-        val signers = (inputToken.participants + newLender).map { it.owningKey }
-        val transferCommand = Command(TokenContract.Commands.Transfer(), signers)
+            val signers = (inputToken.participants + newLender).map { it.owningKey }
+            val transferCommand = Command(TokenContract.Commands.Transfer(), signers)
 
-        val notary = serviceHub.networkMapCache.notaryIdentities.first()
-        val builder = TransactionBuilder(notary = notary)
+            val notary = serviceHub.networkMapCache.notaryIdentities.first()
+            val builder = TransactionBuilder(notary = notary)
 
-        builder.withItems(TokenStateAndRef,
-                        StateAndContract(outputToken, TokenContract.Token_CONTRACT_ID),
-                        transferCommand)
+            builder.withItems(TokenStateAndRef,
+                            StateAndContract(outputToken, TokenContract.Token_CONTRACT_ID),
+                            transferCommand)
 
-        builder.verify(serviceHub)
-        val ptx = serviceHub.signInitialTransaction(builder)
+            builder.verify(serviceHub)
+            val ptx = serviceHub.signInitialTransaction(builder)
 
-        val sessions = (inputToken.participants - ourIdentity + newLender).map { initiateFlow(it) }.toSet()
-        val stx = subFlow(CollectSignaturesFlow(ptx, sessions))
+            val sessions = (inputToken.participants - ourIdentity + newLender).map { initiateFlow(it) }.toSet()
+            val stx = subFlow(CollectSignaturesFlow(ptx, sessions))
 
-        return subFlow(FinalityFlow(stx))
+            return subFlow(FinalityFlow(stx))
+        } finally {
+            publishMessageStats()
+        }
     }
 }
 
 @InitiatedBy(TokenTransferFlow::class)
-class TokenTransferFlowResponder(val flowSession: FlowSession): FlowLogic<Unit>() {
+class TokenTransferFlowResponder(val flowSession: FlowSession): InstrumentedFlow<Unit>() {
     @Suspendable
     override fun call() {
         val signedTransactionFlow = object : SignTransactionFlow(flowSession) {
@@ -63,5 +67,6 @@ class TokenTransferFlowResponder(val flowSession: FlowSession): FlowLogic<Unit>(
         }
 
         subFlow(signedTransactionFlow)
+        publishMessageStats()
     }
 }
\ No newline at end of file
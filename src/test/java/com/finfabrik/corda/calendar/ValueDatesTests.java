@@ -0,0 +1,104 @@
+package com.finfabrik.corda.calendar;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.finance.contracts.Tenor;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.time.LocalDate;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ValueDatesTests {
+
+  private final Map<String, HolidayCalendar> calendars = ImmutableMap.of(
+      "GBP", HolidayCalendar.of("GBP", ImmutableList.of(LocalDate.parse("2026-12-25"), LocalDate.parse("2026-12-28"))),
+      "USD", HolidayCalendar.of("USD", ImmutableList.of(LocalDate.parse("2026-12-25"))));
+
+  private final ValueDates valueDates = new ValueDates(
+      code -> calendars.getOrDefault(code, HolidayCalendar.weekendsOnly(code)));
+
+  @Test
+  public void calendarClosesWeekendsAndHolidays() {
+    HolidayCalendar gbp = calendars.get("GBP");
+    assertTrue(gbp.isBusinessDay(LocalDate.parse("2026-12-24")));
+    assertFalse(gbp.isBusinessDay(LocalDate.parse("2026-12-25")));
+    assertFalse(gbp.isBusinessDay(LocalDate.parse("2026-12-26")));
+    assertFalse(gbp.isBusinessDay(LocalDate.parse("2026-12-28")));
+    assertTrue(calendars.get("USD").isBusinessDay(LocalDate.parse("2026-12-28")));
+  }
+
+  @Test
+  public void spotSkipsHolidaysOfEitherCurrency() {
+    // Thu 24th, then the 25th closes both, the weekend and the 28th closes GBP.
+    assertEquals(LocalDate.parse("2026-12-29"), valueDates.spotDate(LocalDate.parse("2026-12-23"), "GBP", "USD"));
+  }
+
+  @Test
+  public void usdCadSettlesOneDayAfterTrade() {
+    assertEquals(LocalDate.parse("2026-12-28"), valueDates.spotDate(LocalDate.parse("2026-12-24"), "USD", "CAD"));
+  }
+
+  @Test
+  public void weekTenorRollsToFollowingBusinessDay() {
+    // Spot Fri 18th, a week later is Christmas.
+    assertEquals(LocalDate.parse("2026-12-29"),
+        valueDates.valueDate(LocalDate.parse("2026-12-16"), new Tenor("1W"), "GBP", "USD"));
+  }
+
+  @Test
+  public void monthTenorFromMonthEndSpotEndsOnMonthEnd() {
+    // Spot Thu 30 April is the last business day of April, so 3M is the last business day of July.
+    assertEquals(LocalDate.parse("2026-07-31"),
+        valueDates.valueDate(LocalDate.parse("2026-04-28"), new Tenor("3M"), "GBP", "USD"));
+  }
+
+  @Test
+  public void monthTenorUsesModifiedFollowing() {
+    // Spot Thu 29 January. 1M would be Sat 28 February, and rolling forward leaves the month, so it
+    // rolls back; 2M is Sun 29 March and rolls forward.
+    assertEquals(LocalDate.parse("2026-02-27"),
+        valueDates.valueDate(LocalDate.parse("2026-01-27"), new Tenor("1M"), "GBP", "FAB"));
+    assertEquals(LocalDate.parse("2026-03-30"),
+        valueDates.valueDate(LocalDate.parse("2026-01-27"), new Tenor("2M"), "GBP", "FAB"));
+  }
+
+  @Test
+  public void yearTenorIsTwelveMonths() {
+    assertEquals(LocalDate.parse("2027-01-29"),
+        valueDates.valueDate(LocalDate.parse("2026-01-27"), new Tenor("1Y"), "GBP", "FAB"));
+  }
+
+  @Test
+  public void refusesValueDatesPastTheCoveredYears() throws Exception {
+    HolidayCalendar gbp = HolidayCalendar.parse("GBP", new BufferedReader(new StringReader(
+        "# bank holidays\nyears: 2026-2027\n2026-12-25\n2027-12-27\n")));
+    ValueDates covered = new ValueDates(code -> code.equals("GBP") ? gbp : HolidayCalendar.weekendsOnly(code));
+
+    assertEquals(2026, gbp.getFirstCoveredYear());
+    assertEquals(2027, gbp.getLastCoveredYear());
+    assertEquals(LocalDate.parse("2027-10-21"),
+        covered.valueDate(LocalDate.parse("2026-10-19"), new Tenor("1Y"), "GBP", "FAB"));
+    try {
+      covered.valueDate(LocalDate.parse("2026-10-19"), new Tenor("2Y"), "GBP", "FAB");
+      fail("A value date past the GBP calendar was computed from weekends alone.");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("only listed for 2026 to 2027"));
+    }
+  }
+
+  @Test
+  public void calendarWithoutAYearRangeCoversTheYearsItLists() throws Exception {
+    HolidayCalendar usd = HolidayCalendar.parse("USD", new BufferedReader(new StringReader("2026-01-01\n2026-12-25\n")));
+
+    assertTrue(usd.covers(LocalDate.parse("2026-06-30").toEpochDay()));
+    assertFalse(usd.covers(LocalDate.parse("2027-01-04").toEpochDay()));
+    assertTrue(HolidayCalendar.weekendsOnly("FAB").covers(LocalDate.parse("2090-01-02").toEpochDay()));
+  }
+}
@@ -0,0 +1,128 @@
+package com.finfabrik.corda.export;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.flows.CashExitFlow;
+import net.corda.finance.flows.CashIssueFlow;
+import net.corda.finance.flows.CashPaymentFlow;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VaultExporterTests {
+  private MockNetwork network;
+  private StartedMockNode a;
+  private StartedMockNode b;
+
+  @Before
+  public void setup() {
+    network = new MockNetwork(
+        ImmutableList.of("com.finfabrik.corda", "net.corda.finance"),
+        new MockNetworkParameters().withThreadPerNode(true));
+    a = network.createPartyNode(null);
+    b = network.createPartyNode(null);
+  }
+
+  @After
+  public void tearDown() {
+    network.stopNodes();
+  }
+
+  @Test
+  public void resumingWritesStatesConsumedSinceTheCursor() throws Exception {
+    Party notary = a.getServices().getNetworkMapCache().getNotaryIdentities().get(0);
+    SignedTransaction issued = a.startFlow(new CashIssueFlow(POUNDS(1000), OpaqueBytes.of("0".getBytes()), notary)).get().getStx();
+    network.waitQuiescent();
+
+    VaultExporter exporter = new VaultExporter(rpc(a), 2);
+    StringWriter first = new StringWriter();
+    ExportCursor cursor = exporter.export(VaultExporter.Kind.CASH, VaultExporter.Format.NDJSON, null, first, last -> { });
+    assertEquals(1, lines(first).size());
+    assertTrue(lines(first).get(0).contains("\"status\":\"UNCONSUMED\""));
+
+    // Spends the issued state, which was recorded before the cursor, and records change after it.
+    a.startFlow(new CashPaymentFlow(POUNDS(400), chooseIdentity(b.getInfo()))).get();
+    network.waitQuiescent();
+
+    StringWriter resumed = new StringWriter();
+    ExportCursor next = exporter.export(VaultExporter.Kind.CASH, VaultExporter.Format.NDJSON, cursor, resumed, last -> { });
+    List<String> rows = lines(resumed);
+    assertEquals(2, rows.size());
+    assertTrue(rows.stream().anyMatch(row -> row.contains(issued.getId().toString()) && row.contains("\"status\":\"CONSUMED\"")));
+    assertTrue(rows.stream().anyMatch(row -> !row.contains(issued.getId().toString()) && row.contains("\"status\":\"UNCONSUMED\"")));
+    assertTrue(next.compareTo(cursor) > 0);
+
+    // Nothing has changed since, so a third run writes nothing and keeps the cursor.
+    StringWriter idle = new StringWriter();
+    assertEquals(next, exporter.export(VaultExporter.Kind.CASH, VaultExporter.Format.NDJSON, next, idle, last -> { }));
+    assertTrue(lines(idle).isEmpty());
+  }
+
+  @Test
+  public void consumptionWithNoNewStateIsWrittenOnce() throws Exception {
+    Party notary = a.getServices().getNetworkMapCache().getNotaryIdentities().get(0);
+    SignedTransaction issued = a.startFlow(new CashIssueFlow(POUNDS(1000), OpaqueBytes.of("0".getBytes()), notary)).get().getStx();
+    network.waitQuiescent();
+    VaultExporter exporter = new VaultExporter(rpc(a), 2);
+    ExportCursor cursor = exporter.export(VaultExporter.Kind.CASH, VaultExporter.Format.NDJSON, null, new StringWriter(), last -> { });
+
+    // Exiting all of it consumes the only state and records nothing new, as a fully settled forward does.
+    a.startFlow(new CashExitFlow(POUNDS(1000), OpaqueBytes.of("0".getBytes()))).get();
+    network.waitQuiescent();
+
+    StringWriter resumed = new StringWriter();
+    ExportCursor next = exporter.export(VaultExporter.Kind.CASH, VaultExporter.Format.NDJSON, cursor, resumed, last -> { });
+    assertEquals(1, lines(resumed).size());
+    assertTrue(lines(resumed).get(0).contains(issued.getId().toString()) && lines(resumed).get(0).contains("\"status\":\"CONSUMED\""));
+    assertEquals(cursor.getRef(), next.getRef());
+    assertEquals(new StateRef(issued.getId(), 0), next.getConsumedRef());
+
+    StringWriter again = new StringWriter();
+    assertEquals(next, exporter.export(VaultExporter.Kind.CASH, VaultExporter.Format.NDJSON, next, again, last -> { }));
+    assertTrue(lines(again).isEmpty());
+    assertEquals(next, ExportCursor.parse(next.toString()));
+  }
+
+  private static List<String> lines(StringWriter out) {
+    return Arrays.stream(out.toString().split("\n")).filter(it -> !it.isEmpty()).collect(Collectors.toList());
+  }
+
+  /** Just enough of the RPC interface for the exporter, answered from the node's own services. */
+  @SuppressWarnings("unchecked")
+  private static CordaRPCOps rpc(StartedMockNode node) {
+    return (CordaRPCOps) Proxy.newProxyInstance(CordaRPCOps.class.getClassLoader(), new Class<?>[]{CordaRPCOps.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "vaultQueryBy":
+          return node.transaction(() -> node.getServices().getVaultService()._queryBy(
+              (QueryCriteria) args[0], (PageSpecification) args[1], (Sort) args[2], (Class<ContractState>) args[3]));
+        case "wellKnownPartyFromAnonymous":
+          return node.getServices().getIdentityService().wellKnownPartyFromAnonymous((AbstractParty) args[0]);
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+}
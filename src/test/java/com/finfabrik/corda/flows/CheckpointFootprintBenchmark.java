@@ -0,0 +1,218 @@
+package com.finfabrik.corda.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.calendar.ValueDateService;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import com.finfabrik.corda.tracing.Span;
+import com.finfabrik.corda.tracing.TraceContext;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.ProgressTracker.Step;
+import net.corda.core.utilities.UntrustworthyData;
+import net.corda.finance.contracts.Commodity;
+import net.corda.finance.contracts.Tenor;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.PublicKey;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Currency;
+import java.util.List;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Size of the checkpoints the issue and settle flows leave behind at each suspension point,
+ * read back from the node's checkpoint table. Issuance is compared with {@link LegacyIssue},
+ * the previous shape of {@link IssueFXForward.Initiator}, which kept its builder, forward and
+ * proposal live across every suspension. The issue benchmark fails if the current flow's
+ * checkpoints are not smaller than the legacy flow's.
+ *
+ * Run with {@code ./gradlew benchmark --tests '*CheckpointFootprintBenchmark'}.
+ */
+public class CheckpointFootprintBenchmark extends FXForwardTests {
+  private static final int RUNS = 20;
+
+  @BeforeClass
+  public static void measureCheckpoints() {
+    System.setProperty("fxforward.checkpoint.measure", "true");
+  }
+
+  @AfterClass
+  public static void stopMeasuringCheckpoints() {
+    System.clearProperty("fxforward.checkpoint.measure");
+  }
+
+  @Before
+  public void registerLegacyResponder() {
+    b.registerInitiatedFlow(LegacyIssue.Responder.class);
+  }
+
+  @Test
+  public void issueCheckpoints() throws Exception {
+    Party buyer = chooseIdentity(b.getInfo());
+    FlowCheckpointStats legacy = null;
+    FlowCheckpointStats current = null;
+    long legacyBytes = 0;
+    long currentBytes = 0;
+    for (int i = 0; i < RUNS; i++) {
+      LegacyIssue before = new LegacyIssue(POUNDS(1000), tokenFaucet("FAB", 100), buyer, new Tenor("1M"));
+      a.startFlow(before).get();
+      IssueFXForward.Initiator after = new IssueFXForward.Initiator(POUNDS(1000), tokenFaucet("FAB", 100), buyer, new Tenor("1M"), false);
+      a.startFlow(after).get();
+      legacy = before.getCheckpointStats();
+      current = after.getCheckpointStats();
+      legacyBytes += legacy.getBytes();
+      currentBytes += current.getBytes();
+    }
+    network.waitQuiescent();
+
+    System.out.println(String.format("Issue initiator, per run: %6d bytes before, %6d bytes after (%.1f%%)",
+        legacyBytes / RUNS, currentBytes / RUNS, 100.0 * (currentBytes - legacyBytes) / legacyBytes));
+    System.out.println("  before: " + legacy);
+    System.out.println("  after:  " + current);
+    report(b, "IssueFXForward.Responder");
+    assertTrue(String.format("Issue checkpoints grew: %d bytes before, %d after per run", legacyBytes / RUNS, currentBytes / RUNS),
+        currentBytes < legacyBytes);
+  }
+
+  @Test
+  public void settleCheckpoints() throws Exception {
+    selfIssueCash(a, POUNDS(1000 * RUNS));
+    FlowCheckpointStats last = null;
+    long bytes = 0;
+    for (int i = 0; i < RUNS; i++) {
+      Token token = (Token) issueToken(b, 100, "FAB").getTx().getOutputStates().get(0);
+      FXForward forward = (FXForward) issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false)
+          .getTx().getOutputStates().get(0);
+      network.waitQuiescent();
+      SettleFXForward.Initiator flow = new SettleFXForward.Initiator(forward.getLinearId(), token.getLinearId(), false);
+      a.startFlow(flow).get();
+      last = flow.getCheckpointStats();
+      bytes += last.getBytes();
+    }
+    network.waitQuiescent();
+
+    System.out.println(String.format("Settle initiator, per run: %6d bytes", bytes / RUNS));
+    System.out.println("  " + last);
+    report(b, "SettleFXForward.Responder");
+  }
+
+  private static void report(StartedMockNode node, String flowName) {
+    Metrics metrics = node.getServices().cordaService(MetricsService.class).getMetrics();
+    long runs = metrics.count("flow." + flowName + ".runs");
+    System.out.println(String.format("%s, per run: %d checkpoints, %6d bytes", flowName,
+        metrics.count("flow." + flowName + ".checkpoints") / runs,
+        metrics.count("flow." + flowName + ".checkpointBytes") / runs));
+  }
+
+  /** {@link IssueFXForward.Initiator} as it was, without an oracle: one method holding everything to the end. */
+  @InitiatingFlow
+  static class LegacyIssue extends FXForwardBaseFlow {
+    private final Amount<Currency> base;
+    private final Amount<Commodity> terms;
+    private final Party buyer;
+    private final Tenor tenor;
+
+    private final Step INITIALISING = new Step("Performing initial steps.");
+    private final Step BUILDING = new Step("Performing initial steps.");
+    private final Step SIGNING = new Step("Signing transaction.");
+    private final Step COLLECTING = new Step("Collecting counterparty signature.") {
+      @Override public ProgressTracker childProgressTracker() {
+        return CollectSignaturesFlow.Companion.tracker();
+      }
+    };
+    private final Step FINALISING = new Step("Finalising transaction.") {
+      @Override public ProgressTracker childProgressTracker() {
+        return FinalityFlow.Companion.tracker();
+      }
+    };
+
+    private final ProgressTracker progressTracker = new ProgressTracker(
+        INITIALISING, BUILDING, SIGNING, COLLECTING, FINALISING
+    );
+
+    LegacyIssue(Amount<Currency> base, Amount<Commodity> terms, Party buyer, Tenor tenor) {
+      this.base = base;
+      this.terms = terms;
+      this.buyer = buyer;
+      this.tenor = tenor;
+    }
+
+    @Override
+    public ProgressTracker getProgressTracker() {
+      return progressTracker;
+    }
+
+    @Suspendable
+    @Override
+    public SignedTransaction call() throws FlowException {
+      startTracing(null, "LegacyIssue", false);
+      step(INITIALISING);
+      final LocalDate valueDate = getServiceHub().cordaService(ValueDateService.class).valueDate(
+          LocalDate.now(getServiceHub().getClock()), tenor, base.getToken().getCurrencyCode(), terms.getToken().getCommodityCode());
+      final FXForward forward = new FXForward(base, terms, buyer, getOurIdentity(), tenor, valueDate);
+      final PublicKey ourSigningKey = forward.getSeller().getOwningKey();
+
+      step(BUILDING);
+      final List<PublicKey> requiredSigners = forward.getParticipantKeys();
+      final TransactionBuilder utx = new TransactionBuilder(getFirstNotary())
+          .addOutputState(forward, FXForwardContract.FORWARD_CONTRACT_ID)
+          .addCommand(new FXForwardContract.Commands.Issue(), requiredSigners)
+          .setTimeWindow(getServiceHub().getClock().instant(), Duration.ofSeconds(30));
+
+      step(SIGNING);
+      final SignedTransaction ptx = getServiceHub().signInitialTransaction(utx, ourSigningKey);
+
+      step(COLLECTING);
+      final FlowSession buyerFlow = initiateFlow(buyer);
+      sendTo(buyerFlow, tracer.context());
+      final Span collecting = tracer.start("CollectSignaturesFlow");
+      final SignedTransaction stx = subFlow(new CollectSignaturesFlow(
+          ptx, ImmutableSet.of(buyerFlow), ImmutableList.of(ourSigningKey), COLLECTING.childProgressTracker()));
+      tracer.end(collecting);
+
+      step(FINALISING);
+      final SignedTransaction notarised = subFlow(new FinalityFlow(stx, FINALISING.childProgressTracker()));
+      tracer.finish();
+      publishMessageStats();
+      return notarised;
+    }
+
+    @InitiatedBy(LegacyIssue.class)
+    static class Responder extends FXForwardBaseFlow {
+      private final FlowSession otherFlow;
+
+      Responder(FlowSession otherFlow) {
+        this.otherFlow = otherFlow;
+      }
+
+      @Suspendable
+      @Override
+      public SignedTransaction call() throws FlowException {
+        final TraceContext trace = receiveFrom(otherFlow, TraceContext.class).unwrap((UntrustworthyData.Validator<TraceContext, TraceContext>) data -> data);
+        startTracing(trace, "LegacyIssue.Responder", true);
+        final SignedTransaction stx = subFlow(new FXForwardBaseFlow.PolicySignTxFlow(otherFlow, SignTransactionFlow.Companion.tracker()));
+        final SignedTransaction committed = waitForLedgerCommit(stx.getId());
+        tracer.finish();
+        return committed;
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.FXForward;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.finance.contracts.Tenor;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompressFXForwardsTests extends FXForwardTests {
+
+  private List<FXForward> forwards(StartedMockNode node) {
+    return node.transaction(() -> node.getServices().getVaultService().queryBy(FXForward.class).getStates()
+        .stream().map(StateAndRef::getState).map(it -> it.getData()).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void offsettingForwardsAreReplacedByTheirNet() throws Exception {
+    Tenor tenor = new Tenor("1M");
+    issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), tenor, true);
+    issueFXForward(a, b, POUNDS(400), tokenFaucet("FAB", 40), tenor, false);
+    issueFXForward(b, a, POUNDS(300), tokenFaucet("FAB", 30), tenor, true);
+    issueFXForward(a, c, POUNDS(500), tokenFaucet("FAB", 50), tenor, false);
+    network.waitQuiescent();
+
+    CompressFXForwards.Report report = a.startFlow(new CompressFXForwards.Initiator(chooseIdentity(b.getInfo()))).get();
+    network.waitQuiescent();
+
+    assertEquals(3, report.getStatesBefore());
+    assertEquals(1, report.getStatesAfter());
+    assertEquals(2, report.getStatesRemoved());
+    assertEquals(Long.valueOf(POUNDS(600).getQuantity()), report.getBaseNotionalRemoved().get("GBP"));
+    assertEquals(Long.valueOf(60), report.getTermsNotionalRemoved().get("FAB"));
+
+    // a still sells b the net 1100 GBP for 110 FAB; the forward with c is untouched.
+    List<FXForward> withB = forwards(b);
+    assertEquals(1, withB.size());
+    assertEquals(POUNDS(1100).getQuantity(), withB.get(0).getBaseQuantity());
+    assertEquals(110, withB.get(0).getTermsQuantity());
+    assertEquals(chooseIdentity(a.getInfo()),
+        a.getServices().getIdentityService().wellKnownPartyFromAnonymous(withB.get(0).getSeller()));
+    assertEquals(2, forwards(a).size());
+  }
+
+  @Test
+  public void theStateCapCountsOnlyForwardsWithTheCounterparty() throws Exception {
+    Tenor tenor = new Tenor("1M");
+    for (int i = 0; i < 3; i++) {
+      issueFXForward(a, c, POUNDS(100), tokenFaucet("FAB", 10), tenor, false);
+    }
+    issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), tenor, false);
+    issueFXForward(b, a, POUNDS(400), tokenFaucet("FAB", 40), tenor, false);
+    network.waitQuiescent();
+
+    CompressFXForwards.Report report = a.startFlow(new CompressFXForwards.Initiator(chooseIdentity(b.getInfo()), 2)).get();
+    network.waitQuiescent();
+
+    assertEquals(2, report.getStatesBefore());
+    assertEquals(1, report.getStatesAfter());
+    assertEquals(1, forwards(b).size());
+    assertEquals(4, forwards(a).size());
+  }
+
+  @Test
+  public void nothingToCompressLeavesTheLedgerAlone() throws Exception {
+    issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false);
+    network.waitQuiescent();
+
+    CompressFXForwards.Report report = a.startFlow(new CompressFXForwards.Initiator(chooseIdentity(b.getInfo()))).get();
+
+    assertEquals(0, report.getStatesRemoved());
+    assertNull(report.getTxId());
+    assertEquals(1, forwards(b).size());
+  }
+}
@@ -0,0 +1,56 @@
+package com.finfabrik.corda.flows;
+
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.flows.CashPaymentFlow;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+
+public class ConsolidateCashTests extends FXForwardTests {
+
+  @Test
+  public void mergesSmallCashStatesIntoOne() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      selfIssueCash(a, POUNDS(10));
+    }
+    network.waitQuiescent();
+
+    ConsolidateCash.Report report = a.startFlow(new ConsolidateCash.Initiator(100_00, 1_000_00, 50)).get();
+    network.waitQuiescent();
+
+    assertEquals(5, report.getStatesBefore());
+    assertEquals(5, report.getInputsMerged());
+    assertEquals(1, report.getOutputsCreated());
+    assertEquals(1, report.getStatesAfter());
+
+    List<Cash.State> remaining = a.transaction(() ->
+        a.getServices().getVaultService().queryBy(Cash.State.class).getStates()).stream()
+        .map(it -> it.getState().getData())
+        .collect(Collectors.toList());
+    assertEquals(1, remaining.size());
+    assertEquals(POUNDS(50).getQuantity(), remaining.get(0).getAmount().getQuantity());
+  }
+
+  @Test
+  public void countsOnlyCashFromTheMergedIssuer() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      selfIssueCash(a, POUNDS(10));
+    }
+    selfIssueCash(b, POUNDS(10));
+    b.startFlow(new CashPaymentFlow(POUNDS(10), chooseIdentity(a.getInfo()))).get();
+    network.waitQuiescent();
+
+    ConsolidateCash.Report report = a.startFlow(new ConsolidateCash.Initiator(100_00, 1_000_00, 50)).get();
+    network.waitQuiescent();
+
+    // The pounds issued by b are a different token, so they are neither merged nor counted.
+    assertEquals(5, report.getStatesBefore());
+    assertEquals(5, report.getInputsMerged());
+    assertEquals(1, report.getStatesAfter());
+  }
+}
@@ -0,0 +1,83 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.contracts.Tenor;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DistributeTransactionsTests extends FXForwardTests {
+
+  @BeforeClass
+  public static void enableObservers() throws IOException {
+    System.setProperty("fxforward.observers.enabled", "true");
+    System.setProperty("fxforward.observers.journalDir", Files.createTempDirectory("observers").toString());
+    System.setProperty("fxforward.observers.batchSize", "5");
+    System.setProperty("fxforward.observers.delayMs", "200");
+  }
+
+  @AfterClass
+  public static void disableObservers() {
+    System.clearProperty("fxforward.observers.enabled");
+    System.clearProperty("fxforward.observers.batchSize");
+    System.clearProperty("fxforward.observers.delayMs");
+    System.clearProperty("fxforward.observers.names");
+    System.clearProperty("fxforward.observers.journalDir");
+  }
+
+  @Test
+  public void observerRecordsForwardsInBatches() throws Exception {
+    System.setProperty("fxforward.observers.names", chooseIdentity(c.getInfo()).getName().toString());
+    List<SignedTransaction> issued = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      issued.add(issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false));
+    }
+    network.waitQuiescent();
+
+    Metrics metrics = a.getServices().cordaService(MetricsService.class).getMetrics();
+    long deadline = System.currentTimeMillis() + 30_000;
+    while (metrics.count("observers.sent") < issued.size() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+    network.waitQuiescent();
+
+    for (SignedTransaction stx : issued) {
+      assertNotNull(c.getServices().getValidatedTransactions().getTransaction(stx.getId()));
+    }
+    assertEquals(issued.size(), (int) c.transaction(() -> c.getServices().getVaultService().queryBy(FXForward.class).getStates().size()));
+    // Twelve transactions from the seller in batches of at most five.
+    assertTrue(metrics.count("observers.batches") >= 3);
+    // The buyer recorded every trade too but leaves shipping them to the seller.
+    assertEquals(0, b.getServices().cordaService(MetricsService.class).getMetrics().count("observers.sent"));
+  }
+
+  @Test
+  public void observerRejectsTransactionsTheSenderIsNotPartyTo() throws Exception {
+    SignedTransaction stx = issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false);
+    network.waitQuiescent();
+
+    try {
+      c.startFlow(new DistributeTransactions.Initiator(chooseIdentity(b.getInfo()), ImmutableList.of(stx))).get();
+      fail("Expected b to refuse a transaction c is not party to.");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("is not a party to transaction " + stx.getId()));
+    }
+  }
+}
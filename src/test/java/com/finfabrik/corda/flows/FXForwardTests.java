@@ -1,6 +1,7 @@
 package com.finfabrik.corda.flows;
 
 import com.finfabrik.corda.Token;
+import com.finfabrik.corda.oracle.RateOracleFlows;
 import com.google.common.collect.ImmutableList;
 import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.UniqueIdentifier;
@@ -42,6 +43,14 @@ abstract class FXForwardTests {
     for (StartedMockNode node : ImmutableList.of(a, b, c)) {
       node.registerInitiatedFlow(IssueFXForward.Responder.class);
       node.registerInitiatedFlow(SettleFXForward.Responder.class);
+      node.registerInitiatedFlow(StageSettlement.Responder.class);
+      node.registerInitiatedFlow(TradeSession.Responder.class);
+      node.registerInitiatedFlow(DistributeTransactions.Receiver.class);
+      node.registerInitiatedFlow(IssueFXSwap.Responder.class);
+      node.registerInitiatedFlow(SettleFXSwap.Responder.class);
+      node.registerInitiatedFlow(CompressFXForwards.Responder.class);
+      node.registerInitiatedFlow(RateOracleFlows.QueryRatesHandler.class);
+      node.registerInitiatedFlow(RateOracleFlows.SignFixesHandler.class);
     }
   }
 
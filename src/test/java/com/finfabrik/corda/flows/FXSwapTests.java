@@ -0,0 +1,89 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.FXSwap;
+import com.finfabrik.corda.Token;
+import net.corda.core.contracts.Amount;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.contracts.Tenor;
+import net.corda.finance.contracts.asset.Cash;
+import org.junit.Test;
+
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FXSwapTests extends FXForwardTests {
+
+  private FXSwap issueSwap(Amount<Currency> near, Amount<Currency> far, boolean anonymous) throws Exception {
+    IssueFXSwap.Initiator flow = new IssueFXSwap.Initiator(
+        near, far, tokenFaucet("FAB", 100), chooseIdentity(b.getInfo()), new Tenor("1W"), new Tenor("3M"), anonymous);
+    SignedTransaction stx = a.startFlow(flow).get();
+    network.waitQuiescent();
+    return stx.getTx().outputsOfType(FXSwap.class).get(0);
+  }
+
+  @Test
+  public void issueBooksBothLegsInOneState() throws Exception {
+    FXSwap swap = issueSwap(POUNDS(1000), POUNDS(1010), true);
+
+    FXSwap bSwap = b.transaction(() ->
+        b.getServices().getVaultService().queryBy(FXSwap.class).getStates().get(0).getState().getData());
+    assertEquals(swap, bSwap);
+    assertEquals(FXSwap.Leg.NEAR, bSwap.getOpenLeg());
+  }
+
+  @Test
+  public void settleNearLegThenFarLeg() throws Exception {
+    selfIssueCash(a, POUNDS(1000));
+    selfIssueCash(b, POUNDS(10));
+    Token token = (Token) issueToken(b, 100, "FAB").getTx().getOutputStates().get(0);
+    FXSwap swap = issueSwap(POUNDS(1000), POUNDS(1010), false);
+
+    // Near leg: the seller pays and takes the token; the swap stays on ledger with the near leg settled.
+    SignedTransaction near = a.startFlow(new SettleFXSwap.Initiator(swap.getLinearId(), token.getLinearId())).get();
+    network.waitQuiescent();
+    FXSwap updated = near.getTx().outputsOfType(FXSwap.class).get(0);
+    assertEquals(swap.withNearSettled(), updated);
+    assertEquals(chooseIdentity(a.getInfo()), near.getTx().outputsOfType(Token.class).get(0).getOwner());
+
+    // Far leg: the buyer pays back the far amount and takes the token back; the swap is consumed.
+    SignedTransaction far = b.startFlow(new SettleFXSwap.Initiator(swap.getLinearId(), token.getLinearId())).get();
+    network.waitQuiescent();
+    assertTrue(far.getTx().outputsOfType(FXSwap.class).isEmpty());
+    assertEquals(chooseIdentity(b.getInfo()), far.getTx().outputsOfType(Token.class).get(0).getOwner());
+
+    List<Cash.State> paidToSeller = far.getTx().outputsOfType(Cash.State.class);
+    assertTrue(paidToSeller.stream().anyMatch(it -> it.getOwner().equals(chooseIdentity(a.getInfo()))));
+    assertTrue(a.transaction(() -> a.getServices().getVaultService().queryBy(FXSwap.class).getStates().isEmpty()));
+  }
+
+  @Test
+  public void farLegCannotBeSettledBySeller() throws Exception {
+    selfIssueCash(a, POUNDS(2010));
+    Token token = (Token) issueToken(b, 100, "FAB").getTx().getOutputStates().get(0);
+    FXSwap swap = issueSwap(POUNDS(1000), POUNDS(1010), false);
+    SignedTransaction near = a.startFlow(new SettleFXSwap.Initiator(swap.getLinearId(), token.getLinearId())).get();
+    network.waitQuiescent();
+    // The token as the near leg left it: live, and held by the seller.
+    Token held = near.getTx().outputsOfType(Token.class).get(0);
+
+    // The seller could pay the far amount, but the far leg is the buyer's to pay.
+    try {
+      a.startFlow(new SettleFXSwap.Initiator(swap.getLinearId(), held.getLinearId())).get();
+      fail("The seller settled the far leg.");
+    } catch (ExecutionException e) {
+      String expected = String.format("The %s leg must be settled by %s", FXSwap.Leg.FAR, chooseIdentity(b.getInfo()).getName());
+      assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(expected));
+    }
+    network.waitQuiescent();
+    FXSwap open = a.transaction(() ->
+        a.getServices().getVaultService().queryBy(FXSwap.class).getStates().get(0).getState().getData());
+    assertEquals(FXSwap.Leg.FAR, open.getOpenLeg());
+  }
+}
@@ -1,12 +1,32 @@
 package com.finfabrik.corda.flows;
 
 import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.metrics.MetricsService;
+import com.finfabrik.corda.services.TradeSessionService;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.contracts.Amount;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.identity.Party;
 import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
 import net.corda.finance.contracts.Tenor;
 import org.junit.Test;
 
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
 import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class IssueFXForwardTests extends FXForwardTests {
 
@@ -20,5 +40,80 @@ public class IssueFXForwardTests extends FXForwardTests {
     FXForward bForward = (FXForward) b.getServices().loadState(stx.getTx().outRef(0).getRef()).getData();
 
     assertEquals(aForward, bForward);
+    assertNotNull(aForward.getValueDate());
+  }
+
+  @Test
+  public void tradeSessionIssuesQueuedTradesOnBothLedgers() throws Exception {
+    Party buyer = chooseIdentity(b.getInfo());
+    TradeSessionService sessions = a.getServices().cordaService(TradeSessionService.class);
+    List<CompletableFuture<SignedTransaction>> results = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      results.add(sessions.submit(buyer, new TradeSession.Request(POUNDS(1000 + i), tokenFaucet("FAB", 100), new Tenor("1M"))));
+    }
+    for (CompletableFuture<SignedTransaction> result : results) {
+      SignedTransaction stx = result.get();
+      network.waitQuiescent();
+      assertEquals(stx, b.getServices().getValidatedTransactions().getTransaction(stx.getId()));
+    }
+    assertEquals(40, b.transaction(() -> b.getServices().getVaultService().queryBy(FXForward.class).getStates().size()).intValue());
+  }
+
+  @Test
+  public void tradeSessionFailsOnlyTheTradesTheBuyersPolicyRejects() throws Exception {
+    System.setProperty("fxforward.policy.notionalCaps", "GBP:5000");
+    try {
+      Party buyer = chooseIdentity(b.getInfo());
+      TradeSessionService sessions = a.getServices().cordaService(TradeSessionService.class);
+      CompletableFuture<SignedTransaction> accepted = sessions.submit(buyer, new TradeSession.Request(POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M")));
+      CompletableFuture<SignedTransaction> overCap = sessions.submit(buyer, new TradeSession.Request(POUNDS(10_000), tokenFaucet("FAB", 100), new Tenor("1M")));
+
+      SignedTransaction stx = accepted.get();
+      try {
+        overCap.get();
+        fail("A forward over the buyer's notional cap was issued.");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("notional is over the cap"));
+      }
+      network.waitQuiescent();
+      assertEquals(stx, b.getServices().getValidatedTransactions().getTransaction(stx.getId()));
+      assertEquals(1, b.transaction(() -> b.getServices().getVaultService().queryBy(FXForward.class).getStates().size()).intValue());
+      assertEquals(1, a.getServices().cordaService(MetricsService.class).getMetrics().count("session.rejected"));
+    } finally {
+      System.clearProperty("fxforward.policy.notionalCaps");
+    }
+  }
+
+  @Test
+  public void tradeSessionOnlyNotarisesWithTheBuyersValidSignature() throws Exception {
+    Party seller = chooseIdentity(a.getInfo());
+    Party buyer = chooseIdentity(b.getInfo());
+    SignedTransaction ptx = propose(seller, buyer, POUNDS(1000));
+    SignedTransaction other = propose(seller, buyer, POUNDS(2000));
+    TransactionSignature byBuyer = b.transaction(() -> b.getServices().createSignature(ptx, buyer.getOwningKey()));
+    TransactionSignature byStranger = c.transaction(() -> c.getServices().createSignature(ptx, chooseIdentity(c.getInfo()).getOwningKey()));
+    TransactionSignature onAnother = b.transaction(() -> b.getServices().createSignature(other, buyer.getOwningKey()));
+
+    assertNull(TradeSession.Initiator.unsigned(buyer, ptx, reply(ptx, byBuyer)));
+    assertEquals("The buyer's signature is not valid.", TradeSession.Initiator.unsigned(buyer, ptx, reply(ptx, byStranger)));
+    assertEquals("The buyer's signature is not valid.", TradeSession.Initiator.unsigned(buyer, ptx, reply(ptx, onAnother)));
+    assertEquals("Not signed by the buyer.", TradeSession.Initiator.unsigned(buyer, ptx,
+        new TradeSession.Reply(ImmutableMap.of(), ImmutableMap.of())));
+    assertEquals("over the cap", TradeSession.Initiator.unsigned(buyer, ptx,
+        new TradeSession.Reply(ImmutableMap.of(), ImmutableMap.of(ptx.getId(), "over the cap"))));
+  }
+
+  /** A trade session proposal from {@code seller}, signed by it alone. */
+  private SignedTransaction propose(Party seller, Party buyer, Amount<Currency> base) {
+    Party notary = a.getServices().getNetworkMapCache().getNotaryIdentities().get(0);
+    FXForward forward = new FXForward(base, tokenFaucet("FAB", 100), buyer, seller, new Tenor("1M"), LocalDate.now().plusMonths(1));
+    TransactionBuilder builder = new TransactionBuilder(notary)
+        .addOutputState(forward, FXForwardContract.FORWARD_CONTRACT_ID)
+        .addCommand(new FXForwardContract.Commands.Issue(), forward.getParticipantKeys());
+    return a.transaction(() -> a.getServices().signInitialTransaction(builder, seller.getOwningKey()));
+  }
+
+  private static TradeSession.Reply reply(SignedTransaction ptx, TransactionSignature signature) {
+    return new TradeSession.Reply(ImmutableMap.of(ptx.getId(), signature), ImmutableMap.of());
   }
 }
@@ -0,0 +1,103 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.contracts.Tenor;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.Test;
+
+import java.util.List;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pins the number of messages and sub-flows each flow costs, so a protocol change that adds a
+ * round trip fails here rather than showing up as WAN latency.
+ *
+ * The counts are the flows' own instrumentation: the sessions a flow drives directly, and the
+ * platform sub-flows it hands the rest of the protocol to. Traffic inside those sub-flows, the
+ * notary's included, is not counted; the mock network has no supported way to observe it.
+ */
+public class MessageBudgetTests extends FXForwardTests {
+
+  @Test
+  public void issueStaysWithinBudget() throws Exception {
+    IssueFXForward.Initiator flow = new IssueFXForward.Initiator(
+        POUNDS(1000), tokenFaucet("FAB", 100), chooseIdentity(b.getInfo()), new Tenor("1M"), true);
+    a.startFlow(flow).get();
+    network.waitQuiescent();
+
+    // Trace context, then identity swap, signatures and finality.
+    FlowMessageStats stats = flow.getMessageStats();
+    assertBudget(stats, "sends", stats.getSends(), 1);
+    assertBudget(stats, "receives", stats.getReceives(), 0);
+    assertBudget(stats, "round trips", stats.getRoundTrips(), 0);
+    assertSubFlows(stats, "SwapIdentitiesFlow", "CollectSignaturesFlow", "FinalityFlow");
+
+    assertBudget(b, "IssueFXForward.Responder", "receives", 1);
+    assertBudget(b, "IssueFXForward.Responder", "subFlows", 1);
+  }
+
+  @Test
+  public void settlementStaysWithinBudget() throws Exception {
+    selfIssueCash(a, POUNDS(1000));
+    Token token = (Token) issueToken(b, 100, "FAB").getTx().getOutputStates().get(0);
+    SignedTransaction stx = issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false);
+    network.waitQuiescent();
+    FXForward forward = (FXForward) stx.getTx().getOutputStates().get(0);
+
+    SettleFXForward.Initiator flow = new SettleFXForward.Initiator(forward.getLinearId(), token.getLinearId(), true);
+    a.startFlow(flow).get();
+    network.waitQuiescent();
+
+    // Trace context and tranche, then token exchange, identity sync, signatures and finality.
+    FlowMessageStats stats = flow.getMessageStats();
+    assertBudget(stats, "sends", stats.getSends(), 2);
+    assertBudget(stats, "receives", stats.getReceives(), 0);
+    assertBudget(stats, "round trips", stats.getRoundTrips(), 0);
+    assertSubFlows(stats, "ReceiveStateAndRefFlow", "IdentitySyncFlow.Send", "CollectSignaturesFlow", "FinalityFlow");
+
+    assertBudget(b, "SettleFXForward.Responder", "receives", 2);
+    assertBudget(b, "SettleFXForward.Responder", "subFlows", 3);
+  }
+
+  @Test
+  public void tokenTransferStaysWithinBudget() throws Exception {
+    c.registerInitiatedFlow(TokenTransferFlowResponder.class);
+    Token token = (Token) issueToken(b, 100, "FAB").getTx().getOutputStates().get(0);
+    network.waitQuiescent();
+
+    TokenTransferFlow flow = new TokenTransferFlow(token.getLinearId(), chooseIdentity(c.getInfo()));
+    b.startFlow(flow).get();
+    network.waitQuiescent();
+
+    FlowMessageStats stats = flow.getMessageStats();
+    assertBudget(stats, "sends", stats.getSends(), 0);
+    assertSubFlows(stats, "CollectSignaturesFlow", "FinalityFlow");
+  }
+
+  private static void assertBudget(FlowMessageStats stats, String what, long actual, long budget) {
+    assertEquals(String.format("%s against a budget of %d (%s)", what, budget, stats), budget, actual);
+  }
+
+  private static void assertSubFlows(FlowMessageStats stats, String... expected) {
+    List<String> actual = stats.getSubFlows();
+    assertEquals("sub-flows (" + stats + ")", ImmutableList.copyOf(expected), actual);
+  }
+
+  private static void assertBudget(StartedMockNode node, String flowName, String counter, long budgetPerRun) {
+    Metrics metrics = node.getServices().cordaService(MetricsService.class).getMetrics();
+    long runs = metrics.count("flow." + flowName + ".runs");
+    long actual = metrics.count("flow." + flowName + "." + counter);
+    assertTrue(flowName + " did not run", runs > 0);
+    assertEquals(String.format("%s %s against a budget of %d per run", flowName, counter, budgetPerRun),
+        budgetPerRun * runs, actual);
+  }
+}
@@ -0,0 +1,109 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.oracle.FixOf;
+import com.finfabrik.corda.oracle.RateFix;
+import com.finfabrik.corda.oracle.RateOracle;
+import com.finfabrik.corda.oracle.RateOracleFlows;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Command;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.FilteredTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.finance.contracts.Tenor;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+
+/**
+ * Oracle throughput: cached fix lookups, then signing torn-off transactions one per call and in
+ * batches, both in-process and over flows.
+ *
+ * Run with {@code ./gradlew benchmark --tests '*RateOracleBenchmark'}.
+ */
+public class RateOracleBenchmark extends FXForwardTests {
+  private static final int TRANSACTIONS = 1_000;
+  private static Path rates;
+
+  @BeforeClass
+  public static void writeRates() throws Exception {
+    rates = Files.createTempFile("rates", ".csv");
+    Files.write(rates, ImmutableList.of("GBP/FAB,1M,0.0125"), StandardCharsets.UTF_8);
+    System.setProperty("fxforward.oracle.ratesFile", rates.toString());
+    System.setProperty("fxforward.oracle.windowMs", "3600000");
+  }
+
+  @AfterClass
+  public static void removeRates() throws Exception {
+    System.clearProperty("fxforward.oracle.ratesFile");
+    System.clearProperty("fxforward.oracle.windowMs");
+    Files.deleteIfExists(rates);
+  }
+
+  /** A transaction holding a forward and {@code fix}, with everything but the fix torn off. */
+  static FilteredTransaction filteredFix(StartedMockNode node, RateFix fix, PublicKey oracleKey) {
+    Party us = chooseIdentity(node.getInfo());
+    Party notary = node.getServices().getNetworkMapCache().getNotaryIdentities().get(0);
+    return node.transaction(() -> new TransactionBuilder(notary)
+        .addOutputState(new FXForward(POUNDS(1000), FXForwardTests.tokenFaucet("FAB", 100), us, us, fix.getOf().getTenor()),
+            FXForwardContract.FORWARD_CONTRACT_ID)
+        .addCommand(new FXForwardContract.Commands.Issue(oracleKey), us.getOwningKey())
+        .addCommand(fix, oracleKey)
+        .toWireTransaction(node.getServices())
+        .buildFilteredTransaction(element -> element instanceof Command && ((Command<?>) element).getValue() instanceof RateFix));
+  }
+
+  @Test
+  public void throughput() throws Exception {
+    Party oracle = chooseIdentity(c.getInfo());
+    RateOracle service = c.getServices().cordaService(RateOracle.class);
+    FixOf oneMonth = new FixOf("GBP", "FAB", new Tenor("1M"));
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 100_000; i++) {
+      service.fix(ImmutableList.of(oneMonth));
+    }
+    report("cached fix lookups", 100_000, start);
+
+    RateFix fix = service.fix(ImmutableList.of(oneMonth)).get(0);
+    List<FilteredTransaction> transactions = new ArrayList<>(TRANSACTIONS);
+    for (int i = 0; i < TRANSACTIONS; i++) {
+      transactions.add(filteredFix(a, fix, oracle.getOwningKey()));
+    }
+
+    for (int batchSize : new int[]{1, 100}) {
+      start = System.nanoTime();
+      for (int i = 0; i < TRANSACTIONS; i += batchSize) {
+        List<FilteredTransaction> batch = transactions.subList(i, i + batchSize);
+        c.transaction(() -> service.sign(batch));
+      }
+      report(String.format("in-process signatures, batch %3d", batchSize), TRANSACTIONS, start);
+    }
+
+    for (int batchSize : new int[]{1, 100}) {
+      int count = batchSize == 1 ? TRANSACTIONS / 10 : TRANSACTIONS;
+      start = System.nanoTime();
+      for (int i = 0; i < count; i += batchSize) {
+        a.startFlow(new RateOracleFlows.SignFixes(oracle, new ArrayList<>(transactions.subList(i, i + batchSize)))).get();
+      }
+      report(String.format("flow signatures,       batch %3d", batchSize), count, start);
+    }
+  }
+
+  private static void report(String what, int count, long startNanos) {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    System.out.println(String.format("%-36s %8d in %6.2fs = %10.0f/s", what, count, seconds, count / seconds));
+  }
+}
@@ -0,0 +1,117 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.oracle.FixOf;
+import com.finfabrik.corda.oracle.RateFix;
+import com.finfabrik.corda.oracle.RateOracle;
+import com.finfabrik.corda.oracle.RateOracleFlows;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Command;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.finance.contracts.Tenor;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateOracleTests extends FXForwardTests {
+  private static Path rates;
+
+  @BeforeClass
+  public static void writeRates() throws Exception {
+    rates = Files.createTempFile("rates", ".csv");
+    Files.write(rates, ImmutableList.of("# pair,tenor,rate", "GBP/FAB,1M,0.0125", "GBP/FAB,3M,0.0127"), StandardCharsets.UTF_8);
+    System.setProperty("fxforward.oracle.ratesFile", rates.toString());
+  }
+
+  @AfterClass
+  public static void removeRates() throws Exception {
+    System.clearProperty("fxforward.oracle.ratesFile");
+    Files.deleteIfExists(rates);
+  }
+
+  @After
+  public void clearOracle() {
+    System.clearProperty("fxforward.oracle.name");
+  }
+
+  @Test
+  public void queryReturnsTheSameFixWithinAWindow() throws Exception {
+    Party oracle = chooseIdentity(c.getInfo());
+    FixOf oneMonth = new FixOf("GBP", "FAB", new Tenor("1M"));
+
+    List<RateFix> first = a.startFlow(new RateOracleFlows.QueryRates(oracle, ImmutableList.of(oneMonth))).get();
+    List<RateFix> second = b.startFlow(new RateOracleFlows.QueryRates(oracle, ImmutableList.of(oneMonth))).get();
+
+    assertEquals(0, new BigDecimal("0.0125").compareTo(first.get(0).getRate()));
+    assertEquals(first, second);
+  }
+
+  @Test
+  public void issuedForwardCarriesTheOracleSignedFix() throws Exception {
+    Party oracle = chooseIdentity(c.getInfo());
+    System.setProperty("fxforward.oracle.name", oracle.getName().toString());
+
+    SignedTransaction stx = issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false);
+    network.waitQuiescent();
+
+    List<Command<?>> commands = stx.getTx().getCommands();
+    assertTrue(commands.stream().anyMatch(it -> it.getValue() instanceof RateFix && it.getSigners().contains(oracle.getOwningKey())));
+    assertTrue(stx.getSigs().stream().anyMatch(it -> it.getBy().equals(oracle.getOwningKey())));
+  }
+
+  @Test(expected = Exception.class)
+  public void oracleRefusesAFixItDidNotServe() throws Exception {
+    Party oracle = chooseIdentity(c.getInfo());
+    RateOracle service = c.getServices().cordaService(RateOracle.class);
+    RateFix served = service.fix(ImmutableList.of(new FixOf("GBP", "FAB", new Tenor("1M")))).get(0);
+    RateFix tampered = new RateFix(served.getOf(), served.getWindow(), served.getRate().add(BigDecimal.ONE));
+
+    a.startFlow(new RateOracleFlows.SignFixes(oracle, ImmutableList.of(
+        RateOracleBenchmark.filteredFix(a, tampered, oracle.getOwningKey())))).get();
+  }
+
+  @Test
+  public void issueRejectsAFixNotSignedByTheNamedOracle() throws Exception {
+    Party us = chooseIdentity(a.getInfo());
+    Party them = chooseIdentity(b.getInfo());
+    Party oracle = chooseIdentity(c.getInfo());
+    Party notary = a.getServices().getNetworkMapCache().getNotaryIdentities().get(0);
+    FixOf oneMonth = new FixOf("GBP", "FAB", new Tenor("1M"));
+    FXForward forward = new FXForward(POUNDS(1000), tokenFaucet("FAB", 100), them, us, new Tenor("1M"), LocalDate.now().plusMonths(1));
+    // The seller attests its own rate while naming the oracle the buyer trusts.
+    TransactionBuilder builder = new TransactionBuilder(notary)
+        .addOutputState(forward, FXForwardContract.FORWARD_CONTRACT_ID)
+        .addCommand(new FXForwardContract.Commands.Issue(oracle.getOwningKey()), forward.getParticipantKeys())
+        .addCommand(new RateFix(oneMonth, Instant.now(), new BigDecimal("0.5")), us.getOwningKey());
+
+    try {
+      a.transaction(() -> {
+        builder.verify(a.getServices());
+        return null;
+      });
+      fail("A fix signed by the seller was accepted.");
+    } catch (Exception e) {
+      assertTrue(Throwables.getCausalChain(e).stream()
+          .anyMatch(it -> String.valueOf(it.getMessage()).contains("signed by the oracle named in the issue command")));
+    }
+  }
+}
@@ -2,16 +2,28 @@ package com.finfabrik.corda.flows;
 
 import com.finfabrik.corda.FXForward;
 import com.finfabrik.corda.Token;
+import com.finfabrik.corda.metrics.MetricsService;
+import com.finfabrik.corda.services.SettlementStagingService;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.finance.contracts.Tenor;
 import net.corda.finance.contracts.asset.Cash;
+import net.corda.testing.node.StartedMockNode;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import static net.corda.finance.Currencies.POUNDS;
 import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SettleFXForwardTests extends FXForwardTests {
 
@@ -21,7 +33,7 @@ public class SettleFXForwardTests extends FXForwardTests {
     selfIssueCash(a, POUNDS(1000));
     network.waitQuiescent();
 
-    SignedTransaction stx = issueToken(b, 100, "BTC");
+    SignedTransaction stx = issueToken(b, 100, "FAB");
     network.waitQuiescent();
 
     Token issuedToken = (Token) stx.getTx().getOutputStates().get(0);
@@ -47,4 +59,170 @@ public class SettleFXForwardTests extends FXForwardTests {
     List<Cash.State> outputCash = settleTransaction.getTx().outputsOfType(Cash.State.class);
     assertEquals(outputCash.get(0).getOwner(), chooseIdentity(b.getInfo()));
   }
+
+  /** The buyer's token issued by {@link #issueForwardAndToken}. */
+  private Token buyerToken;
+
+  /** A 1000 GBP forward for 100 FAB from a to b, and a token of 100 {@code tokenCode} held by b. */
+  private FXForward issueForwardAndToken(String tokenCode) throws Exception {
+    buyerToken = (Token) issueToken(b, 100, tokenCode).getTx().getOutputStates().get(0);
+    SignedTransaction stx = issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false);
+    network.waitQuiescent();
+    return (FXForward) stx.getTx().getOutputStates().get(0);
+  }
+
+  @Test
+  public void explicitAmountLeavesTheRestOutstanding() throws Exception {
+    selfIssueCash(a, POUNDS(1000));
+    FXForward forward = issueForwardAndToken("FAB");
+
+    SignedTransaction tranche = a.startFlow(new SettleFXForward.Initiator(
+        forward.getLinearId(), buyerToken.getLinearId(), false, POUNDS(400), 0, null)).get();
+    network.waitQuiescent();
+
+    assertEquals(forward.withBaseQuantity(POUNDS(600).getQuantity()), tranche.getTx().outputsOfType(FXForward.class).get(0));
+    assertTrue(tranche.getTx().outputsOfType(Token.class).isEmpty());
+  }
+
+  @Test
+  public void cashInputLimitSettlesInTranches() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      selfIssueCash(a, POUNDS(250));
+    }
+    FXForward forward = issueForwardAndToken("FAB");
+
+    SignedTransaction last = a.startFlow(new SettleFXForward.Initiator(
+        forward.getLinearId(), buyerToken.getLinearId(), false, null, 2, null)).get();
+    network.waitQuiescent();
+
+    // Two tranches of two 250 GBP states each; the second settles in full and takes the token.
+    assertTrue(last.getTx().outputsOfType(FXForward.class).isEmpty());
+    assertEquals(chooseIdentity(a.getInfo()), last.getTx().outputsOfType(Token.class).get(0).getOwner());
+    assertEquals(4, last.getTx().getInputs().size());
+    long received = b.transaction(() -> b.getServices().getVaultService().queryBy(Cash.State.class).getStates().stream()
+        .mapToLong(it -> it.getState().getData().getAmount().getQuantity()).sum());
+    assertEquals(POUNDS(1000).getQuantity(), received);
+    assertTrue(a.transaction(() -> a.getServices().getVaultService().queryBy(FXForward.class).getStates().isEmpty()));
+  }
+
+  @Test
+  public void buyerRejectsATokenOtherThanTheForwardsTerms() throws Exception {
+    selfIssueCash(a, POUNDS(1000));
+    FXForward forward = issueForwardAndToken("BTC");
+
+    try {
+      settleFXForward(forward.getLinearId(), buyerToken.getLinearId(), a, false);
+      fail("Expected the buyer to refuse to deliver a BTC token for a FAB forward.");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("settlement takes a token other than the forward's terms"));
+    }
+    network.waitQuiescent();
+
+    assertEquals(1, b.transaction(() -> b.getServices().getVaultService().queryBy(Token.class).getStates().size()).intValue());
+    assertEquals(1, b.transaction(() -> b.getServices().getVaultService().queryBy(FXForward.class).getStates().size()).intValue());
+  }
+
+  @Test
+  public void stagedSettlementIsOnlyNotarisedAtCutoff() throws Exception {
+    selfIssueCash(a, POUNDS(1000));
+    Token token = (Token) issueToken(b, 100, "FAB").getTx().getOutputStates().get(0);
+    FXForward forward = (FXForward) issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false)
+        .getTx().getOutputStates().get(0);
+    network.waitQuiescent();
+
+    SignedTransaction staged = a.startFlow(new StageSettlement.Initiator(forward.getLinearId())).get();
+    network.waitQuiescent();
+    // Signed by both parties but not yet on either ledger.
+    assertTrue(staged.getSigs().size() >= 2);
+    assertEquals(null, b.getServices().getValidatedTransactions().getTransaction(staged.getId()));
+
+    SignedTransaction settled = settleFXForward(forward.getLinearId(), null, a, false);
+    network.waitQuiescent();
+    assertEquals(staged.getId(), settled.getId());
+    assertEquals(token.getLinearId(), settled.getTx().outputsOfType(Token.class).get(0).getLinearId());
+    assertEquals(settled, b.getServices().getValidatedTransactions().getTransaction(settled.getId()));
+  }
+
+  @Test
+  public void liveSettlementDropsTheStagedTransactionAndItCanBeRestaged() throws Exception {
+    selfIssueCash(a, POUNDS(1000));
+    Token token = (Token) issueToken(b, 100, "FAB").getTx().getOutputStates().get(0);
+    FXForward forward = (FXForward) issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false)
+        .getTx().getOutputStates().get(0);
+    network.waitQuiescent();
+    a.startFlow(new StageSettlement.Initiator(forward.getLinearId())).get();
+    network.waitQuiescent();
+    SettlementStagingService staging = a.getServices().cordaService(SettlementStagingService.class);
+    assertTrue(staging.isStaged(forward.getLinearId()));
+
+    // A partial settlement spends the forward the staged transaction takes.
+    a.startFlow(new SettleFXForward.Initiator(forward.getLinearId(), token.getLinearId(), false, POUNDS(400), 0, null)).get();
+    network.waitQuiescent();
+    assertFalse(staging.isStaged(forward.getLinearId()));
+    assertEquals(0, locked(a, forward.getLinearId()));
+    assertEquals(0, locked(b, forward.getLinearId()));
+
+    SignedTransaction restaged = a.startFlow(new StageSettlement.Initiator(forward.getLinearId())).get();
+    network.waitQuiescent();
+    SignedTransaction settled = settleFXForward(forward.getLinearId(), null, a, false);
+    network.waitQuiescent();
+    assertEquals(restaged.getId(), settled.getId());
+    assertEquals(1, a.getServices().cordaService(MetricsService.class).getMetrics().count("staging.restaged"));
+    assertEquals(0, locked(a, forward.getLinearId()));
+  }
+
+  @Test
+  public void settlingWithAnotherTokenReleasesTheStagedReservations() throws Exception {
+    selfIssueCash(a, POUNDS(1000));
+    Token first = (Token) issueToken(b, 100, "FAB").getTx().getOutputStates().get(0);
+    Token second = (Token) issueToken(b, 100, "FAB").getTx().getOutputStates().get(0);
+    FXForward forward = (FXForward) issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false)
+        .getTx().getOutputStates().get(0);
+    network.waitQuiescent();
+    SignedTransaction staged = a.startFlow(new StageSettlement.Initiator(forward.getLinearId())).get();
+    network.waitQuiescent();
+    assertTrue(locked(a, forward.getLinearId()) > 0);
+    assertEquals(1, locked(b, forward.getLinearId()));
+
+    UniqueIdentifier stagedToken = staged.getTx().outputsOfType(Token.class).get(0).getLinearId();
+    UniqueIdentifier otherToken = stagedToken.equals(first.getLinearId()) ? second.getLinearId() : first.getLinearId();
+    SignedTransaction settled = settleFXForward(forward.getLinearId(), otherToken, a, false);
+    network.waitQuiescent();
+
+    assertEquals(otherToken, settled.getTx().outputsOfType(Token.class).get(0).getLinearId());
+    assertFalse(a.getServices().cordaService(SettlementStagingService.class).isStaged(forward.getLinearId()));
+    assertEquals(0, locked(a, forward.getLinearId()));
+    // The staged token is free for other forwards again.
+    assertEquals(0, locked(b, forward.getLinearId()));
+  }
+
+  @Test
+  public void stagingDueForwardsCountsAFailureAndCarriesOn() throws Exception {
+    selfIssueCash(a, POUNDS(2000));
+    issueToken(b, 100, "FAB");
+    FXForward first = (FXForward) issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false)
+        .getTx().getOutputStates().get(0);
+    FXForward second = (FXForward) issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false)
+        .getTx().getOutputStates().get(0);
+    network.waitQuiescent();
+
+    // The buyer holds one token, so only one of the two forwards can be staged.
+    List<UniqueIdentifier> staged = a.startFlow(new StageSettlement.StageDue(40)).get();
+    network.waitQuiescent();
+
+    assertEquals(1, staged.size());
+    UniqueIdentifier failed = staged.get(0).equals(first.getLinearId()) ? second.getLinearId() : first.getLinearId();
+    SettlementStagingService staging = a.getServices().cordaService(SettlementStagingService.class);
+    assertTrue(staging.isStaged(staged.get(0)));
+    assertFalse(staging.isStaged(failed));
+    assertEquals(0, locked(a, failed));
+    assertEquals(1, a.getServices().cordaService(MetricsService.class).getMetrics().count("staging.forwardFailures"));
+  }
+
+  /** Unconsumed states on {@code node} reserved to settle {@code contractId}. */
+  private static int locked(StartedMockNode node, UniqueIdentifier contractId) {
+    QueryCriteria reserved = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, null,
+        new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.SPECIFIED, ImmutableList.of(StageSettlement.lockId(contractId))), null);
+    return node.transaction(() -> node.getServices().getVaultService().queryBy(ContractState.class, reserved).getStates().size());
+  }
 }
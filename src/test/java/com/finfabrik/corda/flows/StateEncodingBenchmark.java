@@ -0,0 +1,122 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.Token;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.LinearState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.SerializationDefaults;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.contracts.Commodity;
+import net.corda.finance.contracts.Tenor;
+import org.junit.Test;
+
+import java.util.Currency;
+import java.util.List;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+
+/**
+ * Serialised size of the FXForward and Token states in the previous (full {@link Amount}) encoding
+ * against the current compact one, plus the size of complete issuance transactions.
+ *
+ * Run with {@code ./gradlew benchmark --tests '*StateEncodingBenchmark'}.
+ */
+public class StateEncodingBenchmark extends FXForwardTests {
+
+  @Test
+  public void stateAndTransactionBytes() throws Exception {
+    Party seller = chooseIdentity(a.getInfo());
+    Party buyer = chooseIdentity(b.getInfo());
+    Amount<Commodity> terms = tokenFaucet("FAB", 100);
+    UniqueIdentifier id = new UniqueIdentifier();
+
+    report("Token", new LegacyToken(terms, buyer, id), new Token(terms, buyer, id));
+    report("FXForward",
+        new LegacyFXForward(POUNDS(1000), terms, buyer, seller, new Tenor("1M"), id),
+        new FXForward(POUNDS(1000), terms, buyer, seller, new Tenor("1M"), id));
+
+    SignedTransaction tokenTx = issueToken(b, 100, "FAB");
+    SignedTransaction forwardTx = issueFXForward(a, b, POUNDS(1000), terms, new Tenor("1M"), false);
+    network.waitQuiescent();
+    System.out.println(String.format("Token issue transaction:     %6d bytes", size(tokenTx)));
+    System.out.println(String.format("FXForward issue transaction: %6d bytes", size(forwardTx)));
+  }
+
+  private static void report(String name, ContractState legacy, ContractState compact) {
+    int before = size(legacy);
+    int after = size(compact);
+    System.out.println(String.format("%-10s state: %6d bytes before, %6d bytes after (%.1f%%)",
+        name, before, after, 100.0 * (after - before) / before));
+  }
+
+  private static int size(Object obj) {
+    return SerializationFactory.Companion.getDefaultFactory()
+        .serialize(obj, SerializationDefaults.INSTANCE.getSTORAGE_CONTEXT())
+        .getSize();
+  }
+
+  /** Shape of {@link Token} before the compact encoding. */
+  public static class LegacyToken implements LinearState {
+    private final Amount<Commodity> amount;
+    private final Party owner;
+    private final UniqueIdentifier linearId;
+
+    public LegacyToken(Amount<Commodity> amount, Party owner, UniqueIdentifier linearId) {
+      this.amount = amount;
+      this.owner = owner;
+      this.linearId = linearId;
+    }
+
+    public Amount<Commodity> getAmount() { return amount; }
+
+    public Party getOwner() { return owner; }
+
+    @Override
+    public UniqueIdentifier getLinearId() { return linearId; }
+
+    @Override
+    public List<AbstractParty> getParticipants() { return ImmutableList.of(owner); }
+  }
+
+  /** Shape of {@link FXForward} before the compact encoding. */
+  public static class LegacyFXForward implements LinearState {
+    private final Amount<Currency> base;
+    private final Amount<Commodity> terms;
+    private final AbstractParty buyer;
+    private final AbstractParty seller;
+    private final Tenor tenor;
+    private final UniqueIdentifier linearId;
+
+    public LegacyFXForward(Amount<Currency> base, Amount<Commodity> terms, AbstractParty buyer, AbstractParty seller, Tenor tenor, UniqueIdentifier linearId) {
+      this.base = base;
+      this.terms = terms;
+      this.buyer = buyer;
+      this.seller = seller;
+      this.tenor = tenor;
+      this.linearId = linearId;
+    }
+
+    public Amount<Currency> getBase() { return base; }
+
+    public Amount<Commodity> getTerms() { return terms; }
+
+    public AbstractParty getBuyer() { return buyer; }
+
+    public AbstractParty getSeller() { return seller; }
+
+    public Tenor getTenor() { return tenor; }
+
+    @Override
+    public UniqueIdentifier getLinearId() { return linearId; }
+
+    @Override
+    public List<AbstractParty> getParticipants() { return ImmutableList.of(buyer, seller); }
+  }
+}
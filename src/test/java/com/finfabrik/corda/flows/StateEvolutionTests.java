@@ -0,0 +1,198 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.Token;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.SerializationContext;
+import net.corda.core.serialization.SerializationDefaults;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.utilities.ByteSequence;
+import net.corda.finance.contracts.Tenor;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Currency;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reads states written in each earlier schema version back through the current classes.
+ *
+ * Each earlier shape is compiled under the real class name into its own class loader and
+ * serialised there, so the bytes carry the old AMQP schema exactly as an older node stored them.
+ * Serialisation keeps a serializer factory per class loader, so reading them back with the
+ * default context goes through the current class and its deprecated constructors.
+ */
+public class StateEvolutionTests extends FXForwardTests {
+  private static final String FXFORWARD_V1 = String.join("\n",
+      "package com.finfabrik.corda;",
+      "import net.corda.core.contracts.*;",
+      "import net.corda.core.identity.AbstractParty;",
+      "import net.corda.finance.contracts.Commodity;",
+      "import net.corda.finance.contracts.Tenor;",
+      "import java.util.*;",
+      "public class FXForward implements LinearState {",
+      "  private final Amount<Currency> base; private final Amount<Commodity> terms;",
+      "  private final AbstractParty buyer; private final AbstractParty seller;",
+      "  private final Tenor tenor; private final UniqueIdentifier linearId;",
+      "  public FXForward(Amount<Currency> base, Amount<Commodity> terms, AbstractParty buyer, AbstractParty seller, Tenor tenor, UniqueIdentifier linearId) {",
+      "    this.base = base; this.terms = terms; this.buyer = buyer; this.seller = seller; this.tenor = tenor; this.linearId = linearId;",
+      "  }",
+      "  public Amount<Currency> getBase() { return base; }",
+      "  public Amount<Commodity> getTerms() { return terms; }",
+      "  public AbstractParty getBuyer() { return buyer; }",
+      "  public AbstractParty getSeller() { return seller; }",
+      "  public Tenor getTenor() { return tenor; }",
+      "  @Override public UniqueIdentifier getLinearId() { return linearId; }",
+      "  @Override public List<AbstractParty> getParticipants() { return Arrays.asList(buyer, seller); }",
+      "}");
+
+  private static final String FXFORWARD_V2 = String.join("\n",
+      "package com.finfabrik.corda;",
+      "import net.corda.core.contracts.*;",
+      "import net.corda.core.identity.AbstractParty;",
+      "import net.corda.finance.contracts.Tenor;",
+      "import java.util.*;",
+      "public class FXForward implements LinearState {",
+      "  private final long baseQuantity; private final Currency currency;",
+      "  private final long termsQuantity; private final String tokenCode;",
+      "  private final AbstractParty buyer; private final AbstractParty seller;",
+      "  private final Tenor tenor; private final UniqueIdentifier linearId;",
+      "  public FXForward(long baseQuantity, Currency currency, long termsQuantity, String tokenCode, AbstractParty buyer, AbstractParty seller, Tenor tenor, UniqueIdentifier linearId) {",
+      "    this.baseQuantity = baseQuantity; this.currency = currency; this.termsQuantity = termsQuantity; this.tokenCode = tokenCode;",
+      "    this.buyer = buyer; this.seller = seller; this.tenor = tenor; this.linearId = linearId;",
+      "  }",
+      "  public long getBaseQuantity() { return baseQuantity; }",
+      "  public Currency getCurrency() { return currency; }",
+      "  public long getTermsQuantity() { return termsQuantity; }",
+      "  public String getTokenCode() { return tokenCode; }",
+      "  public AbstractParty getBuyer() { return buyer; }",
+      "  public AbstractParty getSeller() { return seller; }",
+      "  public Tenor getTenor() { return tenor; }",
+      "  @Override public UniqueIdentifier getLinearId() { return linearId; }",
+      "  @Override public List<AbstractParty> getParticipants() { return Arrays.asList(buyer, seller); }",
+      "}");
+
+  private static final String TOKEN_V1 = String.join("\n",
+      "package com.finfabrik.corda;",
+      "import net.corda.core.contracts.*;",
+      "import net.corda.core.identity.*;",
+      "import net.corda.finance.contracts.Commodity;",
+      "import java.util.*;",
+      "public class Token implements LinearState {",
+      "  private final Amount<Commodity> amount; private final Party owner; private final UniqueIdentifier linearId;",
+      "  public Token(Amount<Commodity> amount, Party owner, UniqueIdentifier linearId) {",
+      "    this.amount = amount; this.owner = owner; this.linearId = linearId;",
+      "  }",
+      "  public Amount<Commodity> getAmount() { return amount; }",
+      "  public Party getOwner() { return owner; }",
+      "  @Override public UniqueIdentifier getLinearId() { return linearId; }",
+      "  @Override public List<AbstractParty> getParticipants() { return Collections.singletonList(owner); }",
+      "}");
+
+  @Test
+  public void readsVersionOneForwards() throws Exception {
+    Party buyer = chooseIdentity(b.getInfo());
+    Party seller = chooseIdentity(a.getInfo());
+    UniqueIdentifier id = new UniqueIdentifier();
+    ClassLoader v1 = compile("FXForward", FXFORWARD_V1);
+    Object old = v1.loadClass("com.finfabrik.corda.FXForward")
+        .getConstructor(Amount.class, Amount.class,
+            AbstractParty.class, AbstractParty.class, Tenor.class, UniqueIdentifier.class)
+        .newInstance(POUNDS(1000), tokenFaucet("FAB", 100), buyer, seller, new Tenor("1M"), id);
+
+    FXForward forward = roundTrip(old, v1, FXForward.class);
+
+    assertEquals(100_000L, forward.getBaseQuantity());
+    assertEquals(Currency.getInstance("GBP"), forward.getCurrency());
+    assertEquals(100L, forward.getTermsQuantity());
+    assertEquals("FAB", forward.getTokenCode());
+    assertEquals(buyer, forward.getBuyer());
+    assertEquals(seller, forward.getSeller());
+    assertEquals("1M", forward.getTenor().getName());
+    assertEquals(id, forward.getLinearId());
+    assertNull(forward.getValueDate());
+  }
+
+  @Test
+  public void readsVersionTwoForwards() throws Exception {
+    Party buyer = chooseIdentity(b.getInfo());
+    Party seller = chooseIdentity(a.getInfo());
+    UniqueIdentifier id = new UniqueIdentifier();
+    ClassLoader v2 = compile("FXForward", FXFORWARD_V2);
+    Object old = v2.loadClass("com.finfabrik.corda.FXForward")
+        .getConstructor(long.class, Currency.class, long.class, String.class,
+            AbstractParty.class, AbstractParty.class, Tenor.class, UniqueIdentifier.class)
+        .newInstance(100_000L, Currency.getInstance("GBP"), 100L, "FAB", buyer, seller, new Tenor("1M"), id);
+
+    FXForward forward = roundTrip(old, v2, FXForward.class);
+
+    assertEquals(100_000L, forward.getBaseQuantity());
+    assertEquals("FAB", forward.getTokenCode());
+    assertEquals(id, forward.getLinearId());
+    assertNull(forward.getValueDate());
+  }
+
+  @Test
+  public void readsVersionOneTokens() throws Exception {
+    Party owner = chooseIdentity(b.getInfo());
+    UniqueIdentifier id = new UniqueIdentifier();
+    ClassLoader v1 = compile("Token", TOKEN_V1);
+    Object old = v1.loadClass("com.finfabrik.corda.Token")
+        .getConstructor(Amount.class, Party.class, UniqueIdentifier.class)
+        .newInstance(tokenFaucet("FAB", 100), owner, id);
+
+    Token token = roundTrip(old, v1, Token.class);
+
+    assertEquals(100L, token.getQuantity());
+    assertEquals("FAB", token.getTokenCode());
+    assertEquals(owner, token.getOwner());
+    assertEquals(id, token.getLinearId());
+  }
+
+  /** Writes {@code old} as its own class loader sees it, then reads it back as the current {@code type}. */
+  private static <T> T roundTrip(Object old, ClassLoader oldLoader, Class<T> type) {
+    SerializationFactory factory = SerializationFactory.Companion.getDefaultFactory();
+    SerializationContext storage = SerializationDefaults.INSTANCE.getSTORAGE_CONTEXT();
+    ByteSequence bytes = factory.serialize(old, storage.withClassLoader(oldLoader));
+    return factory.deserialize(bytes, type, storage);
+  }
+
+  /** Compiles {@code source} as {@code com.finfabrik.corda.<name>} into a loader that prefers it over the current class. */
+  private static ClassLoader compile(String name, String source) throws Exception {
+    Path root = Files.createTempDirectory("evolution");
+    Path file = root.resolve("com/finfabrik/corda/" + name + ".java");
+    Files.createDirectories(file.getParent());
+    Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+    JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    int status = javac.run(null, null, null, "-parameters", "-classpath", System.getProperty("java.class.path"),
+        "-d", root.toString(), file.toString());
+    assertEquals("Compiling the old " + name, 0, status);
+
+    String className = "com.finfabrik.corda." + name;
+    return new URLClassLoader(new URL[]{root.toUri().toURL()}, StateEvolutionTests.class.getClassLoader()) {
+      @Override
+      protected Class<?> loadClass(String requested, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(requested)) {
+          if (!requested.equals(className)) {
+            return super.loadClass(requested, resolve);
+          }
+          Class<?> loaded = findLoadedClass(requested);
+          return loaded != null ? loaded : findClass(requested);
+        }
+      }
+    };
+  }
+}
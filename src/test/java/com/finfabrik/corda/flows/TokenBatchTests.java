@@ -0,0 +1,80 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.Token;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBatchTests extends FXForwardTests {
+
+  @Before
+  public void registerResponders() {
+    for (StartedMockNode node : ImmutableList.of(a, b, c)) {
+      node.registerInitiatedFlow(TokenBatchIssueFlowResponder.class);
+      node.registerInitiatedFlow(TokenBatchTransferFlowResponder.class);
+    }
+  }
+
+  private static Token token(long quantity, String code, Party owner) {
+    return new Token(quantity, code, owner, new UniqueIdentifier());
+  }
+
+  @Test
+  public void batchIssueCoversManyTokensAndOwners() throws Exception {
+    Party bParty = chooseIdentity(b.getInfo());
+    Party cParty = chooseIdentity(c.getInfo());
+    List<Token> tokens = ImmutableList.of(token(100, "FAB", bParty), token(50, "BTC", bParty), token(10, "FAB", cParty));
+
+    TokenBatchIssueFlow flow = new TokenBatchIssueFlow(tokens);
+    SignedTransaction stx = b.startFlow(flow).get();
+    network.waitQuiescent();
+
+    assertEquals(tokens, stx.getTx().outputsOfType(Token.class));
+    assertEquals(1, c.transaction(() -> c.getServices().getVaultService().queryBy(Token.class).getStates().size()).intValue());
+    // One signature round and one notarisation for the whole batch.
+    assertTrue(flow.getMessageStats().getSubFlows().size() <= 2);
+  }
+
+  @Test
+  public void batchTransferMovesEachTokenToItsNewOwner() throws Exception {
+    Party bParty = chooseIdentity(b.getInfo());
+    List<Token> tokens = ImmutableList.of(token(100, "FAB", bParty), token(50, "BTC", bParty), token(10, "FAB", bParty));
+    b.startFlow(new TokenBatchIssueFlow(tokens)).get();
+    network.waitQuiescent();
+
+    Party aParty = chooseIdentity(a.getInfo());
+    Party cParty = chooseIdentity(c.getInfo());
+    SignedTransaction stx = b.startFlow(new TokenBatchTransferFlow(ImmutableMap.of(
+        tokens.get(0).getLinearId(), aParty,
+        tokens.get(1).getLinearId(), cParty,
+        tokens.get(2).getLinearId(), cParty))).get();
+    network.waitQuiescent();
+
+    assertEquals(3, stx.getTx().getInputs().size());
+    assertTrue(stx.getTx().outputsOfType(Token.class).contains(tokens.get(0).withNewOwner(aParty)));
+    assertTrue(stx.getTx().outputsOfType(Token.class).contains(tokens.get(1).withNewOwner(cParty)));
+    assertEquals(2, c.transaction(() -> c.getServices().getVaultService().queryBy(Token.class).getStates().size()).intValue());
+    assertTrue(b.transaction(() -> b.getServices().getVaultService().queryBy(Token.class).getStates().isEmpty()));
+  }
+
+  @Test(expected = Exception.class)
+  public void batchTransferOfSomeoneElsesTokenFails() throws Exception {
+    Party cParty = chooseIdentity(c.getInfo());
+    Token theirs = token(10, "FAB", cParty);
+    c.startFlow(new TokenBatchIssueFlow(ImmutableList.of(theirs))).get();
+    network.waitQuiescent();
+
+    b.startFlow(new TokenBatchTransferFlow(ImmutableMap.of(theirs.getLinearId(), chooseIdentity(a.getInfo())))).get();
+  }
+}
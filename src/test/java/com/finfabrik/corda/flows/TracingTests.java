@@ -0,0 +1,105 @@
+package com.finfabrik.corda.flows;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.corda.finance.contracts.Tenor;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TracingTests extends FXForwardTests {
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static Path traces;
+
+  @BeforeClass
+  public static void enableTracing() throws IOException {
+    traces = Files.createTempDirectory("traces");
+    System.setProperty("fxforward.tracing.enabled", "true");
+    // One file per node, so no two writer threads append to the same file.
+    System.setProperty("fxforward.tracing.file", traces.resolve("{service}.ndjson").toString());
+  }
+
+  @AfterClass
+  public static void disableTracing() {
+    System.clearProperty("fxforward.tracing.enabled");
+    System.clearProperty("fxforward.tracing.file");
+  }
+
+  @Test
+  public void responderSpanJoinsTheInitiatorsTrace() throws Exception {
+    issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false);
+    network.waitQuiescent();
+
+    JsonNode initiator = awaitSpan(span -> span.get("name").asText().equals("IssueFXForward.Initiator"));
+    JsonNode responder = awaitSpan(span -> span.get("name").asText().equals("IssueFXForward.Responder")
+        && span.get("traceId").equals(initiator.get("traceId")));
+    assertFalse(responder.has("tags") && responder.get("tags").has("error"));
+    assertEquals("responder", responder.get("tags").get("flow.role").asText());
+    assertTrue(Files.exists(traces.resolve(a.getInfo().getLegalIdentities().get(0).getName().getOrganisation() + ".ndjson")));
+    assertTrue(Files.exists(traces.resolve(b.getInfo().getLegalIdentities().get(0).getName().getOrganisation() + ".ndjson")));
+  }
+
+  @Test
+  public void responderEndsItsSpanWhenItFails() throws Exception {
+    System.setProperty("fxforward.policy.pairs", "USD/FAB");
+    try {
+      issueFXForward(a, b, POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"), false);
+      fail("Expected the buyer's policy to reject the forward.");
+    } catch (ExecutionException e) {
+      // Expected.
+    } finally {
+      System.clearProperty("fxforward.policy.pairs");
+    }
+    network.waitQuiescent();
+
+    JsonNode responder = awaitSpan(span -> span.get("name").asText().equals("IssueFXForward.Responder")
+        && span.has("tags") && span.get("tags").has("error"));
+    assertTrue(responder.get("tags").get("error").asText().contains("rejected by policy"));
+  }
+
+  /** Spans are written by a background thread per node, so poll the files for a while. */
+  private static JsonNode awaitSpan(Predicate<JsonNode> matching) throws Exception {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (System.currentTimeMillis() < deadline) {
+      for (JsonNode span : readSpans()) {
+        if (matching.test(span)) {
+          return span;
+        }
+      }
+      Thread.sleep(200);
+    }
+    throw new AssertionError("No matching span in " + readSpans());
+  }
+
+  private static List<JsonNode> readSpans() throws IOException {
+    List<JsonNode> read = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(traces, "*.ndjson")) {
+      for (Path file : files) {
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+          try {
+            read.add(mapper.readTree(line));
+          } catch (IOException e) {
+            // A line still being written.
+          }
+        }
+      }
+    }
+    return read;
+  }
+}
@@ -0,0 +1,98 @@
+package com.finfabrik.corda.flows;
+
+import com.finfabrik.corda.metrics.Metrics;
+import com.finfabrik.corda.metrics.MetricsService;
+import com.finfabrik.corda.services.TradeSessionService;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.contracts.Tenor;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+
+/**
+ * Per-trade latency and throughput of issuing forwards with one flow pair per trade
+ * ({@link IssueFXForward}) against streaming them over a {@link TradeSession}, with the same number
+ * of trades in flight. Each trade is timed from submission until its notarised transaction is
+ * back with the seller.
+ *
+ * Run with {@code ./gradlew benchmark --tests '*TradeSessionBenchmark'}.
+ */
+public class TradeSessionBenchmark extends FXForwardTests {
+  private static final int WARMUP = 50;
+  private static final int TRADES = 500;
+  private static final int IN_FLIGHT = 16;
+
+  @Test
+  public void perTradeFlowsAgainstSession() throws Exception {
+    Party buyer = chooseIdentity(b.getInfo());
+    TradeSessionService sessions = a.getServices().cordaService(TradeSessionService.class);
+
+    perTradeFlows(buyer, WARMUP);
+    report("per-trade flows", perTradeFlows(buyer, TRADES));
+    report(b, "IssueFXForward.Responder");
+
+    session(sessions, buyer, WARMUP);
+    report("trade session", session(sessions, buyer, TRADES));
+    report(b, "TradeSession.Responder");
+    Metrics metrics = a.getServices().cordaService(MetricsService.class).getMetrics();
+    System.out.println(String.format("  %d sessions opened for %d trades", metrics.count("session.opened"), metrics.count("session.issued")));
+  }
+
+  private long[] perTradeFlows(Party buyer, int trades) throws Exception {
+    return run(trades, () -> a.startFlow(new IssueFXForward.Initiator(POUNDS(1000), tokenFaucet("FAB", 100), buyer, new Tenor("1M"), false))
+        .toCompletableFuture());
+  }
+
+  private long[] session(TradeSessionService sessions, Party buyer, int trades) throws Exception {
+    return run(trades, () -> sessions.submit(buyer, new TradeSession.Request(POUNDS(1000), tokenFaucet("FAB", 100), new Tenor("1M"))));
+  }
+
+  /** Keeps {@link #IN_FLIGHT} trades going until {@code trades} are done; returns each one's latency, then the wall time, in nanos. */
+  private long[] run(int trades, Trade trade) throws Exception {
+    Semaphore slots = new Semaphore(IN_FLIGHT);
+    long[] latencies = new long[trades + 1];
+    List<CompletableFuture<SignedTransaction>> done = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < trades; i++) {
+      slots.acquire();
+      int index = i;
+      long submitted = System.nanoTime();
+      done.add(trade.start().whenComplete((stx, error) -> {
+        latencies[index] = System.nanoTime() - submitted;
+        slots.release();
+      }));
+    }
+    CompletableFuture.allOf(done.toArray(new CompletableFuture[0])).get();
+    latencies[trades] = System.nanoTime() - start;
+    network.waitQuiescent();
+    return latencies;
+  }
+
+  private static void report(String label, long[] run) {
+    long wall = run[run.length - 1];
+    long[] latencies = Arrays.copyOf(run, run.length - 1);
+    Arrays.sort(latencies);
+    System.out.println(String.format("%-16s %6.1f trades/s, latency p50 %6.1f ms, p99 %6.1f ms, max %6.1f ms",
+        label, latencies.length * 1e9 / wall,
+        latencies[latencies.length / 2] / 1e6, latencies[latencies.length * 99 / 100] / 1e6, latencies[latencies.length - 1] / 1e6));
+  }
+
+  /** Responder flows the buyer started, one per session handshake. */
+  private static void report(StartedMockNode node, String flowName) {
+    Metrics metrics = node.getServices().cordaService(MetricsService.class).getMetrics();
+    System.out.println(String.format("  %s started %d times on the buyer", flowName, metrics.count("flow." + flowName + ".runs")));
+  }
+
+  private interface Trade {
+    CompletableFuture<SignedTransaction> start();
+  }
+}
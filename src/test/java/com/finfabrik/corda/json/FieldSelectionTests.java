@@ -0,0 +1,26 @@
+package com.finfabrik.corda.json;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FieldSelectionTests {
+
+  @Test
+  public void absentOrBlankSelectsEveryField() {
+    assertTrue(FieldSelection.parse(null).includes("linearId"));
+    assertTrue(FieldSelection.parse("").includes("linearId"));
+    assertTrue(FieldSelection.parse("  ").includes("linearId"));
+  }
+
+  @Test
+  public void selectsOnlyTheNamedFields() {
+    FieldSelection selection = FieldSelection.parse(" linearId, ,base ");
+
+    assertTrue(selection.includes("linearId"));
+    assertTrue(selection.includes("base"));
+    assertFalse(selection.includes("currency"));
+    assertFalse(selection.includes(""));
+  }
+}
@@ -0,0 +1,114 @@
+package com.finfabrik.corda.json;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardPlugin;
+import com.finfabrik.corda.TokenDefinitions;
+import net.corda.client.jackson.JacksonSupport;
+import net.corda.core.contracts.AlwaysAcceptAttachmentConstraint;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Issued;
+import net.corda.core.contracts.PartyAndReference;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.contracts.Tenor;
+import net.corda.finance.contracts.asset.Cash;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Payload size and serialisation time for 10k states: the Jackson bean output the endpoints used to
+ * return against the {@link Projection} views, both written by the mapper the webserver builds.
+ *
+ * Run with {@code ./gradlew benchmark --tests '*JsonProjectionBenchmark'}.
+ */
+public class JsonProjectionBenchmark {
+  private static final int STATES = 10_000;
+  private static final int RUNS = 7;
+
+  private final Party bank = party("FinCo", "London", "GB");
+  private final Party counterparty = party("FabBank", "New York", "US");
+  private final Party notary = party("Notary", "London", "GB");
+  private final Currency gbp = Currency.getInstance("GBP");
+
+  @Test
+  public void cashStates() throws Exception {
+    List<StateAndRef<Cash.State>> states = new ArrayList<>(STATES);
+    Issued<Currency> token = new Issued<>(new PartyAndReference(bank, OpaqueBytes.of((byte) 0)), gbp);
+    for (int i = 0; i < STATES; i++) {
+      Cash.State cash = new Cash.State(new Amount<>(1000L + i, token), counterparty);
+      states.add(new StateAndRef<>(
+          new TransactionState<>(cash, Cash.PROGRAM_ID, notary, null, AlwaysAcceptAttachmentConstraint.INSTANCE),
+          new StateRef(SecureHash.randomSHA256(), 0)));
+    }
+    Projections views = new Projections(
+        states.stream().map(it -> new CashView(it.getState().getData(), it.getRef())).collect(Collectors.toList()),
+        FieldSelection.parse(null));
+
+    report("cash", states, views);
+  }
+
+  @Test
+  public void forwards() throws Exception {
+    List<FXForward> forwards = new ArrayList<>(STATES);
+    List<ForwardView> views = new ArrayList<>(STATES);
+    for (int i = 0; i < STATES; i++) {
+      FXForward forward = new FXForward(new Amount<>(100_000L + i, gbp), new Amount<>(100L, TokenDefinitions.of("FAB")),
+          counterparty, bank, new Tenor("1M"));
+      forwards.add(forward);
+      views.add(new ForwardView(forward, new StateRef(SecureHash.randomSHA256(), 0)));
+    }
+
+    report("forwards", forwards, new Projections(views, FieldSelection.parse(null)));
+    report("forwards ?fields=linearId,base", forwards, new Projections(views, FieldSelection.parse("linearId,base")));
+  }
+
+  private void report(String name, Object before, Object after) throws Exception {
+    ObjectMapper mapper = webserverMapper();
+
+    System.out.println(String.format("%-32s beans: %9d bytes %7.1f ms | projections: %9d bytes %7.1f ms",
+        name,
+        mapper.writeValueAsBytes(before).length, medianMillis(mapper, before),
+        mapper.writeValueAsBytes(after).length, medianMillis(mapper, after)));
+  }
+
+  /** As the Corda webserver builds it: the RPC-backed default mapper, then the plugin's customisation. */
+  private static ObjectMapper webserverMapper() {
+    CordaRPCOps rpc = (CordaRPCOps) Proxy.newProxyInstance(CordaRPCOps.class.getClassLoader(), new Class<?>[]{CordaRPCOps.class},
+        (proxy, method, args) -> {
+          throw new UnsupportedOperationException(method.getName());
+        });
+    ObjectMapper mapper = JacksonSupport.createDefaultMapper(rpc);
+    new FXForwardPlugin().customizeJSONSerialization(mapper);
+    return mapper;
+  }
+
+  private static double medianMillis(ObjectMapper mapper, Object value) throws Exception {
+    double[] runs = new double[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      long start = System.nanoTime();
+      mapper.writeValueAsBytes(value);
+      runs[i] = (System.nanoTime() - start) / 1e6;
+    }
+    Arrays.sort(runs);
+    return runs[RUNS / 2];
+  }
+
+  private static Party party(String organisation, String locality, String country) {
+    return new Party(new CordaX500Name(organisation, locality, country),
+        Crypto.generateKeyPair(Crypto.EDDSA_ED25519_SHA512).getPublic());
+  }
+}
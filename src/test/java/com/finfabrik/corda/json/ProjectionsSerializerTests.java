@@ -0,0 +1,84 @@
+package com.finfabrik.corda.json;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.TokenDefinitions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import net.corda.client.jackson.JacksonSupport;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Issued;
+import net.corda.core.contracts.PartyAndReference;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.contracts.Tenor;
+import net.corda.finance.contracts.asset.Cash;
+import org.junit.Test;
+
+import java.util.Currency;
+
+import static net.corda.core.utilities.EncodingUtils.toBase58String;
+import static org.junit.Assert.assertEquals;
+
+public class ProjectionsSerializerTests {
+  private final ObjectMapper mapper = JacksonSupport.createNonRpcMapper();
+  private final Party seller = party("FinCo", "London", "GB");
+  private final Party buyer = party("FabBank", "New York", "US");
+  private final Currency gbp = Currency.getInstance("GBP");
+  private final StateRef ref = new StateRef(SecureHash.randomSHA256(), 1);
+  private final FXForward forward = new FXForward(new Amount<>(100_000L, gbp), new Amount<>(100L, TokenDefinitions.of("FAB")),
+      buyer, seller, new Tenor("1M"));
+
+  @Test
+  public void writesEachForwardAsAFlatRow() throws Exception {
+    JsonNode rows = write(new Projections(ImmutableList.of(new ForwardView(forward, ref)), FieldSelection.parse(null)));
+
+    assertEquals(1, rows.size());
+    JsonNode row = rows.get(0);
+    assertEquals(forward.getLinearId().toString(), row.get("linearId").asText());
+    assertEquals(ref.getTxhash().toString(), row.get("txId").asText());
+    assertEquals(1, row.get("outputIndex").asInt());
+    assertEquals(buyer.getName().toString(), row.get("buyer").asText());
+    assertEquals(seller.getName().toString(), row.get("seller").asText());
+    assertEquals(100_000L, row.get("base").asLong());
+    assertEquals("GBP", row.get("currency").asText());
+    assertEquals(100L, row.get("terms").asLong());
+    assertEquals("FAB", row.get("token").asText());
+    assertEquals("1M", row.get("tenor").asText());
+  }
+
+  @Test
+  public void writesOnlyTheSelectedFields() throws Exception {
+    JsonNode row = write(new Projections(ImmutableList.of(new ForwardView(forward, ref)), FieldSelection.parse("linearId,base"))).get(0);
+
+    assertEquals(ImmutableList.of("linearId", "base"), Lists.newArrayList(row.fieldNames()));
+  }
+
+  @Test
+  public void writesAnAnonymousOwnerAsItsKey() throws Exception {
+    AnonymousParty owner = new AnonymousParty(Crypto.generateKeyPair(Crypto.EDDSA_ED25519_SHA512).getPublic());
+    Cash.State cash = new Cash.State(new Amount<>(1000L, new Issued<>(new PartyAndReference(seller, OpaqueBytes.of((byte) 0)), gbp)), owner);
+
+    JsonNode row = write(new Projections(ImmutableList.of(new CashView(cash, ref)), FieldSelection.parse(null))).get(0);
+
+    assertEquals(toBase58String(owner.getOwningKey()), row.get("owner").asText());
+    assertEquals(seller.getName().toString(), row.get("issuer").asText());
+    assertEquals(1000L, row.get("quantity").asLong());
+    assertEquals("GBP", row.get("currency").asText());
+  }
+
+  private JsonNode write(Projections projections) throws Exception {
+    return mapper.readTree(mapper.writeValueAsString(projections));
+  }
+
+  private static Party party(String organisation, String locality, String country) {
+    return new Party(new CordaX500Name(organisation, locality, country),
+        Crypto.generateKeyPair(Crypto.EDDSA_ED25519_SHA512).getPublic());
+  }
+}
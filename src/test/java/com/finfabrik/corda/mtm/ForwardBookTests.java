@@ -0,0 +1,82 @@
+package com.finfabrik.corda.mtm;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.TokenDefinitions;
+import com.finfabrik.corda.oracle.FixOf;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.finance.contracts.Tenor;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ForwardBookTests {
+  private static final Currency GBP = Currency.getInstance("GBP");
+  private static final FixOf GBP_FAB_1M = new FixOf("GBP", "FAB", new Tenor("1M"));
+  private static final FixOf GBP_FAB_3M = new FixOf("GBP", "FAB", new Tenor("3M"));
+
+  private final Party us = party("FinCo");
+  private final Party them = party("FabBank");
+
+  // We sell 1000.00 GBP for 100 FAB: worth 100 / rate GBP to us.
+  private FXForward forward(String tenor) {
+    return new FXForward(new Amount<>(100_000L, GBP), new Amount<>(100L, TokenDefinitions.of("FAB")), them, us, new Tenor(tenor));
+  }
+
+  private static StateRef ref() {
+    return new StateRef(SecureHash.randomSHA256(), 0);
+  }
+
+  @Test
+  public void pricesTradesAndTotalsPerCounterparty() {
+    ForwardBook book = new ForwardBook(Integer.MAX_VALUE);
+    book.add(ref(), forward("1M"), "FabBank", true);
+    book.add(ref(), forward("1M"), "FabBank", false);
+    StateRef third = ref();
+    book.add(third, forward("3M"), "FabBank", true);
+
+    assertEquals(3, book.view(false).getUnpriced());
+    assertEquals(3, book.revalue(ImmutableMap.of(GBP_FAB_1M, new BigDecimal("0.08"), GBP_FAB_3M, new BigDecimal("0.125"))));
+
+    // 100 FAB at 0.08 is 1250.00 GBP (+250.00 to the seller); at 0.125 it is 800.00 GBP (-200.00).
+    MtmView view = book.view(true);
+    assertEquals(0, view.getUnpriced());
+    assertEquals(Long.valueOf(-20_000L), view.getCounterparties().get("FabBank").get("GBP"));
+
+    book.remove(third);
+    assertEquals(Long.valueOf(0L), book.view(false).getCounterparties().get("FabBank").get("GBP"));
+    assertEquals(2, book.size());
+  }
+
+  @Test
+  public void revaluesOnlyTradesWhoseRateMoved() {
+    ForwardBook book = new ForwardBook(1);
+    for (int i = 0; i < 10; i++) {
+      book.add(ref(), forward(i % 2 == 0 ? "1M" : "3M"), "FabBank", true);
+    }
+    book.revalue(ImmutableMap.of(GBP_FAB_1M, new BigDecimal("0.1"), GBP_FAB_3M, new BigDecimal("0.1")));
+
+    assertEquals(5, book.revalue(ImmutableMap.of(GBP_FAB_1M, new BigDecimal("0.1"), GBP_FAB_3M, new BigDecimal("0.08"))));
+    assertEquals(0, book.revalue(ImmutableMap.of(GBP_FAB_1M, new BigDecimal("0.1"), GBP_FAB_3M, new BigDecimal("0.08"))));
+    assertEquals(Long.valueOf(5 * 25_000L), book.view(false).getCounterparties().get("FabBank").get("GBP"));
+
+    // A trade booked after the tick is priced at the rates already seen.
+    book.add(ref(), forward("3M"), "Other", false);
+    assertEquals(Long.valueOf(-25_000L), book.view(true).getCounterparties().get("Other").get("GBP"));
+    assertNull(book.view(false).getTradePvs());
+  }
+
+  private static Party party(String organisation) {
+    return new Party(new CordaX500Name(organisation, "London", "GB"),
+        Crypto.generateKeyPair(Crypto.EDDSA_ED25519_SHA512).getPublic());
+  }
+}
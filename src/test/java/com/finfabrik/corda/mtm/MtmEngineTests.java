@@ -0,0 +1,65 @@
+package com.finfabrik.corda.mtm;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.Vault;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+import rx.subjects.PublishSubject;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class MtmEngineTests {
+  private final TestIdentity node = new TestIdentity(new CordaX500Name("FinCo", "London", "GB"));
+  // One update stream per vaultTrackBy call, so the test can fail or complete each engine's feed.
+  private final List<PublishSubject<Vault.Update<?>>> feeds = new ArrayList<>();
+  private final CordaRPCOps rpcOps = rpc();
+
+  @Test
+  public void engineLivesAsLongAsItsVaultFeed() {
+    MtmEngine first = MtmEngine.of(rpcOps);
+    assertSame(first, MtmEngine.of(rpcOps));
+    assertEquals(1, feeds.size());
+
+    feeds.get(0).onError(new IllegalStateException("Connection to the node lost."));
+    MtmEngine second = MtmEngine.of(rpcOps);
+    assertNotSame(first, second);
+    assertEquals(2, feeds.size());
+
+    feeds.get(1).onCompleted();
+    assertNotSame(second, MtmEngine.of(rpcOps));
+    assertEquals(3, feeds.size());
+    feeds.get(2).onCompleted();
+  }
+
+  /** Just enough of the RPC interface for the engine: an empty vault and a feed per call. */
+  private CordaRPCOps rpc() {
+    return (CordaRPCOps) Proxy.newProxyInstance(CordaRPCOps.class.getClassLoader(), new Class<?>[]{CordaRPCOps.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "nodeInfo":
+          return new NodeInfo(ImmutableList.of(), ImmutableList.of(node.getIdentity()), 3, 1L);
+        case "vaultQueryBy":
+          return emptyPage();
+        case "vaultTrackBy":
+          final PublishSubject<Vault.Update<?>> updates = PublishSubject.create();
+          feeds.add(updates);
+          return new DataFeed<>(emptyPage(), updates);
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  private static Vault.Page<?> emptyPage() {
+    return new Vault.Page<>(ImmutableList.of(), ImmutableList.of(), 0L, Vault.StateStatus.UNCONSUMED, ImmutableList.of());
+  }
+}
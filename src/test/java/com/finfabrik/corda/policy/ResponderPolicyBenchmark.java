@@ -0,0 +1,110 @@
+package com.finfabrik.corda.policy;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.TokenDefinitions;
+import com.finfabrik.corda.metrics.Metrics;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Amount;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.finance.contracts.Tenor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cost of one policy evaluation on an issue transaction, as the configured lists grow and as rules
+ * are added. Lookups are hashed, so the time per evaluation should not move with list size, and
+ * should grow only by the small per-rule cost as rules are added.
+ *
+ * Run with {@code ./gradlew benchmark --tests '*ResponderPolicyBenchmark'}.
+ */
+public class ResponderPolicyBenchmark {
+  private static final int EVALUATIONS = 200_000;
+  private static final int RUNS = 7;
+  private static final Currency GBP = Currency.getInstance("GBP");
+
+  private final Party us = party("FinCo");
+  private final Party them = party("FabBank");
+  private final ProposedTransaction issue = new ProposedTransaction(them,
+      ImmutableList.of(new FXForward(new Amount<>(500_000L, GBP), new Amount<>(100L, TokenDefinitions.of("FAB")), us, them, new Tenor("1M"))),
+      ImmutableList.of(new FXForwardContract.Commands.Issue()), ImmutableList::of, key -> key.equals(us.getOwningKey()));
+
+  @Test
+  public void configuredListSize() {
+    for (int entries : new int[]{1, 100, 10_000, 100_000}) {
+      ResponderPolicy policy = new ResponderPolicy(allRules(entries), metrics());
+      System.out.println(String.format("%7d entries per list, %d rules: %8.0f ns/evaluation",
+          entries, policy.size(), medianNanos(policy)));
+    }
+  }
+
+  @Test
+  public void ruleCount() {
+    List<PolicyRule> rules = allRules(1_000);
+    for (int count : new int[]{1, 5, 10, 20, 40}) {
+      List<PolicyRule> chosen = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        chosen.add(rules.get(i % rules.size()));
+      }
+      ResponderPolicy policy = new ResponderPolicy(chosen, metrics());
+      double nanos = medianNanos(policy);
+      System.out.println(String.format("%3d rules: %8.0f ns/evaluation, %6.0f ns/rule", count, nanos, nanos / count));
+    }
+  }
+
+  private List<PolicyRule> allRules(int entries) {
+    Set<CordaX500Name> names = new HashSet<>();
+    names.add(them.getName());
+    Map<Currency, Set<String>> pairs = new HashMap<>();
+    pairs.computeIfAbsent(GBP, it -> new HashSet<>()).add("FAB");
+    Map<Currency, Long> caps = new HashMap<>();
+    caps.put(GBP, 1_000_000L);
+    List<Currency> currencies = new ArrayList<>(Currency.getAvailableCurrencies());
+    for (int i = 1; i < entries; i++) {
+      names.add(new CordaX500Name("Bank" + i, "London", "GB"));
+      pairs.computeIfAbsent(currencies.get(i % currencies.size()), it -> new HashSet<>()).add("T" + i);
+      caps.putIfAbsent(currencies.get(i % currencies.size()), 1_000_000L + i);
+    }
+    return ImmutableList.of(
+        new PolicyRules.Counterparties(names),
+        new PolicyRules.Pairs(pairs),
+        new PolicyRules.TenorRange(7, 365),
+        new PolicyRules.NotionalCaps(caps),
+        new PolicyRules.OwnStates(),
+        new PolicyRules.SettlementAmounts());
+  }
+
+  private double medianNanos(ResponderPolicy policy) {
+    double[] runs = new double[RUNS];
+    for (int run = 0; run < RUNS; run++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < EVALUATIONS; i++) {
+        if (policy.evaluate(issue) != null) {
+          throw new AssertionError("benchmark transaction was rejected");
+        }
+      }
+      runs[run] = (System.nanoTime() - start) / (double) EVALUATIONS;
+    }
+    Arrays.sort(runs);
+    return runs[RUNS / 2];
+  }
+
+  private static Metrics metrics() {
+    return new Metrics("com.finfabrik.corda:type=PolicyBenchmark");
+  }
+
+  private static Party party(String organisation) {
+    return new Party(new CordaX500Name(organisation, "London", "GB"),
+        Crypto.generateKeyPair(Crypto.EDDSA_ED25519_SHA512).getPublic());
+  }
+}
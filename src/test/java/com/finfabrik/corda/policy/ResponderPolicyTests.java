@@ -0,0 +1,155 @@
+package com.finfabrik.corda.policy;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.FXForwardContract;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.TokenContract;
+import com.finfabrik.corda.TokenDefinitions;
+import com.finfabrik.corda.calendar.HolidayCalendar;
+import com.finfabrik.corda.calendar.ValueDates;
+import com.finfabrik.corda.metrics.Metrics;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.Issued;
+import net.corda.core.contracts.PartyAndReference;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.contracts.Tenor;
+import net.corda.finance.contracts.asset.Cash;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Currency;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResponderPolicyTests {
+  private static final Currency GBP = Currency.getInstance("GBP");
+
+  private final Party us = party("FinCo");
+  private final Party them = party("FabBank");
+  private final Metrics metrics = new Metrics("com.finfabrik.corda:type=PolicyTests");
+
+  private final ResponderPolicy policy = new ResponderPolicy(ImmutableList.of(
+      new PolicyRules.Counterparties(ImmutableSet.of(them.getName())),
+      new PolicyRules.Pairs(ImmutableMap.of(GBP, ImmutableSet.of("FAB"))),
+      new PolicyRules.TenorRange(7, 365),
+      new PolicyRules.NotionalCaps(ImmutableMap.of(GBP, 1_000_000L)),
+      new PolicyRules.OwnStates(),
+      new PolicyRules.SettlementAmounts()), metrics);
+
+  private FXForward forward(long pence, String token, String tenor) {
+    return new FXForward(new Amount<>(pence, GBP), new Amount<>(100L, TokenDefinitions.of(token)), us, them, new Tenor(tenor));
+  }
+
+  private ProposedTransaction proposed(Party from, List<ContractState> inputs, List<ContractState> outputs, CommandData command) {
+    return new ProposedTransaction(from, outputs, ImmutableList.of(command), () -> inputs, key -> key.equals(us.getOwningKey()));
+  }
+
+  private ProposedTransaction issue(FXForward forward) {
+    return proposed(them, ImmutableList.of(), ImmutableList.of(forward), new FXForwardContract.Commands.Issue());
+  }
+
+  @Test
+  public void acceptsAForwardWithinEveryRule() {
+    assertNull(policy.evaluate(issue(forward(500_000, "FAB", "1M"))));
+  }
+
+  @Test
+  public void rejectsOnTheFirstFailingRuleAndCountsIt() {
+    assertTrue(policy.evaluate(issue(forward(500_000, "BTC", "1M"))).startsWith("pairs:"));
+    assertTrue(policy.evaluate(issue(forward(500_000, "FAB", "2Y"))).startsWith("tenors:"));
+    assertTrue(policy.evaluate(issue(forward(2_000_000, "FAB", "1M"))).startsWith("notionalCaps:"));
+    assertTrue(policy.evaluate(proposed(party("Stranger"), ImmutableList.of(), ImmutableList.of(forward(500_000, "FAB", "1M")),
+        new FXForwardContract.Commands.Issue())).startsWith("counterparties:"));
+
+    assertEquals(1, metrics.count("policy.pairs.rejected"));
+    assertEquals(4, metrics.timer("policy.evaluate").getCount());
+  }
+
+  @Test
+  public void settlementMustPayTheFullBaseAmount() {
+    FXForward forward = forward(500_000, "FAB", "1M");
+    Issued<Currency> pounds = new Issued<>(new PartyAndReference(them, OpaqueBytes.of((byte) 0)), GBP);
+
+    assertNull(policy.evaluate(proposed(them, ImmutableList.of(forward),
+        ImmutableList.of(new Cash.State(new Amount<>(500_000L, pounds), us)), new FXForwardContract.Commands.Settle())));
+    assertTrue(policy.evaluate(proposed(them, ImmutableList.of(forward),
+        ImmutableList.of(new Cash.State(new Amount<>(499_999L, pounds), us)), new FXForwardContract.Commands.Settle()))
+        .startsWith("settlementAmounts:"));
+  }
+
+  @Test
+  public void issueMustHaveUsAsTheBuyer() {
+    FXForward reversed = new FXForward(new Amount<>(500_000L, GBP), new Amount<>(100L, TokenDefinitions.of("FAB")), them, us, new Tenor("1M"));
+
+    assertTrue(policy.evaluate(issue(reversed)).startsWith("ownStates:"));
+  }
+
+  @Test
+  public void onlySettlementsMayTakeOurToken() {
+    Token ours = new Token(100L, "FAB", us, new UniqueIdentifier());
+    Token moved = ours.withNewOwner(them);
+
+    assertTrue(policy.evaluate(proposed(them, ImmutableList.of(ours), ImmutableList.of(moved), new TokenContract.Commands.Transfer()))
+        .startsWith("ownStates:"));
+    Issued<Currency> pounds = new Issued<>(new PartyAndReference(us, OpaqueBytes.of((byte) 0)), GBP);
+    Cash.State cash = new Cash.State(new Amount<>(500_000L, pounds), us);
+    assertTrue(policy.evaluate(proposed(them, ImmutableList.of(cash), ImmutableList.of(new Cash.State(new Amount<>(500_000L, pounds), them)),
+        new FXForwardContract.Commands.Settle())).startsWith("ownStates:"));
+  }
+
+  @Test
+  public void settlementMayOnlyTakeTheForwardsToken() {
+    FXForward forward = forward(500_000, "FAB", "1M");
+    Issued<Currency> pounds = new Issued<>(new PartyAndReference(them, OpaqueBytes.of((byte) 0)), GBP);
+    Cash.State paid = new Cash.State(new Amount<>(500_000L, pounds), us);
+    Token fab = new Token(100L, "FAB", us, new UniqueIdentifier());
+    Token btc = new Token(100L, "BTC", us, new UniqueIdentifier());
+
+    assertNull(policy.evaluate(proposed(them, ImmutableList.of(forward, fab),
+        ImmutableList.of(paid, fab.withNewOwner(them)), new FXForwardContract.Commands.Settle())));
+    assertTrue(policy.evaluate(proposed(them, ImmutableList.of(forward, btc),
+        ImmutableList.of(paid, btc.withNewOwner(them)), new FXForwardContract.Commands.Settle()))
+        .startsWith("settlementAmounts:"));
+    assertTrue(policy.evaluate(proposed(them, ImmutableList.of(forward, fab),
+        ImmutableList.of(new Cash.State(new Amount<>(200_000L, pounds), us), forward.withBaseQuantity(300_000L), fab.withNewOwner(them)),
+        new FXForwardContract.Commands.Settle())).startsWith("settlementAmounts:"));
+  }
+
+  @Test
+  public void issueMustCarryTheValueDateOfOurCalendars() {
+    ValueDates valueDates = new ValueDates(HolidayCalendar::weekendsOnly);
+    Clock clock = Clock.fixed(Instant.parse("2026-10-19T09:00:00Z"), ZoneOffset.UTC);
+    PolicyRules.ValueDateCheck rule = new PolicyRules.ValueDateCheck(valueDates, clock);
+    LocalDate oneMonth = valueDates.valueDate(LocalDate.parse("2026-10-19"), new Tenor("1M"), "GBP", "FAB");
+    LocalDate lastNight = valueDates.valueDate(LocalDate.parse("2026-10-18"), new Tenor("1M"), "GBP", "FAB");
+
+    assertNull(rule.check(issue(forward(oneMonth))));
+    assertNull(rule.check(issue(forward(lastNight))));
+    assertEquals("value date is not the tenor's value date on our calendars", rule.check(issue(forward(oneMonth.plusDays(1)))));
+    assertEquals("forward has no value date", rule.check(issue(forward(500_000, "FAB", "1M"))));
+  }
+
+  private FXForward forward(LocalDate valueDate) {
+    return new FXForward(new Amount<>(500_000L, GBP), new Amount<>(100L, TokenDefinitions.of("FAB")), us, them, new Tenor("1M"), valueDate);
+  }
+
+  private static Party party(String organisation) {
+    return new Party(new CordaX500Name(organisation, "London", "GB"),
+        Crypto.generateKeyPair(Crypto.EDDSA_ED25519_SHA512).getPublic());
+  }
+}
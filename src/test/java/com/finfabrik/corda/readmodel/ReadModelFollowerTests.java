@@ -0,0 +1,273 @@
+package com.finfabrik.corda.readmodel;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.flows.IssueFXForward;
+import com.finfabrik.corda.flows.SettleFXForward;
+import com.finfabrik.corda.flows.TokenIssueFlow;
+import com.finfabrik.corda.metrics.Metrics;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.contracts.Commodity;
+import net.corda.finance.contracts.Tenor;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.flows.CashIssueFlow;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rx.Observable;
+import rx.subjects.PublishSubject;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.internal.InternalTestUtilsKt.chooseIdentity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReadModelFollowerTests {
+  private static final int PAGE_SIZE = 2;
+  private static final Duration MARK_INTERVAL = Duration.ofMillis(50);
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private MockNetwork network;
+  private StartedMockNode a;
+  private StartedMockNode b;
+  private ReadModelStore store;
+
+  // Updates the test adds to the node's own forward feed, and a query to run while catching up.
+  private final PublishSubject<Vault.Update<ContractState>> forwardUpdates = PublishSubject.create();
+  private final AtomicReference<Runnable> duringCatchUp = new AtomicReference<>();
+
+  @Before
+  public void setup() throws Exception {
+    network = new MockNetwork(
+        ImmutableList.of("com.finfabrik.corda", "net.corda.finance"),
+        new MockNetworkParameters().withThreadPerNode(true));
+    a = network.createPartyNode(null);
+    b = network.createPartyNode(null);
+    for (StartedMockNode node : ImmutableList.of(a, b)) {
+      node.registerInitiatedFlow(IssueFXForward.Responder.class);
+      node.registerInitiatedFlow(SettleFXForward.Responder.class);
+    }
+    store = ReadModelStore.open("jdbc:h2:file:" + folder.getRoot().getAbsolutePath() + "/readmodel");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    network.stopNodes();
+    store.close();
+  }
+
+  @Test
+  public void restartCatchesUpOnlyWhatChangedSinceTheWatermark() throws Exception {
+    selfIssueCash(POUNDS(1000));
+    Token token = issueToken(b, "FAB");
+    FXForward settled = issueForward();
+    FXForward open = issueForward();
+
+    ReadModelFollower first = follower(new Metrics("com.finfabrik.corda:type=FollowerTests,scope=first"));
+    first.start();
+    Instant watermark = first.getWatermark();
+    assertEquals(watermark, store.watermark());
+    assertEquals(2, store.forwards(null, null, null, null, null, 10).size());
+    first.stop();
+
+    // None of this reaches the store until the follower is started again.
+    a.startFlow(new SettleFXForward.Initiator(settled.getLinearId(), token.getLinearId(), false)).get();
+    FXForward later = issueForward();
+    network.waitQuiescent();
+    assertEquals(2, store.forwards(null, null, null, null, null, 10).size());
+
+    Metrics metrics = new Metrics("com.finfabrik.corda:type=FollowerTests,scope=second");
+    ReadModelFollower second = follower(metrics);
+    second.start();
+    try {
+      // Only the settlement and the later issue are read again, not the open forward or the tokens before it.
+      long caughtUp = metrics.count("readModel.caughtUp");
+      assertTrue(String.valueOf(caughtUp), caughtUp > 0 && caughtUp < vaultSize());
+      assertTrue(second.getWatermark().isAfter(watermark));
+
+      assertEquals(ImmutableSet.of(settled.getLinearId().toString()), linearIds(ReadModelStore.CONSUMED));
+      assertEquals(ImmutableSet.of(open.getLinearId().toString(), later.getLinearId().toString()), linearIds(ReadModelStore.UNCONSUMED));
+      assertEquals(1, store.tokens(null, "FAB", null, 10).size());
+    } finally {
+      second.stop();
+    }
+  }
+
+  @Test
+  public void updatesDuringCatchUpAreAppliedAfterItAndLaterOnesAtOnce() throws Exception {
+    issueForward();
+    StateAndRef<FXForward> forward = a.transaction(() ->
+        a.getServices().getVaultService().queryBy(FXForward.class).getStates().get(0));
+    // Catching up reads the forward as unconsumed; the consumption arrives while it does.
+    duringCatchUp.set(() -> forwardUpdates.onNext(update(ImmutableSet.of(forward), ImmutableSet.of())));
+
+    Metrics metrics = new Metrics("com.finfabrik.corda:type=FollowerTests,scope=ordering");
+    ReadModelFollower follower = follower(metrics);
+    follower.start();
+    try {
+      assertNull(duringCatchUp.get());
+      assertEquals(1, metrics.count("readModel.updates"));
+      assertEquals(ImmutableSet.of(forward.getState().getData().getLinearId().toString()), linearIds(ReadModelStore.CONSUMED));
+      assertTrue(linearIds(ReadModelStore.UNCONSUMED).isEmpty());
+
+      // Once started, an update is applied on the thread that delivers it.
+      forwardUpdates.onNext(update(ImmutableSet.of(), ImmutableSet.of(forward)));
+      assertEquals(2, metrics.count("readModel.updates"));
+      assertEquals(1, linearIds(ReadModelStore.UNCONSUMED).size());
+    } finally {
+      follower.stop();
+    }
+  }
+
+  @Test
+  public void watermarkFollowsLiveUpdatesUntilAFeedFails() throws Exception {
+    Metrics metrics = new Metrics("com.finfabrik.corda:type=FollowerTests,scope=marking");
+    ReadModelFollower follower = follower(metrics);
+    follower.start();
+    try {
+      assertNull(follower.getWatermark());
+
+      issueForward();
+      Instant recorded = a.transaction(() ->
+          a.getServices().getVaultService().queryBy(FXForward.class).getStatesMetadata().get(0).getRecordedTime());
+      await("the watermark to reach the forward", () -> recorded.equals(follower.getWatermark()));
+      assertEquals(recorded, store.watermark());
+
+      forwardUpdates.onError(new IllegalStateException("feed lost"));
+      assertEquals(1, metrics.count("readModel.markingStopped"));
+
+      // The token feed still applies updates, but the watermark no longer moves past the gap.
+      issueToken(a, "FAB");
+      await("the token to be applied", () -> store.tokens(null, "FAB", null, 10).size() == 1);
+      Thread.sleep(4 * MARK_INTERVAL.toMillis());
+      assertEquals(recorded, follower.getWatermark());
+      assertEquals(recorded, store.watermark());
+    } finally {
+      follower.stop();
+    }
+  }
+
+  private ReadModelFollower follower(Metrics metrics) {
+    return new ReadModelFollower(rpc(a), store, metrics, PAGE_SIZE, Duration.ZERO, MARK_INTERVAL);
+  }
+
+  private FXForward issueForward() throws Exception {
+    FXForward forward = (FXForward) a.startFlow(new IssueFXForward.Initiator(
+        POUNDS(1000), new Amount<>(100L, new Commodity("FAB", "FAB", 0)), chooseIdentity(b.getInfo()), new Tenor("1M"), false))
+        .get().getTx().getOutputStates().get(0);
+    network.waitQuiescent();
+    return forward;
+  }
+
+  private Token issueToken(StartedMockNode owner, String code) throws Exception {
+    Token token = new Token(Amount.fromDecimal(BigDecimal.valueOf(100), new Commodity(code, code, 0)),
+        chooseIdentity(owner.getInfo()), new UniqueIdentifier());
+    owner.startFlow(new TokenIssueFlow(token)).get();
+    network.waitQuiescent();
+    return token;
+  }
+
+  private void selfIssueCash(Amount<Currency> amount) throws Exception {
+    Party notary = a.getServices().getNetworkMapCache().getNotaryIdentities().get(0);
+    a.startFlow(new CashIssueFlow(amount, OpaqueBytes.of("0".getBytes()), notary)).get();
+    network.waitQuiescent();
+  }
+
+  private ImmutableSet<String> linearIds(String status) throws Exception {
+    ImmutableSet.Builder<String> ids = ImmutableSet.builder();
+    for (Map<String, Object> row : store.forwards(null, null, status, null, null, 10)) {
+      ids.add((String) row.get("linearId"));
+    }
+    return ids.build();
+  }
+
+  private int vaultSize() {
+    return a.transaction(() -> a.getServices().getVaultService()._queryBy(
+        new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL, ImmutableSet.of(FXForward.class, Token.class, Cash.State.class)),
+        new PageSpecification(1, 100), new Sort(Collections.emptyList()), ContractState.class).getStates().size());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Vault.Update<ContractState> update(ImmutableSet<? extends StateAndRef<?>> consumed, ImmutableSet<? extends StateAndRef<?>> produced) {
+    return new Vault.Update<>((ImmutableSet<StateAndRef<ContractState>>) consumed, (ImmutableSet<StateAndRef<ContractState>>) produced,
+        null, Vault.UpdateType.GENERAL);
+  }
+
+  private static void await(String what, Callable<Boolean> condition) throws Exception {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!condition.call()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for " + what);
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Just enough of the RPC interface for the follower, answered from the node's own services. The
+   * forward feed also carries {@link #forwardUpdates}, and the first catch-up page runs {@link #duringCatchUp}.
+   */
+  @SuppressWarnings("unchecked")
+  private CordaRPCOps rpc(StartedMockNode node) {
+    return (CordaRPCOps) Proxy.newProxyInstance(CordaRPCOps.class.getClassLoader(), new Class<?>[]{CordaRPCOps.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "nodeInfo":
+          return node.getInfo();
+        case "vaultQueryBy":
+          if (((PageSpecification) args[1]).getPageSize() == PAGE_SIZE) {
+            final Runnable hook = duringCatchUp.getAndSet(null);
+            if (hook != null) {
+              hook.run();
+            }
+          }
+          return node.transaction(() -> node.getServices().getVaultService()._queryBy(
+              (QueryCriteria) args[0], (PageSpecification) args[1], (Sort) args[2], (Class<ContractState>) args[3]));
+        case "vaultTrackBy":
+          final DataFeed<Vault.Page<ContractState>, Vault.Update<ContractState>> feed = node.transaction(() ->
+              node.getServices().getVaultService()._trackBy(
+                  (QueryCriteria) args[0], (PageSpecification) args[1], (Sort) args[2], (Class<ContractState>) args[3]));
+          final Observable<Vault.Update<ContractState>> updates = args[3] == FXForward.class
+              ? feed.getUpdates().mergeWith(forwardUpdates)
+              : feed.getUpdates();
+          return new DataFeed<>(feed.getSnapshot(), updates);
+        case "wellKnownPartyFromAnonymous":
+          return node.transaction(() -> node.getServices().getIdentityService().wellKnownPartyFromAnonymous((AbstractParty) args[0]));
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+}
@@ -0,0 +1,109 @@
+package com.finfabrik.corda.readmodel;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.TokenDefinitions;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.finance.contracts.Tenor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Currency;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ReadModelStoreTests {
+  private static final Currency GBP = Currency.getInstance("GBP");
+  private static final Currency USD = Currency.getInstance("USD");
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final Party us = party("FinCo");
+  private final Party them = party("FabBank");
+
+  private ReadModelStore open() throws Exception {
+    return ReadModelStore.open("jdbc:h2:file:" + folder.getRoot().getAbsolutePath() + "/readmodel");
+  }
+
+  private FXForward forward(Currency currency, long base, LocalDate valueDate) {
+    return new FXForward(new Amount<>(base, currency), new Amount<>(100L, TokenDefinitions.of("FAB")), them, us, new Tenor("1M"), valueDate);
+  }
+
+  private static StateRef ref() {
+    return new StateRef(SecureHash.randomSHA256(), 0);
+  }
+
+  @Test
+  public void filtersForwardsAndKeepsConsumedOnesOutOfTheOpenBook() throws Exception {
+    try (ReadModelStore store = open()) {
+      StateRef settled = ref();
+      store.putForward(ref(), ReadModelStore.UNCONSUMED, forward(GBP, 100_000L, LocalDate.of(2026, 11, 20)), "FabBank", true);
+      store.putForward(ref(), ReadModelStore.UNCONSUMED, forward(USD, 50_000L, LocalDate.of(2026, 12, 21)), "FabBank", false);
+      store.putForward(settled, ReadModelStore.UNCONSUMED, forward(GBP, 70_000L, LocalDate.of(2026, 11, 20)), "OtherBank", true);
+      store.consume(ReadModelStore.Table.FORWARDS, settled);
+      store.commit();
+
+      assertEquals(2, store.forwards(null, null, null, null, null, 100).size());
+      assertEquals(1, store.forwards(null, null, ReadModelStore.CONSUMED, null, null, 100).size());
+      List<Map<String, Object>> gbp = store.forwards("FabBank", "GBP", null, null, null, 100);
+      assertEquals(1, gbp.size());
+      assertEquals(100_000L, gbp.get(0).get("baseQuantity"));
+      assertEquals("2026-11-20", gbp.get(0).get("valueDate"));
+      assertEquals(1, store.forwards(null, null, null, LocalDate.of(2026, 12, 1), null, 100).size());
+
+      List<Map<String, Object>> totals = store.forwardTotals("currency");
+      assertEquals(2, totals.size());
+      assertEquals("GBP", totals.get(0).get("currency"));
+      assertEquals(100_000L, ((Number) totals.get(0).get("sold")).longValue());
+      assertEquals(0L, ((Number) totals.get(0).get("bought")).longValue());
+    }
+  }
+
+  @Test
+  public void mergingTheSameStateTwiceKeepsOneRow() throws Exception {
+    try (ReadModelStore store = open()) {
+      StateRef ref = ref();
+      Token token = new Token(100L, "FAB", them, new UniqueIdentifier());
+      store.putToken(ref, ReadModelStore.UNCONSUMED, token, "FabBank");
+      store.putToken(ref, ReadModelStore.CONSUMED, token, "FabBank");
+      store.commit();
+
+      assertEquals(0, store.tokens("FabBank", null, null, 100).size());
+      assertEquals(1, store.tokens("FabBank", "FAB", ReadModelStore.CONSUMED, 100).size());
+    }
+  }
+
+  @Test
+  public void watermarkAndRowsSurviveReopening() throws Exception {
+    Instant watermark = Instant.parse("2026-10-19T12:00:00Z");
+    try (ReadModelStore store = open()) {
+      assertNull(store.watermark());
+      store.putForward(ref(), ReadModelStore.UNCONSUMED, forward(GBP, 100_000L, null), "FabBank", true);
+      store.setWatermark(watermark);
+      store.commit();
+      store.putForward(ref(), ReadModelStore.UNCONSUMED, forward(GBP, 1L, null), "FabBank", true);
+      store.rollback();
+    }
+    try (ReadModelStore store = open()) {
+      assertEquals(watermark, store.watermark());
+      assertEquals(1, store.forwards(null, null, null, null, null, 100).size());
+    }
+  }
+
+  private static Party party(String name) {
+    return new Party(new CordaX500Name(name, "London", "GB"), Crypto.generateKeyPair().getPublic());
+  }
+}
@@ -0,0 +1,117 @@
+package com.finfabrik.corda.services;
+
+import com.finfabrik.corda.flows.TradeSession;
+import com.finfabrik.corda.metrics.MetricsService;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.Amount;
+import net.corda.core.flows.StateMachineRunId;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.internal.concurrent.OpenFuture;
+import net.corda.core.messaging.FlowHandleImpl;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.NodeInfo;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.contracts.Commodity;
+import net.corda.finance.contracts.Tenor;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static net.corda.core.internal.concurrent.CordaFutureImplKt.openFuture;
+import static net.corda.finance.Currencies.POUNDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TradeSessionServiceTests {
+  private final TestIdentity seller = new TestIdentity(new CordaX500Name("FinCo", "London", "GB"));
+  private final Party buyer = new TestIdentity(new CordaX500Name("FabBank", "London", "GB")).getParty();
+
+  // The return value of each session flow the service starts, completed by the test.
+  private final List<OpenFuture<Integer>> sessions = new ArrayList<>();
+  private final AppServiceHub serviceHub = serviceHub();
+  private final MetricsService metrics = new MetricsService(serviceHub);
+  private final TradeSessionService service = new TradeSessionService(serviceHub);
+
+  private TradeSession.Request request(int pounds) {
+    return new TradeSession.Request(POUNDS(pounds), new Amount<>(100L, new Commodity("FAB", "FAB", 0)), new Tenor("1M"));
+  }
+
+  @Test
+  public void failedSessionFailsWhatItTookAndRestartsForWhatIsStillQueued() throws Exception {
+    List<TradeSession.Request> requests = ImmutableList.of(request(1000), request(1001), request(1002));
+    List<CompletableFuture<SignedTransaction>> results = new ArrayList<>();
+    for (TradeSession.Request request : requests) {
+      results.add(service.submit(buyer, request));
+    }
+    assertEquals(1, sessions.size());
+
+    // The session takes two trades, then fails before it notarises them.
+    assertEquals(2, service.take(buyer, 2).size());
+    IllegalStateException lost = new IllegalStateException("The buyer went away.");
+    sessions.get(0).setException(lost);
+
+    for (CompletableFuture<SignedTransaction> taken : results.subList(0, 2)) {
+      try {
+        taken.get();
+        fail("A trade taken by the failed session completed.");
+      } catch (ExecutionException e) {
+        assertSame(lost, e.getCause());
+      }
+    }
+    assertFalse(results.get(2).isDone());
+    assertEquals(1, metrics.getMetrics().count("session.failures"));
+
+    // A new session picks up the trade still queued.
+    assertEquals(2, sessions.size());
+    List<TradeSession.Request> queued = service.take(buyer, 16);
+    assertEquals(1, queued.size());
+    assertEquals(requests.get(2).getLinearId(), queued.get(0).getLinearId());
+    service.completed(queued.get(0).getLinearId(), null);
+    assertTrue(results.get(2).isDone() && !results.get(2).isCompletedExceptionally());
+
+    assertTrue(service.closeIfIdle(buyer));
+    sessions.get(1).set(1);
+    assertEquals(2, sessions.size());
+  }
+
+  @Test
+  public void failedSessionWithNothingQueuedIsNotRestarted() {
+    CompletableFuture<SignedTransaction> result = service.submit(buyer, request(1000));
+    service.take(buyer, 16);
+    sessions.get(0).setException(new IllegalStateException("The buyer went away."));
+
+    assertTrue(result.isCompletedExceptionally());
+    assertEquals(1, sessions.size());
+
+    // The buyer has no open session now, so the next trade starts one.
+    service.submit(buyer, request(1001));
+    assertEquals(2, sessions.size());
+  }
+
+  /** Just enough of the node for the service: its identity, the metrics service, and flows the test completes. */
+  private AppServiceHub serviceHub() {
+    return (AppServiceHub) Proxy.newProxyInstance(AppServiceHub.class.getClassLoader(), new Class<?>[]{AppServiceHub.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getMyInfo":
+          return new NodeInfo(ImmutableList.of(), ImmutableList.of(seller.getIdentity()), 3, 1L);
+        case "cordaService":
+          return metrics;
+        case "startFlow":
+          final OpenFuture<Integer> session = openFuture();
+          sessions.add(session);
+          return new FlowHandleImpl<>(StateMachineRunId.Companion.createRandom(), session);
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+}
@@ -0,0 +1,318 @@
+package com.finfabrik.corda.soak;
+
+import com.finfabrik.corda.FXForward;
+import com.finfabrik.corda.Token;
+import com.finfabrik.corda.TokenDefinitions;
+import com.finfabrik.corda.flows.IssueFXForward;
+import com.finfabrik.corda.flows.SettleFXForward;
+import com.finfabrik.corda.flows.TokenIssueFlow;
+import com.finfabrik.corda.flows.TokenTransferFlow;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.contracts.Tenor;
+import net.corda.finance.flows.CashIssueFlow;
+import net.corda.finance.flows.CashPaymentFlow;
+import net.corda.testing.driver.DriverDSL;
+import net.corda.testing.driver.DriverParameters;
+import net.corda.testing.driver.NodeHandle;
+import net.corda.testing.driver.NodeParameters;
+import net.corda.testing.node.User;
+import org.junit.Test;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.corda.finance.Currencies.POUNDS;
+import static net.corda.testing.driver.Driver.driver;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs issue, settle, token transfer and payback cycles between two driver-started nodes for
+ * {@code soak.duration} (ISO-8601, default PT5M) with {@code soak.workers} (4) concurrent workers.
+ *
+ * Every {@code soak.sample} (PT15S) it records heap use, old generation occupancy after the last
+ * collection, GC count, time and longest pause, the unconsumed states and flows in flight on each
+ * node, and the count, mean and 99th percentile latency of each flow. The seller is issued one
+ * 1000 GBP state per worker up front. Each cycle settles with it and the buyer then pays it back,
+ * just as the token is transferred back, so every cycle ends with the states it began with. Consumed
+ * history grows by design while the unconsumed states stay flat; only the latter is sampled. The samples are written to
+ * {@code build/soak/soak.csv}; at the end every series is tested by {@link SoakSeries} and the
+ * growing ones are listed. Set {@code soak.failOnGrowth=true} to fail the run on any.
+ *
+ * Every flow and node start is waited on for at most {@code soak.flowTimeout} (PT2M), so a hung
+ * flow is counted as a failure rather than stalling its worker for the rest of the run.
+ *
+ * The nodes run in this JVM, so heap and GC figures cover both nodes and the driver. Flows in
+ * flight each hold a checkpoint and stand in for the checkpoint count, which RPC does not expose.
+ *
+ * Run with {@code ./gradlew soak -Pduration=PT6H}.
+ */
+public class SoakBenchmark {
+  private static final Duration DURATION = Duration.parse(System.getProperty("soak.duration", "PT5M"));
+  private static final Duration SAMPLE = Duration.parse(System.getProperty("soak.sample", "PT15S"));
+  private static final Duration FLOW_TIMEOUT = Duration.parse(System.getProperty("soak.flowTimeout", "PT2M"));
+  private static final int WORKERS = Integer.getInteger("soak.workers", 4);
+  private static final Path REPORT = Paths.get(System.getProperty("soak.report", "build/soak/soak.csv"));
+  private static final List<String> FLOWS = ImmutableList.of("issue", "settle", "transfer", "payback");
+
+  private final Map<String, ConcurrentLinkedQueue<Long>> latencies = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+  private final Map<String, SoakSeries> series = new LinkedHashMap<>();
+  private final AtomicLong gcPauseMaxMillis = new AtomicLong();
+
+  @Test
+  public void soak() throws Exception {
+    User user = new User("soak", "soak", ImmutableSet.of("ALL"));
+    driver(new DriverParameters()
+            .setStartNodesInProcess(true)
+            .setExtraCordappPackagesToScan(ImmutableList.of("com.finfabrik.corda", "net.corda.finance")),
+        dsl -> {
+          try {
+            run(dsl, user);
+          } catch (Exception e) {
+            throw new RuntimeException("Soak run failed", e);
+          }
+          return null;
+        });
+
+    List<SoakSeries> growing = new ArrayList<>();
+    System.out.println(String.format("Soak trends over %s (flagged when tau >= %.1f and growth >= %.0f%%):",
+        DURATION, SoakSeries.FLAG_TAU, 100 * SoakSeries.FLAG_GROWTH));
+    for (SoakSeries it : series.values()) {
+      System.out.println("  " + it);
+      if (it.isGrowing()) {
+        growing.add(it);
+      }
+    }
+    System.out.println("Failures: " + failures + ". Samples in " + REPORT.toAbsolutePath());
+    if (Boolean.getBoolean("soak.failOnGrowth")) {
+      assertTrue("Growing over the run: " + growing, growing.isEmpty());
+    }
+  }
+
+  private void run(DriverDSL dsl, User user) throws Exception {
+    NodeHandle seller = dsl.startNode(new NodeParameters()
+        .setProvidedName(new CordaX500Name("SoakSeller", "London", "GB"))
+        .setRpcUsers(ImmutableList.of(user))).get(FLOW_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    NodeHandle buyer = dsl.startNode(new NodeParameters()
+        .setProvidedName(new CordaX500Name("SoakBuyer", "New York", "US"))
+        .setRpcUsers(ImmutableList.of(user))).get(FLOW_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    CordaRPCOps a = seller.getRpc();
+    CordaRPCOps b = buyer.getRpc();
+    Party sellerParty = a.nodeInfo().getLegalIdentities().get(0);
+    Party buyerParty = b.nodeInfo().getLegalIdentities().get(0);
+    Party notary = a.notaryIdentities().get(0);
+
+    List<UniqueIdentifier> tokens = new ArrayList<>();
+    for (int i = 0; i < WORKERS; i++) {
+      a.startFlowDynamic(CashIssueFlow.class, POUNDS(1000), OpaqueBytes.of((byte) 0), notary)
+          .getReturnValue().get(FLOW_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+      Token token = new Token(100L, "FAB", buyerParty, new UniqueIdentifier());
+      b.startFlowDynamic(TokenIssueFlow.class, token).getReturnValue().get(FLOW_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+      tokens.add(token.getLinearId());
+    }
+
+    watchGcPauses();
+    PrintWriter csv = report();
+    long start = System.nanoTime();
+    long deadline = start + DURATION.toNanos();
+    ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+    for (UniqueIdentifier tokenId : tokens) {
+      workers.submit(() -> {
+        while (System.nanoTime() < deadline) {
+          if (!cycle(a, b, sellerParty, buyerParty, tokenId)) {
+            // Don't let a broken cycle spin; the failure is counted and shows in the report.
+            Thread.sleep(1000);
+          }
+        }
+        return null;
+      });
+    }
+
+    long[] gcBefore = gcTotals();
+    while (!workers.awaitTermination(SAMPLE.toMillis(), TimeUnit.MILLISECONDS)) {
+      gcBefore = sample(csv, (System.nanoTime() - start) / 1e9, a, b, gcBefore);
+      if (System.nanoTime() > deadline) {
+        workers.shutdown();
+      }
+    }
+    sample(csv, (System.nanoTime() - start) / 1e9, a, b, gcBefore);
+    csv.close();
+  }
+
+  /** A forward, its settlement, then the token and the cash back to where they started for the next cycle. */
+  private boolean cycle(CordaRPCOps a, CordaRPCOps b, Party seller, Party buyer, UniqueIdentifier tokenId) {
+    SignedTransaction issued = timed("issue", () -> a.startFlowDynamic(IssueFXForward.Initiator.class,
+        POUNDS(1000), new Amount<>(100L, TokenDefinitions.of("FAB")), buyer, new Tenor("1M"), false)
+        .getReturnValue().get(FLOW_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+    if (issued == null) {
+      return false;
+    }
+    FXForward forward = issued.getTx().outputsOfType(FXForward.class).get(0);
+    if (timed("settle", () -> a.startFlowDynamic(SettleFXForward.Initiator.class, forward.getLinearId(), tokenId, false)
+        .getReturnValue().get(FLOW_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) == null) {
+      return false;
+    }
+    if (timed("transfer", () -> a.startFlowDynamic(TokenTransferFlow.class, tokenId, buyer)
+        .getReturnValue().get(FLOW_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) == null) {
+      return false;
+    }
+    // Paid to the seller's well-known key, so no confidential identity is created per cycle.
+    return timed("payback", () -> b.startFlowDynamic(CashPaymentFlow.class, POUNDS(1000), seller, false)
+        .getReturnValue().get(FLOW_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) != null;
+  }
+
+  private interface FlowCall<T> {
+    T call() throws Exception;
+  }
+
+  private <T> T timed(String flow, FlowCall<T> call) {
+    long start = System.nanoTime();
+    try {
+      T result = call.call();
+      latencies.computeIfAbsent(flow, it -> new ConcurrentLinkedQueue<>()).add(System.nanoTime() - start);
+      return result;
+    } catch (Exception e) {
+      failures.computeIfAbsent(flow, it -> new AtomicLong()).incrementAndGet();
+      return null;
+    }
+  }
+
+  private PrintWriter report() throws IOException {
+    Files.createDirectories(REPORT.toAbsolutePath().getParent());
+    PrintWriter csv = new PrintWriter(Files.newBufferedWriter(REPORT, StandardCharsets.UTF_8));
+    List<String> columns = new ArrayList<>(ImmutableList.of("seconds", "heapUsedMb", "oldGenAfterGcMb",
+        "gcCount", "gcMillis", "gcPauseMaxMillis", "sellerVaultStates", "buyerVaultStates",
+        "sellerFlowsInFlight", "buyerFlowsInFlight"));
+    for (String flow : FLOWS) {
+      columns.add(flow + "Count");
+      columns.add(flow + "MeanMs");
+      columns.add(flow + "P99Ms");
+    }
+    csv.println(String.join(",", columns));
+    for (String column : columns.subList(1, columns.size())) {
+      series.put(column, new SoakSeries(column));
+    }
+    return csv;
+  }
+
+  private long[] sample(PrintWriter csv, double seconds, CordaRPCOps a, CordaRPCOps b, long[] gcBefore) {
+    long[] gc = gcTotals();
+    Map<String, Double> row = new LinkedHashMap<>();
+    row.put("heapUsedMb", mb(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()));
+    row.put("oldGenAfterGcMb", mb(oldGenAfterGc()));
+    row.put("gcCount", (double) (gc[0] - gcBefore[0]));
+    row.put("gcMillis", (double) (gc[1] - gcBefore[1]));
+    row.put("gcPauseMaxMillis", (double) gcPauseMaxMillis.getAndSet(0));
+    row.put("sellerVaultStates", (double) vaultStates(a));
+    row.put("buyerVaultStates", (double) vaultStates(b));
+    row.put("sellerFlowsInFlight", (double) a.stateMachinesSnapshot().size());
+    row.put("buyerFlowsInFlight", (double) b.stateMachinesSnapshot().size());
+    for (String flow : FLOWS) {
+      List<Long> drained = drain(flow);
+      row.put(flow + "Count", (double) drained.size());
+      row.put(flow + "MeanMs", drained.isEmpty() ? Double.NaN : drained.stream().mapToLong(Long::longValue).average().getAsDouble() / 1e6);
+      row.put(flow + "P99Ms", drained.isEmpty() ? Double.NaN : drained.get((int) Math.ceil(drained.size() * 0.99) - 1) / 1e6);
+    }
+
+    StringBuilder line = new StringBuilder(String.format("%.1f", seconds));
+    row.forEach((column, value) -> {
+      line.append(',').append(Double.isNaN(value) ? "" : String.format("%.2f", value));
+      series.get(column).add(seconds, value);
+    });
+    csv.println(line);
+    csv.flush();
+    return gc;
+  }
+
+  private List<Long> drain(String flow) {
+    List<Long> drained = new ArrayList<>();
+    ConcurrentLinkedQueue<Long> queue = latencies.get(flow);
+    for (Long latency = queue == null ? null : queue.poll(); latency != null; latency = queue.poll()) {
+      drained.add(latency);
+    }
+    Collections.sort(drained);
+    return drained;
+  }
+
+  /** Unconsumed states only: consumed history grows with every cycle by design. */
+  private static long vaultStates(CordaRPCOps rpc) {
+    return rpc.vaultQueryBy(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED), new PageSpecification(1, 1),
+        new Sort(Collections.emptyList()), ContractState.class).getTotalStatesAvailable();
+  }
+
+  /** Old generation occupancy after its last collection: the floor a leak keeps raising. Heap use if there is no such pool. */
+  private static long oldGenAfterGc() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+          && (pool.getName().contains("Old") || pool.getName().contains("Tenured"))) {
+        return pool.getCollectionUsage().getUsed();
+      }
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long[] gcTotals() {
+    long count = 0;
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return new long[]{count, millis};
+  }
+
+  /** Longest single collection per sample, from HotSpot's GC notifications. */
+  private void watchGcPauses() {
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gc instanceof NotificationEmitter) {
+        ((NotificationEmitter) gc).addNotificationListener((Notification notification, Object handback) -> {
+          if ("com.sun.management.gc.notification".equals(notification.getType())) {
+            long duration = com.sun.management.GarbageCollectionNotificationInfo
+                .from((CompositeData) notification.getUserData()).getGcInfo().getDuration();
+            gcPauseMaxMillis.accumulateAndGet(duration, Math::max);
+          }
+        }, null, null);
+      }
+    }
+  }
+
+  private static double mb(long bytes) {
+    return bytes / (1024.0 * 1024.0);
+  }
+}
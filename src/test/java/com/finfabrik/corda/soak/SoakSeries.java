@@ -0,0 +1,106 @@
+package com.finfabrik.corda.soak;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One measurement sampled over a soak run, with a test for steady growth.
+ *
+ * Growth is judged on two numbers: Kendall's tau between sample time and value (1 when every
+ * sample is above all earlier ones, around 0 for noise or a sawtooth that returns to its level)
+ * and the rise of the least-squares line over the run, relative to where it started. A series is
+ * flagged when both are high, so a noisy but flat heap or a one-off jump is not reported as a leak.
+ */
+final class SoakSeries {
+  static final double FLAG_TAU = 0.5;
+  static final double FLAG_GROWTH = 0.1;
+
+  private final String name;
+  private final List<double[]> points = new ArrayList<>();
+
+  SoakSeries(String name) {
+    this.name = name;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  void add(double seconds, double value) {
+    if (!Double.isNaN(value)) {
+      points.add(new double[]{seconds, value});
+    }
+  }
+
+  int size() {
+    return points.size();
+  }
+
+  double tau() {
+    long concordant = 0;
+    long discordant = 0;
+    for (int i = 0; i < points.size(); i++) {
+      for (int j = i + 1; j < points.size(); j++) {
+        final double dt = points.get(j)[0] - points.get(i)[0];
+        final double dv = points.get(j)[1] - points.get(i)[1];
+        if (dt * dv > 0) {
+          concordant++;
+        } else if (dt * dv < 0) {
+          discordant++;
+        }
+      }
+    }
+    final long pairs = (long) points.size() * (points.size() - 1) / 2;
+    return pairs == 0 ? 0.0 : (double) (concordant - discordant) / pairs;
+  }
+
+  /** Value per second of the least-squares line. */
+  double slope() {
+    final int n = points.size();
+    if (n < 2) {
+      return 0.0;
+    }
+    double meanT = 0;
+    double meanV = 0;
+    for (double[] point : points) {
+      meanT += point[0] / n;
+      meanV += point[1] / n;
+    }
+    double covariance = 0;
+    double variance = 0;
+    for (double[] point : points) {
+      covariance += (point[0] - meanT) * (point[1] - meanV);
+      variance += (point[0] - meanT) * (point[0] - meanT);
+    }
+    return variance == 0 ? 0.0 : covariance / variance;
+  }
+
+  /** Rise of the fitted line from the first to the last sample, as a fraction of its starting value. */
+  double growth() {
+    if (points.size() < 2) {
+      return 0.0;
+    }
+    final double slope = slope();
+    final double first = points.get(0)[0];
+    final double last = points.get(points.size() - 1)[0];
+    double meanT = 0;
+    double meanV = 0;
+    for (double[] point : points) {
+      meanT += point[0] / points.size();
+      meanV += point[1] / points.size();
+    }
+    final double start = meanV + slope * (first - meanT);
+    final double rise = slope * (last - first);
+    return Math.abs(start) < 1e-9 ? (rise > 0 ? Double.POSITIVE_INFINITY : 0.0) : rise / Math.abs(start);
+  }
+
+  boolean isGrowing() {
+    return size() >= 4 && tau() >= FLAG_TAU && growth() >= FLAG_GROWTH;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%-28s %s tau=%5.2f growth=%+7.1f%% slope=%.4g/h",
+        name, isGrowing() ? "GROWING" : "steady ", tau(), 100 * growth(), slope() * 3600);
+  }
+}
@@ -0,0 +1,30 @@
+package com.finfabrik.corda.soak;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SoakSeriesTests {
+
+  @Test
+  public void flagsSteadyGrowthUnderNoise() {
+    SoakSeries heap = new SoakSeries("oldGenAfterGcMb");
+    for (int i = 0; i < 100; i++) {
+      heap.add(i * 30, 200 + i * 0.5 + (i % 3 == 0 ? 4 : -2));
+    }
+    assertTrue(heap.toString(), heap.isGrowing());
+  }
+
+  @Test
+  public void ignoresSawtoothAndSingleJump() {
+    SoakSeries sawtooth = new SoakSeries("heapUsedMb");
+    SoakSeries jump = new SoakSeries("issueMeanMs");
+    for (int i = 0; i < 100; i++) {
+      sawtooth.add(i * 30, 200 + (i % 10) * 30);
+      jump.add(i * 30, i == 50 ? 900 : 40 + (i % 2));
+    }
+    assertFalse(sawtooth.toString(), sawtooth.isGrowing());
+    assertFalse(jump.toString(), jump.isGrowing());
+  }
+}
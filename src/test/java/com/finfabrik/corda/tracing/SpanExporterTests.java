@@ -0,0 +1,68 @@
+package com.finfabrik.corda.tracing;
+
+import com.finfabrik.corda.metrics.Metrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpanExporterTests {
+  private final Metrics metrics = new Metrics("com.finfabrik.corda:type=Metrics,scope=SpanExporterTests");
+  private Path traces;
+
+  @Before
+  public void enableTracing() throws Exception {
+    traces = Files.createTempDirectory("traces");
+    System.setProperty("fxforward.tracing.enabled", "true");
+    System.setProperty("fxforward.tracing.file", traces.resolve("{service}.ndjson").toString());
+  }
+
+  @After
+  public void disableTracing() {
+    System.clearProperty("fxforward.tracing.enabled");
+    System.clearProperty("fxforward.tracing.file");
+  }
+
+  @Test
+  public void closeWritesOutTheQueueAndStopsTheWriter() throws Exception {
+    SpanExporter exporter = new SpanExporter("PartyA", metrics);
+    TraceContext trace = TraceContext.newTrace();
+    for (int i = 0; i < 100; i++) {
+      exporter.export(new Span(trace, "span-" + i), null);
+    }
+    exporter.close();
+
+    Path file = traces.resolve("PartyA.ndjson");
+    assertEquals(100, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+    assertEquals(100, metrics.count("tracing.exported"));
+    assertFalse(writerRunning("PartyA"));
+
+    // Spans after close are ignored, and closing again does nothing.
+    exporter.export(new Span(trace, "late"), null);
+    exporter.close();
+    assertEquals(100, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+  }
+
+  @Test
+  public void eachServiceWritesItsOwnFile() throws Exception {
+    try (SpanExporter partyA = new SpanExporter("PartyA", metrics);
+         SpanExporter partyB = new SpanExporter("PartyB", metrics)) {
+      partyA.export(new Span(TraceContext.newTrace(), "a"), null);
+      partyB.export(new Span(TraceContext.newTrace(), "b"), null);
+    }
+
+    assertTrue(Files.readAllLines(traces.resolve("PartyA.ndjson"), StandardCharsets.UTF_8).get(0).contains("\"serviceName\":\"PartyA\""));
+    assertTrue(Files.readAllLines(traces.resolve("PartyB.ndjson"), StandardCharsets.UTF_8).get(0).contains("\"serviceName\":\"PartyB\""));
+  }
+
+  private static boolean writerRunning(String serviceName) {
+    return Thread.getAllStackTraces().keySet().stream().anyMatch(it -> it.getName().equals("span-exporter-" + serviceName));
+  }
+}
@@ -0,0 +1,99 @@
+package com.finfabrik.corda.web;
+
+import com.finfabrik.corda.metrics.Metrics;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AdmissionControllerTests {
+
+  private final Metrics metrics = new Metrics("com.finfabrik.corda:type=Metrics,scope=AdmissionControllerTests");
+
+  @Test
+  public void rejectsWhenCounterpartyCapIsReachedAndQueueIsFull() throws Exception {
+    AdmissionController admission = new AdmissionController(10, 10, 1, 0, Duration.ofMillis(50), 2, metrics);
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<String> first = executor.submit(() -> admission.run("IssueFXForward", "O=B,L=London,C=GB", () -> {
+        running.countDown();
+        release.await();
+        return "first";
+      }));
+      running.await();
+
+      // A different counterparty is still admitted.
+      assertEquals("other", admission.run("IssueFXForward", "O=C,L=London,C=GB", () -> "other"));
+
+      try {
+        admission.run("IssueFXForward", "O=B,L=London,C=GB", () -> "second");
+        fail("Expected the second flow for the same counterparty to be rejected.");
+      } catch (AdmissionController.AdmissionRejectedException e) {
+        assertEquals(2, e.getRetryAfterSeconds());
+      }
+
+      release.countDown();
+      assertEquals("first", first.get());
+      assertEquals(1, metrics.count("admission.rejected.queueFull"));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void waitingOnABusyCounterpartyDoesNotHoldAGlobalPermit() throws Exception {
+    Metrics metrics = new Metrics("com.finfabrik.corda:type=Metrics,scope=AdmissionControllerTests.waiting");
+    AdmissionController admission = new AdmissionController(2, 10, 1, 1, Duration.ofSeconds(10), 1, metrics);
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(() -> admission.run("IssueFXForward", "O=B,L=London,C=GB", () -> {
+        running.countDown();
+        release.await();
+        return "first";
+      }));
+      running.await();
+      Future<String> queued = executor.submit(() -> admission.run("IssueFXForward", "O=B,L=London,C=GB", () -> "queued"));
+      while (metrics.getSnapshot().get("admission.queueDepth") < 1) {
+        Thread.sleep(10);
+      }
+
+      // The second global permit is still free for another counterparty.
+      assertEquals("other", admission.run("IssueFXForward", "O=C,L=London,C=GB", () -> "other"));
+
+      release.countDown();
+      assertEquals("first", first.get());
+      assertEquals("queued", queued.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void dropsCounterpartyPoolsOnceIdle() throws Exception {
+    Metrics metrics = new Metrics("com.finfabrik.corda:type=Metrics,scope=AdmissionControllerTests.idle");
+    AdmissionController admission = new AdmissionController(10, 10, 1, 0, Duration.ofMillis(50), 1, metrics);
+    for (int i = 0; i < 100; i++) {
+      admission.run("IssueFXForward", "O=Party" + i + ",L=London,C=GB", () -> "done");
+    }
+    try {
+      admission.run("IssueFXForward", "O=B,L=London,C=GB", () -> {
+        throw new IllegalStateException("flow failed");
+      });
+      fail("Expected the flow's failure to propagate.");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+
+    assertEquals(0L, (long) metrics.getSnapshot().get("admission.counterparties"));
+  }
+}
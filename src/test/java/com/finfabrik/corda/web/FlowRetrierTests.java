@@ -0,0 +1,171 @@
+package com.finfabrik.corda.web;
+
+import com.finfabrik.corda.metrics.Metrics;
+import net.corda.client.rpc.RPCException;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.crypto.DigitalSignature;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.crypto.SignedData;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.NotaryError;
+import net.corda.core.flows.NotaryException;
+import net.corda.core.flows.StateMachineRunId;
+import net.corda.core.flows.UnexpectedFlowEndException;
+import net.corda.core.node.services.UniquenessProvider;
+import net.corda.core.serialization.SerializedBytes;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class FlowRetrierTests {
+
+  private final Metrics metrics = new Metrics("com.finfabrik.corda:type=Metrics,scope=FlowRetrierTests");
+  private final FlowRetrier retrier = new FlowRetrier(3, Duration.ofMillis(1), Duration.ofMillis(5), metrics);
+  private final List<StateMachineRunId> started = new ArrayList<>();
+
+  @Test
+  public void transientFailuresAreRetriedUntilSuccess() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    String result = retrier.call("test", started::add, flow -> {
+      if (calls.incrementAndGet() < 3) {
+        throw new ExecutionException(new UnexpectedFlowEndException("counterparty went away"));
+      }
+      return "done";
+    });
+
+    assertEquals("done", result);
+    assertEquals(3, metrics.count("flow.test.attempts"));
+    assertEquals(2, metrics.count("flow.test.retries"));
+    assertEquals(1, metrics.count("flow.test.succeeded"));
+  }
+
+  @Test
+  public void fatalFailuresAreNotRetried() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    try {
+      retrier.call("fatal", started::add, flow -> {
+        calls.incrementAndGet();
+        throw new ExecutionException(new FlowException("FXForward with id x not found."));
+      });
+      fail("Expected the flow failure to propagate.");
+    } catch (FlowException e) {
+      assertEquals("FXForward with id x not found.", e.getMessage());
+    }
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void givesUpAfterMaxAttempts() throws Exception {
+    try {
+      retrier.call("exhausted", started::add, flow -> {
+        throw new UnexpectedFlowEndException("still gone");
+      });
+      fail("Expected retries to be exhausted.");
+    } catch (FlowRetrier.RetriesExhaustedException e) {
+      assertEquals(FlowRetrier.Failure.TRANSIENT, e.getFailure());
+      assertEquals(3, e.getAttempts());
+    }
+  }
+
+  @Test
+  public void notaryConflictIsAConflictWhereverItIsInTheCauses() {
+    assertEquals(FlowRetrier.Failure.CONFLICT, FlowRetrier.classify(conflict(), true));
+    assertEquals(FlowRetrier.Failure.CONFLICT,
+        FlowRetrier.classify(new FlowException("Settlement failed.", conflict()), true));
+  }
+
+  @Test
+  public void conflictsAreRetriedWithAFreshFlowEachTime() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    String result = retrier.call("conflict", started::add, flow -> {
+      flow.flowStarted(StateMachineRunId.Companion.createRandom());
+      if (calls.incrementAndGet() < 3) {
+        throw new ExecutionException(conflict());
+      }
+      return "settled";
+    });
+
+    assertEquals("settled", result);
+    assertEquals(3, started.size());
+    assertEquals(2, metrics.count("flow.conflict.conflicts"));
+    assertEquals(2, metrics.count("flow.conflict.retries"));
+  }
+
+  @Test
+  public void conflictThatOutlastsTheRetriesIsA409() throws Exception {
+    NotaryException conflict = conflict();
+    try {
+      retrier.call("lostRace", started::add, flow -> {
+        flow.flowStarted(StateMachineRunId.Companion.createRandom());
+        throw new ExecutionException(conflict);
+      });
+      fail("Expected retries to be exhausted.");
+    } catch (FlowRetrier.RetriesExhaustedException e) {
+      assertEquals(FlowRetrier.Failure.CONFLICT, e.getFailure());
+      assertEquals(3, e.getAttempts());
+      assertSame(conflict, e.getCause());
+      assertEquals(3, metrics.count("flow.lostRace.conflicts"));
+      assertEquals(1, metrics.count("flow.lostRace.exhausted"));
+
+      Response response = WebResponses.flowFailure(e);
+      assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+      assertEquals("1", response.getHeaderString("Retry-After"));
+    }
+  }
+
+  @Test
+  public void lostConnectionIsRetriedBeforeTheFlowStarts() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    String result = retrier.call("unstarted", started::add, flow -> {
+      if (calls.incrementAndGet() == 1) {
+        throw new RPCException("Connection to the node lost.");
+      }
+      flow.flowStarted(StateMachineRunId.Companion.createRandom());
+      return "settled";
+    });
+
+    assertEquals("settled", result);
+    assertEquals(1, metrics.count("flow.unstarted.transientFailures"));
+    assertEquals(1, started.size());
+  }
+
+  @Test
+  public void lostConnectionIsNotRetriedOnceTheFlowHasStarted() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    try {
+      retrier.call("started", started::add, flow -> {
+        calls.incrementAndGet();
+        flow.flowStarted(StateMachineRunId.Companion.createRandom());
+        throw new ExecutionException(new RPCException("Connection to the node lost."));
+      });
+      fail("Expected the transport failure to propagate.");
+    } catch (RPCException e) {
+      assertEquals(1, calls.get());
+      assertEquals(1, started.size());
+      assertEquals(1, metrics.count("flow.started.unknownOutcomes"));
+      assertEquals(0, metrics.count("flow.started.retries"));
+
+      // The flow may still commit, so the caller is not told to try again.
+      Response response = WebResponses.flowFailure(e);
+      assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+      assertNull(response.getHeaderString("Retry-After"));
+    }
+  }
+
+  private static NotaryException conflict() {
+    SignedData<UniquenessProvider.Conflict> signed = new SignedData<>(
+        new SerializedBytes<>(new byte[0]),
+        new DigitalSignature.WithKey(Crypto.generateKeyPair().getPublic(), new byte[0]));
+    return new NotaryException(new NotaryError.Conflict(SecureHash.randomSHA256(), signed));
+  }
+}
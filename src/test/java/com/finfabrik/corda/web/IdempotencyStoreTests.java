@@ -0,0 +1,138 @@
+package com.finfabrik.corda.web;
+
+import com.finfabrik.corda.metrics.Metrics;
+import net.corda.core.flows.StateMachineRunId;
+import org.junit.Test;
+
+import javax.ws.rs.core.Response;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class IdempotencyStoreTests {
+
+  private final Metrics metrics = new Metrics("com.finfabrik.corda:type=Metrics,scope=IdempotencyStoreTests");
+  private final IdempotencyStore store = new IdempotencyStore(100, Duration.ofMinutes(1), Duration.ofMillis(200), metrics);
+
+  @Test
+  public void duplicateKeyReturnsStoredResponseWithoutRunningAgain() {
+    AtomicInteger runs = new AtomicInteger();
+    Response first = store.execute("k1", "issue:1", submission -> {
+      runs.incrementAndGet();
+      return Response.status(Response.Status.CREATED).entity("booked").build();
+    });
+    Response second = store.execute("k1", "issue:1", submission -> {
+      runs.incrementAndGet();
+      return Response.status(Response.Status.CREATED).entity("booked again").build();
+    });
+
+    assertEquals(1, runs.get());
+    assertEquals(201, second.getStatus());
+    assertEquals(first.getEntity(), second.getEntity());
+    assertEquals("true", second.getHeaderString(IdempotencyStore.REPLAYED_HEADER));
+  }
+
+  @Test
+  public void failedOutcomesCanBeRetried() {
+    AtomicInteger runs = new AtomicInteger();
+    store.execute("k2", "settle:1", submission -> {
+      runs.incrementAndGet();
+      return Response.status(Response.Status.BAD_REQUEST).entity("no cash").build();
+    });
+    Response retried = store.execute("k2", "settle:1", submission -> {
+      runs.incrementAndGet();
+      return Response.status(Response.Status.CREATED).entity("settled").build();
+    });
+
+    assertEquals(2, runs.get());
+    assertEquals(201, retried.getStatus());
+  }
+
+  @Test
+  public void keyReusedWithDifferentParametersIsRejected() {
+    store.execute("k3", "issue:1", submission -> Response.status(Response.Status.CREATED).build());
+    Response reused = store.execute("k3", "issue:2", submission -> Response.status(Response.Status.CREATED).build());
+
+    assertEquals(422, reused.getStatus());
+  }
+
+  @Test
+  public void failureAfterTheFlowStartedIsKept() {
+    AtomicInteger runs = new AtomicInteger();
+    StateMachineRunId flowId = StateMachineRunId.Companion.createRandom();
+    Response first = store.execute("k4", "settle:2", submission -> {
+      runs.incrementAndGet();
+      submission.flowStarted(flowId);
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity("timed out").build();
+    });
+    Response repeated = store.execute("k4", "settle:2", submission -> {
+      runs.incrementAndGet();
+      return Response.status(Response.Status.CREATED).entity("settled twice").build();
+    });
+
+    // The flow may have committed, so the key must not start another one.
+    assertEquals(1, runs.get());
+    assertEquals(first.getStatus(), repeated.getStatus());
+    assertEquals(flowId.getUuid().toString(), repeated.getHeaderString(IdempotencyStore.FLOW_ID_HEADER));
+  }
+
+  @Test
+  public void repeatOfARunningRequestGivesUpAfterTheReplayWait() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Response> running = CompletableFuture.supplyAsync(() -> store.execute("k5", "issue:3", submission -> {
+      awaitQuietly(release);
+      return Response.status(Response.Status.CREATED).build();
+    }));
+    waitForEntries(metrics, 1);
+
+    Response repeated = store.execute("k5", "issue:3", submission -> Response.status(Response.Status.CREATED).build());
+    assertEquals(409, repeated.getStatus());
+    assertEquals("1", repeated.getHeaderString("Retry-After"));
+
+    release.countDown();
+    assertEquals(201, running.get(5, TimeUnit.SECONDS).getStatus());
+  }
+
+  @Test
+  public void completedKeysAreEvictedPastARunningOne() throws Exception {
+    Metrics smallMetrics = new Metrics("com.finfabrik.corda:type=Metrics,scope=IdempotencyStoreTests.small");
+    IdempotencyStore small = new IdempotencyStore(2, Duration.ofMinutes(1), Duration.ofMillis(200), smallMetrics);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Response> running = CompletableFuture.supplyAsync(() -> small.execute("eldest", "issue:4", submission -> {
+      awaitQuietly(release);
+      return Response.status(Response.Status.CREATED).build();
+    }));
+    waitForEntries(smallMetrics, 1);
+
+    for (int i = 0; i < 10; i++) {
+      small.execute("k" + i, "issue:" + i, submission -> Response.status(Response.Status.CREATED).build());
+    }
+    assertEquals(2, entries(smallMetrics));
+
+    release.countDown();
+    running.get(5, TimeUnit.SECONDS);
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void waitForEntries(Metrics metrics, long expected) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (entries(metrics) < expected && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static long entries(Metrics metrics) {
+    return metrics.getSnapshot().get("idempotency.entries");
+  }
+}
@@ -0,0 +1,95 @@
+package com.finfabrik.corda.web;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.NetworkMapCache;
+import net.corda.core.utilities.NetworkHostAndPort;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+import rx.subjects.PublishSubject;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PeerDirectoryTests {
+  private final NodeInfo london = node(new CordaX500Name("FinCo", "London", "GB"));
+  private final NodeInfo newYork = node(new CordaX500Name("FabBank", "New York", "US"));
+  private final List<NodeInfo> network = new ArrayList<>(ImmutableList.of(london));
+  private final List<PublishSubject<NetworkMapCache.MapChange>> feeds = new ArrayList<>();
+  private Runnable beforeSubscribing = () -> { };
+
+  @Test
+  public void exactMatchComparesNameAttributes() {
+    PeerDirectory directory = PeerDirectory.of(rpc());
+
+    assertEquals(ImmutableSet.of(london.getLegalIdentities().get(0)), directory.partiesFromName("FinCo", true));
+    assertEquals(ImmutableSet.of(london.getLegalIdentities().get(0)), directory.partiesFromName("London", true));
+    assertEquals(ImmutableSet.of(), directory.partiesFromName("finco", true));
+    assertEquals(ImmutableSet.of(), directory.partiesFromName(london.getLegalIdentities().get(0).getName().toString(), true));
+    assertEquals(ImmutableSet.of(london.getLegalIdentities().get(0)), directory.partiesFromName("finc", false));
+  }
+
+  @Test
+  public void keepsAChangeMadeBeforeTheSubscription() {
+    beforeSubscribing = () -> {
+      network.add(newYork);
+      feeds.get(0).onNext(new NetworkMapCache.MapChange.Added(newYork));
+    };
+
+    assertEquals(ImmutableList.of(london, newYork), PeerDirectory.of(rpc()).nodes());
+  }
+
+  @Test
+  public void followsChangesAndResubscribesAfterAFailure() {
+    PeerDirectory directory = PeerDirectory.of(rpc());
+    assertEquals(ImmutableList.of(london), directory.nodes());
+
+    network.add(newYork);
+    feeds.get(0).onNext(new NetworkMapCache.MapChange.Added(newYork));
+    assertEquals(ImmutableList.of(london, newYork), directory.nodes());
+
+    feeds.get(0).onError(new IllegalStateException("connection lost"));
+    network.remove(london);
+    assertEquals(ImmutableList.of(newYork), directory.nodes());
+    assertEquals(2, feeds.size());
+  }
+
+  private static NodeInfo node(CordaX500Name name) {
+    return new NodeInfo(ImmutableList.of(NetworkHostAndPort.parse("localhost:10002")),
+        ImmutableList.of(new TestIdentity(name).getIdentity()), 3, 1L);
+  }
+
+  /** A network map held in {@link #network}, with a feed per subscription the test drives. */
+  private CordaRPCOps rpc() {
+    return (CordaRPCOps) Proxy.newProxyInstance(CordaRPCOps.class.getClassLoader(), new Class<?>[]{CordaRPCOps.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "networkMapFeed":
+          PublishSubject<NetworkMapCache.MapChange> feed = PublishSubject.create();
+          feeds.add(feed);
+          List<NodeInfo> snapshot = new ArrayList<>(network);
+          // Changes published now are lost to a subscriber that has not subscribed yet.
+          beforeSubscribing.run();
+          beforeSubscribing = () -> { };
+          return new DataFeed<>(snapshot, feed);
+        case "networkMapSnapshot":
+          return new ArrayList<>(network);
+        case "notaryIdentities":
+          return Collections.emptyList();
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+}
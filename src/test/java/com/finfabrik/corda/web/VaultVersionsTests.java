@@ -0,0 +1,71 @@
+package com.finfabrik.corda.web;
+
+import com.finfabrik.corda.Token;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import org.junit.Test;
+import rx.subjects.PublishSubject;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VaultVersionsTests {
+  private final List<PublishSubject<Vault.Update<?>>> feeds = new ArrayList<>();
+  private final VaultVersions versions = VaultVersions.of(rpc());
+
+  @Test
+  public void versionMovesWithEveryUpdate() {
+    long before = versions.version(Token.class);
+    feeds.get(0).onNext(update());
+    feeds.get(0).onNext(update());
+
+    assertEquals(before + 2, versions.version(Token.class));
+    assertEquals(1, feeds.size());
+  }
+
+  @Test
+  public void versionKeepsMovingForwardAcrossAFeedFailure() {
+    versions.version(Token.class);
+    feeds.get(0).onNext(update());
+    long beforeFailure = versions.version(Token.class);
+
+    feeds.get(0).onError(new IllegalStateException("connection lost"));
+    long afterFailure = versions.version(Token.class);
+
+    // Resubscribed, and no tag issued before the failure can match again.
+    assertEquals(2, feeds.size());
+    assertTrue(afterFailure > beforeFailure);
+    feeds.get(1).onNext(update());
+    assertEquals(afterFailure + 1, versions.version(Token.class));
+  }
+
+  private static Vault.Update<?> update() {
+    return new Vault.Update<>(Collections.emptySet(), Collections.emptySet());
+  }
+
+  /** Answers each {@code vaultTrackBy} with an empty snapshot and a feed the test drives. */
+  private CordaRPCOps rpc() {
+    return (CordaRPCOps) Proxy.newProxyInstance(CordaRPCOps.class.getClassLoader(), new Class<?>[]{CordaRPCOps.class}, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "vaultTrackBy":
+          PublishSubject<Vault.Update<?>> feed = PublishSubject.create();
+          feeds.add(feed);
+          return new DataFeed<>(
+              new Vault.Page<>(Collections.emptyList(), Collections.emptyList(), 0L, Vault.StateStatus.ALL, Collections.emptyList()),
+              feed);
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+}